@@ -0,0 +1,55 @@
+package org.six11.util.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.six11.util.io.Base64;
+
+/**
+ * Base64 encoding and decoding of 'bytes' bytes of random data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Bench {
+
+  @Param( {
+      "1024", "65536", "1048576"
+  })
+  public int bytes;
+
+  private byte[] raw;
+  private String encoded;
+
+  @Setup
+  public void setup() {
+    raw = new byte[bytes];
+    new Random(5).nextBytes(raw);
+    encoded = Base64.encodeBytes(raw);
+  }
+
+  @Benchmark
+  public String encode() {
+    return Base64.encodeBytes(raw);
+  }
+
+  @Benchmark
+  public byte[] decode() throws IOException {
+    return Base64.decode(encoded);
+  }
+}
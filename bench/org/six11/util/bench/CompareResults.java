@@ -0,0 +1,83 @@
+package org.six11.util.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.six11.util.io.FileUtil;
+
+/**
+ * Compares two JMH result files written with "-rf json" (the bench target does this). For each
+ * benchmark and parameter combination found in both, it prints the two scores and how much better
+ * or worse the second run is. Throughput scores are better when higher, time scores when lower.
+ *
+ * Usage: CompareResults before.json after.json
+ */
+public class CompareResults {
+
+  public static void main(String[] args) throws JSONException {
+    if (args.length != 2) {
+      System.out.println("Usage: CompareResults before.json after.json");
+      System.exit(1);
+    }
+    Map<String, JSONObject> before = load(args[0]);
+    Map<String, JSONObject> after = load(args[1]);
+    List<String> keys = new ArrayList<String>(before.keySet());
+    Collections.sort(keys);
+    for (String key : keys) {
+      JSONObject a = before.get(key);
+      JSONObject b = after.get(key);
+      if (b == null) {
+        System.out.println(String.format("%-70s only in %s", key, args[0]));
+        continue;
+      }
+      double scoreA = a.getJSONObject("primaryMetric").getDouble("score");
+      double scoreB = b.getJSONObject("primaryMetric").getDouble("score");
+      String unit = b.getJSONObject("primaryMetric").getString("scoreUnit");
+      boolean higherIsBetter = "thrpt".equals(b.getString("mode"));
+      double gain = higherIsBetter ? (scoreB / scoreA) : (scoreA / scoreB);
+      String verdict = String.format("%.2fx %s", gain >= 1 ? gain : 1 / gain, gain >= 1 ? "better"
+          : "WORSE");
+      System.out.println(String.format("%-70s %12.3f %12.3f %-8s %s", key, scoreA, scoreB, unit,
+          verdict));
+    }
+    for (String key : after.keySet()) {
+      if (!before.containsKey(key)) {
+        System.out.println(String.format("%-70s only in %s", key, args[1]));
+      }
+    }
+  }
+
+  /**
+   * Reads a JMH JSON file into a map from "benchmark [param=value ...]" to the result object.
+   */
+  private static Map<String, JSONObject> load(String fileName) throws JSONException {
+    Map<String, JSONObject> ret = new LinkedHashMap<String, JSONObject>();
+    JSONArray results = new JSONArray(FileUtil.loadStringFromFile(new File(fileName)));
+    for (int i = 0; i < results.length(); i++) {
+      JSONObject result = results.getJSONObject(i);
+      String name = result.getString("benchmark");
+      name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1); // Class.method
+      StringBuilder key = new StringBuilder(name);
+      JSONObject params = result.optJSONObject("params");
+      if (params != null) {
+        List<String> paramNames = new ArrayList<String>();
+        for (String n : JSONObject.getNames(params)) {
+          paramNames.add(n);
+        }
+        Collections.sort(paramNames);
+        for (String n : paramNames) {
+          key.append(" " + n + "=" + params.getString(n));
+        }
+      }
+      ret.put(key.toString(), result);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,92 @@
+package org.six11.util.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.six11.util.Debug;
+import org.six11.util.math.ClusterThing;
+import org.six11.util.mesh.Mesh;
+import org.six11.util.pen.Pt;
+
+/**
+ * Mesh construction and one-dimensional clustering, each over 'size' inputs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBench {
+
+  @Param( {
+      "100", "500", "2000"
+  })
+  public int size;
+
+  private Pt[] cloud;
+  private Double[] values;
+
+  @Setup
+  public void setup() {
+    Debug.enabled = false; // Mesh reports every classification, which would swamp the timings
+    Random rand = new Random(11);
+    cloud = StrokeFixtures.makePointCloud(size, 1000, 11);
+    values = new Double[size];
+    for (int i = 0; i < size; i++) {
+      // a few lumps, like the lengths of segments in a sketch
+      values[i] = (rand.nextInt(5) + 1) * 40 + rand.nextGaussian() * 4;
+    }
+  }
+
+  /**
+   * Adds every point of the cloud to a new mesh, one at a time.
+   */
+  @Benchmark
+  public Mesh meshAddPoint() {
+    Mesh ret = new Mesh();
+    for (Pt pt : cloud) {
+      ret.addPoint(new Pt(pt.getX(), pt.getY()));
+    }
+    return ret;
+  }
+
+  /**
+   * Builds the same mesh in one go with Mesh.bulkLoad().
+   */
+  @Benchmark
+  public Mesh meshBulkLoad() {
+    List<Pt> points = new ArrayList<Pt>(cloud.length);
+    for (Pt pt : cloud) {
+      points.add(new Pt(pt.getX(), pt.getY()));
+    }
+    return Mesh.bulkLoad(points);
+  }
+
+  @Benchmark
+  public List<ClusterThing.Cluster<Double>> computeClusters() {
+    ClusterThing<Double> ct = new ClusterThing<Double>() {
+      public double query(Double v) {
+        return v;
+      }
+    };
+    for (Double v : values) {
+      ct.add(v);
+    }
+    ct.computeClusters();
+    return ct.getClusters(5);
+  }
+}
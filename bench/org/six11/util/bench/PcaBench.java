@@ -0,0 +1,58 @@
+package org.six11.util.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.six11.util.math.PCA;
+
+/**
+ * PCA over a table of 'rows' samples with 'dimensions' correlated columns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcaBench {
+
+  @Param( {
+      "100", "1000", "10000"
+  })
+  public int rows;
+
+  @Param( {
+      "2", "10"
+  })
+  public int dimensions;
+
+  private double[][] table;
+
+  @Setup
+  public void setup() {
+    Random rand = new Random(13);
+    table = new double[rows][dimensions];
+    for (int i = 0; i < rows; i++) {
+      double common = rand.nextGaussian();
+      for (int j = 0; j < dimensions; j++) {
+        table[i][j] = common * (j + 1) + rand.nextGaussian() * 0.5;
+      }
+    }
+  }
+
+  @Benchmark
+  public PCA pca() {
+    return new PCA(table);
+  }
+}
@@ -0,0 +1,80 @@
+package org.six11.util.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.six11.util.bench.StrokeFixtures.Shape;
+import org.six11.util.pen.Functions;
+import org.six11.util.pen.Pt;
+import org.six11.util.pen.Segment;
+import org.six11.util.pen.Sequence;
+
+/**
+ * Stroke processing in the pen package: resampling, nearest point, curvature and segment fitting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PenBench {
+
+  @Param( {
+      "100", "1000", "10000"
+  })
+  public int points;
+
+  @Param( {
+      "LINE", "ARC", "RECTANGLE", "SCRIBBLE"
+  })
+  public Shape shape;
+
+  private Sequence stroke;
+  private Pt probe;
+
+  @Setup
+  public void setup() {
+    stroke = StrokeFixtures.makeStroke(shape, points);
+    probe = new Pt(200, 150);
+  }
+
+  @Benchmark
+  public Sequence normalizedSequence() {
+    return Functions.getNormalizedSequence(stroke, 5.0);
+  }
+
+  @Benchmark
+  public Pt nearestPointOnSequence() {
+    return Functions.getNearestPointOnSequence(probe, stroke);
+  }
+
+  /**
+   * Sequence.calculateCurvature(int) prints a stack trace for every point (it is known to be
+   * broken), so this measures the Euclidean-window version instead.
+   */
+  @Benchmark
+  public double calculateCurvature() {
+    return stroke.calculateCurvatureEuclideanWindowSize(10.0);
+  }
+
+  /**
+   * Fits a line, an arc and a spline to the whole stroke, which is what the segmenter does for
+   * each candidate segment.
+   */
+  @Benchmark
+  public Segment segmentFit() {
+    return new Segment(stroke.getFirst(), stroke.getLast(), stroke, true, true, true, 10.0, 1.0,
+        1.0, 1.0);
+  }
+}
@@ -0,0 +1,125 @@
+package org.six11.util.bench;
+
+import java.util.Random;
+
+import org.six11.util.pen.Pt;
+import org.six11.util.pen.Sequence;
+
+/**
+ * Makes repeatable pen strokes for the benchmarks. Each stroke is sampled the way a tablet reports
+ * it: at a fixed rate (100 Hz), with the pen slowing down at corners and sharp turns, and with a
+ * little positional jitter. The same shape, size and seed always give the same points.
+ */
+public abstract class StrokeFixtures {
+
+  public static enum Shape {
+    /**
+     * A nearly straight line with a slight wobble.
+     */
+    LINE,
+    /**
+     * Most of a circle.
+     */
+    ARC,
+    /**
+     * A rectangle drawn in one stroke, so there are four slow corners.
+     */
+    RECTANGLE,
+    /**
+     * A loopy cursive-like scribble that crosses itself many times.
+     */
+    SCRIBBLE
+  }
+
+  public static final long DEFAULT_SEED = 2012L;
+  private static final long SAMPLE_MILLIS = 10;
+  private static final double JITTER = 0.4;
+
+  /**
+   * Returns a stroke of the given shape with n points, about 'size' pixels across.
+   */
+  public static Sequence makeStroke(Shape shape, int n, double size, long seed) {
+    Random rand = new Random(seed);
+    Sequence ret = new Sequence();
+    long t = 0;
+    for (int i = 0; i < n; i++) {
+      double u = (n > 1) ? (double) i / (n - 1) : 0.0;
+      double[] xy = locate(shape, ease(shape, u), size);
+      ret.add(new Pt(xy[0] + rand.nextGaussian() * JITTER, xy[1] + rand.nextGaussian() * JITTER, t));
+      t += SAMPLE_MILLIS;
+    }
+    return ret;
+  }
+
+  public static Sequence makeStroke(Shape shape, int n) {
+    return makeStroke(shape, n, 400, DEFAULT_SEED);
+  }
+
+  /**
+   * Returns count random points spread over a square 'size' pixels across, for things that work on
+   * point sets rather than strokes (like Mesh).
+   */
+  public static Pt[] makePointCloud(int count, double size, long seed) {
+    Random rand = new Random(seed);
+    Pt[] ret = new Pt[count];
+    for (int i = 0; i < count; i++) {
+      ret[i] = new Pt(rand.nextDouble() * size, rand.nextDouble() * size, i * SAMPLE_MILLIS);
+    }
+    return ret;
+  }
+
+  /**
+   * Maps even time u in [0, 1] to the fraction of the shape covered by then. The pen slows down
+   * near the corners of a rectangle, which packs more samples there, as real ink does.
+   */
+  private static double ease(Shape shape, double u) {
+    double ret = u;
+    if (shape == Shape.RECTANGLE) {
+      double side = Math.min(3, Math.floor(u * 4));
+      double f = u * 4 - side;
+      ret = (side + (1 - Math.cos(f * Math.PI)) / 2) / 4;
+    }
+    return ret;
+  }
+
+  private static double[] locate(Shape shape, double s, double size) {
+    double x = 0;
+    double y = 0;
+    switch (shape) {
+      case LINE:
+        x = s * size;
+        y = Math.sin(s * Math.PI * 3) * size * 0.01;
+        break;
+      case ARC:
+        double theta = s * Math.PI * 1.8;
+        x = size / 2 + Math.cos(theta) * size / 2;
+        y = size / 2 + Math.sin(theta) * size / 2;
+        break;
+      case RECTANGLE:
+        double side = Math.min(3, Math.floor(s * 4));
+        double f = s * 4 - side;
+        double w = size;
+        double h = size * 0.6;
+        if (side == 0) {
+          x = f * w;
+        } else if (side == 1) {
+          x = w;
+          y = f * h;
+        } else if (side == 2) {
+          x = w - f * w;
+          y = h;
+        } else {
+          y = h - f * h;
+        }
+        break;
+      case SCRIBBLE:
+        double loops = 12;
+        x = s * size + Math.cos(s * loops * 2 * Math.PI) * size / 12;
+        y = size / 4 + Math.sin(s * loops * 2 * Math.PI) * size / 8 + Math.sin(s * 5) * size / 10;
+        break;
+    }
+    return new double[] {
+        x, y
+    };
+  }
+}
@@ -0,0 +1,93 @@
+package org.six11.util.solve;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.six11.util.pen.Pt;
+
+/**
+ * How fast ConstraintSolver relaxes a system that is far from solved. The fixture is a closed
+ * polygon of 'points' vertices with a distance constraint on every side, an angle constraint at
+ * every other vertex and the first vertex pinned. Each measured operation puts the points back at
+ * their jittered start and runs STEPS steps, so every operation does the same unconverged work.
+ * This lives in the solve package so it can call the solver's step directly, without the
+ * background thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolverBench {
+
+  /**
+   * Steps per measured operation. Few enough that even the small fixtures are still moving.
+   */
+  public static final int STEPS = 20;
+
+  @Param( {
+      "10", "50", "200"
+  })
+  public int points;
+
+  private ConstraintSolver solver;
+  private Pt[] pts;
+  private double[] startX;
+  private double[] startY;
+
+  @Setup(Level.Trial)
+  public void build() {
+    Random rand = new Random(7);
+    solver = new ConstraintSolver();
+    pts = new Pt[points];
+    startX = new double[points];
+    startY = new double[points];
+    double radius = 20.0 * points / Math.PI;
+    for (int i = 0; i < points; i++) {
+      double theta = 2 * Math.PI * i / points;
+      startX[i] = 400 + radius * Math.cos(theta) + rand.nextGaussian() * 10;
+      startY[i] = 400 + radius * Math.sin(theta) + rand.nextGaussian() * 10;
+      pts[i] = new Pt(startX[i], startY[i]);
+      solver.addPoint("p" + i, pts[i]);
+    }
+    for (int i = 0; i < points; i++) {
+      solver.addConstraint(new DistanceConstraint(pts[i], pts[(i + 1) % points], new NumericValue(
+          40)));
+      if (i % 2 == 1) {
+        double interior = Math.PI - 2 * Math.PI / points;
+        solver.addConstraint(new AngleConstraint(pts[i - 1], pts[i], pts[(i + 1) % points],
+            new NumericValue(interior)));
+      }
+    }
+    solver.addConstraint(new LocationConstraint(pts[0], new Pt(startX[0], startY[0])));
+  }
+
+  /**
+   * Puts the points back where they started and runs a fixed number of steps. The reset is part of
+   * the measurement, but it is one pass over the points against STEPS passes over the constraints.
+   */
+  @Benchmark
+  public double solveFromStart() {
+    for (int i = 0; i < points; i++) {
+      pts[i].setLocation(startX[i], startY[i]);
+    }
+    double ret = Double.MAX_VALUE;
+    for (int i = 0; i < STEPS; i++) {
+      ret = solver.step(ret, 1.0);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,78 @@
+package org.six11.util.data;
+
+/**
+ * Like Statistics, but it doesn't keep the data around. Each value updates the count, sum, min, max,
+ * mean and variance in constant time (using Welford's method for the variance), so asking for them
+ * never costs more as the data grows. There is no median because that would require keeping the
+ * data.
+ */
+public class RunningStatistics {
+
+  private int n;
+  private double sum;
+  private double mean;
+  private double m2; // sum of squared differences from the current mean
+  private double min;
+  private double max;
+
+  public RunningStatistics() {
+    clear();
+  }
+
+  public void clear() {
+    n = 0;
+    sum = 0.0;
+    mean = 0.0;
+    m2 = 0.0;
+    min = Double.MAX_VALUE;
+    max = -Double.MAX_VALUE;
+  }
+
+  public void addData(double d) {
+    n++;
+    sum += d;
+    double delta = d - mean;
+    mean += delta / n;
+    m2 += delta * (d - mean);
+    min = Math.min(min, d);
+    max = Math.max(max, d);
+  }
+
+  public int getN() {
+    return n;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  /**
+   * Returns the sum of squared differences from the mean, which is what Statistics calls variation.
+   */
+  public double getVariation() {
+    return m2;
+  }
+
+  /**
+   * Returns the population variance, to match Statistics.getVariance().
+   */
+  public double getVariance() {
+    return (n > 0) ? m2 / n : 0.0;
+  }
+
+  public double getStdDev() {
+    return Math.sqrt(getVariance());
+  }
+}
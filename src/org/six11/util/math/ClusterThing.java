@@ -1,13 +1,17 @@
 package org.six11.util.math;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.TreeSet;
 
 import static java.lang.Math.abs;
 import static org.six11.util.Debug.num;
@@ -21,7 +25,8 @@ public abstract class ClusterThing<T> {
 
   public static class Cluster<T> {
 
-    // a compound cluster has some samples inside it, kept in an array.
+    // a compound cluster has some samples inside it, kept in an array. Clusters made by the sorted
+    // builder leave this null until someone asks for the members.
     List<T> points;
 
     // cluster has center: center of mass of samples.
@@ -62,10 +67,24 @@ public abstract class ClusterThing<T> {
       this.a = clusterA;
       this.b = clusterB;
       List<T> samps = new ArrayList<T>(); // combine data from both clusters
-      samps.addAll(a.points);
-      samps.addAll(b.points);
+      samps.addAll(a.getPoints());
+      samps.addAll(b.getPoints());
       build(rank, samps);
     }
+
+    // Used by the sorted builder, which has already worked out everything but the member list.
+    private Cluster(int rank, Cluster<T> clusterA, Cluster<T> clusterB, ClusterThing<T> ct,
+        double center, T exemplar, T minimum, T maximum, double radius) {
+      this.ct = ct;
+      this.rank = rank;
+      this.a = clusterA;
+      this.b = clusterB;
+      this.center = center;
+      this.exemplar = exemplar;
+      this.minimum = minimum;
+      this.maximum = maximum;
+      this.radius = radius;
+    }
     
     public String toString() {
       return "Cluster[center=" + num(center) + ", exemplar=" + num(ct.query(exemplar)) + ", radius=" + num(radius) + "]";
@@ -88,7 +107,28 @@ public abstract class ClusterThing<T> {
     }
     
     public List<T> getMembers() {
-      return new ArrayList<T>(points);
+      return new ArrayList<T>(getPoints());
+    }
+
+    // The samples, A's and then B's, putting the list together from the children if it isn't
+    // there yet. The tree can be as deep as there are samples, so this doesn't recurse.
+    private List<T> getPoints() {
+      if (points == null) {
+        List<T> list = new ArrayList<T>();
+        Stack<Cluster<T>> todo = new Stack<Cluster<T>>();
+        todo.push(this);
+        while (!todo.isEmpty()) {
+          Cluster<T> cluster = todo.pop();
+          if (cluster.points != null) {
+            list.addAll(cluster.points);
+          } else {
+            todo.push(cluster.b);
+            todo.push(cluster.a);
+          }
+        }
+        points = list;
+      }
+      return points;
     }
 
     private final void build(int rank, Collection<T> samps) {
@@ -204,46 +244,521 @@ public abstract class ClusterThing<T> {
     samples.add(s);
   }
 
+  /**
+   * Builds the cluster hierarchy by repeatedly merging the two closest clusters, closest meaning
+   * their exemplars' query values are nearest. When several pairs are equally close, the pair whose
+   * clusters were made first is merged.
+   * 
+   * The query values lie on a line, so the closest two clusters are always next to each other in
+   * exemplar order (equal exemplars are put in the order their clusters were made). The clusters
+   * are kept in that order and the gaps between neighbors in a priority queue, so finding each
+   * merge takes a few log n steps rather than a look at every pair.
+   * 
+   * When no two samples have the same query value, every cluster is a run of neighboring samples in
+   * sorted order, and the hierarchy is built by mergeSorted(), which keeps only arrays and doesn't
+   * copy member lists. Otherwise clusters can interleave and mergeNeighbors() is used.
+   */
   public void computeClusters() {
-    List<Cluster<T>> remainingClusters = new ArrayList<Cluster<T>>();
     rankedClusters.clear();
-    for (T s : samples) {
-      Cluster<T> cluster = new Cluster<T>(s, this);
-      remainingClusters.add(cluster);
+    List<T> ordered = new ArrayList<T>(samples);
+    double[] values = new double[ordered.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = query(ordered.get(i));
+    }
+    int[] byValue = sortedOrder(values);
+    boolean distinct = true;
+    for (int i = 1; distinct && i < byValue.length; i++) {
+      // also false for NaN, and for 0 next to -0
+      distinct = values[byValue[i - 1]] < values[byValue[i]];
+    }
+    if (distinct) {
+      mergeSorted(ordered, values, byValue);
+    } else {
+      mergeNeighbors(ordered, values);
+    }
+  }
+
+  private void mergeNeighbors(List<T> ordered, double[] values) {
+    TreeSet<Node<T>> line = new TreeSet<Node<T>>();
+    PriorityQueue<Gap<T>> gaps = new PriorityQueue<Gap<T>>();
+    int nextOrder = 0;
+    for (int i = 0; i < values.length; i++) {
+      Cluster<T> cluster = new Cluster<T>(ordered.get(i), this);
       rankedClusters.add(cluster);
+      line.add(new Node<T>(cluster, values[i], nextOrder++));
+    }
+    for (Node<T> node : line) {
+      addGap(node, line.higher(node), gaps);
+    }
+    List<Cluster<T>> merged = new ArrayList<Cluster<T>>();
+    int nextRank = 1;
+    while (!gaps.isEmpty()) {
+      Gap<T> gap = gaps.poll();
+      if (gap.low.alive && gap.high.alive && line.higher(gap.low) == gap.high) {
+        Node<T> first = (gap.low.order < gap.high.order) ? gap.low : gap.high;
+        Node<T> second = (first == gap.low) ? gap.high : gap.low;
+        Cluster<T> ab = new Cluster<T>(nextRank, first.cluster, second.cluster, this);
+        nextRank++;
+        merged.add(ab);
+        // the clusters on either side of the pair become neighbors...
+        Node<T> before = line.lower(gap.low);
+        Node<T> after = line.higher(gap.high);
+        line.remove(gap.low);
+        line.remove(gap.high);
+        gap.low.alive = false;
+        gap.high.alive = false;
+        addGap(before, after, gaps);
+        // ...until the new cluster goes in, wherever its exemplar puts it.
+        Node<T> node = new Node<T>(ab, query(ab.exemplar), nextOrder++);
+        line.add(node);
+        addGap(line.lower(node), node, gaps);
+        addGap(node, line.higher(node), gaps);
+      }
+    }
+    // the last merge is the root, and ranks first
+    Collections.reverse(merged);
+    rankedClusters.addAll(0, merged);
+  }
+
+  /**
+   * Returns the indexes of the values in order of increasing value. Each value's bits are packed
+   * with its index into a long, so Arrays.sort(long[]) does the work: the index takes the low bits,
+   * and values that only differ in those low bits come out in index order and are sorted again.
+   */
+  private static int[] sortedOrder(double[] values) {
+    int n = values.length;
+    int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(n - 1));
+    long low = (1L << bits) - 1;
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = (getSortable(values[i]) & ~low) | i;
+    }
+    Arrays.sort(keys);
+    int start = 0;
+    while (start < n) {
+      int stop = start + 1;
+      while (stop < n && (keys[stop] & ~low) == (keys[start] & ~low)) {
+        stop++;
+      }
+      if (stop - start > 1) {
+        long[] run = new long[stop - start];
+        for (int j = 0; j < run.length; j++) {
+          int i = (int) (keys[start + j] & low);
+          run[j] = ((getSortable(values[i]) & low) << bits) | i;
+        }
+        Arrays.sort(run);
+        for (int j = 0; j < run.length; j++) {
+          keys[start + j] = run[j];
+        }
+      }
+      start = stop;
+    }
+    int[] ret = new int[n];
+    for (int j = 0; j < n; j++) {
+      ret[j] = (int) (keys[j] & low);
     }
+    return ret;
+  }
+
+  /**
+   * A long that sorts the way the double does.
+   */
+  private static long getSortable(double v) {
+    long ret = Double.doubleToLongBits(v);
+    if (ret < 0) {
+      ret = ret ^ Long.MAX_VALUE;
+    }
+    return ret;
+  }
+
+  /**
+   * Builds the same hierarchy as mergeNeighbors() for samples whose query values are all different.
+   * The clusters' exemplars are then in the same order as the clusters themselves, so a cluster is
+   * a run start..end[start] of the sorted values, its neighbors are the runs just before and after
+   * it, and merging two neighbors makes a longer run. Runs and the gaps between them are kept in
+   * arrays indexed by where the run starts.
+   * 
+   * A new cluster's exemplar is the member on one side or the other of its center, found by binary
+   * search. The Cluster constructor sums the members one at a time, first's and then second's.
+   * That sum is carried along as long as each merge adds a single sample to the end; after that
+   * the center is the sum of the two halves' sums, which can be off in the last bits. When that
+   * could change which member is closest, the cluster is built by the constructor instead.
+   */
+  private void mergeSorted(List<T> ordered, double[] values, int[] byValue) {
+    int n = byValue.length;
+    double[] sorted = new double[n];
+    List<T> sortedSamples = new ArrayList<T>(n);
+    List<Cluster<T>> runs = new ArrayList<Cluster<T>>(n);
+    int[] end = new int[n]; // last index of the run starting at i
+    int[] before = new int[n]; // start of the run before the one starting at i, or -1
+    int[] order = new int[n]; // when the run's cluster was made
+    double[] sum = new double[n]; // of the run's values
+    boolean[] inTurn = new boolean[n]; // is sum the one the Cluster constructor gets?
+    double[] absSum = new double[n]; // of their absolute values
+    double[] exemplar = new double[n]; // the run's exemplar's value
+    List<Cluster<T>> leaves = new ArrayList<Cluster<T>>(Collections.<Cluster<T>> nCopies(n, null));
+    for (int k = 0; k < n; k++) {
+      int i = byValue[k];
+      T s = ordered.get(i);
+      // this is what Cluster(T, ClusterThing) makes, without building its lists
+      double center = (0 + values[i]) / 1;
+      Cluster<T> cluster = new Cluster<T>(0, null, null, this, center, s, s, s,
+          abs(values[i] - center));
+      cluster.points = Collections.singletonList(s);
+      leaves.set(i, cluster);
+      sorted[k] = values[i];
+      sortedSamples.add(s);
+      runs.add(cluster);
+      end[k] = k;
+      before[k] = k - 1;
+      order[k] = i;
+      sum[k] = center;
+      inTurn[k] = true;
+      absSum[k] = abs(values[i]);
+      exemplar[k] = values[i];
+    }
+    rankedClusters.addAll(leaves);
+    GapHeap gaps = new GapHeap(n);
+    for (int i = 0; i + 1 < n; i++) {
+      setGap(i, end, order, exemplar, gaps);
+    }
+    List<Cluster<T>> merged = new ArrayList<Cluster<T>>(n);
+    int nextOrder = n;
     int nextRank = 1;
-    while (remainingClusters.size() > 1) {
-      merge(nextRank, remainingClusters);
+    while (!gaps.isEmpty()) {
+      int lo = gaps.peek();
+      int mid = end[lo] + 1;
+      int hi = end[mid];
+      boolean lowFirst = order[lo] < order[mid];
+      Cluster<T> first = runs.get(lowFirst ? lo : mid);
+      Cluster<T> second = runs.get(lowFirst ? mid : lo);
+      int secondStart = lowFirst ? mid : lo;
+      if (inTurn[lowFirst ? lo : mid] && end[secondStart] == secondStart) {
+        sum[lo] = sum[lowFirst ? lo : mid] + sorted[secondStart];
+        inTurn[lo] = true;
+      } else {
+        sum[lo] = sum[lo] + sum[mid];
+        inTurn[lo] = false;
+      }
+      absSum[lo] = absSum[lo] + absSum[mid];
+      Cluster<T> ab = makeCluster(nextRank, first, second, sortedSamples, sorted, lo, hi, sum[lo],
+          absSum[lo], inTurn[lo]);
       nextRank++;
+      merged.add(ab);
+      runs.set(lo, ab);
+      runs.set(mid, null);
+      end[lo] = hi;
+      order[lo] = nextOrder++;
+      exemplar[lo] = query(ab.exemplar);
+      gaps.remove(mid);
+      if (hi + 1 < n) {
+        before[hi + 1] = lo;
+        setGap(lo, end, order, exemplar, gaps);
+      } else {
+        gaps.remove(lo);
+      }
+      if (before[lo] >= 0) {
+        setGap(before[lo], end, order, exemplar, gaps);
+      }
     }
+    // the last merge is the root, and ranks first
+    Collections.reverse(merged);
+    rankedClusters.addAll(0, merged);
   }
 
-  private void merge(int nextRank, List<Cluster<T>> remainingClusters) {
-    // one iteration of the clustering algorithm. Determine which two clusters are the closest, call
-    // them (a) and (b). Make a new cluster (ab), remove (a) and (b) individually from the
-    // remainingClusters list, and add (ab).
-    double nearestDist = Double.MAX_VALUE;
-    Cluster<T> nearestA = null;
-    Cluster<T> nearestB = null;
-    for (int i = 0; i < remainingClusters.size(); i++) {
-      Cluster<T> a = remainingClusters.get(i);
-      for (int j = i + 1; j < remainingClusters.size(); j++) {
-        Cluster<T> b = remainingClusters.get(j);
-        double thisDist = a.dist(b);
-        if (thisDist < nearestDist) {
-          nearestDist = thisDist;
-          nearestA = a;
-          nearestB = b;
+  /**
+   * Puts the gap between the run starting at lo and the run after it into the heap, or moves it.
+   */
+  private static void setGap(int lo, int[] end, int[] order, double[] exemplar, GapHeap gaps) {
+    int hi = end[lo] + 1;
+    gaps.set(lo, abs(exemplar[hi] - exemplar[lo]), Math.min(order[lo], order[hi]),
+        Math.max(order[lo], order[hi]));
+  }
+
+  /**
+   * Makes the cluster of the sorted samples lo..hi out of first and second, given the sum of their
+   * values, the sum of their absolute values, and whether the first sum was added up in turn.
+   */
+  private Cluster<T> makeCluster(int rank, Cluster<T> first, Cluster<T> second,
+      List<T> sortedSamples, double[] sorted, int lo, int hi, double sum, double absSum,
+      boolean inTurn) {
+    Cluster<T> ret = null;
+    double center = sum / (hi - lo + 1);
+    // k is the first member at or above the center
+    int k = lo;
+    int top = hi + 1;
+    while (k < top) {
+      int m = (k + top) >>> 1;
+      if (sorted[m] >= center) {
+        top = m;
+      } else {
+        k = m + 1;
+      }
+    }
+    int closest = -1;
+    if (inTurn) {
+      closest = getClosest(first, second, sorted, lo, hi, k, center);
+    } else if (k > lo && k <= hi && isClear(sorted, lo, hi, k, center, absSum)) {
+      closest = (sorted[k] - center < center - sorted[k - 1]) ? k : k - 1;
+    }
+    if (closest >= 0) {
+      double radius = Math.max(abs(sorted[lo] - center), abs(sorted[hi] - center));
+      ret = new Cluster<T>(rank, first, second, this, center, sortedSamples.get(closest),
+          sortedSamples.get(lo), sortedSamples.get(hi), radius);
+    } else {
+      ret = new Cluster<T>(rank, first, second, this);
+    }
+    return ret;
+  }
+
+  /**
+   * Picks the exemplar the way the Cluster constructor does, given the same center: the member
+   * nearest to it, or of two equally near, the one listed first. Returns -1 if a member beyond
+   * k - 1 and k is just as near, which rounding the distances can do.
+   */
+  private int getClosest(Cluster<T> first, Cluster<T> second, double[] sorted, int lo, int hi,
+      int k, double center) {
+    int ret = -1;
+    if (k == lo) {
+      ret = lo;
+    } else if (k > hi) {
+      ret = hi;
+    } else {
+      double below = abs(sorted[k - 1] - center);
+      double above = abs(sorted[k] - center);
+      if (below < above) {
+        ret = k - 1;
+      } else if (above < below) {
+        ret = k;
+      } else {
+        ret = isListedFirst(first, second, sorted[k - 1]) ? k - 1 : k;
+      }
+    }
+    double d = abs(sorted[ret] - center);
+    if ((k - 2 >= lo && abs(sorted[k - 2] - center) == d)
+        || (k + 1 <= hi && abs(sorted[k + 1] - center) == d)) {
+      ret = -1;
+    }
+    return ret;
+  }
+
+  /**
+   * Does the member with value v come before the next larger member in a cluster made of a and b?
+   * It does if the two are split between children at some level and v's side is listed first.
+   */
+  private boolean isListedFirst(Cluster<T> a, Cluster<T> b, double v) {
+    boolean ret = false;
+    boolean found = false;
+    while (!found) {
+      boolean aLow = query(a.minimum) < query(b.minimum);
+      Cluster<T> low = aLow ? a : b;
+      Cluster<T> high = aLow ? b : a;
+      double lowTop = query(low.maximum);
+      if (lowTop == v) {
+        found = true;
+        ret = aLow;
+      } else if (lowTop > v) {
+        a = low.a;
+        b = low.b;
+      } else {
+        a = high.a;
+        b = high.b;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Is the member closest to the center the same whichever order the members are summed in? The
+   * center found by adding them up one at a time and the one found by adding sums together are
+   * both within a few rounding errors of the true mean, which bounds the difference at a few units
+   * of 2^-53 times the sum of absolute values. The members either side of the center (k - 1 and k)
+   * must be further than that from it, their distances must differ by more than twice that, and
+   * each must be clearly closer than the member beyond it so that rounding the distances can't tie
+   * them.
+   */
+  private static boolean isClear(double[] sorted, int lo, int hi, int k, double center,
+      double absSum) {
+    double slack = 0x1p-50 * (absSum + abs(center));
+    double below = sorted[k - 1];
+    double above = sorted[k];
+    boolean ret = below < center - slack && above > center + slack
+        && abs((center - below) - (above - center)) > 2 * slack + 0x1p-50 * (above - below);
+    if (ret && k - 2 >= lo) {
+      ret = below - sorted[k - 2] > 0x1p-50 * (abs(center) + abs(sorted[k - 2]));
+    }
+    if (ret && k + 1 <= hi) {
+      ret = sorted[k + 1] - above > 0x1p-50 * (abs(center) + abs(sorted[k + 1]));
+    }
+    return ret;
+  }
+
+  private static <T> void addGap(Node<T> low, Node<T> high, Queue<Gap<T>> gaps) {
+    if (low != null && high != null) {
+      gaps.add(new Gap<T>(low, high));
+    }
+  }
+
+  /**
+   * A cluster waiting to be merged, with its exemplar's query value and a number saying when it was
+   * made. Nodes sort by value, then by that number.
+   */
+  private static class Node<T> implements Comparable<Node<T>> {
+    Cluster<T> cluster;
+    double value;
+    int order;
+    boolean alive = true;
+
+    Node(Cluster<T> cluster, double value, int order) {
+      this.cluster = cluster;
+      this.value = value;
+      this.order = order;
+    }
+
+    public int compareTo(Node<T> other) {
+      int ret = 0;
+      if (value < other.value) {
+        ret = -1;
+      } else if (value > other.value) {
+        ret = 1;
+      } else if (order != other.order) {
+        ret = (order < other.order) ? -1 : 1;
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * Two neighboring nodes and the distance between them. Gaps sort by distance, then by when the
+   * two clusters were made, which is the order the all-pairs search would find them in.
+   */
+  private static class Gap<T> implements Comparable<Gap<T>> {
+    Node<T> low, high;
+    double dist;
+    int firstOrder, secondOrder;
+
+    Gap(Node<T> low, Node<T> high) {
+      this.low = low;
+      this.high = high;
+      this.dist = abs(high.value - low.value);
+      this.firstOrder = Math.min(low.order, high.order);
+      this.secondOrder = Math.max(low.order, high.order);
+    }
+
+    public int compareTo(Gap<T> other) {
+      int ret = Double.compare(dist, other.dist);
+      if (ret == 0) {
+        ret = (firstOrder != other.firstOrder) ? (firstOrder < other.firstOrder ? -1 : 1)
+            : (secondOrder < other.secondOrder ? -1 : (secondOrder > other.secondOrder ? 1 : 0));
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * The gaps used by mergeSorted(), as a heap of ints where each node has four children. A gap is
+   * known by the start of the run on its low side, and gaps sort the same way Gap does. Gaps can be
+   * moved or removed, since a merge changes its neighbors' gaps rather than making new ones. The
+   * sort keys are kept by heap position, next to each other, rather than by gap.
+   */
+  private static class GapHeap {
+    double[] dist;
+    int[] firstOrder, secondOrder;
+    int[] heap; // gaps, in heap order
+    int[] place; // where each gap is in the heap, or -1
+    int size;
+
+    GapHeap(int n) {
+      dist = new double[n];
+      firstOrder = new int[n];
+      secondOrder = new int[n];
+      heap = new int[n];
+      place = new int[n];
+      Arrays.fill(place, -1);
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void set(int gap, double d, int first, int second) {
+      int i = place[gap];
+      if (i < 0) {
+        i = size;
+        size++;
+      }
+      put(i, gap, d, first, second);
+      up(i);
+      down(place[gap]);
+    }
+
+    int peek() {
+      return heap[0];
+    }
+
+    void remove(int gap) {
+      int i = place[gap];
+      if (i >= 0) {
+        place[gap] = -1;
+        size--;
+        if (i < size) {
+          int last = heap[size];
+          put(i, last, dist[size], firstOrder[size], secondOrder[size]);
+          up(i);
+          down(place[last]);
+        }
+      }
+    }
+
+    private void put(int i, int gap, double d, int first, int second) {
+      heap[i] = gap;
+      dist[i] = d;
+      firstOrder[i] = first;
+      secondOrder[i] = second;
+      place[gap] = i;
+    }
+
+    // distances here are never NaN or -0, so they compare as Double.compare() would
+    private boolean less(int i, int j) {
+      boolean ret = dist[i] < dist[j];
+      if (dist[i] == dist[j]) {
+        ret = (firstOrder[i] != firstOrder[j]) ? firstOrder[i] < firstOrder[j]
+            : secondOrder[i] < secondOrder[j];
+      }
+      return ret;
+    }
+
+    private void up(int i) {
+      while (i > 0 && less(i, (i - 1) / 4)) {
+        swap(i, (i - 1) / 4);
+        i = (i - 1) / 4;
+      }
+    }
+
+    private void down(int i) {
+      boolean moved = true;
+      while (moved) {
+        int smallest = i;
+        for (int c = 4 * i + 1; c <= 4 * i + 4 && c < size; c++) {
+          if (less(c, smallest)) {
+            smallest = c;
+          }
+        }
+        moved = (smallest != i);
+        if (moved) {
+          swap(i, smallest);
+          i = smallest;
         }
       }
     }
-    if (nearestA != null && nearestB != null) {
-      Cluster<T> ab = new Cluster<T>(nextRank, nearestA, nearestB, this);
-      rankedClusters.add(0, ab);
-      remainingClusters.remove(nearestA);
-      remainingClusters.remove(nearestB);
-      remainingClusters.add(ab);
+
+    private void swap(int i, int j) {
+      int g = heap[i];
+      double d = dist[i];
+      int first = firstOrder[i];
+      int second = secondOrder[i];
+      put(i, heap[j], dist[j], firstOrder[j], secondOrder[j]);
+      put(j, g, d, first, second);
     }
   }
 
@@ -259,7 +774,13 @@ public abstract class ClusterThing<T> {
     return samples.size();
   }
 
+  /**
+   * Walks down from the root, keeping each cluster whose exemplar is nearer to t than the last one
+   * kept, and looking inside only those. Every cluster looked at is either kept or the child of one
+   * that was, so the walk costs about as much as the list it returns.
+   */
   public List<Cluster<T>> search(T t) {
+    double value = query(t);
     double worstScore = Double.MAX_VALUE;
     List<Cluster<T>> ret = new ArrayList<Cluster<T>>();
     Stack<Cluster<T>> todo = new Stack<Cluster<T>>();
@@ -267,7 +788,7 @@ public abstract class ClusterThing<T> {
     int numAvoided = 0;
     while (!todo.isEmpty()) {
       Cluster<T> cluster = todo.pop();
-      double dist = abs(query(t) - query(cluster.exemplar));
+      double dist = abs(value - query(cluster.exemplar));
       if (ret.isEmpty() || dist < worstScore) {
         ret.add(cluster);
         worstScore = dist;
@@ -0,0 +1,14 @@
+package org.six11.util.math;
+
+import junit.framework.TestSuite;
+import junit.framework.Test;
+/**
+ *
+ **/
+public class TestAll {
+  public static Test suite() {
+    TestSuite suite = new TestSuite("Math Tests");
+    suite.addTest(new TestSuite(TestClusterThing.class));
+    return suite;
+  }
+}
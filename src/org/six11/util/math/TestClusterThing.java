@@ -0,0 +1,252 @@
+package org.six11.util.math;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.Stack;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+import org.six11.util.math.ClusterThing.Cluster;
+
+/**
+ * Checks that ClusterThing builds exactly the hierarchy that the original all-pairs search built:
+ * the same merges in the same order, with the same exemplars and member lists, even where pairs
+ * are tied or rounding makes two members equally close to a center. Centers are the same to within
+ * the rounding of adding the members up in a different order.
+ */
+public class TestClusterThing extends TestCase {
+
+  static {
+    Debug.enabled = false;
+  }
+
+  /**
+   * A sample with a value. It has no hashCode of its own, like most things that get clustered.
+   */
+  private static class Sample {
+    final double v;
+
+    Sample(double v) {
+      this.v = v;
+    }
+  }
+
+  private static class Clusterer extends ClusterThing<Sample> {
+    public double query(Sample s) {
+      return s.v;
+    }
+  }
+
+  public void testSmall() {
+    assertSameAsAllPairs(values(5.0));
+    assertSameAsAllPairs(values(1.0, 2.0));
+    assertSameAsAllPairs(values(3.0, 1.0, 2.0, 10.0));
+  }
+
+  public void testTiedGaps() {
+    // many pairs the same distance apart, and many equal values, so which pair goes first is
+    // decided by the order the clusters were made in
+    Random rand = new Random(1);
+    for (int trial = 0; trial < 40; trial++) {
+      List<Sample> data = new ArrayList<Sample>();
+      int n = 1 + rand.nextInt(60);
+      for (int i = 0; i < n; i++) {
+        data.add(new Sample(rand.nextInt(8)));
+      }
+      assertSameAsAllPairs(data);
+    }
+  }
+
+  public void testSignedZeros() {
+    Random rand = new Random(2);
+    for (int trial = 0; trial < 20; trial++) {
+      List<Sample> data = new ArrayList<Sample>();
+      int n = 2 + rand.nextInt(30);
+      for (int i = 0; i < n; i++) {
+        data.add(new Sample((rand.nextBoolean() ? 0.0 : -0.0) + rand.nextInt(3) * 0.1));
+      }
+      assertSameAsAllPairs(data);
+    }
+  }
+  public void testDistinctValues() {
+    Random rand = new Random(3);
+    for (int trial = 0; trial < 40; trial++) {
+      List<Sample> data = new ArrayList<Sample>();
+      int n = 1 + rand.nextInt(120);
+      for (int i = 0; i < n; i++) {
+        data.add(new Sample(rand.nextGaussian()));
+      }
+      assertSameAsAllPairs(data);
+    }
+  }
+
+  public void testEvenlySpaced() {
+    // centers land exactly halfway between two members, so the one listed first must win
+    for (int n = 2; n < 40; n++) {
+      List<Sample> data = new ArrayList<Sample>();
+      for (int i = 0; i < n; i++) {
+        data.add(new Sample(i));
+      }
+      assertSameAsAllPairs(data);
+      data.clear();
+      for (int i = 0; i < n; i++) {
+        data.add(new Sample(i * 0.1)); // not exact in binary, so the halfway points round
+      }
+      assertSameAsAllPairs(data);
+    }
+  }
+
+  public void testLargeValuesCloseTogether() {
+    // the sum's rounding is big next to the gaps, so the fast path has to back off
+    Random rand = new Random(4);
+    for (int trial = 0; trial < 40; trial++) {
+      List<Sample> data = new ArrayList<Sample>();
+      int n = 2 + rand.nextInt(80);
+      List<Integer> steps = new ArrayList<Integer>();
+      for (int i = 0; i < n; i++) {
+        steps.add(i);
+      }
+      Collections.shuffle(steps, rand);
+      for (int i = 0; i < n; i++) {
+        data.add(new Sample(1e9 + steps.get(i) * 3 * Math.ulp(1e9)));
+      }
+      assertSameAsAllPairs(data);
+      data.clear();
+      for (int i = 0; i < n; i++) {
+        // a few huge values make the slack much wider than the gaps between the small ones
+        data.add(new Sample((i % 10 == 0) ? 1e12 + i : i * 1e-3 + rand.nextDouble() * 1e-4));
+      }
+      assertSameAsAllPairs(data);
+    }
+  }
+
+  public void testSearchSameAsWalk() {
+    Random rand = new Random(5);
+    Clusterer ct = new Clusterer();
+    for (int i = 0; i < 500; i++) {
+      ct.add(new Sample(rand.nextGaussian() * 10));
+    }
+    ct.computeClusters();
+    for (int i = 0; i < 100; i++) {
+      Sample probe = new Sample(rand.nextGaussian() * 12);
+      assertEquals(walk(ct, probe), ct.search(probe));
+    }
+  }
+
+  /**
+   * The original search(T), which asks query(t) again for every cluster it looks at.
+   */
+  private static List<Cluster<Sample>> walk(Clusterer ct, Sample t) {
+    double worstScore = Double.MAX_VALUE;
+    List<Cluster<Sample>> ret = new ArrayList<Cluster<Sample>>();
+    Stack<Cluster<Sample>> todo = new Stack<Cluster<Sample>>();
+    todo.push(ct.getRootCluster());
+    while (!todo.isEmpty()) {
+      Cluster<Sample> cluster = todo.pop();
+      double dist = Math.abs(ct.query(t) - ct.query(cluster.exemplar));
+      if (ret.isEmpty() || dist < worstScore) {
+        ret.add(cluster);
+        worstScore = dist;
+        if (cluster.a != null) {
+          todo.push(cluster.a);
+        }
+        if (cluster.b != null) {
+          todo.push(cluster.b);
+        }
+      }
+    }
+    Collections.sort(ret, ct.clusterSorter);
+    return ret;
+  }
+
+  private static List<Sample> values(double... vs) {
+    List<Sample> ret = new ArrayList<Sample>();
+    for (double v : vs) {
+      ret.add(new Sample(v));
+    }
+    return ret;
+  }
+
+  private static void assertSameAsAllPairs(List<Sample> data) {
+    Clusterer fast = new Clusterer();
+    for (Sample s : data) {
+      fast.add(s);
+    }
+    fast.computeClusters();
+    Clusterer slow = new Clusterer();
+    List<Cluster<Sample>> expected = allPairs(slow, data);
+    List<Cluster<Sample>> actual = fast.getClusters(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Cluster<Sample> e = expected.get(i);
+      Cluster<Sample> a = actual.get(i);
+      String where = "cluster " + i + " of " + expected.size();
+      assertEquals(where, e.getRank(), a.getRank());
+      assertSame(where, e.getCenter(), a.getCenter());
+      assertSame(where, e.getMin(), a.getMin());
+      assertSame(where, e.getMax(), a.getMax());
+      // where the sorted builder adds two halves' sums, the center can be off in the last bits
+      double slack = 0x1p-50 * e.getMembers().size() * sumOfMagnitudes(e.getMembers());
+      assertEquals(where, e.getCenterOfMass(), a.getCenterOfMass(), slack);
+      assertEquals(where, e.getRadius(), a.getRadius(), 2 * slack);
+      assertEquals(where, e.getMembers(), a.getMembers());
+      assertEquals(where, expected.indexOf(e.getChildA()), actual.indexOf(a.getChildA()));
+      assertEquals(where, expected.indexOf(e.getChildB()), actual.indexOf(a.getChildB()));
+    }
+  }
+
+  private static double sumOfMagnitudes(List<Sample> samples) {
+    double ret = 0;
+    for (Sample s : samples) {
+      ret += Math.abs(s.v);
+    }
+    return ret;
+  }
+
+  /**
+   * The original computeClusters(): merge the closest pair of clusters, looking at every pair,
+   * until one is left. Returns every cluster, the last merge first and the samples last.
+   */
+  private static List<Cluster<Sample>> allPairs(Clusterer ct, List<Sample> data) {
+    Set<Sample> samples = new HashSet<Sample>(); // the same order ClusterThing will see them in
+    for (Sample s : data) {
+      samples.add(s);
+    }
+    List<Cluster<Sample>> ranked = new ArrayList<Cluster<Sample>>();
+    List<Cluster<Sample>> remaining = new ArrayList<Cluster<Sample>>();
+    for (Sample s : samples) {
+      Cluster<Sample> cluster = new Cluster<Sample>(s, ct);
+      remaining.add(cluster);
+      ranked.add(cluster);
+    }
+    int nextRank = 1;
+    while (remaining.size() > 1) {
+      double nearestDist = Double.MAX_VALUE;
+      Cluster<Sample> nearestA = null;
+      Cluster<Sample> nearestB = null;
+      for (int i = 0; i < remaining.size(); i++) {
+        Cluster<Sample> a = remaining.get(i);
+        for (int j = i + 1; j < remaining.size(); j++) {
+          Cluster<Sample> b = remaining.get(j);
+          double thisDist = a.dist(b);
+          if (thisDist < nearestDist) {
+            nearestDist = thisDist;
+            nearestA = a;
+            nearestB = b;
+          }
+        }
+      }
+      Cluster<Sample> ab = new Cluster<Sample>(nextRank, nearestA, nearestB, ct);
+      nextRank++;
+      ranked.add(0, ab);
+      remaining.remove(nearestA);
+      remaining.remove(nearestB);
+      remaining.add(ab);
+    }
+    return ranked;
+  }
+}
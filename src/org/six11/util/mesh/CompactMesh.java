@@ -0,0 +1,313 @@
+package org.six11.util.mesh;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * A read-only copy of a Mesh kept in a few int and double arrays instead of Triangle, HalfEdge
+ * and Pt objects. It answers the same questions as Mesh's getTriangles(Pt), getEdges(Pt) and
+ * Triangle's getAdjacentTriangles(), but triangles, half-edges and vertexes are numbers.
+ *
+ * Half-edges 3t, 3t + 1 and 3t + 2 belong to triangle t, in the same order as Triangle.getEdge()
+ * and its next() edges, so a half-edge's face and next edge are worked out, not stored. Only two
+ * ints are stored per half-edge: the vertex it points to (as in HalfEdge.getPoint()) and its twin
+ * (as in HalfEdge.getPair(), or -1 if it has none). Each vertex has its coordinates and one
+ * half-edge that points to it. Counting the vertexes, that is a few dozen bytes per triangle,
+ * where a Triangle with its three HalfEdges and their ID strings takes several hundred.
+ *
+ * Triangles and vertexes are numbered along a Hilbert curve, so things that are near each other
+ * in the mesh are usually near each other in the arrays too, which helps when walking over a very
+ * large mesh.
+ *
+ * No references to the Mesh's objects are kept, so a CompactMesh doesn't hold the Mesh in memory
+ * (its points lead back to it through their Mesh.HALF_EDGE attributes). The Pt versions of the
+ * queries find the vertex at the point's location instead, through a small hash table of vertex
+ * numbers.
+ */
+public class CompactMesh {
+
+  private static final Where[] LOCATIONS = Where.values();
+
+  private final double[] xs;
+  private final double[] ys;
+  private final int[] vertexEdge; // a half-edge that points to each vertex
+  private final int[] vertex; // the vertex each half-edge points to
+  private final int[] twin; // each half-edge's twin, or -1
+  private final byte[] location; // each triangle's Where, by ordinal
+  private final BitSet boundary; // which half-edges are boundaries
+  private final int[] slots; // vertex numbers hashed by location, -1 for an empty slot
+
+  /**
+   * Copies the mesh's current triangles. Later changes to the mesh aren't seen.
+   */
+  public CompactMesh(Mesh mesh) {
+    // number the vertexes
+    Map<Pt, Integer> indexes = new IdentityHashMap<Pt, Integer>();
+    Triangle[] tris = mesh.getTriangles().toArray(new Triangle[0]);
+    int numVerts = 0;
+    for (Triangle t : tris) {
+      HalfEdge e = t.getEdge();
+      for (int i = 0; i < 3; i++) {
+        if (!indexes.containsKey(e.getPoint())) {
+          indexes.put(e.getPoint(), numVerts++);
+        }
+        e = e.getNext();
+      }
+    }
+    Pt[] unsorted = new Pt[numVerts];
+    for (Map.Entry<Pt, Integer> entry : indexes.entrySet()) {
+      unsorted[entry.getValue()] = entry.getKey();
+    }
+    double[] ux = new double[numVerts];
+    double[] uy = new double[numVerts];
+    for (int v = 0; v < numVerts; v++) {
+      ux[v] = unsorted[v].x;
+      uy[v] = unsorted[v].y;
+    }
+    int[] order = SpatialSort.hilbertOrder(ux, uy);
+    xs = new double[numVerts];
+    ys = new double[numVerts];
+    for (int v = 0; v < numVerts; v++) {
+      xs[v] = ux[order[v]];
+      ys[v] = uy[order[v]];
+      indexes.put(unsorted[order[v]], v);
+    }
+    int numSlots = 2;
+    while (numSlots < 2 * numVerts) {
+      numSlots = numSlots * 2;
+    }
+    slots = new int[numSlots];
+    Arrays.fill(slots, -1);
+    for (int v = 0; v < numVerts; v++) {
+      int i = slot(xs[v], ys[v]);
+      while (slots[i] >= 0) {
+        i = (i + 1) & (slots.length - 1);
+      }
+      slots[i] = v;
+    }
+
+    // number the triangles by their centroids
+    double[] cx = new double[tris.length];
+    double[] cy = new double[tris.length];
+    for (int t = 0; t < tris.length; t++) {
+      HalfEdge e = tris[t].getEdge();
+      for (int i = 0; i < 3; i++) {
+        cx[t] += e.getPoint().x / 3;
+        cy[t] += e.getPoint().y / 3;
+        e = e.getNext();
+      }
+    }
+    order = SpatialSort.hilbertOrder(cx, cy);
+    Map<HalfEdge, Integer> edgeIndexes = new IdentityHashMap<HalfEdge, Integer>();
+    HalfEdge[] edges = new HalfEdge[3 * tris.length];
+    location = new byte[tris.length];
+    for (int t = 0; t < tris.length; t++) {
+      Triangle tri = tris[order[t]];
+      location[t] = (byte) tri.getMeshLocation().ordinal();
+      HalfEdge e = tri.getEdge();
+      for (int i = 0; i < 3; i++) {
+        edges[3 * t + i] = e;
+        edgeIndexes.put(e, 3 * t + i);
+        e = e.getNext();
+      }
+    }
+    vertex = new int[edges.length];
+    twin = new int[edges.length];
+    boundary = new BitSet(edges.length);
+    vertexEdge = new int[numVerts];
+    for (int h = 0; h < edges.length; h++) {
+      vertex[h] = indexes.get(edges[h].getPoint());
+      vertexEdge[vertex[h]] = h;
+      HalfEdge pair = edges[h].getPair();
+      Integer pairIndex = (pair == null) ? null : edgeIndexes.get(pair);
+      twin[h] = (pairIndex == null) ? -1 : pairIndex;
+      boundary.set(h, edges[h].isBoundary());
+    }
+  }
+
+  public int getNumTriangles() {
+    return location.length;
+  }
+
+  public int getNumVertexes() {
+    return xs.length;
+  }
+
+  public double getX(int v) {
+    return xs[v];
+  }
+
+  public double getY(int v) {
+    return ys[v];
+  }
+
+  /**
+   * A new point at vertex v's location. It is not the Mesh's own point object.
+   */
+  public Pt getPoint(int v) {
+    return new Pt(xs[v], ys[v]);
+  }
+
+  /**
+   * The number of the vertex at the given point's location, or -1 if no vertex is there. A Mesh
+   * never has two vertexes in the same place, so this is the point's vertex if it was one of the
+   * Mesh's points.
+   */
+  public int indexOf(Pt pt) {
+    int ret = -1;
+    int i = slot(pt.x, pt.y);
+    while (ret < 0 && slots[i] >= 0) {
+      int v = slots[i];
+      if (xs[v] == pt.x && ys[v] == pt.y) {
+        ret = v;
+      }
+      i = (i + 1) & (slots.length - 1);
+    }
+    return ret;
+  }
+
+  /**
+   * The vertex the half-edge points to.
+   */
+  public int getVertex(int h) {
+    return vertex[h];
+  }
+
+  /**
+   * The half-edge going the other way along the same edge, or -1 if there is none.
+   */
+  public int getTwin(int h) {
+    return twin[h];
+  }
+
+  public int getNext(int h) {
+    return (h % 3 == 2) ? h - 2 : h + 1;
+  }
+
+  public int getFace(int h) {
+    return h / 3;
+  }
+
+  /**
+   * The first of the triangle's half-edges, the one that Triangle.getEdge() returned.
+   */
+  public int getEdge(int t) {
+    return 3 * t;
+  }
+
+  public boolean isBoundary(int h) {
+    return boundary.get(h);
+  }
+
+  public Where getLocation(int t) {
+    return LOCATIONS[location[t]];
+  }
+
+  /**
+   * Which triangles use this vertex? This is Mesh.getTriangles(Pt) by number. The vertex must be
+   * one of 0 to getNumVertexes() - 1.
+   */
+  public int[] getTriangles(int v) {
+    int[] ret = getEdges(v);
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = getFace(ret[i]);
+    }
+    return ret;
+  }
+
+  /**
+   * Which triangles use the vertex at this point? The array is empty if no vertex is there.
+   */
+  public int[] getTriangles(Pt pt) {
+    int v = indexOf(pt);
+    return (v < 0) ? new int[0] : getTriangles(v);
+  }
+
+  /**
+   * Which half-edges point to this vertex? This is Mesh.getEdges(Pt) by number. The edges are in
+   * order around the vertex. The vertex must be one of 0 to getNumVertexes() - 1.
+   */
+  public int[] getEdges(int v) {
+    // turn one way around the vertex until coming back to the start or reaching a half-edge with
+    // no twin. In that case the vertex is on the mesh's outside, so turn the other way from the
+    // start as well.
+    int start = vertexEdge[v];
+    int count = 0;
+    int h = start;
+    int stop = -1;
+    do {
+      count++;
+      int t = twin[h];
+      h = (t < 0) ? -1 : getNext(getNext(t));
+    } while (h >= 0 && h != start);
+    if (h < 0) {
+      int t = twin[getNext(start)];
+      while (t >= 0) {
+        count++;
+        stop = t;
+        t = twin[getNext(t)];
+      }
+    }
+    int[] ret = new int[count];
+    int i = 0;
+    if (stop >= 0) {
+      // went both ways, so list from the far end of the other way
+      h = stop;
+      while (h != start) {
+        ret[i++] = h;
+        h = getNext(getNext(twin[h]));
+      }
+    }
+    h = start;
+    do {
+      ret[i++] = h;
+      int t = twin[h];
+      h = (t < 0) ? -1 : getNext(getNext(t));
+    } while (h >= 0 && h != start);
+    return ret;
+  }
+
+  /**
+   * Which half-edges point to the vertex at this point? The array is empty if no vertex is there.
+   */
+  public int[] getEdges(Pt pt) {
+    int v = indexOf(pt);
+    return (v < 0) ? new int[0] : getEdges(v);
+  }
+
+  /**
+   * Which triangles share an edge with this one? This is Triangle.getAdjacentTriangles() by
+   * number.
+   */
+  public int[] getAdjacentTriangles(int t) {
+    int count = 0;
+    for (int h = 3 * t; h < 3 * t + 3; h++) {
+      if (twin[h] >= 0) {
+        count++;
+      }
+    }
+    int[] ret = new int[count];
+    int i = 0;
+    for (int h = 3 * t; h < 3 * t + 3; h++) {
+      if (twin[h] >= 0) {
+        ret[i++] = getFace(twin[h]);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Where to start looking for the vertex at (x, y) in the slots table.
+   */
+  private int slot(double x, double y) {
+    // adding 0.0 turns -0.0 into 0.0, which indexOf() treats as the same place
+    long bits = Double.doubleToLongBits(x + 0.0) * 31 + Double.doubleToLongBits(y + 0.0);
+    int h = (int) (bits ^ (bits >>> 32));
+    h = h ^ (h >>> 16);
+    return h & (slots.length - 1);
+  }
+}
@@ -1,6 +1,7 @@
 package org.six11.util.mesh;
 
 import java.awt.Color;
+import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.BufferedReader;
 import java.io.File;
@@ -15,6 +16,7 @@ import org.six11.util.pen.CircleArc;
 import org.six11.util.pen.ConvexHull;
 import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.Functions;
+import org.six11.util.pen.GeomKernels;
 import org.six11.util.pen.IntersectionData;
 import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
@@ -39,6 +41,10 @@ public class Mesh {
   Set<Triangle> triangles;
   List<Pt> rootPoints;
   boolean dirty = true;
+  Set<Point2D> locations; // where the points in allPoints are, to spot duplicates quickly
+  Triangle recent; // the most recently made triangle, where point location starts walking
+  List<Triangle> made; // while refining, the triangles made since refine() last looked
+  private int walkSeed = 1;
 
   public static void main(String[] args) throws IOException {
     Debug.useColor = false;
@@ -85,6 +91,7 @@ public class Mesh {
 
   public Mesh() {
     this.allPoints = new ArrayList<Pt>();
+    this.locations = new HashSet<Point2D>();
     this.triangles = new HashSet<Triangle>();
     Pt vertA = new Pt(4000, 0);
     Pt vertB = new Pt(-4000, 4000);
@@ -92,9 +99,28 @@ public class Mesh {
     Triangle root = new Triangle(vertA, vertB, vertC);
     this.rootPoints = new ArrayList<Pt>(root.getPoints());
     triangles.add(root);
+    recent = root;
   }
 
   public Mesh(List<Pt> points, boolean sequenceMatters) {
+    this(points, sequenceMatters, false);
+  }
+
+  /**
+   * Builds the Delaunay mesh of a large set of points in one go. The points are inserted in a
+   * spatially sorted order (see SpatialSort), which keeps each point's triangle close to the last
+   * one made, instead of in the order given; the mesh is classified once at the end. The result is
+   * the same sort of mesh new Mesh(points, false) gives, and getPoints() still lists the points in
+   * the order given, less any duplicates.
+   * 
+   * Points are not connected into a sequence, so nothing is marked as a boundary. Use
+   * Mesh(List, true) for a stroke.
+   */
+  public static Mesh bulkLoad(List<Pt> points) {
+    return new Mesh(points, false, true);
+  }
+
+  private Mesh(List<Pt> points, boolean sequenceMatters, boolean presort) {
     this();
     long start = System.nanoTime();
     this.sequenceMatters = sequenceMatters;
@@ -132,18 +158,38 @@ public class Mesh {
       Pt vertC = Functions.getEndPoint(vertCHalf, new Vec(vertA, vertCHalf));
       Triangle root = new Triangle(vertA, vertB, vertC);
       this.rootPoints = new ArrayList<Pt>(root.getPoints());
+      triangles.clear();
       triangles.add(root);
+      recent = root;
     } else if (points.size() > 0) {
       Pt happy = points.get(0);
       Triangle root = new Triangle(happy.getTranslated(0, -2000), happy.getTranslated(-2000, 2000),
           happy.getTranslated(2000, 2000));
       this.rootPoints = new ArrayList<Pt>(root.getPoints());
+      triangles.clear();
       triangles.add(root);
+      recent = root;
     }
     // and then add each point in 'points', fixing the mesh after each one. Not the fastest
     // algorithm, but I'm dealing with relatively tiny regions.
-    for (Pt newVert : points) {
-      addPoint(newVert);
+    if (presort) {
+      // drop duplicates first, so the same points are kept as when adding them in order.
+      List<Pt> unique = new ArrayList<Pt>();
+      Set<Point2D> seen = new HashSet<Point2D>();
+      for (Pt pt : points) {
+        if (seen.add(new Point2D.Double(pt.x + 0.0, pt.y + 0.0))) {
+          unique.add(pt);
+        }
+      }
+      for (Pt newVert : SpatialSort.brio(unique)) {
+        addPoint(newVert);
+      }
+      allPoints.clear();
+      allPoints.addAll(unique);
+    } else {
+      for (Pt newVert : points) {
+        addPoint(newVert);
+      }
     }
 
     classifyTriangles();
@@ -164,7 +210,10 @@ public class Mesh {
   }
 
   /**
-   * Classify each triangle as Where.Inside or Where.Outside.
+   * Classify each triangle as Where.Inside or Where.Outside. The classification is kept between
+   * calls: triangles made by adding points take the location of the triangle they were cut from,
+   * and the whole mesh is only classified again when a new boundary edge might have closed off a
+   * region.
    */
   public void classifyTriangles() {
     bug("classifying triangles on mesh that is " + (dirty ? "dirty" : "clean"));
@@ -189,17 +238,16 @@ public class Mesh {
   }
 
   private void classifyTriangles(Stack<Triangle> uncategorized) {
-    if (!uncategorized.isEmpty()) {
-      String sp = Debug.spaces(uncategorized.size() * 2);
+    while (!uncategorized.isEmpty()) {
       Triangle classifyMe = uncategorized.pop();
       classifyMe.setLocation(Where.Outside);
       Set<Triangle> neighbors = classifyMe.getAdjacentTriangles();
-      bug(sp + classifyMe.id + " has " + neighbors.size() + " neighbors...");
+      bug(classifyMe.id + " has " + neighbors.size() + " neighbors...");
       for (Triangle n : neighbors) {
         if (n.getMeshLocation() == Where.Unknown) {
           HalfEdge common = classifyMe.getCommonEdge(n);
           if (common != null) {
-            bug(sp + "common edge is non-null between " + classifyMe.id + " and " + n.id
+            bug("common edge is non-null between " + classifyMe.id + " and " + n.id
                 + ". Is it a boundary? " + common.isBoundary());
             if (!common.isBoundary()) {
               uncategorized.push(n);
@@ -210,9 +258,6 @@ public class Mesh {
         }
       }
     }
-    if (!uncategorized.isEmpty()) {
-      classifyTriangles(uncategorized);
-    }
   }
 
   public long getTime() {
@@ -248,6 +293,299 @@ public class Mesh {
     } while (numRepaired > 0);
   }
 
+  /**
+   * Adds points inside the mesh until every Inside triangle has no angle smaller than minAngle (in
+   * radians) and no area larger than maxArea, or until maxPoints points have been added. This is
+   * Ruppert's algorithm: the worst triangle is fixed first by adding its circumcenter, unless that
+   * would land beyond or too near a boundary edge, in which case the boundary edge is split near its
+   * middle instead. A boundary edge is split whenever a point is inside the circle it is the
+   * diameter of. Only triangles that the new points make are looked at again.
+   * 
+   * Minimum angles up to about 20 degrees (0.36 radians) can always be reached, except in corners
+   * of the region that are sharper than that, which are left alone. Larger bounds usually work too
+   * but may not, which is what maxPoints is for. Added points are not part of getPoints(), just
+   * like those added by fixMesh().
+   * 
+   * @return the number of points added
+   */
+  public int refine(double minAngle, double maxArea, int maxPoints) {
+    classifyTriangles();
+    made = new ArrayList<Triangle>();
+    LinkedList<HalfEdge> encroached = new LinkedList<HalfEdge>();
+    PriorityQueue<BadTriangle> bad = new PriorityQueue<BadTriangle>();
+    for (Triangle t : triangles) {
+      checkQuality(t, minAngle, maxArea, encroached, bad);
+    }
+    int ret = 0;
+    while (ret < maxPoints && (!encroached.isEmpty() || !bad.isEmpty())) {
+      if (!encroached.isEmpty()) {
+        HalfEdge segment = encroached.removeFirst();
+        if (triangles.contains(segment.getFace()) && isEncroached(segment)
+            && splitSegment(segment)) {
+          ret++;
+        }
+      } else {
+        Triangle t = bad.poll().triangle;
+        if (triangles.contains(t) && addCircumcenter(t)) {
+          ret++;
+        }
+      }
+      for (Triangle t : made) {
+        if (triangles.contains(t)) {
+          checkQuality(t, minAngle, maxArea, encroached, bad);
+        }
+      }
+      made.clear();
+    }
+    made = null;
+    return ret;
+  }
+
+  private static class BadTriangle implements Comparable<BadTriangle> {
+    Triangle triangle;
+    double minAngle;
+
+    public int compareTo(BadTriangle other) {
+      return Double.compare(minAngle, other.minAngle);
+    }
+  }
+
+  private void noteMade(Triangle... newTriangles) {
+    if (made != null) {
+      made.addAll(Arrays.asList(newTriangles));
+    }
+  }
+
+  /**
+   * Queues the Inside triangle if it is too sharp or too big, and queues any of its boundary edges
+   * that its third vertex encroaches on.
+   */
+  private void checkQuality(Triangle t, double minAngle, double maxArea,
+      List<HalfEdge> encroached, Queue<BadTriangle> bad) {
+    if (t.getMeshLocation() == Where.Inside) {
+      HalfEdge e = t.getEdge();
+      HalfEdge shortest = null; // the edge opposite the smallest angle
+      double shortestSq = Double.MAX_VALUE;
+      double[] lengthsSq = new double[3];
+      for (int i = 0; i < 3; i++) {
+        if (e.isBoundary() && isEncroached(e)) {
+          encroached.add(e);
+        }
+        Pt start = e.getNext().getNext().getPoint();
+        lengthsSq[i] = start.distanceSq(e.getPoint());
+        if (lengthsSq[i] < shortestSq) {
+          shortestSq = lengthsSq[i];
+          shortest = e;
+        }
+        e = e.getNext();
+      }
+      Arrays.sort(lengthsSq);
+      double a = lengthsSq[0];
+      double b = lengthsSq[1];
+      double c = lengthsSq[2];
+      double angle = Math.acos(Math.min(1, (b + c - a) / (2 * Math.sqrt(b * c))));
+      // the smallest angle is between the two edges after the shortest one; if both are boundary
+      // edges it is a corner of the region, and adding points won't widen it.
+      boolean corner = shortest.getNext().isBoundary() && shortest.getNext().getNext().isBoundary();
+      boolean fixable = angle < minAngle && !corner && !isAcrossCorner(shortest);
+      if (fixable || Math.abs(getArea(t)) > maxArea) {
+        BadTriangle entry = new BadTriangle();
+        entry.triangle = t;
+        entry.minAngle = angle;
+        bad.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the edge joins two points that were added on different boundary edges coming
+   * out of the same input point, at the same distance from it. Such an edge cuts across a corner
+   * sharper than the region allows, and fixing the triangles near it only makes more of them
+   * (Shewchuk's rule for small input angles).
+   */
+  private boolean isAcrossCorner(HalfEdge edge) {
+    boolean ret = false;
+    Pt p = edge.getPoint();
+    Pt q = edge.getNext().getNext().getPoint();
+    if (!isInputPoint(p) && !isInputPoint(q)) {
+      List<Pt> qEnds = getSegmentEnds(q);
+      for (Pt corner : getSegmentEnds(p)) {
+        if (qEnds.contains(corner)) {
+          double pDist = corner.distance(p);
+          double qDist = corner.distance(q);
+          ret = ret || (pDist < 1.001 * qDist && pDist > 0.999 * qDist);
+        }
+      }
+    }
+    return ret;
+  }
+
+  private boolean isInputPoint(Pt pt) {
+    return locations.contains(new Point2D.Double(pt.x + 0.0, pt.y + 0.0));
+  }
+
+  /**
+   * Follows the boundary edges both ways from a point that was added on a boundary edge until
+   * reaching input points, which are the ends of the boundary edge it was added on.
+   */
+  private List<Pt> getSegmentEnds(Pt pt) {
+    List<Pt> ret = new ArrayList<Pt>();
+    for (Pt next : getBoundaryNeighbors(pt)) {
+      Pt prev = pt;
+      while (next != null && !isInputPoint(next)) {
+        Pt step = null;
+        for (Pt n : getBoundaryNeighbors(next)) {
+          if (n != prev) {
+            step = n;
+          }
+        }
+        prev = next;
+        next = step;
+      }
+      if (next != null) {
+        ret.add(next);
+      }
+    }
+    return ret;
+  }
+
+  private List<Pt> getBoundaryNeighbors(Pt pt) {
+    List<Pt> ret = new ArrayList<Pt>();
+    for (HalfEdge e : getEdges(pt)) {
+      Pt other = e.getNext().getNext().getPoint();
+      if (e.isBoundary() && !ret.contains(other)) {
+        ret.add(other);
+      }
+    }
+    return ret;
+  }
+
+  private static double getArea(Triangle t) {
+    HalfEdge e = t.getEdge();
+    Pt a = e.getPoint();
+    Pt b = e.getNext().getPoint();
+    Pt c = e.getNext().getNext().getPoint();
+    return GeomKernels.cross(b.x - a.x, b.y - a.y, c.x - a.x, c.y - a.y) / 2;
+  }
+
+  /**
+   * Returns true if the boundary edge has a pair and the vertex across from it in an Inside
+   * triangle, on either side, is inside the circle the edge is the diameter of.
+   */
+  private static boolean isEncroached(HalfEdge segment) {
+    boolean ret = false;
+    HalfEdge pair = segment.getPair();
+    if (pair != null) {
+      ret = (segment.getFace().getMeshLocation() == Where.Inside && isEncroached(segment,
+          segment.getNext().getPoint()))
+          || (pair.getFace().getMeshLocation() == Where.Inside && isEncroached(segment, pair
+              .getNext().getPoint()));
+    }
+    return ret;
+  }
+
+  private static boolean isEncroached(HalfEdge segment, Pt pt) {
+    Pt a = segment.getPoint();
+    Pt b = segment.getNext().getNext().getPoint();
+    // pt is inside the circle with diameter ab exactly when the angle apb is obtuse
+    return GeomKernels.dot(a.x - pt.x, a.y - pt.y, b.x - pt.x, b.y - pt.y) < 0;
+  }
+
+  /**
+   * Splits the boundary edge near its middle, unless it is already shorter than Functions.EQ_TOL.
+   * If just one end is an input point, the split is a power of two away from it, so two boundary
+   * edges that meet there at a sharp angle are split at the same distances and stop encroaching on
+   * each other (Ruppert's concentric shells). Returns false if the edge was too short to split.
+   */
+  private boolean splitSegment(HalfEdge segment) {
+    boolean ret = false;
+    Pt start = segment.getNext().getNext().getPoint();
+    Pt end = segment.getPoint();
+    double length = start.distance(end);
+    if (length >= Functions.EQ_TOL) {
+      boolean startInput = isInputPoint(start);
+      boolean endInput = isInputPoint(end);
+      double frac = 0.5;
+      if (startInput != endInput) {
+        double shell = Math.pow(2, Math.round(Math.log(length / 2) / Math.log(2)));
+        frac = startInput ? shell / length : 1 - shell / length;
+      }
+      addPointOnEdge(segment, new Pt(start.x + frac * (end.x - start.x), start.y + frac
+          * (end.y - start.y)));
+      ret = true;
+    }
+    return ret;
+  }
+
+  /**
+   * Adds the triangle's circumcenter, or splits the boundary edge that keeps it from being added.
+   * Returns false if neither could be done.
+   */
+  private boolean addCircumcenter(Triangle t) {
+    boolean ret = false;
+    List<Pt> corners = t.getPoints();
+    double[] xy = new double[2];
+    if (GeomKernels.circleCenter(corners.get(0).x, corners.get(0).y, corners.get(1).x,
+        corners.get(1).y, corners.get(2).x, corners.get(2).y, xy)) {
+      Pt center = new Pt(xy[0], xy[1]);
+      // walk in a straight line from the triangle to the center, stopping at a boundary
+      Pt from = t.getCentroid();
+      double[] ix = new double[4];
+      Triangle cur = t;
+      HalfEdge entry = null; // never leave by the edge just crossed, which rounding can allow
+      HalfEdge blocked = null;
+      boolean arrived = false;
+      for (int steps = 0; !arrived && blocked == null && steps <= triangles.size(); steps++) {
+        HalfEdge exit = null;
+        HalfEdge e = cur.getEdge();
+        for (int i = 0; i < 3; i++) {
+          Pt a = e.getNext().getNext().getPoint();
+          Pt b = e.getPoint();
+          if (e != entry && isBeyond(e, center)
+              && GeomKernels.intersect(from.x, from.y, center.x, center.y, a.x, a.y, b.x, b.y, ix)
+              && ix[1] >= 0 && ix[1] <= 1) {
+            exit = e;
+          }
+          e = e.getNext();
+        }
+        if (exit == null) {
+          arrived = true;
+        } else if (exit.isBoundary() || exit.getPair() == null) {
+          blocked = exit;
+        } else {
+          entry = exit.getPair();
+          cur = entry.getFace();
+        }
+      }
+      if (arrived) {
+        HalfEdge e = cur.getEdge();
+        for (int i = 0; blocked == null && i < 3; i++) {
+          if (e.isBoundary() && isEncroached(e, center)) {
+            blocked = e;
+          }
+          e = e.getNext();
+        }
+      }
+      if (blocked != null) {
+        ret = (blocked.getPair() != null) && splitSegment(blocked);
+      } else if (arrived && cur.getMeshLocation() == Where.Inside) {
+        recent = cur;
+        TriangleWhere tw = findTriangle(center, false);
+        if (tw != null && tw.where == Where.Inside) {
+          addPointInside(tw.triangle, center);
+          ret = true;
+        } else if (tw != null && tw.where == Where.Boundary) {
+          HalfEdge splitMe = (tw.edge != null) ? tw.edge : tw.triangle.getEdgeContaining(center);
+          if (splitMe != null && splitMe.getPair() != null) {
+            addPointOnEdge(splitMe, center);
+            ret = true;
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
   public boolean expand(Pt here) {
     boolean ret = addPoint(here);
     if (ret) {
@@ -257,6 +595,7 @@ public class Mesh {
   }
 
   public void computeInsideOutside() {
+    dirty = true; // these locations aren't the ones classifyTriangles() keeps up to date
     for (Triangle t : triangles) {
       boolean inside = isPointInRegion(t.getCentroid(), allPoints);
       if (inside) {
@@ -333,9 +672,9 @@ public class Mesh {
 
   private boolean addPointNow(Pt newVert, boolean showDebug) {
     boolean ret = false;
-    if (!allPoints.contains(newVert)) {
+    // same test as allPoints.contains(newVert), which compares locations, without the scan
+    if (locations.add(new Point2D.Double(newVert.x + 0.0, newVert.y + 0.0))) {
       allPoints.add(newVert);
-      dirty = true;
       TriangleWhere tw = findTriangle(newVert, showDebug);
       if (showDebug) {
         // bug("addPointNow for point " + newVert.getID() + ": tw.where: " + tw.where);
@@ -344,7 +683,7 @@ public class Mesh {
         addPointInside(tw.triangle, newVert);
         ret = true;
       } else if (tw.where == Where.Boundary) {
-        HalfEdge splitMe = tw.triangle.getEdgeContaining(newVert);
+        HalfEdge splitMe = (tw.edge != null) ? tw.edge : tw.triangle.getEdgeContaining(newVert);
         if (splitMe == null) {
           warn("I would like to insert a point that should be on a boundary, "
               + "but I can't figure out where.");
@@ -386,13 +725,75 @@ public class Mesh {
         return ret;
       }
     });
+    if (!walkIntersections(seg, ret)) {
+      ret.clear();
+      scanIntersections(seg, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Finds where the segment crosses mesh edges by checking every edge.
+   */
+  void scanIntersections(Line seg, Set<Pt> accumulator) {
     for (Triangle t : triangles) {
       HalfEdge he = t.getEdge();
-      accumulateIntersection(seg, he, ret);
-      accumulateIntersection(seg, he.getNext(), ret);
-      accumulateIntersection(seg, he.getNext().getNext(), ret);
+      accumulateIntersection(seg, he, accumulator);
+      accumulateIntersection(seg, he.getNext(), accumulator);
+      accumulateIntersection(seg, he.getNext().getNext(), accumulator);
     }
-    return ret;
+  }
+
+  /**
+   * Finds where the segment, which starts at a mesh vertex, crosses mesh edges by walking along it
+   * from triangle to triangle, so only the triangles it passes through are looked at. Returns false
+   * if the walk loses its way, which happens when the segment runs through a vertex or along an
+   * edge, or so close to one that the strict intersection test won't say which edge it crosses;
+   * then the caller has to check every edge.
+   */
+  boolean walkIntersections(Line seg, Set<Pt> accumulator) {
+    Pt from = seg.getStart();
+    Pt to = seg.getEnd();
+    boolean done = false;
+    HalfEdge crossing = null; // the edge the segment leaves the current triangle by
+    Triangle start = walkToward(from);
+    if (start != null && start.hasVertex(from)) {
+      // turn around 'from' to find the triangle the segment starts out through. In each one,
+      // cursor ends at 'from', so the edge after next is the one opposite it.
+      HalfEdge cursor = advance(start.getEdge(), from);
+      HalfEdge first = cursor;
+      do {
+        if (crossesStrictly(seg, cursor.getNext().getNext())) {
+          crossing = cursor.getNext().getNext();
+        } else if (locateExactly(cursor.getFace(), to) != null) {
+          done = true;
+        } else {
+          cursor = cursor.getNext().getPair();
+        }
+      } while (crossing == null && !done && cursor != null && cursor != first);
+    }
+    int steps = 0;
+    while (crossing != null && !done) {
+      accumulateIntersection(seg, crossing, accumulator);
+      accumulateIntersection(seg, crossing.getPair(), accumulator);
+      HalfEdge entry = crossing.getPair();
+      crossing = null;
+      if (entry != null && ++steps <= triangles.size()) {
+        if (locateExactly(entry.getFace(), to) != null) {
+          done = true;
+        } else if (crossesStrictly(seg, entry.getNext())) {
+          crossing = entry.getNext();
+        } else if (crossesStrictly(seg, entry.getNext().getNext())) {
+          crossing = entry.getNext().getNext();
+        }
+      }
+    }
+    return done;
+  }
+
+  private static boolean crossesStrictly(Line seg, HalfEdge edge) {
+    Line other = new Line(edge.getNext().getNext().getPoint(), edge.getPoint());
+    return Functions.getIntersectionData(seg, other).intersectsStrictlyInsideSegments();
   }
 
   private void addPointOnEdge(HalfEdge splitMe, Pt newVert) {
@@ -439,6 +840,9 @@ public class Mesh {
     l.setPair(m);
     m.setNext(h);
     n.setNext(d);
+    newVert.setAttribute(HALF_EDGE, g);
+    replaceVertexEdge(b, f);
+    replaceVertexEdge(e, a);
     triangles.remove(x);
     triangles.remove(w);
     Set<Triangle> newTriangles = new HashSet<Triangle>();
@@ -447,6 +851,8 @@ public class Mesh {
     newTriangles.add(y);
     newTriangles.add(z);
     triangles.addAll(newTriangles);
+    recent = z;
+    noteMade(u, v, y, z);
     maybeSetBoundaryEdges(g, i, k, m);
     retainBoundaryEdges(splitMe, k, l, n, m);
     for (Triangle t : newTriangles) {
@@ -525,6 +931,8 @@ public class Mesh {
     triangles.add(t1);
     triangles.add(t2);
     triangles.add(t3);
+    recent = t3;
+    noteMade(t1, t2, t3);
 
     maybeSetBoundaryEdges(n1, n2, n3);
     if (!isDelaunay(newVert, t1)) {
@@ -541,6 +949,12 @@ public class Mesh {
   private void markBoundary(HalfEdge edge) {
     edge.setBoundary(true);
     edge.getPair().setBoundary(true);
+    // a new boundary between two inside triangles can't change what is inside, but one between
+    // two outside triangles might close off a region.
+    if (edge.getFace().getMeshLocation() != Where.Inside
+        || edge.getPair().getFace().getMeshLocation() != Where.Inside) {
+      dirty = true;
+    }
   }
 
   private void repair(Pt vert, Triangle t) {
@@ -607,10 +1021,14 @@ public class Mesh {
     d.setFace(y);
     e.setNext(c);
     e.setFace(z);
+    replaceVertexEdge(b, e);
+    replaceVertexEdge(f, a);
     triangles.remove(w);
     triangles.remove(x);
     triangles.add(y);
     triangles.add(z);
+    recent = z;
+    noteMade(y, z);
 
     for (Pt pt : y.getPoints()) {
       if (triangles.contains(y) && !isDelaunay(pt, y)) {
@@ -644,6 +1062,16 @@ public class Mesh {
   // || (x.meshLocation == Where.Inside && w.meshLocation == Where.Outside);
   // }
 
+  /**
+   * If he() gives 'gone' for the vertex it points to, make it give 'replacement' instead, which
+   * must point to the same vertex. Call this for half-edges that are about to leave the mesh.
+   */
+  private static void replaceVertexEdge(HalfEdge gone, HalfEdge replacement) {
+    if (he(gone.getPoint()) == gone) {
+      gone.getPoint().setAttribute(HALF_EDGE, replacement);
+    }
+  }
+
   private HalfEdge advance(HalfEdge cursor, Pt vert) {
     int count = 0;
     while (cursor.getPoint() != vert) {
@@ -657,9 +1085,39 @@ public class Mesh {
     return cursor;
   }
 
+  /**
+   * Finds the triangle the point is in or on. This walks across the mesh from the most recently
+   * made triangle, so when points are added near each other (as they are along a stroke) it only
+   * looks at a few triangles. If the walk can't finish, every triangle is checked.
+   */
   public TriangleWhere findTriangle(Pt pt, boolean showDebug) {
     TriangleWhere ret = null;
-    for (Triangle t : triangles) {
+    Triangle found = walkToward(pt);
+    if (found != null) {
+      Where where = found.whereIsPoint(pt, showDebug);
+      if (where == Where.Inside || where == Where.Boundary || where == Where.Coincidental) {
+        ret = new TriangleWhere();
+        ret.triangle = found;
+        ret.where = where;
+        if (where == Where.Boundary) {
+          // the barycentric tolerance grows with the triangle, so in a big one it can put a point
+          // on an edge it is nowhere near, or on two edges at once. Only trust it if the point is
+          // really that close to an edge, and then split the closest edge.
+          ret.edge = getNearestEdge(found, pt);
+          if (ret.edge == null) {
+            TriangleWhere exact = locateExactly(found, pt);
+            ret = (exact == null) ? ret : exact;
+          }
+        }
+      } else {
+        // whereIsPoint's tolerance is in barycentric units, which in a long thin triangle can be
+        // wider than the gap between the point and a vertex, so it can call a point outside the
+        // very triangle the walk ended in. Ask the walk's exact sidedness tests instead.
+        ret = locateExactly(found, pt);
+      }
+    }
+    for (Iterator<Triangle> it = triangles.iterator(); ret == null && it.hasNext();) {
+      Triangle t = it.next();
       Where where = t.whereIsPoint(pt, showDebug);
       switch (where) {
         case Inside:
@@ -677,9 +1135,135 @@ public class Mesh {
     return ret;
   }
 
+  /**
+   * Walks from the most recent triangle toward the point: while the point is strictly beyond one
+   * of the current triangle's edges, step across that edge. Edges are tried starting from a
+   * randomly chosen one, which keeps the walk from going around in circles. Returns the triangle
+   * the walk stops in, or null if it would leave the mesh or takes too long.
+   */
+  private Triangle walkToward(Pt pt) {
+    Triangle ret = null;
+    Triangle t = pickStart(pt);
+    HalfEdge cameFrom = null;
+    int steps = 0;
+    while (t != null && ret == null) {
+      HalfEdge first = t.getEdge();
+      walkSeed = walkSeed * 1103515245 + 12345;
+      int skip = (walkSeed >>> 16) % 3;
+      for (int i = 0; i < skip; i++) {
+        first = first.getNext();
+      }
+      HalfEdge cross = null;
+      HalfEdge e = first;
+      do {
+        if (e != cameFrom && isBeyond(e, pt)) {
+          cross = e;
+        }
+        e = e.getNext();
+      } while (cross == null && e != first);
+      if (cross == null) {
+        ret = t;
+      } else if (cross.getPair() == null || ++steps > triangles.size()) {
+        t = null;
+      } else {
+        cameFrom = cross.getPair();
+        t = cameFrom.getFace();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Chooses where walkToward() starts: the most recent triangle, or a triangle at one of a few
+   * randomly sampled vertices if that vertex is closer to the point. Sampling about the cube root
+   * of the number of vertices keeps walks short when points arrive in no particular order.
+   */
+  private Triangle pickStart(Pt pt) {
+    Triangle ret = (recent != null && triangles.contains(recent)) ? recent : null;
+    double best = (ret == null) ? Double.MAX_VALUE : ret.getEdge().getPoint().distanceSq(pt);
+    int numSamples = (int) Math.cbrt(allPoints.size());
+    for (int i = 0; i < numSamples; i++) {
+      walkSeed = walkSeed * 1103515245 + 12345;
+      Pt sample = allPoints.get((walkSeed >>> 1) % allPoints.size());
+      HalfEdge edge = he(sample);
+      double dist = sample.distanceSq(pt);
+      if (edge != null && dist < best && edge.getPoint() == sample
+          && triangles.contains(edge.getFace())) {
+        ret = edge.getFace();
+        best = dist;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Returns true if the point is strictly on the other side of the edge from the rest of the
+   * edge's triangle.
+   */
+  private static boolean isBeyond(HalfEdge edge, Pt pt) {
+    Pt end = edge.getPoint();
+    Pt start = edge.getNext().getNext().getPoint();
+    Pt third = edge.getNext().getPoint();
+    double dx = end.x - start.x;
+    double dy = end.y - start.y;
+    double sidePt = GeomKernels.cross(dx, dy, pt.x - start.x, pt.y - start.y);
+    double sideThird = GeomKernels.cross(dx, dy, third.x - start.x, third.y - start.y);
+    return (sidePt > 0 && sideThird < 0) || (sidePt < 0 && sideThird > 0);
+  }
+
+  /**
+   * Says whether the point is inside the triangle or on one of its edges using exact sidedness
+   * tests, with no tolerance. Returns null if it is outside or on a vertex.
+   */
+  private TriangleWhere locateExactly(Triangle t, Pt pt) {
+    TriangleWhere ret = new TriangleWhere();
+    ret.triangle = t;
+    ret.where = Where.Inside;
+    HalfEdge e = t.getEdge();
+    for (int i = 0; ret != null && i < 3; i++) {
+      Pt end = e.getPoint();
+      Pt start = e.getNext().getNext().getPoint();
+      Pt third = e.getNext().getPoint();
+      double dx = end.x - start.x;
+      double dy = end.y - start.y;
+      double sidePt = GeomKernels.cross(dx, dy, pt.x - start.x, pt.y - start.y);
+      double sideThird = GeomKernels.cross(dx, dy, third.x - start.x, third.y - start.y);
+      if (sidePt == 0 && ret.edge == null) {
+        ret.where = Where.Boundary;
+        ret.edge = e;
+      } else if (!(sidePt > 0 && sideThird > 0) && !(sidePt < 0 && sideThird < 0)) {
+        ret = null;
+      }
+      e = e.getNext();
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the edge of the triangle that is closest to the point, or null if none is within
+   * Functions.EQ_TOL of it.
+   */
+  private static HalfEdge getNearestEdge(Triangle t, Pt pt) {
+    HalfEdge ret = null;
+    double best = Functions.EQ_TOL;
+    HalfEdge e = t.getEdge();
+    for (int i = 0; i < 3; i++) {
+      Pt end = e.getPoint();
+      Pt start = e.getNext().getNext().getPoint();
+      double dist = GeomKernels.segDist(start.x, start.y, end.x, end.y, pt.x, pt.y);
+      if (dist < best) {
+        ret = e;
+        best = dist;
+      }
+      e = e.getNext();
+    }
+    return ret;
+  }
+
   public class TriangleWhere {
     public Triangle triangle;
     public Where where;
+    public HalfEdge edge; // for Boundary, the edge the point is on, if known
   }
 
   /**
@@ -788,21 +1372,75 @@ public class Mesh {
     if (quad != null && quad.size() == 4 && noColinear(quad)) {
       CircleArc circ = new CircleArc(quad.get(0), quad.get(1), quad.get(3));
       ret = !circ.contains(quad.get(2));
+      int root = -1;
+      int numRoots = 0;
+      for (int i = 0; !ret && made != null && i < 4; i++) {
+        if (isRootPoint(quad.get(i))) {
+          root = i;
+          numRoots++;
+        }
+      }
+      if (numRoots == 1) {
+        // a root point is so far off that a circle through it is, in effect, the half-plane on its
+        // side of the line through the other two points, and the circle test rounds badly at that
+        // size: points that refine() adds on the region's outline can get both diagonals called
+        // wrong, so that flips go back and forth forever. Then only flip if the half-planes agree,
+        // which they never do both ways.
+        Pt r = quad.get(root);
+        if (root == 2) {
+          // flipping would put the root point in two triangles; keep this diagonal if one of them
+          // would be flipped back.
+          ret = isSameSide(quad.get(0), quad.get(1), r, quad.get(3))
+              || isSameSide(quad.get(0), quad.get(3), r, quad.get(1));
+        } else {
+          Pt a = quad.get(root == 0 ? 1 : 0);
+          Pt b = quad.get(root == 3 ? 1 : 3);
+          ret = !isSameSide(a, b, r, quad.get(2));
+        }
+      }
     }
     return ret;
   }
 
+  private boolean isRootPoint(Pt pt) {
+    return pt == rootPoints.get(0) || pt == rootPoints.get(1) || pt == rootPoints.get(2);
+  }
+
+  /**
+   * Returns true if p and q are both strictly on the same side of the line through a and b. The
+   * line's ends are put in a fixed order first, so the answer doesn't depend on the order they are
+   * given in, even where rounding decides it.
+   */
+  private static boolean isSameSide(Pt a, Pt b, Pt p, Pt q) {
+    if (a.x > b.x || (a.x == b.x && a.y > b.y)) {
+      Pt swap = a;
+      a = b;
+      b = swap;
+    }
+    double pCross = GeomKernels.cross(b.x - a.x, b.y - a.y, p.x - a.x, p.y - a.y);
+    double qCross = GeomKernels.cross(b.x - a.x, b.y - a.y, q.x - a.x, q.y - a.y);
+    return (pCross > 0 && qCross > 0) || (pCross < 0 && qCross < 0);
+  }
+
+  /**
+   * Returns true if the quadrangle turns the same way, and never straight, at every corner. Only
+   * then can its diagonal be flipped: flipping a quadrangle that is not convex makes triangles
+   * that overlap, which rounding in the circle test can otherwise ask for when points are nearly
+   * cocircular.
+   */
   private boolean noColinear(List<Pt> quad) {
     boolean ret = true;
     if (quad.size() == 4) {
-      for (int i = 0; i < 4; i++) {
-        Line a = new Line(quad.get(i), quad.get((i + 1) % 4));
-        Line b = new Line(quad.get((i + 1) % 4), quad.get((i + 2) % 4));
-        IntersectionData ix = Functions.getIntersectionData(a, b);
-        if (ix.isCollinear()) {
-          ret = false;
-          break;
-        }
+      // a zero cross product at a corner is exactly what IntersectionData calls collinear.
+      int turn = 0;
+      for (int i = 0; ret && i < 4; i++) {
+        Pt a = quad.get(i);
+        Pt b = quad.get((i + 1) % 4);
+        Pt c = quad.get((i + 2) % 4);
+        double cross = GeomKernels.cross(b.x - a.x, b.y - a.y, c.x - b.x, c.y - b.y);
+        int sign = (cross > 0) ? 1 : (cross < 0) ? -1 : 0;
+        ret = (sign != 0) && (turn == 0 || sign == turn);
+        turn = sign;
       }
     }
     return ret;
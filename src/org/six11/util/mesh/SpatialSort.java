@@ -0,0 +1,120 @@
+package org.six11.util.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Puts points in a good order for building a Delaunay mesh one point at a time. The order is a
+ * biased randomized insertion order (BRIO): the points are shuffled and split into rounds that
+ * double in size, so each round lands on a mesh that already covers the whole region, and within
+ * each round the points are sorted along a Hilbert curve, so each point is close to the one before
+ * it. Mesh.findTriangle() walks from the last triangle it made, so with this order its walks are
+ * only a few triangles long, and the random rounds keep badly shaped inputs (a grid, a row of
+ * points) from making long thin triangles that have to be flipped over and over.
+ *
+ * The shuffle uses a fixed seed, so the same input always gives the same order.
+ */
+class SpatialSort {
+
+  private static final int BITS = 16; // Hilbert grid is 2^BITS cells on a side
+  private static final int SMALLEST_ROUND = 64;
+  private static final long SEED = 20110613L;
+
+  /**
+   * Returns the points in BRIO order. The given list is not changed.
+   */
+  static List<Pt> brio(List<Pt> points) {
+    List<Pt> shuffled = new ArrayList<Pt>(points);
+    Collections.shuffle(shuffled, new Random(SEED));
+    List<Pt> ret = new ArrayList<Pt>(points.size());
+    int end = shuffled.size();
+    List<Integer> roundStarts = new ArrayList<Integer>();
+    while (end > SMALLEST_ROUND) {
+      end = end / 2;
+      roundStarts.add(0, end);
+    }
+    roundStarts.add(0, 0);
+    roundStarts.add(shuffled.size());
+    for (int i = 0; i + 1 < roundStarts.size(); i++) {
+      ret.addAll(hilbert(shuffled.subList(roundStarts.get(i), roundStarts.get(i + 1))));
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the points sorted along a Hilbert curve over their bounding box.
+   */
+  static List<Pt> hilbert(List<Pt> points) {
+    double[] xs = new double[points.size()];
+    double[] ys = new double[points.size()];
+    for (int i = 0; i < xs.length; i++) {
+      xs[i] = points.get(i).x;
+      ys[i] = points.get(i).y;
+    }
+    int[] order = hilbertOrder(xs, ys);
+    List<Pt> ret = new ArrayList<Pt>(order.length);
+    for (int i = 0; i < order.length; i++) {
+      ret.add(points.get(order[i]));
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the indexes of the locations (xs[i], ys[i]) in the order a Hilbert curve over their
+   * bounding box visits them.
+   */
+  static int[] hilbertOrder(double[] xs, double[] ys) {
+    double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+    double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for (int i = 0; i < xs.length; i++) {
+      minX = Math.min(minX, xs[i]);
+      minY = Math.min(minY, ys[i]);
+      maxX = Math.max(maxX, xs[i]);
+      maxY = Math.max(maxY, ys[i]);
+    }
+    int side = 1 << BITS;
+    double size = Math.max(maxX - minX, maxY - minY);
+    double scale = (size > 0) ? (side - 1) / size : 0;
+    // each key is the Hilbert index in the high bits and the location's index in the low 31, so
+    // sorting the keys sorts the locations and ties keep their order.
+    long[] keys = new long[xs.length];
+    for (int i = 0; i < keys.length; i++) {
+      int x = (int) ((xs[i] - minX) * scale);
+      int y = (int) ((ys[i] - minY) * scale);
+      keys[i] = (getIndex(x, y, side) << 31) | i;
+    }
+    Arrays.sort(keys);
+    int[] ret = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      ret[i] = (int) (keys[i] & Integer.MAX_VALUE);
+    }
+    return ret;
+  }
+
+  /**
+   * The distance along a Hilbert curve through a side by side grid to cell (x, y).
+   */
+  static long getIndex(int x, int y, int side) {
+    long ret = 0;
+    for (int s = side / 2; s > 0; s = s / 2) {
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      ret = ret + (long) s * s * ((3 * rx) ^ ry);
+      if (ry == 0) {
+        if (rx == 1) {
+          x = side - 1 - x;
+          y = side - 1 - y;
+        }
+        int swap = x;
+        x = y;
+        y = swap;
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,14 @@
+package org.six11.util.mesh;
+
+import junit.framework.TestSuite;
+import junit.framework.Test;
+/**
+ *
+ **/
+public class TestAll {
+  public static Test suite() {
+    TestSuite suite = new TestSuite("Mesh Tests");
+    suite.addTest(new TestSuite(TestMesh.class));
+    return suite;
+  }
+}
@@ -0,0 +1,417 @@
+package org.six11.util.mesh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+import org.six11.util.pen.Functions;
+import org.six11.util.pen.Line;
+import org.six11.util.pen.Pt;
+import org.six11.util.pen.Vec;
+
+/**
+ * Checks meshes against answers worked out the slow way, or the way Mesh worked them out before
+ * it had faster ones.
+ */
+public class TestMesh extends TestCase {
+
+  static {
+    Debug.enabled = false;
+  }
+
+  public void testDelaunay() {
+    assertDelaunay(new Mesh(cloud(new Random(1), 300), false));
+    assertDelaunay(new Mesh(star(12, 60), false)); // points in stroke order
+  }
+
+  public void testFindTriangleSameAsScan() {
+    Mesh mesh = new Mesh(cloud(new Random(2), 200), false);
+    Random rand = new Random(3);
+    for (int i = 0; i < 200; i++) {
+      Pt pt = new Pt(rand.nextDouble() * 1000, rand.nextDouble() * 1000);
+      Set<Triangle> holding = new HashSet<Triangle>();
+      for (Triangle t : mesh.getTriangles()) {
+        if (holds(t, pt)) {
+          holding.add(t);
+        }
+      }
+      Mesh.TriangleWhere found = mesh.findTriangle(pt, false);
+      assertNotNull(found);
+      assertTrue(pt + " in " + found.triangle, holding.contains(found.triangle));
+    }
+  }
+  public void testBulkLoadSameAsInOrder() {
+    List<Pt> points = cloud(new Random(4), 400);
+    points.add(new Pt(points.get(10).x, points.get(10).y)); // a duplicate, to be dropped
+    Mesh inOrder = new Mesh(points, false);
+    Mesh bulk = Mesh.bulkLoad(points);
+    assertEquals(describe(inOrder.getFiniteTriangles()), describe(bulk.getFiniteTriangles()));
+    assertEquals(inOrder.getPoints(), bulk.getPoints());
+    assertEquals(400, bulk.getPoints().size());
+    assertDelaunay(bulk);
+  }
+  public void testWalkSameAsScan() {
+    for (int seed = 4; seed < 9; seed++) {
+      // a scribble crosses itself all over, so most segments cut through several triangles
+      List<Pt> scribble = closed(cloud(new Random(seed), 60));
+      Mesh mesh = new Mesh();
+      mesh.setSequenceMatters(true);
+      int walked = 0;
+      int crossings = 0;
+      for (Pt pt : scribble) {
+        List<Pt> points = mesh.getPoints();
+        if (points.size() > 1) {
+          Line seg = new Line(points.get(points.size() - 1), pt);
+          Set<Pt> walk = new HashSet<Pt>();
+          // once insertion has folded a triangle over, the walk and the scan see different meshes
+          if (!isFolded(mesh) && mesh.walkIntersections(seg, walk)) {
+            Set<Pt> scan = new HashSet<Pt>();
+            mesh.scanIntersections(seg, scan);
+            assertEquals(locations(scan), locations(walk));
+            walked++;
+            crossings += walk.size();
+          }
+        }
+        mesh.addPoint(pt);
+      }
+      assertTrue(walked > scribble.size() / 2);
+      assertTrue(crossings > scribble.size());
+    }
+  }
+
+  public void testKeptClassificationSameAsFresh() {
+    for (int seed = 10; seed < 13; seed++) {
+      List<Pt> stroke = closed(cloud(new Random(seed), 40)); // closes off many small regions
+      Mesh mesh = new Mesh();
+      mesh.setSequenceMatters(true);
+      for (int i = 0; i < stroke.size(); i++) {
+        mesh.addPoint(stroke.get(i));
+        mesh.classifyTriangles();
+        if (i % 10 == 0 || i == stroke.size() - 1) {
+          Map<Triangle, Where> kept = locations(mesh);
+          mesh.computeInsideOutside(); // overwrites the locations and marks the mesh dirty,
+          mesh.classifyTriangles(); // so this classifies from scratch, as it used to every time
+          assertEquals(kept, locations(mesh));
+        }
+      }
+      assertTrue(mesh.getInsideTriangles().size() > 0);
+    }
+  }
+  public void testCompactSameAsMesh() {
+    Mesh mesh = new Mesh(closed(star(7, 40)), true);
+    CompactMesh compact = new CompactMesh(mesh);
+    assertEquals(mesh.getTriangles().size(), compact.getNumTriangles());
+    Set<Pt> verts = new HashSet<Pt>();
+    for (Triangle t : mesh.getTriangles()) {
+      verts.addAll(t.getPoints());
+    }
+    assertEquals(verts.size(), compact.getNumVertexes());
+    for (Pt pt : verts) {
+      int v = compact.indexOf(pt);
+      assertTrue(v >= 0);
+      assertEquals(pt.x, compact.getX(v));
+      assertEquals(pt.y, compact.getY(v));
+      assertEquals(v, compact.indexOf(compact.getPoint(v)));
+      // Mesh doesn't keep an edge for its three root points, so look through every triangle
+      Set<Triangle> around = new HashSet<Triangle>();
+      for (Triangle t : mesh.getTriangles()) {
+        if (t.getPoints().contains(pt)) {
+          around.add(t);
+        }
+      }
+      Set<String> actual = new HashSet<String>();
+      for (int t : compact.getTriangles(pt)) {
+        actual.add(describe(compact, t));
+      }
+      assertEquals(describe(around), actual);
+      assertEquals(around.size(), compact.getEdges(pt).length);
+    }
+    for (int t = 0; t < compact.getNumTriangles(); t++) {
+      int h = compact.getEdge(t);
+      for (int i = 0; i < 3; i++) {
+        int twin = compact.getTwin(h);
+        if (twin >= 0) {
+          assertEquals(h, compact.getTwin(twin));
+          assertEquals(compact.isBoundary(h), compact.isBoundary(twin));
+        }
+        h = compact.getNext(h);
+      }
+      assertEquals(h, compact.getEdge(t));
+    }
+  }
+
+  public void testCompactNotAVertex() {
+    CompactMesh compact = new CompactMesh(new Mesh(cloud(new Random(5), 50), false));
+    Pt nowhere = new Pt(-12345.5, 0.25);
+    assertEquals(-1, compact.indexOf(nowhere));
+    assertEquals(0, compact.getTriangles(nowhere).length);
+    assertEquals(0, compact.getEdges(nowhere).length);
+  }
+  public void testRefine() {
+    List<Pt> outline = star(7, 40);
+    // Mesh drops a point it already has, so a stroke that ends on its start doesn't close off
+    // anything. Cross the first side instead, the way a pen does.
+    Pt first = outline.get(0);
+    Pt second = outline.get(1);
+    Pt last = outline.get(outline.size() - 1);
+    Pt past = new Pt(first.x + 0.2 * (second.x - first.x) + 0.05 * (second.y - first.y), first.y
+        + 0.2 * (second.y - first.y) + 0.05 * (first.x - second.x));
+    List<Pt> stroke = closed(outline);
+    stroke.set(stroke.size() - 1, past);
+    List<Pt> region = new ArrayList<Pt>(outline);
+    region.set(0, Functions.getIntersectionPoint(new Line(first, second), new Line(last, past)));
+    Mesh mesh = new Mesh(stroke, true);
+    int numPoints = mesh.getPoints().size();
+    double minAngle = Math.toRadians(20);
+    int added = mesh.refine(minAngle, 500, 5000);
+    assertTrue(added > 0);
+    assertTrue(added < 5000);
+    double area = 0;
+    for (Triangle t : mesh.getInsideTriangles()) {
+      area += t.getArea();
+      assertTrue(t.getArea() <= 500.000001);
+      if (!hasSharpInputCorner(t, region, minAngle)) {
+        assertTrue(t + " has an angle of " + Math.toDegrees(smallestAngle(t)),
+            smallestAngle(t) >= minAngle - 0.000001);
+      }
+      assertTrue(isInPolygon(t.getCentroid(), region));
+    }
+    assertEquals(polygonArea(region), area, 0.001);
+    assertEquals(numPoints, mesh.getPoints().size()); // added points aren't listed
+  }
+
+  /**
+   * Checks that no vertex of the mesh (the root points included) is inside the circle through any
+   * triangle's corners.
+   */
+  private static void assertDelaunay(Mesh mesh) {
+    Set<Pt> verts = new HashSet<Pt>();
+    for (Triangle t : mesh.getTriangles()) {
+      verts.addAll(t.getPoints());
+    }
+    for (Triangle t : mesh.getFiniteTriangles()) {
+      List<Pt> abc = t.getPoints();
+      for (Pt pt : verts) {
+        if (!abc.contains(pt)) {
+          assertFalse(pt + " is in the circle of " + t, inCircle(abc.get(0), abc.get(1), abc
+              .get(2), pt));
+        }
+      }
+    }
+  }
+
+  /**
+   * True if d is inside the circle through a, b and c by more than Functions.EQ_TOL, which is when
+   * Mesh itself calls a triangle not Delaunay.
+   */
+  private static boolean inCircle(Pt a, Pt b, Pt c, Pt d) {
+    double bx = b.x - a.x, by = b.y - a.y;
+    double cx = c.x - a.x, cy = c.y - a.y;
+    double den = 2 * (bx * cy - by * cx);
+    double b2 = bx * bx + by * by;
+    double c2 = cx * cx + cy * cy;
+    double ux = (cy * b2 - by * c2) / den;
+    double uy = (bx * c2 - cx * b2) / den;
+    double radius = Math.hypot(ux, uy);
+    return Math.hypot(d.x - a.x - ux, d.y - a.y - uy) < radius - Functions.EQ_TOL;
+  }
+
+  /**
+   * True if the point is in the triangle or on its edges, give or take rounding.
+   */
+  private static boolean holds(Triangle t, Pt pt) {
+    List<Pt> abc = t.getPoints();
+    double total = Math.abs(t.getArea());
+    double sum = 0;
+    for (int i = 0; i < 3; i++) {
+      Pt a = abc.get(i);
+      Pt b = abc.get((i + 1) % 3);
+      sum += Math.abs((b.x - a.x) * (pt.y - a.y) - (b.y - a.y) * (pt.x - a.x)) / 2;
+    }
+    return sum <= total * (1 + 1e-9) + 1e-9;
+  }
+
+  /**
+   * The triangles' corners, as sorted strings, so meshes made of different objects can be
+   * compared.
+   */
+  private static Set<String> describe(Set<Triangle> triangles) {
+    Set<String> ret = new HashSet<String>();
+    for (Triangle t : triangles) {
+      List<Pt> abc = t.getPoints();
+      ret.add(corners(abc.get(0).x, abc.get(0).y, abc.get(1).x, abc.get(1).y, abc.get(2).x, abc
+          .get(2).y));
+    }
+    return ret;
+  }
+
+  private static String describe(CompactMesh compact, int t) {
+    int h = compact.getEdge(t);
+    double[] xy = new double[6];
+    for (int i = 0; i < 3; i++) {
+      xy[2 * i] = compact.getX(compact.getVertex(h));
+      xy[2 * i + 1] = compact.getY(compact.getVertex(h));
+      h = compact.getNext(h);
+    }
+    return corners(xy[0], xy[1], xy[2], xy[3], xy[4], xy[5]);
+  }
+
+  private static String corners(double x0, double y0, double x1, double y1, double x2, double y2) {
+    List<String> ret = new ArrayList<String>();
+    ret.add(x0 + "," + y0);
+    ret.add(x1 + "," + y1);
+    ret.add(x2 + "," + y2);
+    Collections.sort(ret);
+    return ret.toString();
+  }
+
+  private static Set<String> locations(Set<Pt> points) {
+    Set<String> ret = new HashSet<String>();
+    for (Pt pt : points) {
+      ret.add(pt.x + "," + pt.y);
+    }
+    return ret;
+  }
+
+  private static Map<Triangle, Where> locations(Mesh mesh) {
+    Map<Triangle, Where> ret = new HashMap<Triangle, Where>();
+    for (Triangle t : mesh.getTriangles()) {
+      ret.put(t, t.getMeshLocation());
+    }
+    return ret;
+  }
+
+  /**
+   * True if some triangle's corners run clockwise. Mesh sometimes does this to a sliver when it
+   * inserts a point next to one, and after that the triangles overlap.
+   */
+  private static boolean isFolded(Mesh mesh) {
+    boolean ret = false;
+    for (Triangle t : mesh.getTriangles()) {
+      List<Pt> p = t.getPoints();
+      Vec ab = new Vec(p.get(0), p.get(1));
+      Vec ac = new Vec(p.get(0), p.get(2));
+      if (Functions.getDeterminant(ab, ac) < 0) {
+        ret = true;
+        break;
+      }
+    }
+    return ret;
+  }
+
+  private static List<Pt> cloud(Random rand, int n) {
+    List<Pt> ret = new ArrayList<Pt>();
+    for (int i = 0; i < n; i++) {
+      ret.add(new Pt(rand.nextDouble() * 1000, rand.nextDouble() * 1000));
+    }
+    return ret;
+  }
+
+  /**
+   * A star with the given number of points, its outline sampled every few units, in stroke order
+   * and not closed. The samples between corners wobble a little, as a pen's do: long runs of
+   * exactly collinear points make Mesh flip edges back and forth without end.
+   */
+  private static List<Pt> star(int spikes, int perSide) {
+    List<Pt> corners = new ArrayList<Pt>();
+    for (int i = 0; i < 2 * spikes; i++) {
+      double r = (i % 2 == 0) ? 200 : 90;
+      double theta = Math.PI * i / spikes;
+      corners.add(new Pt(300 + r * Math.cos(theta), 300 + r * Math.sin(theta)));
+    }
+    List<Pt> ret = new ArrayList<Pt>();
+    Random rand = new Random(spikes);
+    for (int i = 0; i < corners.size(); i++) {
+      Pt a = corners.get(i);
+      Pt b = corners.get((i + 1) % corners.size());
+      ret.add(a);
+      for (int j = 1; j < perSide; j++) {
+        double f = (double) j / perSide;
+        ret.add(new Pt(a.x + f * (b.x - a.x) + wobble(rand), a.y + f * (b.y - a.y) + wobble(rand)));
+      }
+    }
+    return ret;
+  }
+
+  private static double wobble(Random rand) {
+    return (rand.nextDouble() - 0.5) * 0.2;
+  }
+
+  /**
+   * The outline with its first point repeated at the end, as a stroke that closes on itself.
+   */
+  private static List<Pt> closed(List<Pt> outline) {
+    List<Pt> ret = new ArrayList<Pt>();
+    for (Pt pt : outline) {
+      ret.add(new Pt(pt.x, pt.y));
+    }
+    ret.add(new Pt(outline.get(0).x, outline.get(0).y));
+    return ret;
+  }
+
+  private static double polygonArea(List<Pt> outline) {
+    double ret = 0;
+    for (int i = 0; i < outline.size(); i++) {
+      Pt a = outline.get(i);
+      Pt b = outline.get((i + 1) % outline.size());
+      ret += a.x * b.y - b.x * a.y;
+    }
+    return Math.abs(ret / 2);
+  }
+
+  private static boolean isInPolygon(Pt pt, List<Pt> outline) {
+    boolean ret = false;
+    for (int i = 0, j = outline.size() - 1; i < outline.size(); j = i++) {
+      Pt a = outline.get(i);
+      Pt b = outline.get(j);
+      if ((a.y > pt.y) != (b.y > pt.y)
+          && pt.x < (b.x - a.x) * (pt.y - a.y) / (b.y - a.y) + a.x) {
+        ret = !ret;
+      }
+    }
+    return ret;
+  }
+
+  private static double smallestAngle(Triangle t) {
+    List<Pt> abc = t.getPoints();
+    double ret = Math.PI;
+    for (int i = 0; i < 3; i++) {
+      Pt a = abc.get(i);
+      Pt b = abc.get((i + 1) % 3);
+      Pt c = abc.get((i + 2) % 3);
+      double ux = b.x - a.x, uy = b.y - a.y, vx = c.x - a.x, vy = c.y - a.y;
+      double angle = Math.abs(Math.atan2(ux * vy - uy * vx, ux * vx + uy * vy));
+      ret = Math.min(ret, angle);
+    }
+    return ret;
+  }
+
+  /**
+   * True if the triangle touches a corner of the outline that is already sharper than minAngle,
+   * which refine() leaves alone.
+   */
+  private static boolean hasSharpInputCorner(Triangle t, List<Pt> outline, double minAngle) {
+    boolean ret = false;
+    for (Pt pt : t.getPoints()) {
+      for (int i = 0; i < outline.size(); i++) {
+        Pt corner = outline.get(i);
+        if (corner.x == pt.x && corner.y == pt.y) {
+          Pt prev = outline.get((i + outline.size() - 1) % outline.size());
+          Pt next = outline.get((i + 1) % outline.size());
+          double ux = prev.x - pt.x, uy = prev.y - pt.y, vx = next.x - pt.x, vy = next.y - pt.y;
+          double angle = Math.abs(Math.atan2(ux * vy - uy * vx, ux * vx + uy * vy));
+          ret = ret || angle < minAngle;
+        }
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,265 @@
+package org.six11.util.pen;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A named, per-point double value stored for a whole Sequence in one primitive array. Get one with
+ * Sequence.doubleChannel(name), hang on to it, and read or write values by point index without any
+ * boxing or hashing:
+ *
+ * <pre>
+ * DoubleChannel curvature = seq.doubleChannel(&quot;curvature&quot;);
+ * curvature.set(i, k);
+ * </pre>
+ *
+ * The channel follows points that are added, removed or replaced through the Sequence or its
+ * getPoints() list. On a regular Sequence the channel is not the only place a value can live: code
+ * may still call pt.setDouble(name, v) directly. The channel notices that the next time it is read
+ * (each point counts writes to its attributes) and takes the point's value. Writes to the channel
+ * are copied back to the point unless mirroring has been turned off (see
+ * Sequence.setChannelMirroring), so pt.getDouble(name) keeps working. A PackedSequence needs none
+ * of this: its points read and write the channel directly.
+ */
+public class DoubleChannel {
+
+  private final Sequence seq;
+  private final String name;
+  private double[] values;
+  private BitSet present;
+
+  /**
+   * Only used when the sequence's points can be written behind the channel's back. seen[i] is the
+   * write count of the point at i when the channel last looked at it, or -1 if it never has.
+   * inPoint tells which of those points held a value of their own at that time.
+   */
+  private int[] seen;
+  private BitSet inPoint;
+
+  DoubleChannel(Sequence seq, String name) {
+    this.seq = seq;
+    this.name = name;
+    this.values = new double[Math.max(1, seq.size())];
+    this.present = new BitSet(values.length);
+    if (seq.isWatchingPoints()) {
+      seen = new int[values.length];
+      Arrays.fill(seen, -1);
+      inPoint = new BitSet(values.length);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Sequence getSequence() {
+    return seq;
+  }
+
+  /**
+   * Tells you if a value has been set for the point at the given index.
+   */
+  public boolean has(int idx) {
+    sync(idx);
+    return present.get(idx);
+  }
+
+  /**
+   * Returns the value at the given index, or zero if it was never set.
+   */
+  public double get(int idx) {
+    sync(idx);
+    return (idx < values.length) ? values[idx] : 0.0;
+  }
+
+  /**
+   * Returns the value at the given index, or the default if it was never set.
+   */
+  public double get(int idx, double defaultValue) {
+    sync(idx);
+    return present.get(idx) ? values[idx] : defaultValue;
+  }
+
+  public void set(int idx, double value) {
+    if (idx < 0 || idx >= seq.size()) {
+      throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + seq.size());
+    }
+    store(idx, value);
+    if (seen != null) {
+      Pt pt = seq.get(idx);
+      if (seq.isChannelMirroring()) {
+        pt.setDouble(name, value);
+        inPoint.set(idx);
+      } else {
+        inPoint.clear(idx); // whatever the point holds is the caller's, and is left alone
+      }
+      seen[idx] = pt.getAttributeWrites(); // so an older value on the point doesn't win a read
+    } else if (seq.isChannelMirroring()) {
+      seq.get(idx).setDouble(name, value);
+    }
+  }
+
+  /**
+   * Forgets the value at the given index.
+   */
+  public void clear(int idx) {
+    present.clear(idx);
+    if (idx < values.length) {
+      values[idx] = 0.0;
+    }
+  }
+
+  /**
+   * Returns the sum of all values that have been set.
+   */
+  public double sum() {
+    syncAll();
+    double ret = 0.0;
+    for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+      ret += values[i];
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the sum of the absolute values of all values that have been set.
+   */
+  public double absoluteSum() {
+    syncAll();
+    double ret = 0.0;
+    for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+      ret += Math.abs(values[i]);
+    }
+    return ret;
+  }
+
+  /**
+   * Sets the value without mirroring it to the point. This is what the compatibility shims use.
+   */
+  void store(int idx, double value) {
+    if (idx >= values.length) {
+      double[] bigger = new double[Math.max(idx + 1, values.length + (values.length >> 1) + 1)];
+      System.arraycopy(values, 0, bigger, 0, values.length);
+      values = bigger;
+    }
+    values[idx] = value;
+    present.set(idx);
+  }
+
+  /**
+   * Picks up a value written straight to the point at idx (or removed from it) since the channel
+   * last looked. This costs one counter comparison when nothing changed.
+   */
+  private void sync(int idx) {
+    if (seen != null && idx >= 0 && idx < seq.size()) {
+      Pt pt = seq.get(idx);
+      int writes = pt.getAttributeWrites();
+      if (idx >= seen.length || seen[idx] != writes) {
+        Object v = pt.getAttribute(name);
+        if (v instanceof Double) {
+          store(idx, (Double) v);
+          inPoint.set(idx);
+        } else if (inPoint.get(idx)) {
+          clear(idx);
+          inPoint.clear(idx);
+        }
+        growSeen(idx);
+        seen[idx] = writes;
+      }
+    }
+  }
+
+  /**
+   * Brings the whole channel up to date with values written straight to the points.
+   */
+  void syncAll() {
+    if (seen != null) {
+      int n = seq.size();
+      for (int i = 0; i < n; i++) {
+        sync(i);
+      }
+    }
+  }
+
+  private void growSeen(int idx) {
+    if (idx >= seen.length) {
+      int[] bigger = new int[Math.max(idx + 1, seen.length + (seen.length >> 1) + 1)];
+      System.arraycopy(seen, 0, bigger, 0, seen.length);
+      Arrays.fill(bigger, seen.length, bigger.length, -1);
+      seen = bigger;
+    }
+  }
+
+  /**
+   * Called by the sequence when a different point now sits at idx. The old value is dropped and
+   * the new point's own value, if it has one, is picked up on the next read.
+   */
+  void pointReplaced(int idx) {
+    clear(idx);
+    if (seen != null) {
+      inPoint.clear(idx);
+      if (idx < seen.length) {
+        seen[idx] = -1;
+      }
+    }
+  }
+
+  /**
+   * Called by the sequence when all of its points went away.
+   */
+  void pointsCleared() {
+    present.clear();
+    Arrays.fill(values, 0.0);
+    if (seen != null) {
+      inPoint.clear();
+      Arrays.fill(seen, -1);
+    }
+  }
+
+  /**
+   * Called by the sequence when a point was inserted at idx. Later values move up by one.
+   */
+  void pointInserted(int idx) {
+    int last = present.length(); // one past the highest set index
+    if (idx < last) {
+      store(last, 0.0); // make room
+      System.arraycopy(values, idx, values, idx + 1, last - idx);
+      for (int i = last; i > idx; i--) {
+        present.set(i, present.get(i - 1));
+      }
+    }
+    clear(idx);
+    if (seen != null) {
+      int n = seq.size(); // already counts the new point
+      growSeen(Math.max(idx, n - 1));
+      System.arraycopy(seen, idx, seen, idx + 1, Math.max(0, n - 1 - idx));
+      seen[idx] = -1;
+      for (int i = inPoint.length(); i > idx; i--) {
+        inPoint.set(i, inPoint.get(i - 1));
+      }
+      inPoint.clear(idx);
+    }
+  }
+
+  /**
+   * Called by the sequence when the point at idx was removed. Later values move down by one.
+   */
+  void pointRemoved(int idx) {
+    int last = present.length();
+    if (idx < last) {
+      System.arraycopy(values, idx + 1, values, idx, last - idx - 1);
+      for (int i = idx; i < last - 1; i++) {
+        present.set(i, present.get(i + 1));
+      }
+      clear(last - 1);
+    }
+    if (seen != null && idx < seen.length) {
+      System.arraycopy(seen, idx + 1, seen, idx, seen.length - idx - 1);
+      seen[seen.length - 1] = -1;
+      int top = inPoint.length();
+      for (int i = idx; i < top; i++) {
+        inPoint.set(i, inPoint.get(i + 1));
+      }
+    }
+  }
+}
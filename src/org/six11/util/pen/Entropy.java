@@ -92,5 +92,9 @@ public class Entropy {
     return random.nextDouble() * d;
   }
 
+  public long getLong() {
+    return random.nextLong();
+  }
+
   
 }
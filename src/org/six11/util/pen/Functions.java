@@ -274,21 +274,9 @@ public abstract class Functions {
    * the input point and any point on the segment.
    */
   public static double getDistanceBetweenPointAndSegment(Pt pt, Line seg) {
-    double ret = 0;
     Pt a = seg.getStart();
     Pt b = seg.getEnd();
-    Vec ab = new Vec(a, b);
-    Vec ac = new Vec(a, pt);
-    double mag = ab.mag();
-    double r = Functions.getDotProduct(ac, ab) / (mag * mag);
-    if (r < 0) {
-      ret = pt.distance(a);
-    } else if (r > 1) {
-      ret = pt.distance(b);
-    } else {
-      ret = getDistanceBetweenPointAndLine(pt, seg);
-    }
-    return ret;
+    return GeomKernels.segDist(a.getX(), a.getY(), b.getX(), b.getY(), pt.getX(), pt.getY());
   }
 
   public static double getDistanceBetweenPointAndLine(Pt pt, Line line) {
@@ -309,14 +297,10 @@ public abstract class Functions {
   // }
 
   public static double getSignedDistanceBetweenPointAndLine(Pt pt, Line line) {
-    double dist = getDistanceBetweenPointAndLine(pt, line);
-    Vec lineVec = new Vec(line);
-    Vec ptVec = new Vec(line.getStart(), pt);
-    double det = getDeterminant(lineVec, ptVec);
-    if (det < 0.0) {
-      dist = -1.0 * dist;
-    }
-    return dist;
+    Pt a = line.getStart();
+    Pt b = line.getEnd();
+    return GeomKernels.signedLineDist(a.getX(), a.getY(), b.getX(), b.getY(), pt.getX(), pt
+        .getY());
   }
 
   public static double getHausdorffDistance(Rectangle2D p, Rectangle2D q) {
@@ -370,14 +354,11 @@ public abstract class Functions {
     // Py = Ay + r(By-Ay)
     Pt a = line.getStart();
     Pt b = line.getEnd();
-    Vec ab = new Vec(a, b);
-    Vec ac = new Vec(a, c);
-    double mag = ab.mag();
-    double r = Functions.getDotProduct(ac, ab) / (mag * mag);
-    double x = a.getX() + r * (b.getX() - a.getX());
-    double y = a.getY() + r * (b.getY() - a.getY());
+    double[] xy = new double[2];
+    double r = GeomKernels.nearestOnLine(a.getX(), a.getY(), b.getX(), b.getY(), c.getX(), c
+        .getY(), xy);
     long t = a.getTime() + (long) (r * (b.getTime() - a.getTime()));
-    Pt ret = new Pt(x, y, t);
+    Pt ret = new Pt(xy[0], xy[1], t);
     if (retainR) {
       ret.setDouble("r", r);
     }
@@ -390,42 +371,17 @@ public abstract class Functions {
   }
 
   public static int getPartition(Pt pt, Pt lineA, Pt lineB) {
-    // translate both by 'lineA'
-    Vec vecToPt = new Vec(pt, lineA);
-    Vec vecForLine = new Vec(lineB, lineA);
-    double det = getDeterminant(vecForLine, vecToPt);
-    int ret = PARTITION_ON_BORDER;
-    if (det < 0) {
-      ret = PARTITION_LEFT;
-    } else if (det > 0) {
-      ret = PARTITION_RIGHT;
-    }
-    return ret;
+    return GeomKernels.partition(pt.getX(), pt.getY(), lineA.getX(), lineA.getY(), lineB.getX(),
+        lineB.getY());
   }
 
   public static Pt getCircleCenter(Pt a, Pt b, Pt c) {
-    double ax = a.getX();
-    double ay = a.getY();
-    double bx = b.getX();
-    double by = b.getY();
-    double cx = c.getX();
-    double cy = c.getY();
-
-    double A = bx - ax;
-    double B = by - ay;
-    double C = cx - ax;
-    double D = cy - ay;
-
-    double E = A * (ax + bx) + B * (ay + by);
-    double F = C * (ax + cx) + D * (ay + cy);
-
-    double G = 2 * (A * (cy - by) - B * (cx - bx));
-    if (G == 0.0)
-      return null; // a, b, c must be collinear
-
-    double px = (D * E - B * F) / G;
-    double py = (A * F - C * E) / G;
-    return new Pt(px, py);
+    Pt ret = null; // stays null if a, b, c are collinear
+    double[] xy = new double[2];
+    if (GeomKernels.circleCenter(a.getX(), a.getY(), b.getX(), b.getY(), c.getX(), c.getY(), xy)) {
+      ret = new Pt(xy[0], xy[1]);
+    }
+    return ret;
   }
 
   /**
@@ -436,20 +392,7 @@ public abstract class Functions {
    * either be on your left (negative curvature) or on your right.
    */
   public static double getCurvature(Pt a, Pt b, Pt c) {
-    Pt mid = getCircleCenter(a, b, c);
-    double ret = 0.0;
-    if (mid != null) {
-      double dist = mid.distance(b);
-      ret = 1 / dist;
-    }
-    // signededness depends on orientation of b compared to vector ac
-    Vec ab = new Vec(a, b);
-    Vec ac = new Vec(a, c);
-    double angle = Functions.getAngleBetween(ab, ac);
-    if (angle < 0) {
-      ret = ret * -1.0;
-    }
-    return ret;
+    return GeomKernels.curvature(a.getX(), a.getY(), b.getX(), b.getY(), c.getX(), c.getY());
   }
 
   public static Vec getVectorNormal(Vec vec) {
@@ -509,28 +452,19 @@ public abstract class Functions {
    * tangent, which presents problems due to discontinuities.
    */
   public static double getSignedAngleBetween(Vec a, Vec b) {
-    double dot = Functions.getDotProduct(a, b);
-    double cross = Functions.getCrossProduct(a, b);
-    double angle = acos(dot / ((a.mag() * b.mag())));
-    double curvature = angle;
-    if (cross < 0) {
-      curvature = -angle;
-    }
-    return curvature;
+    return GeomKernels.signedAngle(a.getX(), a.getY(), b.getX(), b.getY());
   }
 
   public static double getDotProduct(Vec a, Vec b) {
-    return a.getX() * b.getX() + a.getY() * b.getY();
+    return GeomKernels.dot(a.getX(), a.getY(), b.getX(), b.getY());
   }
 
   public static double getCrossProduct(Vec a, Vec b) {
-    return (a.getX() * b.getY()) - (a.getY() * b.getX()); // notice this is the same as
-    // getDeterminant
+    return GeomKernels.cross(a.getX(), a.getY(), b.getX(), b.getY()); // same as getDeterminant
   }
 
   public static double getDeterminant(Vec a, Vec b) {
-    // det(ab, cd) = a*d - b*c;
-    return a.getX() * b.getY() - a.getY() * b.getX();
+    return GeomKernels.cross(a.getX(), a.getY(), b.getX(), b.getY());
   }
 
   public static double getDeterminant(Pt ptA, Pt ptB, Pt ptC, Pt ptD) {
@@ -741,8 +675,13 @@ public abstract class Functions {
    * will return null.
    */
   public static Pt getIntersectionPoint(Line a, Line b) {
-    IntersectionData id = getIntersectionData(a, b);
-    Pt ret = id.getIntersection();
+    Pt ret = null;
+    double[] rsxy = new double[4];
+    if (GeomKernels.intersect(a.getStart().getX(), a.getStart().getY(), a.getEnd().getX(), a
+        .getEnd().getY(), b.getStart().getX(), b.getStart().getY(), b.getEnd().getX(), b.getEnd()
+        .getY(), rsxy)) {
+      ret = new Pt(rsxy[2], rsxy[3]);
+    }
     return ret;
   }
 
@@ -925,6 +864,7 @@ public abstract class Functions {
   public static Pt getNearestPointOnPolyline(Pt epicenter, List<Pt> polyline) {
     double minDist = Double.MAX_VALUE;
     Pt nearest = null;
+    double[] xy = new double[2];
     if (polyline.size() > 1) {
       for (int i = 0; i < polyline.size() - 1; i++) {
         Pt vert = polyline.get(i);
@@ -933,13 +873,17 @@ public abstract class Functions {
           minDist = dist;
           nearest = vert;
         }
-        Line line = new Line(polyline.get(i), polyline.get(i + 1));
-        Pt pt = getNearestPointWithinSegment(epicenter, line);
-        if (pt != null) {
-          dist = pt.distance(epicenter);
+        Pt a = polyline.get(i);
+        Pt b = polyline.get(i + 1);
+        double r = GeomKernels.nearestOnLine(a.getX(), a.getY(), b.getX(), b.getY(), epicenter
+            .getX(), epicenter.getY(), xy);
+        if (r >= 0 && r <= 1) {
+          dist = GeomKernels.dist(xy[0], xy[1], epicenter.getX(), epicenter.getY());
           if (dist < minDist) {
             minDist = dist;
-            nearest = pt;
+            // same point getNearestPointWithinSegment would give
+            nearest = new Pt(xy[0], xy[1], a.getTime() + (long) (r * (b.getTime() - a.getTime())));
+            nearest.setDouble("r", r);
           }
         }
       }
@@ -1052,8 +996,18 @@ public abstract class Functions {
     }
   }
 
+  /**
+   * Calculates the curvature at each point and stores it in the sequence's "curvature" channel.
+   * The first and last points have zero curvature.
+   */
   public static void calculateCurvature(Sequence seq) {
-    calculateCurvature(seq.getPoints());
+    DoubleChannel curvature = seq.doubleChannel("curvature");
+    int n = seq.size();
+    for (int i = 1; i < n - 1; i++) {
+      curvature.set(i, Functions.getCurvature(seq.get(i - 1), seq.get(i), seq.get(i + 1)));
+    }
+    curvature.set(0, 0.0);
+    curvature.set(n - 1, 0.0);
   }
 
   public static void calculateCurvature(List<Pt> points) {
@@ -1201,6 +1155,18 @@ public abstract class Functions {
     return input;
   }
 
+  /**
+   * Returns every point where a segment of sequence a crosses a segment of sequence b, in order
+   * along a. This uses SegmentIntersections, so it doesn't test every pair of segments.
+   */
+  public static List<Pt> getIntersectionPoints(Sequence a, Sequence b) {
+    List<Pt> ret = new ArrayList<Pt>();
+    for (SegmentIntersections.Crossing x : SegmentIntersections.getCrossings(a, b)) {
+      ret.add(x.getPoint());
+    }
+    return ret;
+  }
+
   public static List<Pt> getIntersectionsOfLineAndSequence(Line line, Sequence seq) {
     List<Pt> ret = new ArrayList<Pt>();
     Pt prev = null;
@@ -0,0 +1,204 @@
+package org.six11.util.pen;
+
+import java.awt.geom.Line2D;
+
+/**
+ * The arithmetic behind the point, line and vector methods in Functions, on plain coordinates. None
+ * of these allocate anything: a single answer is returned, and anything more is written into an
+ * array the caller supplies (and can reuse). Use these in loops that run over every point of every
+ * stroke. The Functions methods that take Pt, Vec and Line objects call these, so both give the
+ * same answers.
+ *
+ * Segments and lines are given by their end points (ax, ay) and (bx, by). A parameter r along one
+ * means the location a + r(b - a), so r is 0 at a and 1 at b.
+ */
+public abstract class GeomKernels {
+
+  public static double dot(double ux, double uy, double vx, double vy) {
+    return ux * vx + uy * vy;
+  }
+
+  /**
+   * The z component of the cross product of u and v, which is also the determinant of [u v].
+   */
+  public static double cross(double ux, double uy, double vx, double vy) {
+    return ux * vy - uy * vx;
+  }
+
+  public static double dist(double ax, double ay, double bx, double by) {
+    double dx = bx - ax;
+    double dy = by - ay;
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Returns the parameter r of the spot on the infinite line through a and b that is nearest p.
+   * The result is NaN if a and b are the same.
+   */
+  public static double lineParam(double ax, double ay, double bx, double by, double px, double py) {
+    double abx = bx - ax;
+    double aby = by - ay;
+    double mag = Math.sqrt(abx * abx + aby * aby);
+    return dot(px - ax, py - ay, abx, aby) / (mag * mag);
+  }
+
+  /**
+   * Finds the spot on the infinite line through a and b that is nearest p, writes its x and y to
+   * out[0] and out[1], and returns its parameter r.
+   */
+  public static double nearestOnLine(double ax, double ay, double bx, double by, double px,
+      double py, double[] out) {
+    double r = lineParam(ax, ay, bx, by, px, py);
+    out[0] = ax + r * (bx - ax);
+    out[1] = ay + r * (by - ay);
+    return r;
+  }
+
+  /**
+   * Finds the spot on segment ab that is nearest p, writes its x and y to out[0] and out[1], and
+   * returns the distance from p to it. A zero-length segment is treated as the point a.
+   */
+  public static double nearestOnSegment(double ax, double ay, double bx, double by, double px,
+      double py, double[] out) {
+    double dx = bx - ax;
+    double dy = by - ay;
+    double lenSq = dx * dx + dy * dy;
+    double r = 0.0;
+    if (lenSq > 0) {
+      r = ((px - ax) * dx + (py - ay) * dy) / lenSq;
+      r = Math.max(0.0, Math.min(1.0, r));
+    }
+    out[0] = ax + r * dx;
+    out[1] = ay + r * dy;
+    return Math.hypot(px - out[0], py - out[1]);
+  }
+
+  /**
+   * Returns the distance from p to the nearest spot on segment ab.
+   */
+  public static double segDist(double ax, double ay, double bx, double by, double px, double py) {
+    double ret;
+    double r = lineParam(ax, ay, bx, by, px, py);
+    if (r < 0) {
+      ret = dist(px, py, ax, ay);
+    } else if (r > 1) {
+      ret = dist(px, py, bx, by);
+    } else {
+      ret = Line2D.ptLineDist(ax, ay, bx, by, px, py);
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the distance from p to the infinite line through a and b, negated when the cross
+   * product of (a - b) and (p - a) is negative. This is the sign convention of
+   * Functions.getSignedDistanceBetweenPointAndLine.
+   */
+  public static double signedLineDist(double ax, double ay, double bx, double by, double px,
+      double py) {
+    double ret = Line2D.ptLineDist(ax, ay, bx, by, px, py);
+    if (cross(ax - bx, ay - by, px - ax, py - ay) < 0.0) {
+      ret = -ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Returns Functions.PARTITION_LEFT, PARTITION_RIGHT or PARTITION_ON_BORDER depending on which
+   * side of the line through a and b the point p is on.
+   */
+  public static int partition(double px, double py, double ax, double ay, double bx, double by) {
+    double det = cross(ax - bx, ay - by, ax - px, ay - py);
+    int ret = Functions.PARTITION_ON_BORDER;
+    if (det < 0) {
+      ret = Functions.PARTITION_LEFT;
+    } else if (det > 0) {
+      ret = Functions.PARTITION_RIGHT;
+    }
+    return ret;
+  }
+
+  /**
+   * Intersects the infinite lines through ab and cd. If they are parallel this returns false and
+   * leaves out alone. Otherwise it writes {r, s, x, y} to out, where r is the parameter along ab, s
+   * is the parameter along cd and (x, y) is the intersection, and returns true. The segments
+   * themselves cross if both r and s are in [0, 1]. This is the math IntersectionData uses.
+   */
+  public static boolean intersect(double ax, double ay, double bx, double by, double cx,
+      double cy, double dx, double dy, double[] out) {
+    double numR = (ay - cy) * (dx - cx) - (ax - cx) * (dy - cy);
+    double numS = (ay - cy) * (bx - ax) - (ax - cx) * (by - ay);
+    double denominator = (bx - ax) * (dy - cy) - (by - ay) * (dx - cx);
+    boolean ret = false;
+    if (denominator != 0.0) {
+      double r = numR / denominator;
+      out[0] = r;
+      out[1] = numS / denominator;
+      out[2] = ax + r * (bx - ax);
+      out[3] = ay + r * (by - ay);
+      ret = true;
+    }
+    return ret;
+  }
+
+  /**
+   * Finds the center of the circle through a, b and c and writes it to out[0] and out[1]. Returns
+   * false (leaving out alone) if the points are collinear.
+   */
+  public static boolean circleCenter(double ax, double ay, double bx, double by, double cx,
+      double cy, double[] out) {
+    double A = bx - ax;
+    double B = by - ay;
+    double C = cx - ax;
+    double D = cy - ay;
+    double E = A * (ax + bx) + B * (ay + by);
+    double F = C * (ax + cx) + D * (ay + cy);
+    double G = 2 * (A * (cy - by) - B * (cx - bx));
+    boolean ret = false;
+    if (G != 0.0) {
+      out[0] = (D * E - B * F) / G;
+      out[1] = (A * F - C * E) / G;
+      ret = true;
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the signed curvature at b, as defined by Functions.getCurvature(Pt, Pt, Pt): one over
+   * the radius of the circle through a, b and c (zero if they are collinear), negative when the
+   * atan2 angle of (c - a) is less than that of (b - a).
+   */
+  public static double curvature(double ax, double ay, double bx, double by, double cx, double cy) {
+    double ret = 0.0;
+    double A = bx - ax;
+    double B = by - ay;
+    double C = cx - ax;
+    double D = cy - ay;
+    double G = 2 * (A * (cy - by) - B * (cx - bx));
+    if (G != 0.0) {
+      double E = A * (ax + bx) + B * (ay + by);
+      double F = C * (ax + cx) + D * (ay + cy);
+      double midX = (D * E - B * F) / G;
+      double midY = (A * F - C * E) / G;
+      ret = 1 / dist(midX, midY, bx, by);
+    }
+    if (Math.atan2(D, C) - Math.atan2(B, A) < 0) {
+      ret = ret * -1.0;
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the angle from u to v in [-pi, pi], positive when v is counterclockwise of u (using the
+   * dot and cross products, as Functions.getSignedAngleBetween does).
+   */
+  public static double signedAngle(double ux, double uy, double vx, double vy) {
+    double magU = Math.sqrt(ux * ux + uy * uy);
+    double magV = Math.sqrt(vx * vx + vy * vy);
+    double ret = Math.acos(dot(ux, uy, vx, vy) / (magU * magV));
+    if (cross(ux, uy, vx, vy) < 0) {
+      ret = -ret;
+    }
+    return ret;
+  }
+}
@@ -43,6 +43,16 @@ public class OliveSoup {
   // sequence listeners are interested in pen activity
   private Set<SequenceListener> sequenceListeners;
 
+  // the stroke analysis (if any) is brought up to date before sequence listeners hear about ink
+  private StrokeAnalysis strokeAnalysis;
+
+  // spatial index over the finished sequences, made on demand and then kept in sync with them
+  private SequenceIndex sequenceIndex;
+  public static final double DEFAULT_INDEX_CELL_SIZE = 40;
+
+  // crossings among the finished sequences, also made on demand and kept in sync
+  private SketchIntersections sketchIntersections;
+
   // hover listeners are interested in pen hover (in/out/move) activity
   private Set<HoverListener> hoverListeners;
 
@@ -120,7 +130,23 @@ public class OliveSoup {
     sequenceListeners.remove(lis);
   }
 
+  /**
+   * Sets the incremental analysis that is run on the in-progress stroke. It sees each new point
+   * before sequence listeners are told about it, so they can read its up-to-date results instead of
+   * re-analyzing the whole sequence on every PROGRESS event. Pass null to turn it off.
+   */
+  public void setStrokeAnalysis(StrokeAnalysis analysis) {
+    strokeAnalysis = analysis;
+  }
+
+  public StrokeAnalysis getStrokeAnalysis() {
+    return strokeAnalysis;
+  }
+
   private void fireSequenceEvent(SequenceEvent ev) {
+    if (strokeAnalysis != null) {
+      strokeAnalysis.handleSequenceEvent(ev);
+    }
     for (SequenceListener lis : sequenceListeners) {
       lis.handleSequenceEvent(ev);
     }
@@ -178,6 +204,34 @@ public class OliveSoup {
     return pastSequences;
   }
 
+  /**
+   * Returns a spatial index of the finished sequences, for fast hit testing (nearest point, radius
+   * and rectangle queries). It is built the first time you ask for it, and from then on it is kept
+   * up to date by addFinishedSequence, removeFinishedSequence and updateFinishedSequence.
+   */
+  public SequenceIndex getSequenceIndex() {
+    if (sequenceIndex == null) {
+      sequenceIndex = new SequenceIndex(DEFAULT_INDEX_CELL_SIZE);
+      for (Sequence s : pastSequences) {
+        sequenceIndex.add(s);
+      }
+    }
+    return sequenceIndex;
+  }
+
+  /**
+   * Returns the places where finished sequences cross one another. Like the sequence index, it is
+   * built the first time you ask for it and kept up to date from then on, so after that each new
+   * sequence only costs a test of its own segments.
+   */
+  public SketchIntersections getSketchIntersections() {
+    if (sketchIntersections == null) {
+      sketchIntersections = new SketchIntersections(DEFAULT_INDEX_CELL_SIZE);
+      sketchIntersections.addAll(pastSequences);
+    }
+    return sketchIntersections;
+  }
+
   /**
    * Draws the portion of the current sequence that has not yet been drawn.
    */
@@ -315,6 +369,12 @@ public class OliveSoup {
       drawingBuffers.add(buf);
       combinedBuffers = null;
       pastSequences.add(s);
+      if (sequenceIndex != null) {
+        sequenceIndex.add(s);
+      }
+      if (sketchIntersections != null) {
+        sketchIntersections.add(s);
+      }
     }
 
     if (s != null) {
@@ -327,6 +387,12 @@ public class OliveSoup {
     if (s != null) {
       drawingBuffers.remove(s);
       pastSequences.remove(s);
+      if (sequenceIndex != null) {
+        sequenceIndex.remove(s);
+      }
+      if (sketchIntersections != null) {
+        sketchIntersections.remove(s);
+      }
       combinedBuffers = null;
     }
   }
@@ -361,6 +427,12 @@ public class OliveSoup {
       drawingBuffers.add(buf);
       combinedBuffers = null;
       pastSequences.add(s);
+      if (sequenceIndex != null) {
+        sequenceIndex.add(s);
+      }
+      if (sketchIntersections != null) {
+        sketchIntersections.add(s);
+      }
     }
   }
 
@@ -0,0 +1,717 @@
+package org.six11.util.pen;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A Sequence that keeps its samples in parallel primitive arrays (x, y, time and point ID) instead
+ * of a list of Pt objects. A 2,000 sample stroke costs a few tens of kilobytes rather than a
+ * Point2D, a HashMap and a list slot for every sample, and the arc length, bounding box and speed
+ * loops read the arrays directly.
+ *
+ * Everything that works on a Sequence still works here. Asking for a point (get(idx), iteration,
+ * getPoints()) hands out a lightweight Pt view of that sample. Views write their location and time
+ * back into the arrays, and any attributes set on a view are kept by the sequence so the next view
+ * of the same sample sees them. Double attributes that have a channel (see doubleChannel(name)) are
+ * read and written straight from the channel's array, so pt.getDouble("curvature") costs no
+ * hashing or boxing here and there is never a need to mirror channels into point attributes.
+ * Reading an attribute that a sample doesn't have makes no map for it; only writes do. A view is
+ * tied to its index, so like an iterator it should not be held on to across inserts or removals
+ * that happen before it in the sequence.
+ *
+ * @see Sequence
+ */
+public class PackedSequence extends Sequence {
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private double[] xs;
+  private double[] ys;
+  private long[] times;
+  private int[] ids;
+  private Map<String, Object>[] attribs; // lazily created, and sparse: most entries are null.
+  private int n;
+
+  public PackedSequence() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public PackedSequence(int initialCapacity) {
+    super();
+    initialCapacity = Math.max(1, initialCapacity);
+    xs = new double[initialCapacity];
+    ys = new double[initialCapacity];
+    times = new long[initialCapacity];
+    ids = new int[initialCapacity];
+    points = new PackedPointList();
+  }
+
+  public PackedSequence(List<Pt> data) {
+    this(data.size());
+    for (Pt pt : data) {
+      add(pt);
+    }
+  }
+
+  /**
+   * Makes a packed copy of the given sequence. The point IDs and attributes are shared with the
+   * source points, just as they would be if the points were added to a regular Sequence.
+   */
+  public PackedSequence(Sequence source) {
+    this(source.getPoints());
+    setClosedRegion(source.isClosedRegion());
+  }
+
+  /**
+   * Adds a sample at the given location and time. This is the cheapest way to grow a packed
+   * sequence because no Pt is involved.
+   */
+  public void add(double x, double y, long time) {
+    insert(n, ++Pt.ID_COUNTER, x, y, time, null);
+  }
+
+  public double getX(int idx) {
+    checkIndex(idx);
+    return xs[idx];
+  }
+
+  public double getY(int idx) {
+    checkIndex(idx);
+    return ys[idx];
+  }
+
+  public long getTime(int idx) {
+    checkIndex(idx);
+    return times[idx];
+  }
+
+  /**
+   * Returns the backing x array. Only the first size() entries are meaningful, and the array is
+   * replaced when the sequence grows, so don't hang on to it.
+   */
+  public double[] getXArray() {
+    return xs;
+  }
+
+  /**
+   * Returns the backing y array. See getXArray() for caveats.
+   */
+  public double[] getYArray() {
+    return ys;
+  }
+
+  /**
+   * Returns the backing time array. See getXArray() for caveats.
+   */
+  public long[] getTimeArray() {
+    return times;
+  }
+
+  /**
+   * Makes sure the arrays can hold at least the given number of samples without growing again.
+   */
+  public void ensureCapacity(int capacity) {
+    if (capacity > xs.length) {
+      resize(Math.max(capacity, xs.length + (xs.length >> 1) + 1));
+    }
+  }
+
+  /**
+   * Shrinks the backing arrays to exactly fit the current number of samples. Call this once a
+   * stroke is finished if it is going to stick around.
+   */
+  public void trimToSize() {
+    if (n < xs.length) {
+      resize(Math.max(1, n));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void resize(int capacity) {
+    double[] newXs = new double[capacity];
+    double[] newYs = new double[capacity];
+    long[] newTimes = new long[capacity];
+    int[] newIds = new int[capacity];
+    System.arraycopy(xs, 0, newXs, 0, n);
+    System.arraycopy(ys, 0, newYs, 0, n);
+    System.arraycopy(times, 0, newTimes, 0, n);
+    System.arraycopy(ids, 0, newIds, 0, n);
+    xs = newXs;
+    ys = newYs;
+    times = newTimes;
+    ids = newIds;
+    if (attribs != null) {
+      Map<String, Object>[] newAttribs = newAttribArray(capacity);
+      System.arraycopy(attribs, 0, newAttribs, 0, n);
+      attribs = newAttribs;
+    }
+  }
+
+  private void checkIndex(int idx) {
+    if (idx < 0 || idx >= n) {
+      throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + n);
+    }
+  }
+
+  private void insert(int idx, int id, double x, double y, long time, Map<String, Object> attr) {
+    ensureCapacity(n + 1);
+    int tail = n - idx;
+    if (tail > 0) {
+      System.arraycopy(xs, idx, xs, idx + 1, tail);
+      System.arraycopy(ys, idx, ys, idx + 1, tail);
+      System.arraycopy(times, idx, times, idx + 1, tail);
+      System.arraycopy(ids, idx, ids, idx + 1, tail);
+      if (attribs != null) {
+        System.arraycopy(attribs, idx, attribs, idx + 1, tail);
+      }
+    }
+    xs[idx] = x;
+    ys[idx] = y;
+    times[idx] = time;
+    ids[idx] = id;
+    n++;
+    ((PackedPointList) points).structureChanged();
+    setAttributesAt(idx, attr);
+    channelsPointInserted(idx);
+  }
+
+  private Pt delete(int idx) {
+    checkIndex(idx);
+    Pt ret = new Pt(ids[idx], xs[idx], ys[idx], times[idx], attributesAt(idx, false));
+    int tail = n - idx - 1;
+    if (tail > 0) {
+      System.arraycopy(xs, idx + 1, xs, idx, tail);
+      System.arraycopy(ys, idx + 1, ys, idx, tail);
+      System.arraycopy(times, idx + 1, times, idx, tail);
+      System.arraycopy(ids, idx + 1, ids, idx, tail);
+      if (attribs != null) {
+        System.arraycopy(attribs, idx + 1, attribs, idx, tail);
+      }
+    }
+    n--;
+    ((PackedPointList) points).structureChanged();
+    if (attribs != null) {
+      attribs[n] = null;
+    }
+    channelsPointRemoved(idx);
+    return ret;
+  }
+
+  /**
+   * Returns the attribute map for the given sample, or null if it has none and create is false.
+   */
+  Map<String, Object> attributesAt(int idx, boolean create) {
+    Map<String, Object> ret = (attribs == null) ? null : attribs[idx];
+    if (ret == null && create) {
+      ret = new HashMap<String, Object>();
+      setAttributesAt(idx, ret);
+    }
+    return ret;
+  }
+
+  private void setAttributesAt(int idx, Map<String, Object> attr) {
+    if (attr != null && attribs == null) {
+      attribs = newAttribArray(xs.length);
+    }
+    if (attribs != null) {
+      attribs[idx] = attr;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object>[] newAttribArray(int size) {
+    return (Map<String, Object>[]) new Map<?, ?>[size];
+  }
+
+  private static Map<String, Object> attributesOf(Pt pt) {
+    Map<String, Object> ret = null;
+    if (pt.attribs != null && !pt.attribs.isEmpty()) {
+      ret = pt.attribs;
+    }
+    return ret;
+  }
+
+  @Override
+  public int size() {
+    return n;
+  }
+
+  /**
+   * Always false: points in a packed sequence read channels directly, so there's nothing to mirror.
+   */
+  @Override
+  public boolean isChannelMirroring() {
+    return false;
+  }
+
+  /**
+   * False: writes to a packed sequence's points go straight into its channels.
+   */
+  @Override
+  boolean isWatchingPoints() {
+    return false;
+  }
+
+  /**
+   * Moves any existing attribute values with the channel's name out of the per-sample attribute
+   * maps and into the new channel.
+   */
+  @Override
+  protected void importChannel(DoubleChannel channel) {
+    for (int i = 0; attribs != null && i < n; i++) {
+      if (attribs[i] != null && attribs[i].get(channel.getName()) instanceof Double) {
+        channel.store(i, (Double) attribs[i].remove(channel.getName()));
+      }
+    }
+  }
+
+  private void copyChannelsInto(PackedSequence other, int beginInclusive, int endExclusive) {
+    for (DoubleChannel channel : channels.values()) {
+      DoubleChannel twin = other.doubleChannel(channel.getName());
+      for (int i = beginInclusive; i < endExclusive; i++) {
+        if (channel.has(i)) {
+          twin.store(i - beginInclusive, channel.get(i));
+        }
+      }
+    }
+  }
+
+  @Override
+  public Sequence copy() {
+    PackedSequence ret = new PackedSequence(n);
+    for (int i = 0; i < n; i++) {
+      Map<String, Object> attr = attributesAt(i, false);
+      if (attr != null) {
+        attr = new HashMap<String, Object>(attr);
+      }
+      ret.insert(i, ++Pt.ID_COUNTER, xs[i], ys[i], times[i], attr);
+    }
+    copyChannelsInto(ret, 0, n);
+    return ret;
+  }
+
+  @Override
+  public Sequence copy(int beginInclusive, int endExclusive) {
+    return getSubSequence(beginInclusive, endExclusive);
+  }
+
+  @Override
+  public Sequence getSubSequence(int beginInclusive, int endExclusive) {
+    PackedSequence ret = new PackedSequence(endExclusive - beginInclusive);
+    for (int i = beginInclusive; i < endExclusive; i++) {
+      checkIndex(i);
+      ret.insert(ret.n, ids[i], xs[i], ys[i], times[i], attributesAt(i, false));
+    }
+    copyChannelsInto(ret, beginInclusive, endExclusive);
+    return ret;
+  }
+
+  @Override
+  public double getPathLength(int idxStartInclusive, int idxEndInclusive) {
+    double ret = 0.0;
+    for (int i = idxStartInclusive; i < idxEndInclusive; i++) {
+      ret += Math.hypot(xs[i + 1] - xs[i], ys[i + 1] - ys[i]);
+    }
+    return ret;
+  }
+
+  @Override
+  public double calculateCurvilinearDistances() {
+    DoubleChannel dist = doubleChannel("curvilinear-distance");
+    double sum = 0.0;
+    for (int i = 0; i < n; i++) {
+      if (i > 0) {
+        sum += Math.hypot(xs[i] - xs[i - 1], ys[i] - ys[i - 1]);
+      }
+      dist.store(i, sum);
+    }
+    return sum;
+  }
+
+  @Override
+  public double getEndpointDistance() {
+    double ret = 0.0;
+    if (n > 1) {
+      ret = Math.hypot(xs[n - 1] - xs[0], ys[n - 1] - ys[0]);
+    }
+    return ret;
+  }
+
+  @Override
+  public double getSpeed(int idx) {
+    double ret = 0.0;
+    if (idx > 0 && idx < (n - 1)) {
+      double numer = getPathLength(idx - 1, idx + 1);
+      double denom = times[idx + 1] - times[idx - 1];
+      ret = numer / denom;
+    }
+    doubleChannel("speed").store(idx, ret);
+    return ret;
+  }
+
+  @Override
+  public boolean isForward() {
+    boolean ret = true;
+    for (int i = 1; i < n; i++) {
+      if (times[i] < times[i - 1]) {
+        ret = false;
+        break;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public boolean isBackward() {
+    boolean ret = true;
+    for (int i = 1; i < n; i++) {
+      if (times[i] > times[i - 1]) {
+        ret = false;
+        break;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public long getDuration() {
+    return times[n - 1] - times[0];
+  }
+
+  @Override
+  public Rectangle2D getBounds2D() {
+    double minX = Double.MAX_VALUE;
+    double minY = Double.MAX_VALUE;
+    double maxX = -Double.MAX_VALUE;
+    double maxY = -Double.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      minX = Math.min(minX, xs[i]);
+      maxX = Math.max(maxX, xs[i]);
+      minY = Math.min(minY, ys[i]);
+      maxY = Math.max(maxY, ys[i]);
+    }
+    return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+  }
+
+  @Override
+  public PathIterator getPathIterator(AffineTransform affine) {
+    return new PackedPathIterator(affine);
+  }
+
+  /**
+   * Walks the packed arrays as a polyline without making any Pt views.
+   */
+  private class PackedPathIterator implements PathIterator {
+    int idx;
+    AffineTransform affine;
+
+    PackedPathIterator(AffineTransform affine) {
+      this.affine = affine;
+    }
+
+    public int getWindingRule() {
+      return WIND_NON_ZERO;
+    }
+
+    public boolean isDone() {
+      return idx >= n;
+    }
+
+    public void next() {
+      idx++;
+    }
+
+    public int currentSegment(float[] coords) {
+      if (isDone()) {
+        throw new NoSuchElementException("Sequence path iterator out of bounds");
+      }
+      coords[0] = (float) xs[idx];
+      coords[1] = (float) ys[idx];
+      if (affine != null) {
+        affine.transform(coords, 0, coords, 0, 1);
+      }
+      return idx == 0 ? SEG_MOVETO : SEG_LINETO;
+    }
+
+    public int currentSegment(double[] coords) {
+      if (isDone()) {
+        throw new NoSuchElementException("Sequence path iterator out of bounds");
+      }
+      coords[0] = xs[idx];
+      coords[1] = ys[idx];
+      if (affine != null) {
+        affine.transform(coords, 0, coords, 0, 1);
+      }
+      return idx == 0 ? SEG_MOVETO : SEG_LINETO;
+    }
+  }
+
+  /**
+   * The List<Pt> face of the packed arrays. Sequence does all of its list work through this, so the
+   * inherited methods keep working unchanged.
+   */
+  private class PackedPointList extends AbstractList<Pt> {
+
+    @Override
+    public Pt get(int idx) {
+      checkIndex(idx);
+      return new PointView(PackedSequence.this, idx);
+    }
+
+    @Override
+    public int size() {
+      return n;
+    }
+
+    @Override
+    public Pt set(int idx, Pt pt) {
+      checkIndex(idx);
+      Pt old = new Pt(ids[idx], xs[idx], ys[idx], times[idx], attributesAt(idx, false));
+      setAttributesAt(idx, attributesOf(pt));
+      xs[idx] = pt.getX();
+      ys[idx] = pt.getY();
+      times[idx] = pt.getTime();
+      ids[idx] = pt.getID();
+      return old;
+    }
+
+    @Override
+    public void add(int idx, Pt pt) {
+      if (idx < 0 || idx > n) {
+        throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + n);
+      }
+      insert(idx, pt.getID(), pt.getX(), pt.getY(), pt.getTime(), attributesOf(pt));
+    }
+
+    @Override
+    public Pt remove(int idx) {
+      return delete(idx);
+    }
+
+    @Override
+    public void clear() {
+      if (attribs != null) {
+        for (int i = 0; i < n; i++) {
+          attribs[i] = null;
+        }
+      }
+      n = 0;
+      structureChanged();
+      for (DoubleChannel channel : channels.values()) {
+        channel.pointsCleared();
+      }
+    }
+
+    /**
+     * Called whenever points go in or out, by whatever route, so iterators over this list fail fast
+     * the way an ArrayList's do.
+     */
+    void structureChanged() {
+      modCount++;
+    }
+
+    /**
+     * Same semantics as ArrayList.indexOf (which uses Point2D's location equality), except a view
+     * of this sequence is found by its index without searching.
+     */
+    @Override
+    public int indexOf(Object o) {
+      int ret = -1;
+      if (o instanceof PointView && ((PointView) o).isViewOf(PackedSequence.this)) {
+        ret = ((PointView) o).idx;
+      } else if (o instanceof Pt) {
+        Pt pt = (Pt) o;
+        for (int i = 0; i < n; i++) {
+          if (xs[i] == pt.getX() && ys[i] == pt.getY()) {
+            ret = i;
+            break;
+          }
+        }
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * A Pt that stands in for one sample of a PackedSequence. It has the same ID as the sample, so
+   * views made at different times compare equal.
+   */
+  private static class PointView extends Pt {
+
+    private static final long serialVersionUID = 1L;
+
+    private final PackedSequence seq;
+    private final int idx;
+
+    PointView(PackedSequence seq, int idx) {
+      super(seq.ids[idx], seq.xs[idx], seq.ys[idx], seq.times[idx], seq.attributesAt(idx, false));
+      this.seq = seq;
+      this.idx = idx;
+    }
+
+    boolean isViewOf(PackedSequence other) {
+      return seq == other && idx < seq.n && seq.ids[idx] == getID();
+    }
+
+    @Override
+    public void setLocation(double x, double y) {
+      super.setLocation(x, y);
+      if (isViewOf(seq)) {
+        seq.xs[idx] = x;
+        seq.ys[idx] = y;
+      }
+    }
+
+    @Override
+    public void setTime(long time) {
+      super.setTime(time);
+      if (isViewOf(seq)) {
+        seq.times[idx] = time;
+      }
+    }
+
+    private DoubleChannel channel(String name) {
+      return isViewOf(seq) ? seq.channels.get(name) : null;
+    }
+
+    @Override
+    public void setDouble(String name, double value) {
+      DoubleChannel channel = channel(name);
+      if (channel != null) {
+        channel.store(idx, value);
+      } else {
+        super.setDouble(name, value);
+      }
+    }
+
+    @Override
+    public double getDouble(String name) {
+      DoubleChannel channel = channel(name);
+      double ret;
+      if (channel != null && channel.has(idx)) {
+        ret = channel.get(idx);
+      } else {
+        ret = super.getDouble(name);
+      }
+      return ret;
+    }
+
+    @Override
+    public double getDouble(String name, double defaultValue) {
+      DoubleChannel channel = channel(name);
+      double ret;
+      if (channel != null && channel.has(idx)) {
+        ret = channel.get(idx);
+      } else {
+        ret = super.getDouble(name, defaultValue);
+      }
+      return ret;
+    }
+
+    /**
+     * The sample's attributes for reading. A sample with none gets an empty map rather than a new
+     * one of its own; getAttribs() is what makes one, for writing.
+     */
+    private Map<String, Object> readAttribs() {
+      Map<String, Object> ret = attribs;
+      if (ret == null && isViewOf(seq)) {
+        ret = seq.attributesAt(idx, false);
+      }
+      if (ret == null) {
+        ret = Collections.emptyMap();
+      }
+      return ret;
+    }
+
+    @Override
+    public boolean hasAttribute(String name) {
+      DoubleChannel channel = channel(name);
+      return (channel != null && channel.has(idx)) || readAttribs().containsKey(name);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      DoubleChannel channel = channel(name);
+      Object ret;
+      if (channel != null && channel.has(idx)) {
+        ret = channel.get(idx);
+      } else {
+        ret = readAttribs().get(name);
+      }
+      return ret;
+    }
+
+    @Override
+    public boolean getBoolean(String name) {
+      return hasAttribute(name) && (Boolean) getAttribute(name);
+    }
+
+    @Override
+    public boolean getBoolean(String name, boolean defaultValue) {
+      boolean ret = defaultValue;
+      if (hasAttribute(name)) {
+        ret = (Boolean) getAttribute(name);
+      }
+      return ret;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      DoubleChannel channel = channel(name);
+      if (channel != null && value instanceof java.lang.Double) {
+        channel.store(idx, (java.lang.Double) value);
+      } else {
+        if (channel != null) {
+          channel.clear(idx);
+        }
+        super.setAttribute(name, value);
+      }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      DoubleChannel channel = channel(name);
+      if (channel != null) {
+        channel.clear(idx);
+      }
+      Map<String, Object> attr = readAttribs();
+      if (attr.containsKey(name)) {
+        attr.remove(name);
+      }
+    }
+
+    /**
+     * Copies this sample into a standalone Pt, including the values it has in any channels.
+     */
+    @Override
+    public Pt copy() {
+      if (attribs == null && isViewOf(seq)) {
+        attribs = seq.attributesAt(idx, false);
+      }
+      Pt twin = super.copy();
+      if (isViewOf(seq)) {
+        for (DoubleChannel channel : seq.channels.values()) {
+          if (channel.has(idx)) {
+            twin.setDouble(channel.getName(), channel.get(idx));
+          }
+        }
+      }
+      return twin;
+    }
+
+    @Override
+    public Map<String, Object> getAttribs() {
+      if (attribs == null) {
+        attribs = isViewOf(seq) ? seq.attributesAt(idx, true) : new HashMap<String, Object>();
+      }
+      return attribs;
+    }
+  }
+}
@@ -26,6 +26,12 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
   protected Map<String, Object> attribs;
   protected final int id;
 
+  /**
+   * Counts the times the attribute map may have changed, so a Sequence's channels can tell when a
+   * value was written straight to the point. Private and transient to stay out of serialization.
+   */
+  private transient int attribWrites;
+
   public Pt() {
     this(0, 0);
   }
@@ -63,6 +69,17 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
     ID_COUNTER = Math.max(id, ID_COUNTER);
   }
 
+  /**
+   * Makes a point that adopts the given attribute map (which may be null) rather than allocating a
+   * fresh one. This is used by PackedSequence to hand out lightweight views of its samples.
+   */
+  Pt(int id, double x, double y, long time, Map<String, Object> attribs) {
+    super(x, y);
+    this.id = id;
+    this.time = time;
+    this.attribs = attribs;
+  }
+
   public Pt(Point2D source, long time) {
     this(source.getX(), source.getY(), time);
   }
@@ -75,13 +92,22 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
     return id;
   }
 
+  /**
+   * Returns the attribute map, making it if needed. The caller may change the map, so asking for it
+   * counts as a write.
+   */
   public Map<String, Object> getAttribs() {
+    attribWrites++;
     if (attribs == null) {
       attribs = new HashMap<String, Object>();
     }
     return attribs;
   }
 
+  int getAttributeWrites() {
+    return attribWrites;
+  }
+
   /**
    * Scale this point by the given amount.
    */
@@ -224,7 +250,7 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
     return twin;
   }
 
-  public final void setTime(long time) {
+  public void setTime(long time) {
     this.time = time;
   }
 
@@ -241,12 +267,12 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
   }
 
   public boolean getBoolean(String name) {
-    return (getAttribs().containsKey(name) && (Boolean) getAttribute(name));
+    return (hasAttribute(name) && (Boolean) getAttribute(name));
   }
 
   public boolean getBoolean(String name, boolean defaultValue) {
     boolean ret = defaultValue;
-    if (getAttribs().containsKey(name)) {
+    if (hasAttribute(name)) {
       ret = (Boolean) getAttribute(name);
     }
     return ret;
@@ -264,11 +290,11 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
   }
 
   public boolean hasAttribute(String name) {
-    return getAttribs().containsKey(name);
+    return attribs != null && attribs.containsKey(name);
   }
 
   public Object getAttribute(String name) {
-    return getAttribs().get(name);
+    return (attribs == null) ? null : attribs.get(name);
   }
 
   public void removeAttribute(String name) {
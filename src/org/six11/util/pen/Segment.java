@@ -153,7 +153,14 @@ public class Segment implements Comparable<Segment> {
    * Return the curvilinear distance of this segment.
    */
   double length() {
-    return end.getDouble("curvilinear-distance") - start.getDouble("curvilinear-distance");
+    double ret;
+    DoubleChannel dist = seq.getChannel("curvilinear-distance");
+    if (dist != null) {
+      ret = dist.get(idxEnd) - dist.get(idxStart);
+    } else {
+      ret = end.getDouble("curvilinear-distance") - start.getDouble("curvilinear-distance");
+    }
+    return ret;
   }
 
   /**
@@ -0,0 +1,213 @@
+package org.six11.util.pen;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A uniform grid of square cells for filing line segments. Each cell holds the segments under it
+ * as (owner, segment index) pairs, and a segment is filed under every cell its bounding box
+ * touches. SequenceIndex (owners are sequences) and SketchIntersections (owners are strokes) both
+ * keep their segments in one of these.
+ */
+class SegmentGrid<T> {
+
+  /**
+   * The segments filed under one grid cell, as parallel arrays of owner and segment index.
+   */
+  static class Cell<T> {
+    final int cx;
+    final int cy;
+    private Object[] owners = new Object[4];
+    int[] segs = new int[4];
+    int n;
+
+    Cell(int cx, int cy) {
+      this.cx = cx;
+      this.cy = cy;
+    }
+
+    @SuppressWarnings("unchecked")
+    T owner(int i) {
+      return (T) owners[i];
+    }
+
+    void add(T owner, int seg) {
+      if (n == owners.length) {
+        Object[] biggerOwners = new Object[n * 2];
+        int[] biggerSegs = new int[n * 2];
+        System.arraycopy(owners, 0, biggerOwners, 0, n);
+        System.arraycopy(segs, 0, biggerSegs, 0, n);
+        owners = biggerOwners;
+        segs = biggerSegs;
+      }
+      owners[n] = owner;
+      segs[n] = seg;
+      n++;
+    }
+
+    void removeAll(T owner) {
+      int keep = 0;
+      for (int i = 0; i < n; i++) {
+        if (owners[i] != owner) {
+          owners[keep] = owners[i];
+          segs[keep] = segs[i];
+          keep++;
+        }
+      }
+      for (int i = keep; i < n; i++) {
+        owners[i] = null;
+      }
+      n = keep;
+    }
+  }
+
+  private final double cellSize;
+  private Map<Long, Cell<T>> cells;
+  private int minCx, minCy, maxCx, maxCy; // extent of the occupied cells
+  private boolean extentStale; // true if a cell was dropped since the extent was last found
+
+  SegmentGrid(double cellSize) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+    }
+    this.cellSize = cellSize;
+    clear();
+  }
+
+  double getCellSize() {
+    return cellSize;
+  }
+
+  void clear() {
+    cells = new HashMap<Long, Cell<T>>();
+    minCx = Integer.MAX_VALUE;
+    minCy = Integer.MAX_VALUE;
+    maxCx = Integer.MIN_VALUE;
+    maxCy = Integer.MIN_VALUE;
+    extentStale = false;
+  }
+
+  boolean isEmpty() {
+    return cells.isEmpty();
+  }
+
+  /**
+   * Returns the cell at the given grid coordinates, or null if nothing is filed there.
+   */
+  Cell<T> get(int cx, int cy) {
+    return cells.get(key(cx, cy));
+  }
+
+  /**
+   * Files segment seg of the owner under every cell touched by the bounding box of (x0, y0) and
+   * (x1, y1). Each of those cells is also added to touched.
+   */
+  void add(T owner, int seg, double x0, double y0, double x1, double y1,
+      Collection<Cell<T>> touched) {
+    int cx0 = cell(Math.min(x0, x1));
+    int cx1 = cell(Math.max(x0, x1));
+    int cy0 = cell(Math.min(y0, y1));
+    int cy1 = cell(Math.max(y0, y1));
+    for (int cx = cx0; cx <= cx1; cx++) {
+      for (int cy = cy0; cy <= cy1; cy++) {
+        Long key = key(cx, cy);
+        Cell<T> c = cells.get(key);
+        if (c == null) {
+          c = new Cell<T>(cx, cy);
+          cells.put(key, c);
+        }
+        c.add(owner, seg);
+        touched.add(c);
+      }
+    }
+    minCx = Math.min(minCx, cx0);
+    minCy = Math.min(minCy, cy0);
+    maxCx = Math.max(maxCx, cx1);
+    maxCy = Math.max(maxCy, cy1);
+  }
+
+  /**
+   * Takes every segment of the owner out of the given cells (the ones add() reported), and drops
+   * the cells that end up empty.
+   */
+  void remove(T owner, Collection<Cell<T>> from) {
+    for (Cell<T> c : from) {
+      c.removeAll(owner);
+      if (c.n == 0) {
+        cells.remove(key(c.cx, c.cy));
+        extentStale = true;
+      }
+    }
+  }
+
+  /**
+   * Adds the occupied cells under the bounding box of (x0, y0) and (x1, y1) to out, column by
+   * column.
+   */
+  void cellsUnder(double x0, double y0, double x1, double y1, Collection<Cell<T>> out) {
+    refreshExtent();
+    int cx0 = Math.max(cell(Math.min(x0, x1)), minCx);
+    int cx1 = Math.min(cell(Math.max(x0, x1)), maxCx);
+    int cy0 = Math.max(cell(Math.min(y0, y1)), minCy);
+    int cy1 = Math.min(cell(Math.max(y0, y1)), maxCy);
+    for (int cx = cx0; cx <= cx1; cx++) {
+      for (int cy = cy0; cy <= cy1; cy++) {
+        Cell<T> c = cells.get(key(cx, cy));
+        if (c != null) {
+          out.add(c);
+        }
+      }
+    }
+  }
+
+  int getMinCx() {
+    refreshExtent();
+    return minCx;
+  }
+
+  int getMinCy() {
+    refreshExtent();
+    return minCy;
+  }
+
+  int getMaxCx() {
+    refreshExtent();
+    return maxCx;
+  }
+
+  int getMaxCy() {
+    refreshExtent();
+    return maxCy;
+  }
+
+  /**
+   * Shrinks the extent to the cells that are still occupied, if any were dropped.
+   */
+  private void refreshExtent() {
+    if (extentStale) {
+      minCx = Integer.MAX_VALUE;
+      minCy = Integer.MAX_VALUE;
+      maxCx = Integer.MIN_VALUE;
+      maxCy = Integer.MIN_VALUE;
+      for (Cell<T> c : cells.values()) {
+        minCx = Math.min(minCx, c.cx);
+        minCy = Math.min(minCy, c.cy);
+        maxCx = Math.max(maxCx, c.cx);
+        maxCy = Math.max(maxCy, c.cy);
+      }
+      extentStale = false;
+    }
+  }
+
+  /**
+   * Returns the grid column (or row) containing the given x (or y) coordinate.
+   */
+  int cell(double v) {
+    return (int) Math.floor(v / cellSize);
+  }
+
+  private static Long key(int cx, int cy) {
+    return (((long) cx) << 32) | (cy & 0xffffffffL);
+  }
+}
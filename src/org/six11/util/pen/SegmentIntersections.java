@@ -0,0 +1,355 @@
+package org.six11.util.pen;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds where polylines cross themselves or each other without testing every pair of segments.
+ * The segments are bucketed into a uniform grid sized to the polyline (cells are about one segment
+ * long, and there are about as many cells as segments), and only segments that share a cell are
+ * tested. Each pair is tested in exactly one cell, so nothing is reported twice. For ink this is
+ * close to linear in the number of points, which matters for strokes with thousands of samples.
+ *
+ * Two segments cross when they satisfy the same test Sequence.getSelfIntersectionPoints has always
+ * used: Line2D.linesIntersect, not parallel, and the crossing parameter on each segment in [0, 1].
+ * The crossing location is computed exactly as IntersectionData does.
+ */
+public abstract class SegmentIntersections {
+
+  /**
+   * Where segment 'segmentA' of the first polyline (from point segmentA to segmentA + 1) crosses
+   * segment 'segmentB' of the second (or the same) polyline. The params are the fractions along
+   * each segment, as in IntersectionData.getLineOneParam() and getLineTwoParam().
+   */
+  public static class Crossing {
+    private final int segmentA;
+    private final int segmentB;
+    private final double paramA;
+    private final double paramB;
+    private final double x;
+    private final double y;
+
+    Crossing(int segmentA, int segmentB, double paramA, double paramB, double x, double y) {
+      this.segmentA = segmentA;
+      this.segmentB = segmentB;
+      this.paramA = paramA;
+      this.paramB = paramB;
+      this.x = x;
+      this.y = y;
+    }
+
+    public int getSegmentA() {
+      return segmentA;
+    }
+
+    public int getSegmentB() {
+      return segmentB;
+    }
+
+    public double getParamA() {
+      return paramA;
+    }
+
+    public double getParamB() {
+      return paramB;
+    }
+
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    public Pt getPoint() {
+      return new Pt(x, y);
+    }
+  }
+
+  /**
+   * Orders crossings by the first segment, then the second, then the position along the first.
+   */
+  public static final Comparator<Crossing> BY_SEGMENT = new Comparator<Crossing>() {
+    public int compare(Crossing a, Crossing b) {
+      int ret = a.segmentA - b.segmentA;
+      if (ret == 0) {
+        ret = a.segmentB - b.segmentB;
+      }
+      if (ret == 0) {
+        ret = Double.compare(a.paramA, b.paramA);
+      }
+      return ret;
+    }
+  };
+
+  /**
+   * Returns the places where the polyline made of the first n points crosses itself. Adjacent
+   * segments are never compared. Segment k and a later segment m are compared only if the length of
+   * segment k plus the lengths of segments k+2 through m-1 is no more than localDistance (that is,
+   * you don't have to travel more than localDistance along the ink to get from one to the other). A
+   * negative localDistance means there's no limit. The result is sorted with BY_SEGMENT, with
+   * segmentA < segmentB.
+   */
+  public static List<Crossing> getSelfCrossings(double[] xs, double[] ys, int n,
+      double localDistance) {
+    List<Crossing> ret = new ArrayList<Crossing>();
+    int segs = n - 1;
+    if (segs < 3) {
+      return ret;
+    }
+    double[] cumulative = new double[segs + 1]; // cumulative[q] = length of segments before q
+    for (int q = 0; q < segs; q++) {
+      cumulative[q + 1] = cumulative[q] + segLength(xs, ys, q);
+    }
+    Grid grid = new Grid(xs, ys, n, null, null, 0, segs, cumulative[segs] / segs);
+    grid.fill(xs, ys, segs, 0);
+    for (int c = 0; c < grid.numCells(); c++) {
+      for (int p = grid.start[c]; p < grid.start[c + 1]; p++) {
+        int a = grid.items[p];
+        for (int q = p + 1; q < grid.start[c + 1]; q++) {
+          int b = grid.items[q];
+          int k = Math.min(a, b);
+          int m = Math.max(a, b);
+          if (m - k < 2 || !grid.isFirstSharedCell(c, xs, ys, k, xs, ys, m)) {
+            continue;
+          }
+          if (localDistance >= 0
+              && segLength(xs, ys, k) + (cumulative[m] - cumulative[k + 2]) > localDistance) {
+            continue;
+          }
+          Crossing x = cross(xs, ys, k, xs, ys, m);
+          if (x != null) {
+            ret.add(x);
+          }
+        }
+      }
+    }
+    Collections.sort(ret, BY_SEGMENT);
+    return ret;
+  }
+
+  /**
+   * Returns every place a segment of polyline A (the first na points of ax, ay) crosses a segment of
+   * polyline B. The result is sorted with BY_SEGMENT.
+   */
+  public static List<Crossing> getCrossings(double[] ax, double[] ay, int na, double[] bx,
+      double[] by, int nb) {
+    List<Crossing> ret = new ArrayList<Crossing>();
+    int segsA = na - 1;
+    int segsB = nb - 1;
+    if (segsA < 1 || segsB < 1) {
+      return ret;
+    }
+    double total = 0;
+    for (int q = 0; q < segsA; q++) {
+      total += segLength(ax, ay, q);
+    }
+    for (int q = 0; q < segsB; q++) {
+      total += segLength(bx, by, q);
+    }
+    Grid grid = new Grid(ax, ay, na, bx, by, nb, segsA + segsB, total / (segsA + segsB));
+    // segments of B are stored as (segsA + index) so one grid can hold both.
+    grid.fill(ax, ay, segsA, 0, bx, by, segsB, segsA);
+    for (int c = 0; c < grid.numCells(); c++) {
+      for (int p = grid.start[c]; p < grid.start[c + 1]; p++) {
+        int a = grid.items[p];
+        if (a >= segsA) {
+          continue;
+        }
+        for (int q = grid.start[c]; q < grid.start[c + 1]; q++) {
+          int b = grid.items[q] - segsA;
+          if (b < 0 || !grid.isFirstSharedCell(c, ax, ay, a, bx, by, b)) {
+            continue;
+          }
+          Crossing x = cross(ax, ay, a, bx, by, b);
+          if (x != null) {
+            ret.add(x);
+          }
+        }
+      }
+    }
+    Collections.sort(ret, BY_SEGMENT);
+    return ret;
+  }
+
+  /**
+   * Same as getSelfCrossings(double[], double[], int, double), for a sequence.
+   */
+  public static List<Crossing> getSelfCrossings(Sequence seq, double localDistance) {
+    double[][] xy = toArrays(seq);
+    return getSelfCrossings(xy[0], xy[1], seq.size(), localDistance);
+  }
+
+  /**
+   * Same as getCrossings(double[], double[], int, double[], double[], int), for two sequences.
+   */
+  public static List<Crossing> getCrossings(Sequence a, Sequence b) {
+    double[][] xyA = toArrays(a);
+    double[][] xyB = toArrays(b);
+    return getCrossings(xyA[0], xyA[1], a.size(), xyB[0], xyB[1], b.size());
+  }
+
+  /**
+   * Returns the coordinates of the sequence as {xs, ys}. A PackedSequence hands over its arrays
+   * directly; other sequences are copied.
+   */
+  static double[][] toArrays(Sequence seq) {
+    double[][] ret;
+    if (seq instanceof PackedSequence) {
+      PackedSequence packed = (PackedSequence) seq;
+      ret = new double[][] {
+          packed.getXArray(), packed.getYArray()
+      };
+    } else {
+      int n = seq.size();
+      ret = new double[2][n];
+      for (int i = 0; i < n; i++) {
+        Pt pt = seq.get(i);
+        ret[0][i] = pt.getX();
+        ret[1][i] = pt.getY();
+      }
+    }
+    return ret;
+  }
+
+  private static double segLength(double[] xs, double[] ys, int i) {
+    return Math.hypot(Math.abs(xs[i] - xs[i + 1]), Math.abs(ys[i] - ys[i + 1]));
+  }
+
+  /**
+   * Tests segment i of (ax, ay) against segment j of (bx, by), returning the crossing or null.
+   */
+  static Crossing cross(double[] ax, double[] ay, int i, double[] bx, double[] by, int j) {
+    double aX = ax[i], aY = ay[i], bX = ax[i + 1], bY = ay[i + 1];
+    double cX = bx[j], cY = by[j], dX = bx[j + 1], dY = by[j + 1];
+    Crossing ret = null;
+    if (Line2D.linesIntersect(aX, aY, bX, bY, cX, cY, dX, dY)) {
+      double numR = (aY - cY) * (dX - cX) - (aX - cX) * (dY - cY);
+      double numS = (aY - cY) * (bX - aX) - (aX - cX) * (bY - aY);
+      double denominator = (bX - aX) * (dY - cY) - (bY - aY) * (dX - cX);
+      if (denominator != 0.0) {
+        double r = numR / denominator;
+        double s = numS / denominator;
+        if (r >= 0.0 && r <= 1.0 && s >= 0.0 && s <= 1.0) {
+          ret = new Crossing(i, j, r, s, aX + r * (bX - aX), aY + r * (bY - aY));
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * A uniform grid of segment indices in compressed form: the items in cell c are
+   * items[start[c]] up to (not including) items[start[c + 1]].
+   */
+  private static class Grid {
+    double minX, minY, cell;
+    int gx, gy;
+    int[] start;
+    int[] items;
+
+    Grid(double[] ax, double[] ay, int na, double[] bx, double[] by, int nb, int segs,
+        double segLength) {
+      minX = Double.MAX_VALUE;
+      minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (int i = 0; i < na; i++) {
+        minX = Math.min(minX, ax[i]);
+        maxX = Math.max(maxX, ax[i]);
+        minY = Math.min(minY, ay[i]);
+        maxY = Math.max(maxY, ay[i]);
+      }
+      for (int i = 0; i < nb; i++) {
+        minX = Math.min(minX, bx[i]);
+        maxX = Math.max(maxX, bx[i]);
+        minY = Math.min(minY, by[i]);
+        maxY = Math.max(maxY, by[i]);
+      }
+      double w = maxX - minX;
+      double h = maxY - minY;
+      // about one segment per cell, but never more than 2048 cells on a side.
+      cell = Math.max(segLength, Math.sqrt(w * h / segs));
+      cell = Math.max(cell, Math.max(w, h) / 2048);
+      if (!(cell > 0)) {
+        cell = 1.0; // every point is in the same place
+      }
+      gx = (int) (w / cell) + 1;
+      gy = (int) (h / cell) + 1;
+    }
+
+    int numCells() {
+      return gx * gy;
+    }
+
+    int cx(double x) {
+      return Math.min(gx - 1, (int) ((x - minX) / cell));
+    }
+
+    int cy(double y) {
+      return Math.min(gy - 1, (int) ((y - minY) / cell));
+    }
+
+    void fill(double[] xs, double[] ys, int segs, int offset) {
+      fill(xs, ys, segs, offset, null, null, 0, 0);
+    }
+
+    /**
+     * Files segments 0..segsA-1 of A as (offsetA + i) and segments of B as (offsetB + i), under
+     * every cell their bounding boxes touch. Counting first means the arrays are made just once.
+     */
+    void fill(double[] ax, double[] ay, int segsA, int offsetA, double[] bx, double[] by,
+        int segsB, int offsetB) {
+      start = new int[numCells() + 1];
+      for (int pass = 0; pass < 2; pass++) {
+        int[] cursor = null;
+        if (pass == 1) {
+          for (int c = 0; c < numCells(); c++) {
+            start[c + 1] += start[c];
+          }
+          items = new int[start[numCells()]];
+          cursor = new int[numCells()];
+          System.arraycopy(start, 0, cursor, 0, numCells());
+        }
+        visit(ax, ay, segsA, offsetA, cursor);
+        if (bx != null) {
+          visit(bx, by, segsB, offsetB, cursor);
+        }
+      }
+    }
+
+    private void visit(double[] xs, double[] ys, int segs, int offset, int[] cursor) {
+      for (int i = 0; i < segs; i++) {
+        int cx0 = cx(Math.min(xs[i], xs[i + 1]));
+        int cx1 = cx(Math.max(xs[i], xs[i + 1]));
+        int cy0 = cy(Math.min(ys[i], ys[i + 1]));
+        int cy1 = cy(Math.max(ys[i], ys[i + 1]));
+        for (int x = cx0; x <= cx1; x++) {
+          for (int y = cy0; y <= cy1; y++) {
+            int c = y * gx + x;
+            if (cursor == null) {
+              start[c + 1]++;
+            } else {
+              items[cursor[c]++] = offset + i;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Two segments that share several cells are only tested in the first of them: the one at the
+     * lower-left corner of where their cell ranges overlap.
+     */
+    boolean isFirstSharedCell(int c, double[] ax, double[] ay, int i, double[] bx, double[] by,
+        int j) {
+      int x = Math.max(cx(Math.min(ax[i], ax[i + 1])), cx(Math.min(bx[j], bx[j + 1])));
+      int y = Math.max(cy(Math.min(ay[i], ay[i + 1])), cy(Math.min(by[j], by[j + 1])));
+      return c == y * gx + x;
+    }
+  }
+}
@@ -5,10 +5,13 @@ package org.six11.util.pen;
 import java.util.NoSuchElementException;
 import java.awt.geom.FlatteningPathIterator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.awt.Rectangle;
 import java.awt.Shape;
@@ -34,6 +37,8 @@ public class Sequence implements Shape, Iterable<Pt> {
   protected List<Pt> points;
   //  protected DrawFunction drawFunction;
   protected Map<String, Object> attributes;
+  protected Map<String, DoubleChannel> channels;
+  private boolean channelMirroring;
   Statistics statsX, statsY;
   double roughDensity, roughArea;
 
@@ -52,9 +57,11 @@ public class Sequence implements Shape, Iterable<Pt> {
 
   public Sequence(int id) {
     this.id = id;
-    points = new ArrayList<Pt>();
+    points = new PointList();
     closedRegion = false;
     attributes = new HashMap<String, Object>();
+    channels = new HashMap<String, DoubleChannel>();
+    channelMirroring = true;
     ID_COUNTER = Math.max(ID_COUNTER, id);
   }
 
@@ -129,6 +136,89 @@ public class Sequence implements Shape, Iterable<Pt> {
     attributes.put(key, value);
   }
 
+  /**
+   * Returns the double channel with the given name, registering it if this is the first time it
+   * has been asked for. A new channel picks up any values already stored on the points under the
+   * same attribute name.
+   */
+  public DoubleChannel doubleChannel(String name) {
+    DoubleChannel ret = channels.get(name);
+    if (ret == null) {
+      ret = new DoubleChannel(this, name);
+      channels.put(name, ret);
+      importChannel(ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Copies any existing point attributes with the channel's name into a freshly made channel.
+   */
+  protected void importChannel(DoubleChannel channel) {
+    channel.syncAll();
+  }
+
+  /**
+   * Returns the channel with the given name, or null if it hasn't been registered.
+   */
+  public DoubleChannel getChannel(String name) {
+    return channels.get(name);
+  }
+
+  public boolean hasChannel(String name) {
+    return channels.containsKey(name);
+  }
+
+  public void removeChannel(String name) {
+    channels.remove(name);
+  }
+
+  /**
+   * Controls whether writes to this sequence's channels are also copied into the matching point
+   * attribute (e.g. pt.getDouble("curvature")). This is on by default, so code that reads the
+   * values off the points keeps working. Turn it off if nothing does, and channel writes won't box
+   * and hash every value. Values written straight to the points reach the channels either way, and
+   * turning it off never removes a value from a point. PackedSequence never mirrors.
+   */
+  public void setChannelMirroring(boolean mirror) {
+    this.channelMirroring = mirror;
+  }
+
+  public boolean isChannelMirroring() {
+    return channelMirroring;
+  }
+
+  /**
+   * True if this sequence's points are ordinary Pt objects that other code can write to directly,
+   * so the channels have to check them for new values.
+   */
+  boolean isWatchingPoints() {
+    return true;
+  }
+
+  /**
+   * Lets the channels know a point went in at the given index. Subclasses that change the point
+   * list without going through add/remove/replace should call this.
+   */
+  protected void channelsPointInserted(int idx) {
+    if (!channels.isEmpty()) {
+      for (DoubleChannel channel : channels.values()) {
+        channel.pointInserted(idx);
+      }
+    }
+  }
+
+  /**
+   * Lets the channels know the point at the given index went away.
+   */
+  protected void channelsPointRemoved(int idx) {
+    if (!channels.isEmpty()) {
+      for (DoubleChannel channel : channels.values()) {
+        channel.pointRemoved(idx);
+      }
+    }
+  }
+
   /**
    * Make a sequence with a default list of points. This is equivalent to making a blank sequence
    * and adding each point. If the input list of points represents a closed sequence, set the second
@@ -267,7 +357,7 @@ public class Sequence implements Shape, Iterable<Pt> {
   }
 
   public void remove(int idx) {
-    points.remove(idx);
+    points.remove(idx); // the point list takes care of the channels.
   }
 
   public void removeLast() {
@@ -291,10 +381,10 @@ public class Sequence implements Shape, Iterable<Pt> {
    */
   public double getPathLength(int idxStartInclusive, int idxEndInclusive) {
     double ret = 0;
-    if (hasAttribute("cachedPathLength")) {
-      bug("Using cached");
+    DoubleChannel cache = channels.get("cachedDist");
+    if (cache != null && hasAttribute("cachedPathLength")) {
       for (int i = idxStartInclusive; i < idxEndInclusive; i++) {
-        ret += get(i).getDouble("cachedDist");
+        ret += cache.get(i);
       }
     } else {
       ret = Functions.getPathLength(points, idxStartInclusive, idxEndInclusive);
@@ -304,39 +394,41 @@ public class Sequence implements Shape, Iterable<Pt> {
 
   /**
    * Calculates the distance between each point <code>i</code> and the next <code>i+1</code> and
-   * stores it in a <code>double</code> attribute keyed off the string "cachedDist" in point
-   * <code>i</code>. Call this once and subsequent calls to getPathLength(int, int) will be more
-   * efficient because it only needs to add these values. The last point's value is set to zero.
+   * stores it at index <code>i</code> of the "cachedDist" channel. Call this once and subsequent
+   * calls to getPathLength(int, int) will be more efficient because it only needs to add these
+   * values. The last point's value is set to zero.
    */
   public void createPathLengthCache() {
     int n = size();
-    String k = "cachedDist";
+    DoubleChannel k = doubleChannel("cachedDist");
     for (int i = 0; i < n - 1; i++) {
       Pt here = get(i);
       Pt there = get(i + 1);
       double dist = here.distance(there);
-      here.setDouble(k, dist);
+      k.set(i, dist);
     }
-    getLast().setDouble(k, 0);
+    k.set(n - 1, 0);
     setAttribute("cachedPathLength", true);
   }
 
   /**
    * For each point in the sequence, calculate the curvilinear distance from the start point and
-   * stores it in each point's 'curvilinear-distance' property (double). This returns the total
-   * curvilinear length of the sequence.
+   * stores it in the 'curvilinear-distance' channel. This returns the total curvilinear length of
+   * the sequence.
    */
   public double calculateCurvilinearDistances() {
+    DoubleChannel dist = doubleChannel("curvilinear-distance");
     Pt prev = null;
     double sum = 0.0;
-    for (Pt pt : this) {
+    for (int i = 0; i < points.size(); i++) {
+      Pt pt = points.get(i);
       if (prev != null) {
         sum += prev.distance(pt);
       }
-      pt.setDouble("curvilinear-distance", sum);
+      dist.set(i, sum);
       prev = pt;
     }
-    return getLast().getDouble("curvilinear-distance");
+    return sum;
   }
 
   /**
@@ -368,14 +460,19 @@ public class Sequence implements Shape, Iterable<Pt> {
   }
 
   /**
-   * Returns the sum of each point's "curvature" attribute. If this attribute is not set on all of
-   * the points on the line, you will get a bogus result.
+   * Returns the sum of each point's "curvature" value. If this is not set on all of the points on
+   * the line, you will get a bogus result.
    */
   public double getSignedCurvatureSum() {
     double ret = 0.0;
-    for (Pt pt : points) {
-      if (pt.hasAttribute("curvature")) {
-        ret += pt.getDouble("curvature");
+    DoubleChannel curvature = channels.get("curvature");
+    if (curvature != null) {
+      ret = curvature.sum();
+    } else {
+      for (Pt pt : points) {
+        if (pt.hasAttribute("curvature")) {
+          ret += pt.getDouble("curvature");
+        }
       }
     }
     return ret;
@@ -406,7 +503,7 @@ public class Sequence implements Shape, Iterable<Pt> {
     } else if (windowSize > 1) {
       ret = getCurvature(idx, windowSize - 1);
     }
-    points.get(idx).setDouble("angle", ret);
+    doubleChannel("angle").set(idx, ret);
 
     new RuntimeException(
         "getCurvature(int, int) is hosed --- need to compute curvature from angles.")
@@ -422,58 +519,54 @@ public class Sequence implements Shape, Iterable<Pt> {
    */
   public double calculateCurvatureEuclideanWindowSize(double windowEuclideanSize) {
     // double sum = 0.0;
-    List<Pt> front = new ArrayList<Pt>(); // place to cache the points at beginning
-    List<Pt> back = new ArrayList<Pt>(); // ... and the end. Need to assign angle value after.
+    List<Integer> front = new ArrayList<Integer>(); // place to cache the points at beginning
+    List<Integer> back = new ArrayList<Integer>(); // ... and the end. Need to assign angle after.
+    DoubleChannel angle = doubleChannel("angle");
+    DoubleChannel curve = doubleChannel("curvature");
 
     double frontAngle = -1.0;
     double backAngle = -1.0;
     for (int i = 0; i < size(); i++) {
       getAngleEuclideanWindowSize(i, windowEuclideanSize);
-      if (!points.get(i).hasAttribute("angle")) {
+      if (!angle.has(i)) {
         if (frontAngle >= 0.0) {
-          back.add(points.get(i));
+          back.add(i);
         } else {
-          front.add(points.get(i));
+          front.add(i);
         }
       } else {
         if (frontAngle < 0) {
-          frontAngle = points.get(i).getDouble("angle");
+          frontAngle = angle.get(i);
         } else {
-          backAngle = points.get(i).getDouble("angle");
+          backAngle = angle.get(i);
         }
       }
     }
 
     // assign the front and back angles.
-    for (Pt pt : front) {
-      pt.setDouble("angle", frontAngle);
+    for (int i : front) {
+      angle.set(i, frontAngle);
     }
-    for (Pt pt : back) {
-      pt.setDouble("angle", backAngle);
+    for (int i : back) {
+      angle.set(i, backAngle);
     }
 
     // Now that angle is set on every point, we can calculate curvature.
     double ret = 0.0;
     for (int i = 0; i < size(); i++) {
-      Pt pt = points.get(i);
-      if (i == 0) {
-        pt.setDouble("curvature", 0.0);
-      } else if (i == size() - 1) {
-        pt.setDouble("curvature", 0.0);
-      } else {
-        double prev = points.get(i - 1).getDouble("angle");
-        double next = points.get(i + 1).getDouble("angle");
-        double curvature = next - prev;
+      double curvature = 0.0;
+      if (i > 0 && i < size() - 1) {
+        double prev = angle.get(i - 1);
+        double next = angle.get(i + 1);
+        curvature = next - prev;
         if (curvature < -Math.PI) {
           curvature = curvature + 2.0 * Math.PI;
         } else if (curvature > Math.PI) {
           curvature = curvature - 2.0 * Math.PI;
         }
-        pt.setDouble("curvature", curvature);
-        // bug(i + " curvature: " + Debug.num(next) + "-" + Debug.num(prev) + " = " +
-        // Debug.num(pt.getDouble("curvature")));
       }
-      ret += Math.abs(pt.getDouble("curvature"));
+      curve.set(i, curvature);
+      ret += Math.abs(curvature);
     }
 
     return ret;
@@ -495,7 +588,7 @@ public class Sequence implements Shape, Iterable<Pt> {
       double dy = points.get(idx + k).y - points.get(idx - k).y;
       double numer = Math.atan2(dy, dx);
       ret = numer;
-      points.get(idx).setDouble("angle", ret);
+      doubleChannel("angle").set(idx, ret);
     }
     return ret;
   }
@@ -506,9 +599,14 @@ public class Sequence implements Shape, Iterable<Pt> {
   @Deprecated
   public double getAbsoluteCurvatureSum() {
     double ret = 0.0;
-    for (Pt pt : points) {
-      if (pt.hasAttribute("curvature")) {
-        ret += Math.abs(pt.getDouble("curvature"));
+    DoubleChannel curvature = channels.get("curvature");
+    if (curvature != null) {
+      ret = curvature.absoluteSum();
+    } else {
+      for (Pt pt : points) {
+        if (pt.hasAttribute("curvature")) {
+          ret += Math.abs(pt.getDouble("curvature"));
+        }
       }
     }
     return ret;
@@ -529,7 +627,7 @@ public class Sequence implements Shape, Iterable<Pt> {
       double denom = points.get(idx + 1).time - points.get(idx - 1).time;
       ret = numer / denom;
     }
-    points.get(idx).setDouble("speed", ret);
+    doubleChannel("speed").set(idx, ret);
     return ret;
   }
 
@@ -554,48 +652,25 @@ public class Sequence implements Shape, Iterable<Pt> {
     // points 1 and 6 are not. This means that segment a will be
     // compared against c, d, and e.
 
-    // Because it is likely that the segment distances involved will
-    // be used frequently and will not change, I will cache it the
-    // first time using the attribute name "dist_to_next".
-
+    // SegmentIntersections buckets the segments in a grid so only nearby pairs get tested. As it
+    // always has, this leaves out the final segment, so it looks at all but the last point.
     List<Pt> ret = new ArrayList<Pt>();
-
-    double runDist;
-    Line lineA = new Line();
-    Line lineB = new Line();
-    for (int i = 0; i < (points.size() - 3); i++) {
-      lineA.push(points.get(i));
-      if (lineA.isValid()) {
-        runDist = cacheSegmentData(lineA);
-        lineB.clear();
-        for (int j = i + 1; j < (points.size() - 1); j++) {
-          lineB.push(points.get(j));
-          if (lineB.isValid()) {
-            runDist += cacheSegmentData(lineB);
-            if (!lineA.isAdjacentTo(lineB) && lineA.intersectsLine(lineB)) {
-              IntersectionData ix = new IntersectionData(lineA, lineB);
-              if (ix.intersectsInSegments() && (!ret.contains(ix.getIntersection()))) {
-                ret.add(ix.getIntersection());
-              }
-            }
-          }
-          if (runDist > localDistance) {
-            break;
-          }
-        }
+    if (points.size() < 2) {
+      return ret;
+    }
+    Set<Point2D> seen = new HashSet<Point2D>();
+    double[][] xy = SegmentIntersections.toArrays(this);
+    for (SegmentIntersections.Crossing x : SegmentIntersections.getSelfCrossings(xy[0], xy[1],
+        points.size() - 1, localDistance)) {
+      Line lineA = new Line(get(x.getSegmentA()), get(x.getSegmentA() + 1));
+      Line lineB = new Line(get(x.getSegmentB()), get(x.getSegmentB() + 1));
+      if (!lineA.isAdjacentTo(lineB) && seen.add(new Point2D.Double(x.getX(), x.getY()))) {
+        ret.add(x.getPoint());
       }
     }
     return ret;
   }
 
-  private double cacheSegmentData(Line line) {
-    if (!line.getStart().hasAttribute("dist_to_next")) {
-      double dist = line.getLength();
-      line.getStart().setAttribute("dist_to_next", dist);
-    }
-    return (Double) line.getStart().getAttribute("dist_to_next");
-  }
-
   public List<Pt> getPoints() {
     return points;
   }
@@ -833,9 +908,61 @@ public class Sequence implements Shape, Iterable<Pt> {
   }
 
   public Pt replace(int i, Pt pt) {
-    Pt old = points.remove(i);
-    points.add(i, pt);
-    return old;
+    return points.set(i, pt); // the point list takes care of the channels.
+  }
+
+  /**
+   * The point list behind a regular sequence. It is an ArrayList that tells the channels when
+   * points are inserted, removed or replaced, including through getPoints().
+   */
+  private class PointList extends AbstractList<Pt> implements RandomAccess {
+
+    private final ArrayList<Pt> list = new ArrayList<Pt>();
+
+    @Override
+    public Pt get(int idx) {
+      return list.get(idx);
+    }
+
+    @Override
+    public int size() {
+      return list.size();
+    }
+
+    @Override
+    public Pt set(int idx, Pt pt) {
+      Pt ret = list.set(idx, pt);
+      if (!channels.isEmpty()) {
+        for (DoubleChannel channel : channels.values()) {
+          channel.pointReplaced(idx);
+        }
+      }
+      return ret;
+    }
+
+    @Override
+    public void add(int idx, Pt pt) {
+      list.add(idx, pt);
+      modCount++;
+      channelsPointInserted(idx);
+    }
+
+    @Override
+    public Pt remove(int idx) {
+      Pt ret = list.remove(idx);
+      modCount++;
+      channelsPointRemoved(idx);
+      return ret;
+    }
+
+    @Override
+    public void clear() {
+      list.clear();
+      modCount++;
+      for (DoubleChannel channel : channels.values()) {
+        channel.pointsCleared();
+      }
+    }
   }
 
 }
@@ -0,0 +1,345 @@
+package org.six11.util.pen;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.six11.util.pen.SegmentGrid.Cell;
+
+/**
+ * A uniform grid over the line segments of many sequences, for hit testing on a canvas full of ink.
+ * Each segment is filed under every grid cell its bounding box touches, so a query only looks at
+ * the segments in the few cells near the query point instead of every point of every stroke.
+ *
+ * The cell size should be on the order of the typical query radius (say, a few times the hover
+ * slop). Segments much longer than a cell are fine, they just occupy more cells.
+ *
+ * Sequences are indexed by the point locations at the time they are added. If a sequence changes,
+ * call update(seq). OliveSoup keeps an index in sync with its finished sequences; see
+ * OliveSoup.getSequenceIndex().
+ */
+public class SequenceIndex {
+
+  /**
+   * The answer to a nearest-point query: which sequence, which segment (the segment from point
+   * segmentIndex to segmentIndex + 1), the nearest location on it, and how far away it is.
+   */
+  public static class Hit {
+    private final Sequence seq;
+    private final int segmentIndex;
+    private final Pt where;
+    private final double distance;
+
+    Hit(Sequence seq, int segmentIndex, Pt where, double distance) {
+      this.seq = seq;
+      this.segmentIndex = segmentIndex;
+      this.where = where;
+      this.distance = distance;
+    }
+
+    public Sequence getSequence() {
+      return seq;
+    }
+
+    public int getSegmentIndex() {
+      return segmentIndex;
+    }
+
+    public Pt getPoint() {
+      return where;
+    }
+
+    public double getDistance() {
+      return distance;
+    }
+  }
+
+  private final SegmentGrid<Sequence> grid;
+  private Map<Sequence, Set<Cell<Sequence>>> occupied; // which cells each sequence is filed under
+
+  public SequenceIndex(double cellSize) {
+    grid = new SegmentGrid<Sequence>(cellSize);
+    clear();
+  }
+
+  public double getCellSize() {
+    return grid.getCellSize();
+  }
+
+  public void clear() {
+    grid.clear();
+    occupied = new HashMap<Sequence, Set<Cell<Sequence>>>();
+  }
+
+  /**
+   * Returns the number of sequences in the index.
+   */
+  public int size() {
+    return occupied.size();
+  }
+
+  public boolean contains(Sequence seq) {
+    return occupied.containsKey(seq);
+  }
+
+  public Set<Sequence> getSequences() {
+    return Collections.unmodifiableSet(occupied.keySet());
+  }
+
+  /**
+   * Adds all the segments of the sequence. A one-point sequence is indexed as a zero-length
+   * segment. Adding a sequence that is already present re-indexes it.
+   */
+  public void add(Sequence seq) {
+    if (contains(seq)) {
+      remove(seq);
+    }
+    int n = seq.size();
+    if (n == 0) {
+      return;
+    }
+    Set<Cell<Sequence>> filed = new HashSet<Cell<Sequence>>();
+    double[] xy = new double[4];
+    for (int i = 0; i < Math.max(1, n - 1); i++) {
+      segment(seq, i, xy);
+      grid.add(seq, i, xy[0], xy[1], xy[2], xy[3], filed);
+    }
+    occupied.put(seq, filed);
+  }
+
+  public void remove(Sequence seq) {
+    Set<Cell<Sequence>> filed = occupied.remove(seq);
+    if (filed != null) {
+      grid.remove(seq, filed);
+    }
+  }
+
+  /**
+   * Re-indexes a sequence whose points have changed.
+   */
+  public void update(Sequence seq) {
+    remove(seq);
+    add(seq);
+  }
+
+  /**
+   * Returns the location on any indexed sequence that is nearest the given point, or null if the
+   * index is empty.
+   */
+  public Hit getNearest(Pt where) {
+    return getNearest(where, Double.MAX_VALUE);
+  }
+
+  /**
+   * Returns the location on any indexed sequence that is nearest the given point, as long as it is
+   * no farther than maxDist. Returns null if there is no such location.
+   */
+  public Hit getNearest(Pt where, double maxDist) {
+    if (grid.isEmpty()) {
+      return null;
+    }
+    int minCx = grid.getMinCx();
+    int minCy = grid.getMinCy();
+    int maxCx = grid.getMaxCx();
+    int maxCy = grid.getMaxCy();
+    double cellSize = grid.getCellSize();
+    int qx = grid.cell(where.getX());
+    int qy = grid.cell(where.getY());
+    // rings of cells around the query cell, until the ring is farther than the best so far. Only
+    // the part of each ring that overlaps the occupied cells is visited, and rings that miss them
+    // entirely (when the query is outside) are skipped.
+    int firstRing = Math.max(0, Math.max(Math.max(minCx - qx, qx - maxCx), Math.max(minCy - qy, qy
+        - maxCy)));
+    int lastRing = Math.max(Math.max(qx - minCx, maxCx - qx), Math.max(qy - minCy, maxCy - qy));
+    Nearest best = new Nearest(where.getX(), where.getY(), maxDist);
+    for (int ring = firstRing; ring <= lastRing; ring++) {
+      if (best.seq != null && best.dist <= (ring - 1) * cellSize) {
+        break;
+      }
+      if ((ring - 1) * cellSize > maxDist) {
+        break;
+      }
+      int cy0 = Math.max(qy - ring, minCy);
+      int cy1 = Math.min(qy + ring, maxCy);
+      for (int cx = Math.max(qx - ring, minCx); cx <= Math.min(qx + ring, maxCx); cx++) {
+        if (cx == qx - ring || cx == qx + ring) {
+          for (int cy = cy0; cy <= cy1; cy++) { // a side column: all of it is on the ring
+            best.scan(grid.get(cx, cy));
+          }
+        } else { // otherwise just the top and bottom cells are on the ring
+          if (qy - ring >= minCy) {
+            best.scan(grid.get(cx, qy - ring));
+          }
+          if (qy + ring <= maxCy) {
+            best.scan(grid.get(cx, qy + ring));
+          }
+        }
+      }
+    }
+    Hit ret = null;
+    if (best.seq != null) {
+      ret = new Hit(best.seq, best.seg, new Pt(best.x, best.y), best.dist);
+    }
+    return ret;
+  }
+
+  /**
+   * The best candidate so far in a nearest-point search.
+   */
+  private static class Nearest {
+    final double px, py;
+    final double[] xy = new double[4];
+    final double[] near = new double[2];
+    double dist;
+    Sequence seq;
+    int seg = -1;
+    double x, y;
+
+    Nearest(double px, double py, double maxDist) {
+      this.px = px;
+      this.py = py;
+      this.dist = maxDist;
+    }
+
+    void scan(Cell<Sequence> c) {
+      if (c != null) {
+        for (int i = 0; i < c.n; i++) {
+          segment(c.owner(i), c.segs[i], xy);
+          double d = nearestOnSegment(xy, px, py, near);
+          if (d < dist || (d == dist && seq == null)) {
+            dist = d;
+            seq = c.owner(i);
+            seg = c.segs[i];
+            x = near[0];
+            y = near[1];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns one Hit for each sequence that passes within the given radius of the point: the
+   * location on that sequence nearest the point. The list is sorted nearest first.
+   */
+  public List<Hit> getNearby(Pt where, double radius) {
+    Map<Sequence, Hit> best = new HashMap<Sequence, Hit>();
+    double[] xy = new double[4];
+    double[] loc = new double[2];
+    double x = where.getX();
+    double y = where.getY();
+    List<Cell<Sequence>> near = new ArrayList<Cell<Sequence>>();
+    grid.cellsUnder(x - radius, y - radius, x + radius, y + radius, near);
+    for (Cell<Sequence> c : near) {
+      for (int i = 0; i < c.n; i++) {
+        Sequence seq = c.owner(i);
+        segment(seq, c.segs[i], xy);
+        double d = nearestOnSegment(xy, x, y, loc);
+        if (d <= radius) {
+          Hit prev = best.get(seq);
+          if (prev == null || d < prev.getDistance()) {
+            best.put(seq, new Hit(seq, c.segs[i], new Pt(loc[0], loc[1]), d));
+          }
+        }
+      }
+    }
+    List<Hit> ret = new ArrayList<Hit>(best.values());
+    Collections.sort(ret, new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+        return Double.compare(a.getDistance(), b.getDistance());
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * Returns the sequences that pass within the given radius of the point.
+   */
+  public Set<Sequence> getSequencesNear(Pt where, double radius) {
+    Set<Sequence> ret = new LinkedHashSet<Sequence>();
+    for (Hit hit : getNearby(where, radius)) {
+      ret.add(hit.getSequence());
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the sequences that have at least one segment inside or crossing the rectangle.
+   */
+  public Set<Sequence> getSequencesIntersecting(Rectangle2D rect) {
+    Set<Sequence> ret = new HashSet<Sequence>();
+    double[] xy = new double[4];
+    List<Cell<Sequence>> under = new ArrayList<Cell<Sequence>>();
+    grid.cellsUnder(rect.getMinX(), rect.getMinY(), rect.getMaxX(), rect.getMaxY(), under);
+    for (Cell<Sequence> c : under) {
+      for (int i = 0; i < c.n; i++) {
+        Sequence seq = c.owner(i);
+        if (!ret.contains(seq)) {
+          segment(seq, c.segs[i], xy);
+          if (rect.contains(xy[0], xy[1]) || rect.intersectsLine(xy[0], xy[1], xy[2], xy[3])) {
+            ret.add(seq);
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Same as Functions.getCrossingNumberSequences(pt, getSequences()), but it only looks at the
+   * sequences that have a segment in the grid row containing the point. Any sequence that the
+   * rightward ray could cross must have one.
+   */
+  public int getCrossingNumber(Pt pt) {
+    int ret = 0;
+    List<Cell<Sequence>> row = new ArrayList<Cell<Sequence>>();
+    grid.cellsUnder(Double.NEGATIVE_INFINITY, pt.getY(), Double.POSITIVE_INFINITY, pt.getY(), row);
+    Set<Sequence> candidates = new HashSet<Sequence>();
+    for (Cell<Sequence> c : row) {
+      for (int i = 0; i < c.n; i++) {
+        candidates.add(c.owner(i));
+      }
+    }
+    for (Sequence seq : candidates) {
+      ret = ret + Functions.getCrossingNumber(pt, seq.getPoints());
+    }
+    return ret;
+  }
+
+  /**
+   * Puts the endpoints of segment i (from point i to i + 1) into xy as x0, y0, x1, y1. For a one
+   * point sequence both ends are that point.
+   */
+  private static void segment(Sequence seq, int i, double[] xy) {
+    int j = Math.min(i + 1, seq.size() - 1);
+    if (seq instanceof PackedSequence) {
+      PackedSequence packed = (PackedSequence) seq;
+      xy[0] = packed.getX(i);
+      xy[1] = packed.getY(i);
+      xy[2] = packed.getX(j);
+      xy[3] = packed.getY(j);
+    } else {
+      Pt a = seq.get(i);
+      Pt b = seq.get(j);
+      xy[0] = a.getX();
+      xy[1] = a.getY();
+      xy[2] = b.getX();
+      xy[3] = b.getY();
+    }
+  }
+
+  /**
+   * Finds the point on the segment in xy nearest to (px, py), puts it in near, and returns the
+   * distance to it.
+   */
+  private static double nearestOnSegment(double[] xy, double px, double py, double[] near) {
+    return GeomKernels.nearestOnSegment(xy[0], xy[1], xy[2], xy[3], px, py, near);
+  }
+}
@@ -0,0 +1,401 @@
+package org.six11.util.pen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.six11.util.pen.SegmentGrid.Cell;
+
+/**
+ * Keeps track of every place where one stroke of a sketch crosses another, for things like
+ * junction finding and latching. Strokes can be added one at a time as they are finished, in which
+ * case only the new stroke's segments are tested, or in bulk with addAll().
+ *
+ * The segments of every stroke are filed in a SegmentGrid (as in SequenceIndex), and only segments
+ * that share a cell are tested, each pair in exactly one cell. Segments of the same stroke are
+ * never compared; use SegmentIntersections.getSelfCrossings() or
+ * Sequence.getSelfIntersectionPoints() for that. The crossing test is the same one
+ * SegmentIntersections uses.
+ *
+ * A bulk add of more than PARALLEL_THRESHOLD segments splits the grid cells among several threads.
+ * The answer is the same (and in the same order) either way.
+ *
+ * Strokes are indexed by their point locations when they are added. If a stroke changes, call
+ * update(seq).
+ */
+public class SketchIntersections {
+
+  /**
+   * Bulk adds with at least this many new segments are done in parallel.
+   */
+  public static final int PARALLEL_THRESHOLD = 20000;
+
+  /**
+   * A place where segment getSegmentA() of getSequenceA() crosses segment getSegmentB() of
+   * getSequenceB(). Sequence A is always the one that was added first.
+   */
+  public static class Crossing {
+    private final Sequence seqA;
+    private final Sequence seqB;
+    private final SegmentIntersections.Crossing where;
+    private final int orderA; // when the strokes were added
+    private final int orderB;
+
+    Crossing(Stroke a, Stroke b, SegmentIntersections.Crossing where) {
+      this.seqA = a.seq;
+      this.seqB = b.seq;
+      this.orderA = a.order;
+      this.orderB = b.order;
+      this.where = where;
+    }
+
+    public Sequence getSequenceA() {
+      return seqA;
+    }
+
+    public Sequence getSequenceB() {
+      return seqB;
+    }
+
+    public int getSegmentA() {
+      return where.getSegmentA();
+    }
+
+    public int getSegmentB() {
+      return where.getSegmentB();
+    }
+
+    public double getParamA() {
+      return where.getParamA();
+    }
+
+    public double getParamB() {
+      return where.getParamB();
+    }
+
+    public double getX() {
+      return where.getX();
+    }
+
+    public double getY() {
+      return where.getY();
+    }
+
+    public Pt getPoint() {
+      return where.getPoint();
+    }
+
+    /**
+     * Returns true if the given sequence is either of the two.
+     */
+    public boolean involves(Sequence seq) {
+      return seqA == seq || seqB == seq;
+    }
+  }
+
+  /**
+   * A stroke's coordinates as they were when it was added, and when it was added.
+   */
+  private static class Stroke {
+    final Sequence seq;
+    final int order;
+    final double[] xs;
+    final double[] ys;
+    final int segs;
+    final Set<Cell<Stroke>> filed = new HashSet<Cell<Stroke>>(); // the cells it is filed under
+
+    Stroke(Sequence seq, int order) {
+      this.seq = seq;
+      this.order = order;
+      int n = seq.size();
+      double[][] xy = SegmentIntersections.toArrays(seq);
+      // keep a copy, since a PackedSequence hands over its own arrays.
+      xs = new double[n];
+      ys = new double[n];
+      System.arraycopy(xy[0], 0, xs, 0, n);
+      System.arraycopy(xy[1], 0, ys, 0, n);
+      segs = Math.max(0, n - 1);
+    }
+  }
+
+  /**
+   * Orders crossings by the later of the two strokes, then the earlier, then the segments. Since a
+   * new stroke is always the latest, adding one only appends to the list.
+   */
+  private static final Comparator<Crossing> BY_STROKE = new Comparator<Crossing>() {
+    public int compare(Crossing a, Crossing b) {
+      int ret = a.orderB - b.orderB;
+      if (ret == 0) {
+        ret = a.orderA - b.orderA;
+      }
+      if (ret == 0) {
+        ret = SegmentIntersections.BY_SEGMENT.compare(a.where, b.where);
+      }
+      return ret;
+    }
+  };
+
+  private final SegmentGrid<Stroke> grid;
+  private Map<Sequence, Stroke> strokes;
+  private List<Crossing> crossings;
+  private int nextOrder;
+  private ExecutorService executor;
+
+  public SketchIntersections(double cellSize) {
+    grid = new SegmentGrid<Stroke>(cellSize);
+    clear();
+  }
+
+  /**
+   * Returns every crossing among the given strokes, computed in one batch.
+   */
+  public static List<Crossing> findCrossings(List<Sequence> sequences, double cellSize) {
+    SketchIntersections si = new SketchIntersections(cellSize);
+    si.addAll(sequences);
+    return si.getCrossings();
+  }
+
+  public double getCellSize() {
+    return grid.getCellSize();
+  }
+
+  /**
+   * Supplies the executor used for large bulk adds. If there isn't one, a pool with one thread per
+   * processor is made for each large bulk add and shut down afterwards.
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public void clear() {
+    grid.clear();
+    strokes = new LinkedHashMap<Sequence, Stroke>();
+    crossings = new ArrayList<Crossing>();
+    nextOrder = 0;
+  }
+
+  public int size() {
+    return strokes.size();
+  }
+
+  public boolean contains(Sequence seq) {
+    return strokes.containsKey(seq);
+  }
+
+  /**
+   * Adds a stroke and returns the places it crosses any stroke that was already here. Adding a
+   * stroke that is already present re-indexes it.
+   */
+  public List<Crossing> add(Sequence seq) {
+    if (contains(seq)) {
+      remove(seq);
+    }
+    Stroke stroke = new Stroke(seq, nextOrder++);
+    strokes.put(seq, stroke);
+    List<Crossing> ret = new ArrayList<Crossing>();
+    List<Cell<Stroke>> here = new ArrayList<Cell<Stroke>>();
+    for (int i = 0; i < stroke.segs; i++) {
+      here.clear();
+      grid.add(stroke, i, stroke.xs[i], stroke.ys[i], stroke.xs[i + 1], stroke.ys[i + 1], here);
+      stroke.filed.addAll(here);
+      for (Cell<Stroke> c : here) {
+        for (int j = 0; j < c.n; j++) {
+          if (c.owner(j) != stroke) {
+            Crossing x = test(c, c.owner(j), c.segs[j], stroke, i);
+            if (x != null) {
+              ret.add(x);
+            }
+          }
+        }
+      }
+    }
+    Collections.sort(ret, BY_STROKE);
+    crossings.addAll(ret);
+    return ret;
+  }
+
+  /**
+   * Adds several strokes at once and returns the new crossings: those among the new strokes and
+   * those between new and old strokes. The result is the same as adding them one at a time, in
+   * order, but all the segments are filed first and then each grid cell is checked once, in
+   * parallel if there are enough segments.
+   */
+  public List<Crossing> addAll(List<Sequence> sequences) {
+    int firstNew = nextOrder;
+    int newSegs = 0;
+    Set<Cell<Stroke>> touched = new LinkedHashSet<Cell<Stroke>>();
+    for (Sequence seq : sequences) {
+      if (contains(seq)) {
+        remove(seq);
+      }
+      Stroke stroke = new Stroke(seq, nextOrder++);
+      strokes.put(seq, stroke);
+      newSegs += stroke.segs;
+      for (int i = 0; i < stroke.segs; i++) {
+        grid.add(stroke, i, stroke.xs[i], stroke.ys[i], stroke.xs[i + 1], stroke.ys[i + 1],
+            stroke.filed);
+      }
+      touched.addAll(stroke.filed);
+    }
+    List<Cell<Stroke>> work = new ArrayList<Cell<Stroke>>(touched);
+    List<Crossing> ret;
+    if (newSegs >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1) {
+      ret = testCellsInParallel(work, firstNew);
+    } else {
+      ret = testCells(work, 0, work.size(), firstNew);
+    }
+    Collections.sort(ret, BY_STROKE);
+    crossings.addAll(ret);
+    return ret;
+  }
+
+  public void remove(Sequence seq) {
+    Stroke stroke = strokes.remove(seq);
+    if (stroke != null) {
+      grid.remove(stroke, stroke.filed);
+      List<Crossing> keep = new ArrayList<Crossing>();
+      for (Crossing x : crossings) {
+        if (!x.involves(seq)) {
+          keep.add(x);
+        }
+      }
+      crossings = keep;
+    }
+  }
+
+  /**
+   * Re-indexes a stroke whose points have changed, and returns its crossings. It now counts as
+   * the most recently added stroke.
+   */
+  public List<Crossing> update(Sequence seq) {
+    remove(seq);
+    return add(seq);
+  }
+
+  /**
+   * Returns every crossing among the strokes, ordered by the later stroke, then the earlier, then
+   * the segments.
+   */
+  public List<Crossing> getCrossings() {
+    return Collections.unmodifiableList(crossings);
+  }
+
+  /**
+   * Returns the crossings that involve the given stroke.
+   */
+  public List<Crossing> getCrossings(Sequence seq) {
+    List<Crossing> ret = new ArrayList<Crossing>();
+    for (Crossing x : crossings) {
+      if (x.involves(seq)) {
+        ret.add(x);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the crossings between the two given strokes.
+   */
+  public List<Crossing> getCrossings(Sequence a, Sequence b) {
+    List<Crossing> ret = new ArrayList<Crossing>();
+    for (Crossing x : crossings) {
+      if (x.involves(a) && x.involves(b) && a != b) {
+        ret.add(x);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Tests every pair of segments from different strokes in work.get(from) up to work.get(to),
+   * skipping pairs where both strokes are older than firstNew.
+   */
+  private List<Crossing> testCells(List<Cell<Stroke>> work, int from, int to, int firstNew) {
+    List<Crossing> ret = new ArrayList<Crossing>();
+    for (int w = from; w < to; w++) {
+      Cell<Stroke> c = work.get(w);
+      for (int p = 0; p < c.n; p++) {
+        for (int q = p + 1; q < c.n; q++) {
+          Stroke s = c.owner(p);
+          Stroke t = c.owner(q);
+          if (s == t || (s.order < firstNew && t.order < firstNew)) {
+            continue;
+          }
+          Crossing x = (s.order < t.order) ? test(c, s, c.segs[p], t, c.segs[q]) : test(c, t,
+              c.segs[q], s, c.segs[p]);
+          if (x != null) {
+            ret.add(x);
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  private List<Crossing> testCellsInParallel(final List<Cell<Stroke>> work, final int firstNew) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = executor;
+    if (pool == null) {
+      pool = Executors.newFixedThreadPool(threads);
+    }
+    List<Crossing> ret = new ArrayList<Crossing>();
+    try {
+      List<Future<List<Crossing>>> results = new ArrayList<Future<List<Crossing>>>();
+      int chunks = threads * 4; // a few per thread, since cells aren't equally full
+      int chunkSize = (work.size() + chunks - 1) / chunks;
+      for (int from = 0; from < work.size(); from += chunkSize) {
+        final int start = from;
+        final int end = Math.min(work.size(), from + chunkSize);
+        results.add(pool.submit(new Callable<List<Crossing>>() {
+          public List<Crossing> call() {
+            return testCells(work, start, end, firstNew);
+          }
+        }));
+      }
+      for (Future<List<Crossing>> result : results) {
+        ret.addAll(result.get());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while finding crossings", ex);
+    } catch (ExecutionException ex) {
+      throw new RuntimeException("Error while finding crossings", ex.getCause());
+    } finally {
+      if (pool != executor) {
+        pool.shutdown();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Tests segment i of the older stroke a against segment j of the newer stroke b, but only if c is
+   * the first cell they share: the one at the lower-left corner of where their cell ranges overlap.
+   */
+  private Crossing test(Cell<Stroke> c, Stroke a, int i, Stroke b, int j) {
+    Crossing ret = null;
+    int cx = Math.max(grid.cell(Math.min(a.xs[i], a.xs[i + 1])), grid.cell(Math.min(b.xs[j],
+        b.xs[j + 1])));
+    int cy = Math.max(grid.cell(Math.min(a.ys[i], a.ys[i + 1])), grid.cell(Math.min(b.ys[j],
+        b.ys[j + 1])));
+    if (cx == c.cx && cy == c.cy) {
+      SegmentIntersections.Crossing where = SegmentIntersections.cross(a.xs, a.ys, i, b.xs, b.ys,
+          j);
+      if (where != null) {
+        ret = new Crossing(a, b, where);
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,366 @@
+package org.six11.util.pen;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.six11.util.data.RunningStatistics;
+
+/**
+ * Analyzes an ink stroke while it is being drawn. Rather than re-running whole-sequence methods like
+ * Sequence.calculateCurvature() or calculateSpeed() on every PROGRESS event, each Stage is told
+ * about each new point exactly once and updates its results using only the last few points. The
+ * cost per sample therefore stays flat no matter how long the stroke gets.
+ *
+ * Give one to OliveSoup.setStrokeAnalysis() and it will be brought up to date before each sequence
+ * event is fired, so sequence listeners can read the stages (or the sequence's channels) directly.
+ * It is also a SequenceListener, so it can be driven from any other source of sequence events.
+ */
+public class StrokeAnalysis implements SequenceListener {
+
+  /**
+   * One step of the pipeline. Stages are called in the order they were added, so a stage may use
+   * results that earlier stages produced for the same point.
+   */
+  public static interface Stage {
+
+    /**
+     * A new stroke has started. Reset any state.
+     */
+    public void begin(Sequence seq);
+
+    /**
+     * The point at idx has been added. All points before it have already been seen.
+     */
+    public void pointAdded(Sequence seq, int idx);
+
+    /**
+     * The stroke is done. Fill in anything that had to wait for later points.
+     */
+    public void end(Sequence seq);
+  }
+
+  private List<Stage> stages;
+  private Sequence seq;
+  private int processed;
+
+  public StrokeAnalysis() {
+    stages = new ArrayList<Stage>();
+  }
+
+  /**
+   * Makes an analysis with all of the standard stages: arc length, speed, curvature using the
+   * given window size (in points), bounds, and x/y statistics.
+   */
+  public static StrokeAnalysis createDefault(int curvatureWindow) {
+    StrokeAnalysis ret = new StrokeAnalysis();
+    ret.addStage(new ArcLength());
+    ret.addStage(new Speed());
+    ret.addStage(new Curvature(curvatureWindow));
+    ret.addStage(new Bounds());
+    ret.addStage(new PositionStatistics());
+    return ret;
+  }
+
+  public <T extends Stage> T addStage(T stage) {
+    stages.add(stage);
+    return stage;
+  }
+
+  public void removeStage(Stage stage) {
+    stages.remove(stage);
+  }
+
+  /**
+   * Returns the first stage of the given class, or null if there isn't one.
+   */
+  public <T extends Stage> T getStage(Class<T> type) {
+    T ret = null;
+    for (Stage stage : stages) {
+      if (type.isInstance(stage)) {
+        ret = type.cast(stage);
+        break;
+      }
+    }
+    return ret;
+  }
+
+  public Sequence getSequence() {
+    return seq;
+  }
+
+  /**
+   * Starts analyzing the given sequence. Any points it already has are processed right away.
+   */
+  public void begin(Sequence s) {
+    seq = s;
+    processed = 0;
+    for (Stage stage : stages) {
+      stage.begin(seq);
+    }
+    update();
+  }
+
+  /**
+   * Feeds any points that have been added to the sequence since the last call to the stages.
+   */
+  public void update() {
+    if (seq != null) {
+      int n = seq.size();
+      for (int i = processed; i < n; i++) {
+        for (Stage stage : stages) {
+          stage.pointAdded(seq, i);
+        }
+      }
+      processed = n;
+    }
+  }
+
+  /**
+   * Processes any remaining points and lets the stages finish up.
+   */
+  public void end() {
+    if (seq != null) {
+      update();
+      for (Stage stage : stages) {
+        stage.end(seq);
+      }
+    }
+  }
+
+  public void handleSequenceEvent(SequenceEvent ev) {
+    switch (ev.getType()) {
+      case BEGIN:
+        begin(ev.getSeq());
+        break;
+      case PROGRESS:
+        if (ev.getSeq() != seq) {
+          begin(ev.getSeq());
+        } else {
+          update();
+        }
+        break;
+      case END:
+        if (ev.getSeq() == seq) {
+          end();
+        }
+        break;
+    }
+  }
+
+  /**
+   * Keeps the running arc length and stores the distance from the first point in each point's
+   * "curvilinear-distance" channel value, just like Sequence.calculateCurvilinearDistances().
+   */
+  public static class ArcLength implements Stage {
+
+    private DoubleChannel dist;
+    private double length;
+
+    public void begin(Sequence seq) {
+      dist = seq.doubleChannel("curvilinear-distance");
+      length = 0.0;
+    }
+
+    public void pointAdded(Sequence seq, int idx) {
+      if (idx > 0) {
+        length += seq.get(idx - 1).distance(seq.get(idx));
+      }
+      dist.set(idx, length);
+    }
+
+    public void end(Sequence seq) {
+    }
+
+    public double getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * Stores the "speed" channel value as defined by Sequence.getSpeed(int). The speed at a point is
+   * known once the following point arrives. The endpoints have zero speed.
+   */
+  public static class Speed implements Stage {
+
+    private DoubleChannel speed;
+    private double sum;
+
+    public void begin(Sequence seq) {
+      speed = seq.doubleChannel("speed");
+      sum = 0.0;
+    }
+
+    public void pointAdded(Sequence seq, int idx) {
+      speed.set(idx, 0.0);
+      if (idx > 1) {
+        Pt a = seq.get(idx - 2);
+        Pt b = seq.get(idx - 1);
+        Pt c = seq.get(idx);
+        double v = (a.distance(b) + b.distance(c)) / (c.getTime() - a.getTime());
+        speed.set(idx - 1, v);
+        sum += v;
+      }
+    }
+
+    public void end(Sequence seq) {
+    }
+
+    /**
+     * Returns the sum of all speed values so far, which is what Sequence.calculateSpeed() returns.
+     */
+    public double getSpeedSum() {
+      return sum;
+    }
+  }
+
+  /**
+   * Computes the "angle" of each point as the direction from the point 'window' places before it to
+   * the point 'window' places after it, and the signed "curvature" as the change in angle from the
+   * preceding point to the next, wrapped to [-pi, pi]. This is the same scheme as
+   * Sequence.calculateCurvatureEuclideanWindowSize() but with a window measured in points, which is
+   * what makes it possible to do incrementally: each new point settles one more angle and one more
+   * curvature value. Points too close to either end take the nearest valid angle, and the endpoints
+   * have zero curvature.
+   */
+  public static class Curvature implements Stage {
+
+    private int window;
+    private DoubleChannel angle;
+    private DoubleChannel curvature;
+    private int anglesDone; // angles are known for indices below this
+    private int curvaturesDone; // ... and so are curvatures
+    private double absoluteSum;
+
+    public Curvature(int window) {
+      this.window = Math.max(1, window);
+    }
+
+    public void begin(Sequence seq) {
+      angle = seq.doubleChannel("angle");
+      curvature = seq.doubleChannel("curvature");
+      anglesDone = 0;
+      curvaturesDone = 0;
+      absoluteSum = 0.0;
+    }
+
+    public void pointAdded(Sequence seq, int idx) {
+      int mid = idx - window;
+      if (mid - window >= 0) {
+        Pt before = seq.get(mid - window);
+        Pt after = seq.get(idx);
+        double a = Math.atan2(after.getY() - before.getY(), after.getX() - before.getX());
+        // the first valid angle also stands in for the points that are too close to the start.
+        for (int i = anglesDone; i <= mid; i++) {
+          angle.set(i, a);
+        }
+        anglesDone = mid + 1;
+        settleCurvature(anglesDone - 1);
+      }
+    }
+
+    public void end(Sequence seq) {
+      int n = seq.size();
+      if (n > 0) {
+        double last = (anglesDone > 0) ? angle.get(anglesDone - 1) : 0.0;
+        for (int i = anglesDone; i < n; i++) {
+          angle.set(i, last);
+        }
+        anglesDone = n;
+        settleCurvature(n);
+      }
+    }
+
+    /**
+     * Computes curvature for every index below the limit whose neighbors' angles are known.
+     */
+    private void settleCurvature(int limit) {
+      int n = angle.getSequence().size();
+      for (int i = curvaturesDone; i < limit; i++) {
+        double k = 0.0;
+        if (i > 0 && i < n - 1) {
+          if (i + 1 >= anglesDone) {
+            break; // the next angle isn't known yet.
+          }
+          k = angle.get(i + 1) - angle.get(i - 1);
+          if (k < -Math.PI) {
+            k = k + 2.0 * Math.PI;
+          } else if (k > Math.PI) {
+            k = k - 2.0 * Math.PI;
+          }
+        }
+        curvature.set(i, k);
+        absoluteSum += Math.abs(k);
+        curvaturesDone = i + 1;
+      }
+    }
+
+    /**
+     * Returns the sum of the absolute curvature values settled so far.
+     */
+    public double getAbsoluteCurvatureSum() {
+      return absoluteSum;
+    }
+  }
+
+  /**
+   * Keeps the bounding box of the stroke.
+   */
+  public static class Bounds implements Stage {
+
+    private double minX, minY, maxX, maxY;
+
+    public void begin(Sequence seq) {
+      minX = Double.MAX_VALUE;
+      minY = Double.MAX_VALUE;
+      maxX = -Double.MAX_VALUE;
+      maxY = -Double.MAX_VALUE;
+    }
+
+    public void pointAdded(Sequence seq, int idx) {
+      Pt pt = seq.get(idx);
+      minX = Math.min(minX, pt.getX());
+      minY = Math.min(minY, pt.getY());
+      maxX = Math.max(maxX, pt.getX());
+      maxY = Math.max(maxY, pt.getY());
+    }
+
+    public void end(Sequence seq) {
+    }
+
+    public Rectangle2D getBounds() {
+      return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+    }
+  }
+
+  /**
+   * Keeps running statistics of the x and y coordinates.
+   */
+  public static class PositionStatistics implements Stage {
+
+    private RunningStatistics statsX = new RunningStatistics();
+    private RunningStatistics statsY = new RunningStatistics();
+
+    public void begin(Sequence seq) {
+      statsX.clear();
+      statsY.clear();
+    }
+
+    public void pointAdded(Sequence seq, int idx) {
+      Pt pt = seq.get(idx);
+      statsX.addData(pt.getX());
+      statsY.addData(pt.getY());
+    }
+
+    public void end(Sequence seq) {
+    }
+
+    public RunningStatistics getStatisticsX() {
+      return statsX;
+    }
+
+    public RunningStatistics getStatisticsY() {
+      return statsY;
+    }
+  }
+}
@@ -11,8 +11,13 @@ public class TestAll {
   public static Test suite() {
     TestSuite suite = new TestSuite("Pen Utility Tests");
     suite.addTest(new TestSuite(TestSequence.class));
+    suite.addTest(new TestSuite(TestPackedSequence.class));
     suite.addTest(new TestSuite(TestPt.class));
     suite.addTest(new TestSuite(TestFSM.class));
+    suite.addTest(new TestSuite(TestSegmentIntersections.class));
+    suite.addTest(new TestSuite(TestStrokeAnalysis.class));
+    suite.addTest(new TestSuite(TestSequenceIndex.class));
+    suite.addTest(new TestSuite(TestSketchIntersections.class));
     return suite;
   }
 }
@@ -0,0 +1,204 @@
+package org.six11.util.pen;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ConcurrentModificationException;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+
+/**
+ * Checks that a PackedSequence answers the same as a regular Sequence holding the same points.
+ */
+public class TestPackedSequence extends TestCase {
+
+  static {
+    Debug.useColor = false;
+  }
+
+  public void testAddAndGet() {
+    PackedSequence seq = new PackedSequence(2); // small, so it has to grow
+    for (int i = 0; i < 100; i++) {
+      seq.add(i, i * i, 10L * i);
+    }
+    assertEquals(100, seq.size());
+    assertEquals(49.0, seq.getX(49));
+    assertEquals(49.0 * 49.0, seq.get(49).getY());
+    assertEquals(490L, seq.get(49).getTime());
+    int count = 0;
+    for (Pt pt : seq) {
+      assertEquals(pt.getX() * pt.getX(), pt.getY());
+      count++;
+    }
+    assertEquals(100, count);
+    try {
+      seq.get(100);
+      fail("Should not be able to get to index 100");
+    } catch (IndexOutOfBoundsException ok) { /* expected */
+    }
+  }
+
+  public void testSameAsSequence() {
+    Sequence plain = makeSequence();
+    PackedSequence packed = new PackedSequence(plain);
+    assertEquals(plain.size(), packed.size());
+    assertEquals(plain.length(), packed.length(), 0.000001);
+    assertEquals(plain.getPathLength(1, 3), packed.getPathLength(1, 3), 0.000001);
+    assertEquals(plain.getEndpointDistance(), packed.getEndpointDistance(), 0.000001);
+    assertEquals(plain.calculateCurvilinearDistances(), packed.calculateCurvilinearDistances(),
+        0.000001);
+    assertEquals(plain.getChannel("curvilinear-distance").get(2), packed.get(2).getDouble(
+        "curvilinear-distance"), 0.000001);
+    Rectangle2D a = plain.getBounds2D();
+    Rectangle2D b = packed.getBounds2D();
+    assertEquals(a, b);
+    for (int i = 0; i < plain.size(); i++) {
+      assertEquals(plain.get(i), packed.get(i));
+      assertTrue(plain.get(i).equals(packed.get(i))); // same ID
+    }
+    assertEquals(plain.get(3), Functions.getNearestPointOnSequence(new Pt(5, 1.5), packed));
+  }
+
+  public void testViewsWriteThrough() {
+    PackedSequence seq = new PackedSequence(makeSequence());
+    Pt pt = seq.get(1);
+    pt.setLocation(5, 6);
+    pt.setTime(42L);
+    pt.setDouble("curvature", 0.25);
+    assertEquals(5.0, seq.getX(1));
+    assertEquals(6.0, seq.getY(1));
+    assertEquals(42L, seq.getTime(1));
+    assertEquals(0.25, seq.get(1).getDouble("curvature"));
+    assertFalse(seq.get(0).hasAttribute("curvature"));
+    assertEquals(1, seq.indexOf(pt));
+  }
+
+  public void testReadsMakeNoMaps() {
+    PackedSequence seq = new PackedSequence(makeSequence());
+    for (Pt pt : seq) {
+      assertFalse(pt.hasAttribute("corner"));
+      assertNull(pt.getAttribute("corner"));
+      assertFalse(pt.getBoolean("corner"));
+      assertTrue(pt.getBoolean("corner", true));
+      assertEquals(2.0, pt.getDouble("corner", 2.0));
+      pt.removeAttribute("corner");
+    }
+    for (int i = 0; i < seq.size(); i++) {
+      assertNull(seq.attributesAt(i, false));
+    }
+    seq.get(1).setBoolean("corner", true);
+    assertNotNull(seq.attributesAt(1, false));
+    assertNull(seq.attributesAt(2, false));
+    assertTrue(seq.get(1).getBoolean("corner"));
+  }
+
+  public void testInsertAndRemove() {
+    PackedSequence seq = new PackedSequence(makeSequence());
+    seq.get(2).setDouble("mark", 1.0);
+    Pt removed = seq.getPoints().remove(0);
+    assertEquals(new Pt(0.0, 0.0), removed);
+    assertEquals(3, seq.size());
+    assertEquals(1.0, seq.get(1).getDouble("mark"));
+    seq.getPoints().add(0, new Pt(-1.0, -1.0));
+    assertEquals(4, seq.size());
+    assertEquals(-1.0, seq.getX(0));
+    assertEquals(1.0, seq.get(2).getDouble("mark"));
+    seq.replace(3, new Pt(9.0, 9.0));
+    assertEquals(9.0, seq.getLast().getX());
+  }
+
+  public void testChannels() {
+    Sequence plain = makeSequence();
+    plain.get(1).setDouble("curvature", 0.5); // set the old way before the channel exists
+    DoubleChannel curvature = plain.doubleChannel("curvature");
+    assertTrue(curvature.has(1));
+    assertEquals(0.5, curvature.get(1));
+    curvature.set(2, 0.25);
+    assertEquals(0.25, plain.get(2).getDouble("curvature")); // mirrored by default
+    assertEquals(0.75, plain.getSignedCurvatureSum(), 0.000001);
+    plain.setChannelMirroring(false);
+    curvature.set(3, 0.125);
+    assertFalse(plain.get(3).hasAttribute("curvature"));
+    assertEquals(0.875, plain.getSignedCurvatureSum(), 0.000001);
+    curvature.clear(3);
+    plain.remove(0);
+    assertEquals(0.5, curvature.get(0));
+    assertEquals(0.25, curvature.get(1));
+    assertFalse(curvature.has(2));
+
+    PackedSequence packed = new PackedSequence(makeSequence());
+    DoubleChannel speed = packed.doubleChannel("speed");
+    packed.calculateSpeed();
+    assertEquals(speed.get(1), packed.get(1).getDouble("speed"));
+    packed.get(2).setDouble("speed", 3.0);
+    assertEquals(3.0, speed.get(2));
+    packed.getPoints().add(0, new Pt(-1.0, -1.0));
+    assertFalse(speed.has(0));
+    assertEquals(3.0, speed.get(3));
+    assertEquals(3.0, packed.get(3).copy().getDouble("speed"));
+  }
+
+  @SuppressWarnings("deprecation")
+  public void testChannelsSeePointWrites() {
+    Sequence plain = makeSequence();
+    Functions.calculateCurvature(plain);
+    double before = plain.getAbsoluteCurvatureSum();
+    plain.get(1).setDouble("curvature", 10.0); // behind the channel's back
+    assertEquals(10.0, plain.getChannel("curvature").get(1));
+    Functions.calculateCurvature(plain.getPoints()); // the old List<Pt> version writes the points
+    assertEquals(before, plain.getAbsoluteCurvatureSum(), 0.000001);
+    assertEquals(sumOfPoints(plain), plain.getSignedCurvatureSum(), 0.000001);
+    plain.get(2).removeAttribute("curvature");
+    assertFalse(plain.getChannel("curvature").has(2));
+
+    Sequence other = makeSequence();
+    DoubleChannel speed = other.doubleChannel("speed");
+    speed.set(1, 2.0);
+    Pt extra = new Pt(-1.0, -1.0);
+    extra.setDouble("speed", 7.0);
+    other.getPoints().add(0, extra);
+    assertEquals(7.0, speed.get(0));
+    assertEquals(2.0, speed.get(2));
+    other.getPoints().remove(1);
+    assertEquals(2.0, speed.get(1));
+    other.getPoints().set(1, new Pt(5.0, 5.0));
+    assertFalse(speed.has(1));
+    other.getPoints().clear();
+    assertEquals(0.0, speed.sum());
+  }
+
+  public void testIteratorFailsFast() {
+    PackedSequence packed = new PackedSequence(makeSequence());
+    try {
+      for (Pt pt : packed.getPoints()) {
+        packed.add(pt.getX() + 10, pt.getY(), 0L);
+      }
+      fail("Should not keep iterating after a point was added");
+    } catch (ConcurrentModificationException ok) { /* expected */
+    }
+    try {
+      for (Pt pt : packed.getPoints()) {
+        packed.remove(packed.getPoints().indexOf(pt));
+      }
+      fail("Should not keep iterating after a point was removed");
+    } catch (ConcurrentModificationException ok) { /* expected */
+    }
+  }
+
+  private static double sumOfPoints(Sequence seq) {
+    double ret = 0.0;
+    for (Pt pt : seq) {
+      ret += pt.getDouble("curvature", 0.0);
+    }
+    return ret;
+  }
+
+  protected Sequence makeSequence() {
+    Sequence ret = new Sequence();
+    ret.add(new Pt(0.0, 0.0));
+    ret.add(new Pt(1.0, 1.0));
+    ret.add(new Pt(2.0, 1.5));
+    ret.add(new Pt(3.0, 1.8));
+    return ret;
+  }
+}
@@ -0,0 +1,134 @@
+package org.six11.util.pen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+
+/**
+ * Checks the grid-bucketed crossing search against the nested loop that Sequence used before.
+ */
+public class TestSegmentIntersections extends TestCase {
+
+  static {
+    Debug.useColor = false;
+  }
+
+  public void testSelfIntersectionsMatchNestedLoop() {
+    List<Sequence> strokes = new ArrayList<Sequence>();
+    strokes.add(spiral(60));
+    strokes.add(zigzag(30));
+    strokes.add(scribble(new Random(5), 80));
+    strokes.add(scribble(new Random(6), 200));
+    double[] windows = new double[] {
+        0, 10, 50, 200, Double.MAX_VALUE
+    };
+    for (Sequence seq : strokes) {
+      for (double window : windows) {
+        List<Pt> expected = nestedLoopSelfIntersections(seq, window);
+        List<Pt> actual = seq.getSelfIntersectionPoints(window);
+        assertEquals("count, window " + window, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals("point " + i + ", window " + window, expected.get(i), actual.get(i));
+        }
+      }
+    }
+  }
+
+  public void testNoLimitWhenNegative() {
+    Sequence seq = spiral(60);
+    List<Pt> all = nestedLoopSelfIntersections(seq, Double.MAX_VALUE);
+    assertFalse(all.isEmpty());
+    assertEquals(all, seq.getSelfIntersectionPoints(-1));
+  }
+
+  public void testCrossingsBetweenTwoStrokes() {
+    Sequence a = scribble(new Random(7), 60);
+    Sequence b = zigzag(25);
+    List<Pt> expected = new ArrayList<Pt>();
+    for (int i = 0; i < a.size() - 1; i++) {
+      Line lineA = new Line(a.get(i), a.get(i + 1));
+      for (int j = 0; j < b.size() - 1; j++) {
+        Line lineB = new Line(b.get(j), b.get(j + 1));
+        if (lineA.intersectsLine(lineB)) {
+          IntersectionData ix = new IntersectionData(lineA, lineB);
+          if (ix.intersectsInSegments()) {
+            expected.add(ix.getIntersection());
+          }
+        }
+      }
+    }
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, Functions.getIntersectionPoints(a, b));
+    assertTrue(Functions.getIntersectionPoints(a, new Sequence()).isEmpty());
+  }
+
+  /**
+   * The original Sequence.getSelfIntersectionPoints, minus the "dist_to_next" attribute cache.
+   */
+  private static List<Pt> nestedLoopSelfIntersections(Sequence seq, double localDistance) {
+    List<Pt> points = seq.getPoints();
+    List<Pt> ret = new ArrayList<Pt>();
+    double runDist;
+    Line lineA = new Line();
+    Line lineB = new Line();
+    for (int i = 0; i < (points.size() - 3); i++) {
+      lineA.push(points.get(i));
+      if (lineA.isValid()) {
+        runDist = lineA.getLength();
+        lineB.clear();
+        for (int j = i + 1; j < (points.size() - 1); j++) {
+          lineB.push(points.get(j));
+          if (lineB.isValid()) {
+            runDist += lineB.getLength();
+            if (!lineA.isAdjacentTo(lineB) && lineA.intersectsLine(lineB)) {
+              IntersectionData ix = new IntersectionData(lineA, lineB);
+              if (ix.intersectsInSegments() && (!ret.contains(ix.getIntersection()))) {
+                ret.add(ix.getIntersection());
+              }
+            }
+          }
+          if (runDist > localDistance) {
+            break;
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  private static Sequence spiral(int n) {
+    Sequence ret = new Sequence();
+    for (int i = 0; i < n; i++) {
+      double t = i * 0.4;
+      double r = 10 + 40 * Math.sin(i * 0.07);
+      ret.add(new Pt(r * Math.cos(t) + i * 0.5, r * Math.sin(t)));
+    }
+    return ret;
+  }
+
+  private static Sequence zigzag(int n) {
+    Sequence ret = new Sequence();
+    for (int i = 0; i < n; i++) {
+      ret.add(new Pt(i * 7.0 - 20, (i % 2 == 0) ? -30.0 : 30.0));
+      if (i % 5 == 4) {
+        ret.add(new Pt(i * 7.0 - 40, 0.0)); // double back over the last few teeth
+      }
+    }
+    return ret;
+  }
+
+  private static Sequence scribble(Random rand, int n) {
+    Sequence ret = new Sequence();
+    double x = 0, y = 0;
+    for (int i = 0; i < n; i++) {
+      ret.add(new Pt(x, y));
+      x += rand.nextGaussian() * 15;
+      y += rand.nextGaussian() * 15;
+    }
+    return ret;
+  }
+}
@@ -2,6 +2,8 @@
 
 package org.six11.util.pen;
 
+import java.util.ConcurrentModificationException;
+
 import junit.framework.TestCase;
 
 import org.six11.util.Debug;
@@ -246,6 +248,68 @@ public class TestSequence extends TestCase {
     assertEquals(2.1621, seq.get(3).getDouble("mid"), 0.001);
   }
 
+  public void testAnalysesOnPoints() {
+    // code from before channels reads each analysis off the points
+    Sequence seq = makeTimedSequence();
+    Functions.calculateCurvature(seq);
+    Sequence byList = makeTimedSequence();
+    Functions.calculateCurvature(byList.getPoints()); // writes to the points, as it always did
+    for (int i = 0; i < seq.size(); i++) {
+      assertEquals(byList.get(i).getDouble("curvature"), seq.get(i).getDouble("curvature"));
+    }
+    assertTrue(seq.get(3).getDouble("curvature") != 0.0);
+
+    double length = seq.calculateCurvilinearDistances();
+    double sum = 0.0;
+    for (int i = 0; i < seq.size(); i++) {
+      if (i > 0) {
+        sum += seq.get(i - 1).distance(seq.get(i));
+      }
+      assertTrue(seq.get(i).hasAttribute("curvilinear-distance"));
+      assertEquals(sum, seq.get(i).getDouble("curvilinear-distance"), 0.000001);
+    }
+    assertEquals(sum, length, 0.000001);
+
+    seq.calculateSpeed();
+    for (int i = 1; i < seq.size() - 1; i++) {
+      double expected = (seq.get(i - 1).distance(seq.get(i)) + seq.get(i).distance(seq.get(i + 1)))
+          / (seq.get(i + 1).getTime() - seq.get(i - 1).getTime());
+      assertEquals(expected, seq.get(i).getDouble("speed"), 0.000001);
+    }
+    assertEquals(0.0, seq.get(0).getDouble("speed"));
+  }
+
+  public void testCallerValuesKept() {
+    Sequence seq = makeTimedSequence();
+    seq.get(1).setDouble("speed", 42.0);
+    seq.getSpeed(2);
+    assertEquals(42.0, seq.get(1).getDouble("speed"));
+    seq.setChannelMirroring(false);
+    seq.get(2).setDouble("speed", 17.0);
+    double speed = seq.getSpeed(2);
+    assertEquals(17.0, seq.get(2).getDouble("speed")); // not mirrored, but not removed either
+    assertEquals(speed, seq.doubleChannel("speed").get(2));
+    assertEquals(42.0, seq.get(1).getDouble("speed"));
+  }
+
+  public void testIteratorFailsFast() {
+    Sequence seq = makeSequence();
+    try {
+      for (Pt pt : seq.getPoints()) {
+        seq.add(new Pt(pt.getX() + 10, pt.getY()));
+      }
+      fail("Should not keep iterating after a point was added");
+    } catch (ConcurrentModificationException ok) { /* expected */
+    }
+    try {
+      for (Pt pt : seq.getPoints()) {
+        seq.getPoints().remove(pt);
+      }
+      fail("Should not keep iterating after a point was removed");
+    } catch (ConcurrentModificationException ok) { /* expected */
+    }
+  }
+
   protected Sequence makeSequence() {
     Sequence ret = new Sequence();
     ret.add(new Pt(0.0, 0.0));
@@ -255,6 +319,17 @@ public class TestSequence extends TestCase {
     return ret;
   }
 
+  /**
+   * A short curving stroke with times, so it has a speed at each inner point.
+   */
+  private static Sequence makeTimedSequence() {
+    Sequence ret = new Sequence();
+    for (int i = 0; i < 8; i++) {
+      ret.add(new Pt(i * 3.0, i * i * 0.5, 100L + 10L * i + (i % 3)));
+    }
+    return ret;
+  }
+
   private static Pt f(double x) {
     return new Pt(x, x * x);
   }
@@ -0,0 +1,147 @@
+package org.six11.util.pen;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+
+/**
+ * Checks SequenceIndex.getNearest() against a scan of every segment of every sequence, for query
+ * points inside, around and far outside the ink, with and without a distance limit.
+ */
+public class TestSequenceIndex extends TestCase {
+
+  static {
+    Debug.useColor = false;
+  }
+
+  public void testNearestMatchesScan() {
+    Random rand = new Random(21);
+    List<Sequence> strokes = makeStrokes(rand);
+    for (double cellSize : new double[] {
+        3, 20, 150
+    }) {
+      SequenceIndex index = new SequenceIndex(cellSize);
+      for (Sequence seq : strokes) {
+        index.add(seq);
+      }
+      checkQueries(rand, index, strokes, "cell " + cellSize);
+    }
+  }
+
+  public void testNearestAfterChanges() {
+    Random rand = new Random(22);
+    List<Sequence> strokes = makeStrokes(rand);
+    SequenceIndex index = new SequenceIndex(20);
+    for (Sequence seq : strokes) {
+      index.add(seq);
+    }
+    List<Sequence> present = new ArrayList<Sequence>(strokes);
+    for (int round = 0; round < 10; round++) {
+      Sequence seq = present.get(rand.nextInt(present.size()));
+      if (rand.nextBoolean() && present.size() > 1) {
+        index.remove(seq);
+        present.remove(seq);
+      } else if (!(seq instanceof PackedSequence)) {
+        for (Pt pt : seq) {
+          pt.setLocation(pt.getX() + 40, pt.getY() - 25);
+        }
+        index.update(seq);
+      }
+      checkQueries(rand, index, present, "round " + round);
+    }
+  }
+
+  public void testEmpty() {
+    SequenceIndex index = new SequenceIndex(10);
+    assertNull(index.getNearest(new Pt(0, 0)));
+  }
+
+  /**
+   * Asks the index for the nearest ink to random points in and around the strokes' area, and
+   * checks each answer against the scan: the same distance, and a hit that really is on the
+   * segment it names at that distance. (Several segments may be equally near, such as two that
+   * share an endpoint, so the segment itself may differ from the scan's.)
+   */
+  private static void checkQueries(Random rand, SequenceIndex index, List<Sequence> strokes,
+      String why) {
+    for (int q = 0; q < 300; q++) {
+      double spread = (q < 200) ? 400 : 5000; // most near the ink, some far off
+      double x = 200 + (rand.nextDouble() * 2 - 1) * spread;
+      double y = 200 + (rand.nextDouble() * 2 - 1) * spread;
+      Pt where = new Pt(x, y);
+      double expected = scan(strokes, where);
+      SequenceIndex.Hit hit = index.getNearest(where);
+      String at = why + ", query " + where;
+      assertNotNull(at, hit);
+      assertEquals(at, expected, hit.getDistance(), 1e-9);
+      assertTrue(at, strokes.contains(hit.getSequence()));
+      assertEquals(at, expected, segmentDistance(hit.getSequence(), hit.getSegmentIndex(), where),
+          1e-9);
+      assertEquals(at, expected, hit.getPoint().distance(where), 1e-9);
+      double limit = rand.nextDouble() * 60;
+      SequenceIndex.Hit limited = index.getNearest(where, limit);
+      if (expected <= limit) {
+        assertNotNull(at + ", limit " + limit, limited);
+        assertEquals(at + ", limit " + limit, expected, limited.getDistance(), 1e-9);
+      } else {
+        assertNull(at + ", limit " + limit, limited);
+      }
+    }
+  }
+
+  /**
+   * The distance from the point to the nearest segment of any of the strokes, by looking at all
+   * of them. A one-point stroke is a segment of zero length.
+   */
+  private static double scan(List<Sequence> strokes, Pt where) {
+    double ret = Double.MAX_VALUE;
+    for (Sequence seq : strokes) {
+      for (int i = 0; i < Math.max(1, seq.size() - 1); i++) {
+        ret = Math.min(ret, segmentDistance(seq, i, where));
+      }
+    }
+    return ret;
+  }
+
+  private static double segmentDistance(Sequence seq, int i, Pt where) {
+    Pt a = seq.get(i);
+    Pt b = seq.get(Math.min(i + 1, seq.size() - 1));
+    return Line2D.ptSegDist(a.getX(), a.getY(), b.getX(), b.getY(), where.getX(), where.getY());
+  }
+
+  /**
+   * Random scribbles of various lengths and step sizes scattered over a 400 by 400 area, plus a
+   * one-point stroke, a long straight stroke that crosses many cells, and a packed copy of one
+   * scribble.
+   */
+  private static List<Sequence> makeStrokes(Random rand) {
+    List<Sequence> ret = new ArrayList<Sequence>();
+    for (int s = 0; s < 12; s++) {
+      Sequence seq = new Sequence();
+      double x = rand.nextDouble() * 400;
+      double y = rand.nextDouble() * 400;
+      double step = 1 + rand.nextDouble() * 20;
+      int n = 2 + rand.nextInt(60);
+      for (int i = 0; i < n; i++) {
+        seq.add(new Pt(x, y));
+        x += rand.nextGaussian() * step;
+        y += rand.nextGaussian() * step;
+      }
+      ret.add(seq);
+    }
+    Sequence dot = new Sequence();
+    dot.add(new Pt(150, 250));
+    ret.add(dot);
+    Sequence line = new Sequence();
+    line.add(new Pt(-50, 10));
+    line.add(new Pt(450, 390));
+    ret.add(line);
+    ret.add(new PackedSequence(ret.get(0)));
+    return ret;
+  }
+}
@@ -0,0 +1,164 @@
+package org.six11.util.pen;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+
+/**
+ * Checks SketchIntersections, whether strokes are added in bulk (serially or in parallel), one at a
+ * time, or removed and changed along the way, against the crossings SegmentIntersections finds
+ * between each pair of strokes.
+ */
+public class TestSketchIntersections extends TestCase {
+
+  static {
+    Debug.useColor = false;
+  }
+
+  public void testBulkMatchesPairs() {
+    Random rand = new Random(31);
+    List<Sequence> strokes = makeStrokes(rand, 25, 60, 500);
+    strokes.add(new PackedSequence(strokes.get(3)));
+    Sequence dot = new Sequence();
+    dot.add(new Pt(250, 250));
+    strokes.add(dot);
+    List<String> expected = pairwise(strokes);
+    assertTrue("the strokes should cross", expected.size() > 20);
+    for (double cellSize : new double[] {
+        2, 15, 100, 1000
+    }) {
+      List<SketchIntersections.Crossing> found = SketchIntersections.findCrossings(strokes,
+          cellSize);
+      assertEquals("cell " + cellSize, expected, describe(found, strokes));
+    }
+  }
+
+  public void testParallelMatchesPairs() {
+    Random rand = new Random(32);
+    // enough segments in one bulk add for it to be done in parallel, given more than one processor
+    List<Sequence> strokes = makeStrokes(rand, 120, 180, 2000);
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+    try {
+      SketchIntersections si = new SketchIntersections(20);
+      si.setExecutor(executor);
+      List<SketchIntersections.Crossing> found = si.addAll(strokes);
+      if (Runtime.getRuntime().availableProcessors() > 1) {
+        assertTrue("cells should have been checked in parallel", executor.getTaskCount() > 0);
+      }
+      List<String> expected = pairwise(strokes);
+      assertTrue("the strokes should cross", expected.size() > 100);
+      assertEquals(expected, describe(found, strokes));
+      assertEquals(expected, describe(si.getCrossings(), strokes));
+      assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testIncrementalMatchesPairs() {
+    Random rand = new Random(33);
+    List<Sequence> all = makeStrokes(rand, 30, 50, 500);
+    SketchIntersections si = new SketchIntersections(15);
+    List<Sequence> present = new ArrayList<Sequence>(); // in the order the index has them
+    for (Sequence seq : all) {
+      List<SketchIntersections.Crossing> added = si.add(seq);
+      present.add(seq);
+      for (SketchIntersections.Crossing x : added) {
+        assertSame(seq, x.getSequenceB());
+      }
+      assertEquals(pairwise(present), describe(si.getCrossings(), present));
+    }
+    for (int round = 0; round < 20; round++) {
+      Sequence seq = present.get(rand.nextInt(present.size()));
+      if (rand.nextBoolean()) {
+        si.remove(seq);
+        present.remove(seq);
+      } else {
+        double dx = rand.nextGaussian() * 30;
+        double dy = rand.nextGaussian() * 30;
+        for (Pt pt : seq) {
+          pt.setLocation(pt.getX() + dx, pt.getY() + dy);
+        }
+        si.update(seq); // it is now the latest
+        present.remove(seq);
+        present.add(seq);
+      }
+      assertEquals("round " + round, pairwise(present), describe(si.getCrossings(), present));
+      if (present.size() > 1) {
+        Sequence a = present.get(0);
+        Sequence b = present.get(present.size() - 1);
+        List<Sequence> both = new ArrayList<Sequence>();
+        both.add(a);
+        both.add(b);
+        assertEquals("round " + round, pairwise(both), describe(si.getCrossings(a, b), both));
+      }
+    }
+  }
+
+  /**
+   * Every crossing between two of the strokes, found by SegmentIntersections one pair at a time,
+   * in the order SketchIntersections keeps them: by the later stroke, then the earlier one, then
+   * the segments.
+   */
+  private static List<String> pairwise(List<Sequence> strokes) {
+    List<String> ret = new ArrayList<String>();
+    for (int b = 0; b < strokes.size(); b++) {
+      for (int a = 0; a < b; a++) {
+        for (SegmentIntersections.Crossing x : SegmentIntersections.getCrossings(strokes.get(a),
+            strokes.get(b))) {
+          ret.add(describe(a, b, x.getSegmentA(), x.getSegmentB(), x.getX(), x.getY()));
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Describes the crossings in terms of positions in the given list of strokes. For pairwise() to
+   * agree, the list has to be in the order the strokes were added.
+   */
+  private static List<String> describe(List<SketchIntersections.Crossing> crossings,
+      List<Sequence> strokes) {
+    Map<Sequence, Integer> index = new IdentityHashMap<Sequence, Integer>();
+    for (Sequence seq : strokes) {
+      index.put(seq, index.size());
+    }
+    List<String> ret = new ArrayList<String>();
+    for (SketchIntersections.Crossing x : crossings) {
+      ret.add(describe(index.get(x.getSequenceA()), index.get(x.getSequenceB()), x.getSegmentA(),
+          x.getSegmentB(), x.getX(), x.getY()));
+    }
+    return ret;
+  }
+
+  private static String describe(int a, int b, int segA, int segB, double x, double y) {
+    return a + "/" + segA + " x " + b + "/" + segB + " at " + x + ", " + y;
+  }
+
+  /**
+   * Random scribbles of n points each, starting anywhere in a square of the given size.
+   */
+  private static List<Sequence> makeStrokes(Random rand, int count, int n, double size) {
+    List<Sequence> ret = new ArrayList<Sequence>();
+    for (int s = 0; s < count; s++) {
+      Sequence seq = new Sequence();
+      double x = rand.nextDouble() * size;
+      double y = rand.nextDouble() * size;
+      for (int i = 0; i < n; i++) {
+        seq.add(new Pt(x, y));
+        x += rand.nextGaussian() * 10;
+        y += rand.nextGaussian() * 10;
+      }
+      ret.add(seq);
+    }
+    return ret;
+  }
+}
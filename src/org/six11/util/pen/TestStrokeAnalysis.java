@@ -0,0 +1,119 @@
+package org.six11.util.pen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+
+/**
+ * Checks that StrokeAnalysis, fed a stroke one point at a time, ends up with the same arc length,
+ * speed and curvature as the whole-sequence methods in Sequence work out for the finished stroke,
+ * including for strokes too short for the curvature window.
+ */
+public class TestStrokeAnalysis extends TestCase {
+
+  /**
+   * With a Euclidean window of zero, Sequence.calculateCurvatureEuclideanWindowSize() always looks
+   * this many points either side, which is the point window StrokeAnalysis.Curvature takes.
+   */
+  private static final int WINDOW = 2;
+
+  static {
+    Debug.useColor = false;
+  }
+
+  public void testSameAsBatch() {
+    Random rand = new Random(11);
+    for (int n = 1; n <= 40; n++) {
+      List<Pt> stroke = makeStroke(rand, n);
+      Sequence batch = copy(stroke);
+      double length = batch.calculateCurvilinearDistances();
+      double speed = batch.calculateSpeed();
+      double curvature = batch.calculateCurvatureEuclideanWindowSize(0);
+      if (n == 2 * WINDOW + 1) {
+        // the batch method gives the points after its only angle -1 rather than that angle. Every
+        // point really has the same direction, so there is no curvature anywhere.
+        curvature = 0;
+        for (int i = 0; i < n; i++) {
+          batch.doubleChannel("curvature").set(i, 0);
+        }
+      }
+
+      StrokeAnalysis analysis = StrokeAnalysis.createDefault(WINDOW);
+      Sequence seq = feed(analysis, stroke);
+      String where = n + " points";
+      assertEquals(where, length, analysis.getStage(StrokeAnalysis.ArcLength.class).getLength());
+      assertEquals(where, speed, analysis.getStage(StrokeAnalysis.Speed.class).getSpeedSum(),
+          1e-12);
+      assertEquals(where, curvature, analysis.getStage(StrokeAnalysis.Curvature.class)
+          .getAbsoluteCurvatureSum(), 1e-12);
+      for (int i = 0; i < n; i++) {
+        String at = where + ", point " + i;
+        assertTrue(at, seq.doubleChannel("speed").has(i));
+        assertTrue(at, seq.doubleChannel("curvature").has(i));
+        assertEquals(at, batch.doubleChannel("curvilinear-distance").get(i), seq.doubleChannel(
+            "curvilinear-distance").get(i));
+        assertEquals(at, batch.doubleChannel("speed").get(i), seq.doubleChannel("speed").get(i),
+            1e-12);
+        assertEquals(at, batch.doubleChannel("curvature").get(i), seq.doubleChannel("curvature")
+            .get(i), 1e-12);
+      }
+    }
+  }
+
+  public void testLengthWhileDrawing() {
+    List<Pt> stroke = makeStroke(new Random(12), 30);
+    StrokeAnalysis analysis = StrokeAnalysis.createDefault(WINDOW);
+    Sequence seq = new Sequence();
+    analysis.handleSequenceEvent(new SequenceEvent(this, seq, SequenceEvent.Type.BEGIN));
+    for (Pt pt : stroke) {
+      seq.add(new Pt(pt.getX(), pt.getY(), pt.getTime()));
+      analysis.handleSequenceEvent(new SequenceEvent(this, seq, SequenceEvent.Type.PROGRESS));
+      assertEquals(seq.length(), analysis.getStage(StrokeAnalysis.ArcLength.class).getLength(),
+          1e-9);
+    }
+  }
+
+  /**
+   * Sends the stroke to the analysis the way OliveSoup does while it is drawn: a BEGIN, a PROGRESS
+   * after every point, and an END. Returns the sequence it was drawn into.
+   */
+  private Sequence feed(StrokeAnalysis analysis, List<Pt> stroke) {
+    Sequence ret = new Sequence();
+    analysis.handleSequenceEvent(new SequenceEvent(this, ret, SequenceEvent.Type.BEGIN));
+    for (Pt pt : stroke) {
+      ret.add(new Pt(pt.getX(), pt.getY(), pt.getTime()));
+      analysis.handleSequenceEvent(new SequenceEvent(this, ret, SequenceEvent.Type.PROGRESS));
+    }
+    analysis.handleSequenceEvent(new SequenceEvent(this, ret, SequenceEvent.Type.END));
+    return ret;
+  }
+
+  private static Sequence copy(List<Pt> stroke) {
+    Sequence ret = new Sequence();
+    for (Pt pt : stroke) {
+      ret.add(new Pt(pt.getX(), pt.getY(), pt.getTime()));
+    }
+    return ret;
+  }
+
+  /**
+   * A wiggly stroke of n points that always heads up the page, so every direction is between zero
+   * and pi. (Sequence's batch method mistakes a negative direction for a missing one.) Samples are
+   * 8 to 12 milliseconds apart.
+   */
+  private static List<Pt> makeStroke(Random rand, int n) {
+    List<Pt> ret = new ArrayList<Pt>();
+    long t = 1000;
+    for (int i = 0; i < n; i++) {
+      double x = 30 * Math.sin(i * 0.3) + rand.nextDouble() * 4;
+      double y = i * 5 + rand.nextDouble() * 4;
+      ret.add(new Pt(x, y, t));
+      t = t + 8 + rand.nextInt(5);
+    }
+    return ret;
+  }
+}
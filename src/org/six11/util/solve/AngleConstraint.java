@@ -11,10 +11,9 @@ import org.six11.util.Debug;
 import org.six11.util.data.Lists;
 import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.DrawingBufferRoutines;
-import org.six11.util.pen.Functions;
+import org.six11.util.pen.GeomKernels;
 import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 import static org.six11.util.Debug.bug;
 import static org.six11.util.Debug.num;
@@ -41,6 +40,10 @@ public class AngleConstraint extends Constraint {
     fromJson(obj, vars);
   }
 
+  AngleConstraint(int id) { // for BinaryIO
+    super(id);
+  }
+
   public boolean isValid(VariableBank vars) {
     return vars.getPoints().containsAll(Lists.makeSet(a, f, b));
   }
@@ -66,33 +69,27 @@ public class AngleConstraint extends Constraint {
         // Also move fulcrum along bisector if it is free.
         double shift = e / free;
         double abSum = 0;
-        Vec vecA = null;
-        Vec vecB = null;
-        Vec vecF = null;
         if (!isPinned(a)) {
-          Pt rotatedA = Functions.rotatePointAboutPivot(a, f, shift);
-          vecA = new Vec(rotatedA.x - a.x, rotatedA.y - a.y);
-          abSum = abSum + vecA.mag();
-          accumulate(a, vecA, heat);
+          abSum = abSum + accumulateRotation(a, f.x, f.y, shift);
         }
         if (!isPinned(b)) {
-          Pt rotatedB = Functions.rotatePointAboutPivot(b, f, -shift);
-          vecB = new Vec(rotatedB.x - b.x, rotatedB.y - b.y);
-          abSum = abSum + vecB.mag();
-          accumulate(b, vecB, heat);
+          abSum = abSum + accumulateRotation(b, f.x, f.y, -shift);
         }
         if (!isPinned(f)) {
-          Vec toA = new Vec(f, a);
-          Vec toB = new Vec(f, b);
+          double toAx = a.x - f.x;
+          double toAy = a.y - f.y;
+          double toBx = b.x - f.x;
+          double toBy = b.y - f.y;
           // cross product's tells us the 'handedness' of the triangle using f->a as a reference
-          double cross = toA.cross(toB);
+          double cross = GeomKernels.cross(toAx, toAy, toBx, toBy);
           double signCross = Math.signum(cross);
           double signErr = Math.signum(e);
           double dirF = 1.0;
           if (signCross == signErr) {
             dirF = -1.0;
           }
-          Vec bisector = Vec.sum(toA, toB); // this bisects the triangle starting from f
+          double bisectorX = toAx + toBx; // this bisects the triangle starting from f
+          double bisectorY = toAy + toBy;
           // move fulcrum towards or away from centroid depending on handedness and error. 
           // if the system is too acute the fulcrum moves inward; too obtuse and it moves outward
           double magF = (abSum / 2.0);
@@ -102,8 +99,8 @@ public class AngleConstraint extends Constraint {
             bug("damping is negative!");
           }
           moveF = moveF * damping; // dampen the fulcrum's movement because it tends to shorten lines a lot
-          vecF = bisector.getVectorOfMagnitude(moveF);
-          accumulate(f, vecF, heat);
+          double scale = moveF / Math.sqrt(bisectorX * bisectorX + bisectorY * bisectorY);
+          accumulate(f, bisectorX * scale, bisectorY * scale);
         }
       }
     }
@@ -120,24 +117,45 @@ public class AngleConstraint extends Constraint {
         // Rotate a and b about f by e/2 and -e/2 radians. (assuming free = 2)
         double shift = e / free;
         if (!isPinned(a)) {
-          Pt rotatedA = Functions.rotatePointAboutPivot(a, f, shift);
-          Vec vecA = new Vec(rotatedA.x - a.x, rotatedA.y - a.y);
-          accumulate(a, vecA, heat);
+          accumulateRotation(a, f.x, f.y, shift);
         }
         if (!isPinned(b)) {
-          Pt rotatedB = Functions.rotatePointAboutPivot(b, f, -shift);
-          Vec vecB = new Vec(rotatedB.x - b.x, rotatedB.y - b.y);
-          accumulate(b, vecB, heat);
+          accumulateRotation(b, f.x, f.y, -shift);
         }
       }
     }
   }
 
   public static double measureAngle(Pt ptA, Pt ptFulcrum, Pt ptB) {
-    Vec fa = new Vec(ptA, ptFulcrum);
-    Vec fb = new Vec(ptB, ptFulcrum);
-    double currentAngle = Functions.getSignedAngleBetween(fa, fb);
-    return currentAngle;
+    return GeomKernels.signedAngle(ptFulcrum.x - ptA.x, ptFulcrum.y - ptA.y, ptFulcrum.x - ptB.x,
+        ptFulcrum.y - ptB.y);
+  }
+
+  /**
+   * Away from zero the error changes just as the signed angle does, and the angle from (f - a) to
+   * (f - b) changes with each point perpendicular to its arm, by one over the arm's length.
+   */
+  @Override
+  public boolean getErrorGradient(Pt pt, double[] out) {
+    double ux = f.x - a.x;
+    double uy = f.y - a.y;
+    double vx = f.x - b.x;
+    double vy = f.y - b.y;
+    double uu = ux * ux + uy * uy;
+    double vv = vx * vx + vy * vy;
+    out[0] = 0;
+    out[1] = 0;
+    if (pt == a) {
+      out[0] = -uy / uu;
+      out[1] = ux / uu;
+    } else if (pt == b) {
+      out[0] = vy / vv;
+      out[1] = -vx / vv;
+    } else if (pt == f) {
+      out[0] = uy / uu - vy / vv;
+      out[1] = -ux / uu + vx / vv;
+    }
+    return uu > 0 && vv > 0;
   }
 
   public double measureError() {
@@ -0,0 +1,413 @@
+package org.six11.util.solve;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Saves and loads the contents of a VariableBank in a compact binary form, for systems too big to
+ * checkpoint comfortably with JsonIO. JsonIO is still the format to use for anything another
+ * program has to read.
+ *
+ * A snapshot is a header (MAGIC, a VERSION byte, and the numbers of points and constraints)
+ * followed by the points and then the constraints. Counts, IDs, lengths and point references are
+ * unsigned varints (seven bits a byte, low bits first), and coordinates and values are 8-byte
+ * doubles, all big-endian. Each point is its name (length plus one, then UTF-8; zero means no
+ * name), a flags byte (bit 0: pinned), x, y and time (zigzag varint). Each constraint is a type
+ * tag byte, its ID, then its points as indexes into the point list, and its value if it has one.
+ * Point names and the pinned flag are the same data TestSolveUI keeps in its JSON files.
+ *
+ * Reading and writing stream through a fixed-size buffer over an NIO channel, so a snapshot never
+ * has to be in memory all at once.
+ */
+public class BinaryIO {
+
+  public static final int MAGIC = 0x534e4150; // "SNAP"
+  public static final int VERSION = 1;
+
+  private static final int TAG_ANGLE = 1;
+  private static final int TAG_DISTANCE = 2;
+  private static final int TAG_PIN = 3;
+  private static final int TAG_ORIENTATION = 4;
+  private static final int TAG_POINT_AS_LINE_PARAM = 5;
+  private static final int TAG_POINT_ON_LINE = 6;
+
+  private static final int FLAG_PINNED = 1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Writes the points and constraints of the bank to the channel, which is left open. Every point
+   * a constraint involves must be in the bank.
+   */
+  public void write(VariableBank vars, WritableByteChannel channel) throws IOException {
+    Out out = new Out(channel);
+    List<Pt> points = vars.getPoints();
+    List<Constraint> constraints = vars.getConstraints();
+    Map<Pt, Integer> index = new IdentityHashMap<Pt, Integer>();
+    out.putInt(MAGIC);
+    out.putByte(VERSION);
+    out.putVarint(points.size());
+    out.putVarint(constraints.size());
+    for (int i = 0; i < points.size(); i++) {
+      Pt pt = points.get(i);
+      index.put(pt, i);
+      out.putString(pt.getString("name"));
+      out.putByte(Constraint.isPinned(pt) ? FLAG_PINNED : 0);
+      out.putDouble(pt.getX());
+      out.putDouble(pt.getY());
+      out.putVarlong((pt.getTime() << 1) ^ (pt.getTime() >> 63));
+    }
+    for (Constraint c : constraints) {
+      writeConstraint(c, index, out);
+    }
+    out.flush();
+  }
+
+  /**
+   * Replaces the contents of the bank with a snapshot read from the channel, which is left open.
+   */
+  public void read(ReadableByteChannel channel, VariableBank vars) throws IOException {
+    In in = new In(channel);
+    if (in.getInt() != MAGIC) {
+      throw new IOException("Not a constraint system snapshot");
+    }
+    int version = in.getByte();
+    if (version != VERSION) {
+      throw new IOException("Unknown snapshot version: " + version);
+    }
+    int numPoints = in.getVarint();
+    int numConstraints = in.getVarint();
+    List<Pt> points = new ArrayList<Pt>(numPoints);
+    for (int i = 0; i < numPoints; i++) {
+      String name = in.getString();
+      int flags = in.getByte();
+      double x = in.getDouble();
+      double y = in.getDouble();
+      long zigzag = in.getVarlong();
+      Pt pt = new Pt(x, y, (zigzag >>> 1) ^ -(zigzag & 1));
+      if (name != null) {
+        pt.setString("name", name);
+      }
+      if ((flags & FLAG_PINNED) != 0) {
+        Constraint.setPinned(pt, true);
+      }
+      points.add(pt);
+    }
+    List<Constraint> constraints = new ArrayList<Constraint>(numConstraints);
+    for (int i = 0; i < numConstraints; i++) {
+      constraints.add(readConstraint(in, points));
+    }
+    vars.clear();
+    vars.getPoints().addAll(points);
+    vars.getConstraints().addAll(constraints);
+    vars.invalidateComponents();
+  }
+
+  public void save(VariableBank vars, File file) throws IOException {
+    FileOutputStream stream = new FileOutputStream(file);
+    try {
+      write(vars, stream.getChannel());
+    } finally {
+      stream.close();
+    }
+  }
+
+  public void load(File file, VariableBank vars) throws IOException {
+    FileInputStream stream = new FileInputStream(file);
+    try {
+      read(stream.getChannel(), vars);
+    } finally {
+      stream.close();
+    }
+  }
+
+  private void writeConstraint(Constraint c, Map<Pt, Integer> index, Out out) throws IOException {
+    if (c instanceof AngleConstraint) {
+      AngleConstraint ac = (AngleConstraint) c;
+      out.putByte(TAG_ANGLE);
+      out.putVarint(c.getID());
+      putPoints(out, index, c, ac.a, ac.f, ac.b);
+      out.putDouble(ac.angle.getValue());
+    } else if (c instanceof DistanceConstraint) {
+      DistanceConstraint dc = (DistanceConstraint) c;
+      out.putByte(TAG_DISTANCE);
+      out.putVarint(c.getID());
+      putPoints(out, index, c, dc.a, dc.b);
+      out.putDouble(dc.d.getValue());
+    } else if (c instanceof LocationConstraint) {
+      LocationConstraint lc = (LocationConstraint) c;
+      out.putByte(TAG_PIN);
+      out.putVarint(c.getID());
+      putPoints(out, index, c, lc.p, lc.target);
+    } else if (c instanceof OrientationConstraint) {
+      OrientationConstraint oc = (OrientationConstraint) c;
+      out.putByte(TAG_ORIENTATION);
+      out.putVarint(c.getID());
+      putPoints(out, index, c, oc.lineA1, oc.lineA2, oc.lineB1, oc.lineB2);
+      out.putDouble(oc.angle.getValue());
+    } else if (c instanceof PointAsLineParamConstraint) {
+      PointAsLineParamConstraint pc = (PointAsLineParamConstraint) c;
+      out.putByte(TAG_POINT_AS_LINE_PARAM);
+      out.putVarint(c.getID());
+      putPoints(out, index, c, pc.lineA, pc.lineB, pc.target);
+      out.putDouble(pc.dist.getValue());
+    } else if (c instanceof PointOnLineConstraint) {
+      PointOnLineConstraint pc = (PointOnLineConstraint) c;
+      out.putByte(TAG_POINT_ON_LINE);
+      out.putVarint(c.getID());
+      out.putVarint(pc.manyPoints.size());
+      putPoints(out, index, c, pc.manyPoints.toArray(new Pt[0]));
+    } else {
+      throw new IOException("No binary form for constraint type: " + c.getType());
+    }
+  }
+
+  private void putPoints(Out out, Map<Pt, Integer> index, Constraint c, Pt... pts)
+      throws IOException {
+    for (Pt pt : pts) {
+      Integer which = index.get(pt);
+      if (which == null) {
+        throw new IOException(c.getType() + " constraint " + c.getID()
+            + " involves a point that isn't in the variable bank");
+      }
+      out.putVarint(which);
+    }
+  }
+
+  private Constraint readConstraint(In in, List<Pt> points) throws IOException {
+    Constraint ret;
+    int tag = in.getByte();
+    int id = in.getVarint();
+    switch (tag) {
+      case TAG_ANGLE:
+        AngleConstraint ac = new AngleConstraint(id);
+        ac.a = getPoint(in, points);
+        ac.f = getPoint(in, points);
+        ac.b = getPoint(in, points);
+        ac.angle = new NumericValue(in.getDouble());
+        ret = ac;
+        break;
+      case TAG_DISTANCE:
+        DistanceConstraint dc = new DistanceConstraint(id);
+        dc.a = getPoint(in, points);
+        dc.b = getPoint(in, points);
+        dc.d = new NumericValue(in.getDouble());
+        ret = dc;
+        break;
+      case TAG_PIN:
+        LocationConstraint lc = new LocationConstraint(id);
+        lc.p = getPoint(in, points);
+        lc.target = getPoint(in, points);
+        ret = lc;
+        break;
+      case TAG_ORIENTATION:
+        OrientationConstraint oc = new OrientationConstraint(id);
+        oc.lineA1 = getPoint(in, points);
+        oc.lineA2 = getPoint(in, points);
+        oc.lineB1 = getPoint(in, points);
+        oc.lineB2 = getPoint(in, points);
+        oc.angle = new NumericValue(in.getDouble());
+        ret = oc;
+        break;
+      case TAG_POINT_AS_LINE_PARAM:
+        PointAsLineParamConstraint pc = new PointAsLineParamConstraint(id);
+        pc.lineA = getPoint(in, points);
+        pc.lineB = getPoint(in, points);
+        pc.target = getPoint(in, points);
+        pc.dist = new NumericValue(in.getDouble());
+        ret = pc;
+        break;
+      case TAG_POINT_ON_LINE:
+        PointOnLineConstraint plc = new PointOnLineConstraint(id);
+        int n = in.getVarint();
+        Set<Pt> many = new HashSet<Pt>();
+        for (int i = 0; i < n; i++) {
+          many.add(getPoint(in, points));
+        }
+        plc.manyPoints = many;
+        plc.makeAntipodes();
+        ret = plc;
+        break;
+      default:
+        throw new IOException("Unknown constraint type tag in snapshot: " + tag);
+    }
+    return ret;
+  }
+
+  private Pt getPoint(In in, List<Pt> points) throws IOException {
+    int which = in.getVarint();
+    if (which >= points.size()) {
+      throw new IOException("Point index out of range in snapshot: " + which);
+    }
+    return points.get(which);
+  }
+
+  /**
+   * Writes through a buffer, handing it to the channel whenever it fills up.
+   */
+  private static class Out {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+    Out(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    private void room(int n) throws IOException {
+      if (buf.remaining() < n) {
+        drain();
+      }
+    }
+
+    private void drain() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+      buf.clear();
+    }
+
+    void flush() throws IOException {
+      drain();
+    }
+
+    void putByte(int b) throws IOException {
+      room(1);
+      buf.put((byte) b);
+    }
+
+    void putInt(int v) throws IOException {
+      room(4);
+      buf.putInt(v);
+    }
+
+    void putDouble(double v) throws IOException {
+      room(8);
+      buf.putDouble(v);
+    }
+
+    void putVarint(int v) throws IOException {
+      putVarlong(v & 0xffffffffL);
+    }
+
+    void putVarlong(long v) throws IOException {
+      room(10);
+      while ((v & ~0x7fL) != 0) {
+        buf.put((byte) ((v & 0x7f) | 0x80));
+        v = v >>> 7;
+      }
+      buf.put((byte) v);
+    }
+
+    void putString(String s) throws IOException {
+      if (s == null) {
+        putVarint(0);
+      } else {
+        byte[] bytes = s.getBytes(UTF8);
+        putVarint(bytes.length + 1);
+        int done = 0;
+        while (done < bytes.length) {
+          room(1);
+          int n = Math.min(buf.remaining(), bytes.length - done);
+          buf.put(bytes, done, n);
+          done = done + n;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads through a buffer, topping it up from the channel whenever it runs low.
+   */
+  private static class In {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+    In(ReadableByteChannel channel) {
+      this.channel = channel;
+      buf.flip(); // empty, ready for reading
+    }
+
+    private void need(int n) throws IOException {
+      if (buf.remaining() < n) {
+        buf.compact();
+        while (buf.position() < n) {
+          if (channel.read(buf) < 0) {
+            throw new EOFException("Snapshot ends early");
+          }
+        }
+        buf.flip();
+      }
+    }
+
+    int getByte() throws IOException {
+      need(1);
+      return buf.get() & 0xff;
+    }
+
+    int getInt() throws IOException {
+      need(4);
+      return buf.getInt();
+    }
+
+    double getDouble() throws IOException {
+      need(8);
+      return buf.getDouble();
+    }
+
+    int getVarint() throws IOException {
+      long v = getVarlong();
+      if (v > Integer.MAX_VALUE) {
+        throw new IOException("Number too big in snapshot: " + v);
+      }
+      return (int) v;
+    }
+
+    long getVarlong() throws IOException {
+      long ret = 0;
+      int shift = 0;
+      int b;
+      do {
+        if (shift > 63) {
+          throw new IOException("Malformed varint in snapshot");
+        }
+        b = getByte();
+        ret = ret | ((long) (b & 0x7f) << shift);
+        shift = shift + 7;
+      } while ((b & 0x80) != 0);
+      return ret;
+    }
+
+    String getString() throws IOException {
+      int n = getVarint();
+      String ret = null;
+      if (n > 0) {
+        byte[] bytes = new byte[n - 1];
+        int done = 0;
+        while (done < bytes.length) {
+          need(1);
+          int chunk = Math.min(buf.remaining(), bytes.length - done);
+          buf.get(bytes, done, chunk);
+          done = done + chunk;
+        }
+        ret = new String(bytes, UTF8);
+      }
+      return ret;
+    }
+  }
+}
@@ -1,7 +1,6 @@
 package org.six11.util.solve;
 
 import java.util.Collection;
-import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -24,6 +23,8 @@ public abstract class Constraint {
   }
 
   StringBuffer messages;
+  SolverState solverState; // set by the solver before each accumulateCorrection
+  CorrectionLog correctionLog; // set instead during a parallel step
   protected String secretName;
   protected double lastKnownError;
   protected final int id;
@@ -46,6 +47,15 @@ public abstract class Constraint {
     this.id = jsonID;
   }
 
+  /**
+   * Creates a constraint with a predetermined ID and nothing else. BinaryIO uses this and then
+   * fills in the fields itself.
+   */
+  Constraint(int id) {
+    this.messages = new StringBuffer();
+    this.id = id;
+  }
+
   public String getSecretName() {
     return secretName;
   }
@@ -80,6 +90,24 @@ public abstract class Constraint {
     return ret;
   }
 
+  /**
+   * Same as countPinned(Pt...), without making an array. Constraints call this every step.
+   */
+  public static int countPinned(Pt a, Pt b) {
+    int ret = 0;
+    if (isPinned(a)) {
+      ret++;
+    }
+    if (isPinned(b)) {
+      ret++;
+    }
+    return ret;
+  }
+
+  public static int countPinned(Pt a, Pt b, Pt c) {
+    return countPinned(a, b) + (isPinned(c) ? 1 : 0);
+  }
+
   public static int countPinned(Collection<Pt> somePoints) {
     int ret = 0;
     for (Pt pt : somePoints) {
@@ -105,6 +133,25 @@ public abstract class Constraint {
 
   public abstract double measureError();
 
+  /**
+   * Writes the partial derivatives of measureError() with respect to the given point's x and y
+   * into out[0] and out[1], and returns true. The point is one of getRelatedPoints(). Constraints
+   * that don't know their derivatives return false (this does), and the least squares solver
+   * estimates them instead.
+   */
+  public boolean getErrorGradient(Pt pt, double[] out) {
+    return false;
+  }
+
+  /**
+   * Returns true if accumulateCorrection only reads point locations and reports its corrections
+   * through accumulate, so it can run at the same time as other constraints. A constraint that
+   * moves points itself must return false; the solver then steps sequentially.
+   */
+  public boolean canAccumulateInParallel() {
+    return true;
+  }
+
   public void resetLastError() {
     this.lastKnownError = Double.MAX_VALUE;
   }
@@ -137,26 +184,38 @@ public abstract class Constraint {
   }
 
   public Vec accumulate(Pt pt, Vec correction, double heat) {
+    accumulate(pt, correction.getX(), correction.getY());
+    return correction;
+  }
+
+  /**
+   * Adds (dx, dy) to the correction the solver will apply to the point at the end of this step.
+   */
+  protected void accumulate(Pt pt, double dx, double dy) {
     if (isPinned(pt)) {
       bug("Warning: you are adding a correction vector to point " + pt.getString("name")
           + ", but it is pinned. Constraint type: " + getType());
     }
-    boolean add = true;
-//    if (detectOscillation()) {
-//      if (entropy.getBoolean()) {
-//        Vec correction2 = new Vec(correction.getX() * entropy.getDouble(2 * heat),
-//            correction.getY() * entropy.getDouble(2 * heat));
-//        correction = correction2;
-//      } else {
-//        add = false;
-//      }
-//    }
-    if (add) {
-      @SuppressWarnings("unchecked")
-      List<Vec> corrections = (List<Vec>) pt.getAttribute(ConstraintSolver.ACCUM_CORRECTION);
-      corrections.add(correction);
+    if (correctionLog != null) {
+      correctionLog.add(pt, dx, dy);
+    } else if (solverState != null) {
+      solverState.add(pt, dx, dy);
     }
-    return correction;
+  }
+
+  /**
+   * Accumulates the correction that would rotate the point about (pivotX, pivotY) by the given
+   * angle, as Functions.rotatePointAboutPivot does. Returns the length of that correction.
+   */
+  protected double accumulateRotation(Pt pt, double pivotX, double pivotY, double radians) {
+    double cos = Math.cos(radians);
+    double sin = Math.sin(radians);
+    double rx = pt.x - pivotX;
+    double ry = pt.y - pivotY;
+    double dx = (pivotX + rx * cos - ry * sin) - pt.x;
+    double dy = (pivotY + rx * sin + ry * cos) - pt.y;
+    accumulate(pt, dx, dy);
+    return Math.sqrt(dx * dx + dy * dy);
   }
 
   public abstract void draw(DrawingBuffer buf);
@@ -6,16 +6,24 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.six11.util.Debug;
 import org.six11.util.args.Arguments;
 import org.six11.util.data.Statistics;
 import org.six11.util.pen.Entropy;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 import static org.six11.util.Debug.bug;
 import static java.lang.Math.max;
@@ -32,14 +40,53 @@ public class ConstraintSolver {
         int numConstraints);
   }
 
+  /**
+   * Receives SolverMetrics as the solver works (see addMetricsListener). The record passed in is
+   * reused after this returns.
+   */
+  public static interface MetricsListener {
+    public void metricsReady(SolverMetrics metrics);
+  }
+
   public static enum State {
     Solved, Unsatisfied, Working;
   }
 
-  public static final String ACCUM_CORRECTION = "accumulated correction";
-  public static final String LAST_SOLVER_ADJUSTMENT_VEC = "last solver adjustment";
+  /**
+   * The ways solve() can work on a system. Relaxation is the heat-based scheme the background loop
+   * uses: every constraint nudges its points, and the nudges are averaged and applied a random
+   * fraction at a time. LeastSquares runs Levenberg-Marquardt on the constraint errors, which
+   * takes far fewer iterations (see LevenbergMarquardt).
+   */
+  public static enum Method {
+    Relaxation, LeastSquares;
+  }
+
   private static final double MIN_ACCPETABLE_ERROR = 0.0001;
-  private static final String LAST_SOLVER_DESIRED_ADJUSTMENT_VEC = "last desired solver adjustment";
+
+  /**
+   * The heat solveAfterMove() starts with. The system was already solved, so there's no need to
+   * shake it as hard as a fresh solve does, but it has to stay above HEAT_SINGLE_TARGET_THRESHOLD
+   * for all the affected constraints to move at once.
+   */
+  private static final double WARM_START_HEAT = 0.5;
+
+  /**
+   * How many relaxation steps solveAfterMove() takes before deciding it needs more constraints.
+   */
+  private static final int ROUND_STEPS = 40;
+
+  /**
+   * Steps over at least this many constraints gather their corrections in parallel, if an
+   * executor has been given with setExecutor().
+   */
+  public static final int PARALLEL_THRESHOLD = 200;
+
+  /**
+   * Spaces out the seeds of the components' random sources in solve(). An odd constant with well
+   * mixed bits, so neighboring components don't get nearly equal seeds.
+   */
+  private static final long SEED_SPREAD = 0x9E3779B97F4A7C15L;
 
   /**
    * When the heat value is above this threshold, each step() will move ALL points. Below this
@@ -47,6 +94,104 @@ public class ConstraintSolver {
    */
   private static final double HEAT_SINGLE_TARGET_THRESHOLD = 0.3;
 
+  /**
+   * The outcome of solve(): Solved if the residual got down to the tolerance (otherwise
+   * Unsatisfied), how many steps were taken, the residual of the last step, how long it took, and
+   * the error of each constraint at the end.
+   */
+  public static class Result {
+    private final State state;
+    private final int iterations;
+    private final double residual;
+    private final long elapsedNanos;
+    private final Map<Constraint, Double> errors;
+
+    Result(State state, int iterations, double residual, long elapsedNanos,
+        Map<Constraint, Double> errors) {
+      this.state = state;
+      this.iterations = iterations;
+      this.residual = residual;
+      this.elapsedNanos = elapsedNanos;
+      this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    public boolean isSolved() {
+      return state == State.Solved;
+    }
+
+    public int getIterations() {
+      return iterations;
+    }
+
+    public double getResidual() {
+      return residual;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * Returns each constraint's measureError() when solving stopped, in the solver's order.
+     */
+    public Map<Constraint, Double> getErrors() {
+      return errors;
+    }
+
+    /**
+     * Returns the sum of the absolute constraint errors.
+     */
+    public double getTotalError() {
+      double ret = 0;
+      for (double e : errors.values()) {
+        ret += Math.abs(e);
+      }
+      return ret;
+    }
+
+    public String toString() {
+      return state + " after " + iterations + " steps (residual " + residual + ", "
+          + (elapsedNanos / 1000000.0) + " ms)";
+    }
+  }
+
+  /**
+   * The heat schedule. Heat starts at 1 and is lowered a little whenever the mean error of the last
+   * few steps is not at least 5% better than the mean of the few before.
+   */
+  private static class Cooling {
+    private static final int SAMPLE_N = 10;
+    private static final double HEAT_STEP = -0.001;
+
+    double heat = 1.0;
+    private Statistics errorStats;
+    private double prevRunningErrorMean = 0;
+
+    Cooling() {
+      errorStats = new Statistics();
+      errorStats.setMaximumN(SAMPLE_N);
+    }
+
+    void update(double e, int numIterations) {
+      errorStats.addData(e);
+      if (errorStats.getN() == SAMPLE_N && (numIterations % SAMPLE_N == 0)) {
+        double thisRunningErrorMean = errorStats.getMean();
+        if (prevRunningErrorMean > 0) {
+          double improvementRatio = (thisRunningErrorMean / prevRunningErrorMean);
+          if (improvementRatio > 0.95) { // if we not improving,
+            heat = heat + HEAT_STEP; // cool down a little bit.
+          }
+        }
+        prevRunningErrorMean = thisRunningErrorMean;
+      }
+      heat = max(0.1, heat);
+    }
+  }
+
   private List<Listener> stepListeners;
   private TestSolveUI ui = null;
   protected String msg = null;
@@ -60,8 +205,15 @@ public class ConstraintSolver {
   private boolean paused;
   private boolean shouldPrintToFile;
   private File debuggingFile;
-  private FileWriter debuggingFileWriter;
+  private BufferedWriter debuggingFileWriter;
+  private StringBuilder debuggingLine;
   private Entropy entropy;
+  private SolverState solverState;
+  private SolverState dragState;
+  private ExecutorService executor;
+  private Method method = Method.Relaxation;
+  private CorrectionLog[] correctionLogs;
+  private Telemetry telemetry;
 
   public static void main(String[] in) throws Exception {
     new ConstraintSolver(in);
@@ -91,6 +243,11 @@ public class ConstraintSolver {
     this.stepListeners = new ArrayList<Listener>();
     this.buf = new StringBuilder();
     this.entropy = Entropy.getEntropy();
+    this.solverState = new SolverState();
+    this.dragState = new SolverState();
+    this.correctionLogs = new CorrectionLog[0];
+    this.telemetry = new Telemetry();
+    this.debuggingLine = new StringBuilder();
   }
 
   public void setFrameRate(int frameRate) {
@@ -101,6 +258,29 @@ public class ConstraintSolver {
     return fps;
   }
 
+  /**
+   * Supplies the executor used to gather corrections in parallel for steps over at least
+   * PARALLEL_THRESHOLD constraints. The solver doesn't shut it down. With no executor (the
+   * default) every step is sequential. Parallel steps give exactly the same result as sequential
+   * ones.
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Chooses how solve() works. The default is Relaxation. With LeastSquares, solve()'s tolerance is
+   * compared with the sum of the absolute constraint errors of each component, and the background
+   * loop is not affected.
+   */
+  public void setMethod(Method method) {
+    this.method = method;
+  }
+
+  public Method getMethod() {
+    return method;
+  }
+
   public void setDebugOut(boolean v) {
     this.debugOutput = v;
   }
@@ -123,6 +303,22 @@ public class ConstraintSolver {
     stepListeners.remove(lis);
   }
 
+  /**
+   * Asks for metrics every period iterations, from the background loop, solve() and
+   * solveAfterMove(), with either method. If aggregate is false the listener gets every
+   * period-th iteration by itself; if true it gets the period iterations added together, plus
+   * whatever is left over when each solve ends (so Integer.MAX_VALUE gives one record per solve).
+   * Adding a listener again replaces its old period. Iterations no listener wants cost nothing,
+   * and with no metrics listeners the solver does no extra work at all.
+   */
+  public void addMetricsListener(MetricsListener lis, int period, boolean aggregate) {
+    telemetry.add(lis, period, aggregate);
+  }
+
+  public void removeMetricsListener(MetricsListener lis) {
+    telemetry.remove(lis);
+  }
+
   protected void fire() {
     for (Listener lis : stepListeners) {
       lis.constraintStepDone(currentState, numIterations, residual, vars.getPoints().size(), vars
@@ -157,25 +353,27 @@ public class ConstraintSolver {
       naptime = 0;
     }
     double prevError = Double.MAX_VALUE;
-    double heat = 1.0;
-    double heatStep = -0.001;
+    Cooling cooling = new Cooling();
     numIterations = 0;
-    Statistics errorStats = new Statistics();
-    int sampleStatsN = 10;
-    errorStats.setMaximumN(sampleStatsN);
-    double prevRunningErrorMean = 0;
     while (true) {
       synchronized (monitor) {
         try {
-          if (paused || finished) {
+          while (paused || finished) { // a wakeUp() while paused must not start a step
             prevError = Double.MAX_VALUE;
-            heat = 1.0;
+            cooling.heat = 1.0;
             residual = Double.MAX_VALUE;
+            telemetry.flush();
+            flushFileDebug();
             monitor.wait();
             numIterations = 0;
           }
-          double e = step(prevError, heat);
+          long began = telemetry.isOn() ? System.nanoTime() : 0;
+          double e = step(prevError, cooling.heat);
           numIterations = numIterations + 1;
+          if (telemetry.isOn()) {
+            telemetry.iterationDone(numIterations, vars.getConstraints(), null, e, cooling.heat,
+                System.nanoTime() - began);
+          }
           if (debugOutput && debugOutWriter != null) {
             try {
               debugOutWriter.flush();
@@ -183,24 +381,9 @@ public class ConstraintSolver {
               ex.printStackTrace();
             }
           }
-          errorStats.addData(e);
-          if (errorStats.getN() == sampleStatsN && (numIterations % sampleStatsN == 0)) {
-            double thisRunningErrorMean = errorStats.getMean();
-            if (prevRunningErrorMean > 0) {
-              double improvementRatio = (thisRunningErrorMean / prevRunningErrorMean);
-              if (improvementRatio > 0.95) { // if we not improving,
-                heat = heat + heatStep; // cool down a little bit.
-              }
-            }
-            prevRunningErrorMean = thisRunningErrorMean;
-          }
+          cooling.update(e, numIterations);
           prevError = e;
-          //          heat = heat + heatStep;
-          if (heat < HEAT_SINGLE_TARGET_THRESHOLD && heat - heatStep > HEAT_SINGLE_TARGET_THRESHOLD) {
-            bug("Cold :(");
-          }
-          heat = max(0.1, heat);
-          printDebug(heat);
+          printDebug(cooling.heat);
           if (!finished) {
             currentState = State.Working;
           }
@@ -224,70 +407,423 @@ public class ConstraintSolver {
     }
   }
 
-  private void printDebug(double heat) {
-    if (shouldPrintToFile && debuggingFileWriter != null) {
-      //      if (false) {
-      //        // numIterations totalError heat c1name c1numPoints c1err ...
-      //        StringBuilder buf = new StringBuilder();
-      //        buf.append(String.format("%d\t%.6f\t%1.6f\t", numIterations, residual, heat));
-      //        for (int i = 0; i < vars.getConstraints().size(); i++) {
-      //          Constraint c = vars.getConstraints().get(i);
-      //          String dashedType = c.getType().replaceAll(" ", "-");
-      //          buf.append(String.format("%s\t%d\t%2.6f\t", dashedType, c.getRelatedPoints().length,
-      //              Math.abs(c.measureError())));
-      //        }
-      //        buf.append("\n");
-      //        try {
-      //          debuggingFileWriter.append(buf.toString());
-      //          debuggingFileWriter.flush();
-      //        } catch (IOException ex) {
-      //          ex.printStackTrace();
-      //          bug("Got exception when writing debug file. I will stop debugging now.");
-      //          shouldPrintToFile = false;
-      //        }
-      //      }
-      if (true) {
-        // numIterations totalError p1LastMove p2LastMove ...
-        StringBuilder buf = new StringBuilder();
-        if (numIterations == 1) {
-          buf.append("# col = " + vars.getPoints().size() + "\n");
-          buf.append("# plot for [i=2:col] 'file.dat' using 1:i with lines title column(i)\n");
-          buf.append("Step\tTotalError");
-          for (Pt pt : vars.getPoints()) {
-            buf.append("\t" + pt.getString("name"));
+  /**
+   * Solves the current system right here, on the calling thread: steps are run back to back, with
+   * no frame rate, no listeners and no UI updates, until the residual (the total correction the
+   * step wanted to make) is at most tolerance, or maxIterations steps have been taken, or
+   * timeBudgetMillis has passed. A limit of zero or less means no limit, but give at least one.
+   * The heat schedule is the same one the background thread uses.
+   * 
+   * Each component of the system (see VariableBank.getComponents) is solved by itself, with its
+   * own heat, so one stubborn shape doesn't hold up the others. The tolerance and the iteration
+   * limit apply to each component, and the returned iteration count is the most any component
+   * took. A component that was solved by an earlier call, and whose points haven't moved or changed
+   * since, is skipped. If there is an executor (see setExecutor) and more than one component needs
+   * work, the components are solved in parallel. Each component draws its random step sizes from
+   * its own source, seeded from the solver's Entropy and the component's position, so with a seeded
+   * Entropy the answer is the same whether or not the components run in parallel.
+   * 
+   * This holds the same lock as the background loop, so it is safe to call while
+   * runInBackground() is waiting for work, but the two shouldn't be used on the same system at the
+   * same time.
+   */
+  public Result solve(final int maxIterations, final double tolerance, long timeBudgetMillis) {
+    if (maxIterations <= 0 && timeBudgetMillis <= 0) {
+      throw new IllegalArgumentException("solve() needs an iteration limit or a time budget");
+    }
+    Result ret;
+    synchronized (monitor) {
+      long start = System.nanoTime();
+      final long deadline = (timeBudgetMillis > 0) ? start + timeBudgetMillis * 1000000L : 0;
+      List<VariableBank.Component> work = new ArrayList<VariableBank.Component>();
+      // each component gets its own random source, seeded from one shared draw and its position,
+      // so the result doesn't depend on how the threads are scheduled.
+      long seed = entropy.getLong();
+      int position = 0;
+      for (VariableBank.Component comp : vars.getComponents()) {
+        if (comp.getConstraints().size() > 0 && !isStillSolved(comp, tolerance)) {
+          comp.state.random = new Random(seed + SEED_SPREAD * position);
+          work.add(comp);
+        }
+        position++;
+      }
+      int iterations = 0;
+      if (executor != null && work.size() > 1) {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (final VariableBank.Component comp : work) {
+          results.add(executor.submit(new Callable<Integer>() {
+            public Integer call() {
+              return solve(comp, maxIterations, tolerance, deadline, false);
+            }
+          }));
+        }
+        try {
+          for (Future<Integer> result : results) {
+            iterations = Math.max(iterations, result.get());
           }
-          buf.append("\n");
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted while solving", ex);
+        } catch (ExecutionException ex) {
+          throw new RuntimeException("Error while solving", ex.getCause());
         }
-        buf.append(numIterations + "\t" + residual + "\t");
-        for (int i = 0; i < vars.getPoints().size(); i++) { //
-          Pt pt = vars.getPoints().get(i);
-          Vec delta = (Vec) pt.getAttribute(LAST_SOLVER_ADJUSTMENT_VEC);
-          if (delta != null) {
-            buf.append("\t" + delta.mag());
-          } else {
-            buf.append("0");
+      } else {
+        for (VariableBank.Component comp : work) {
+          iterations = Math.max(iterations, solve(comp, maxIterations, tolerance, deadline, true));
+        }
+      }
+      boolean converged = true;
+      double total = 0;
+      for (VariableBank.Component comp : vars.getComponents()) {
+        if (comp.getConstraints().size() > 0) {
+          converged = converged && comp.solvedAt != null;
+          total = total + comp.residual;
+        }
+      }
+      residual = total;
+      numIterations = iterations;
+      telemetry.flush();
+      finished = true; // so a background loop doesn't pick up where this left off
+      currentState = converged ? State.Solved : State.Unsatisfied;
+      Map<Constraint, Double> errors = new LinkedHashMap<Constraint, Double>();
+      for (Constraint c : vars.getConstraints()) {
+        errors.put(c, c.measureError());
+      }
+      ret = new Result(currentState, iterations, residual, System.nanoTime() - start, errors);
+    }
+    return ret;
+  }
+
+  /**
+   * Moves one point to (x, y) (say, because the user dragged it) and re-solves, starting from where
+   * everything is now rather than from scratch. The move and the re-solve happen under the same
+   * lock the background loop steps under, so the loop can't step between them or see the point
+   * half moved. The moved point is held still, and the work starts
+   * with just the constraints involving it. The points those constraints share with the rest of
+   * the system are held still too, so nothing outside is disturbed. If the constraints being
+   * worked on can't get back to the errors they had before the move (their cached
+   * Constraint.lastKnownError values, plus tolerance), the next ring of constraints around them
+   * joins in, and so on. Usually the change is absorbed close to the moved point and the rest of
+   * a large drawing is never touched.
+   * 
+   * Limits mean the same as in solve(), and the current method is used. The result's residual is
+   * the total error of the constraints that were worked on, and its errors cover only those.
+   * This assumes the rest of the system was solved (or solveAfterMove'd) beforehand and that only
+   * this point has moved since.
+   */
+  public Result solveAfterMove(Pt moved, double x, double y, int maxIterations, double tolerance,
+      long timeBudgetMillis) {
+    Result ret;
+    synchronized (monitor) {
+      moved.setLocation(x, y);
+      ret = solveAfterMove(moved, maxIterations, tolerance, timeBudgetMillis);
+    }
+    return ret;
+  }
+
+  /**
+   * See solveAfterMove(Pt, double, double, int, double, long). This version is for a point that
+   * has already been moved; if a background loop is running on this system, move it with the
+   * other version (or pause the loop first) so the loop can't step in the middle of the move.
+   */
+  public Result solveAfterMove(Pt moved, int maxIterations, double tolerance,
+      long timeBudgetMillis) {
+    if (maxIterations <= 0 && timeBudgetMillis <= 0) {
+      throw new IllegalArgumentException("solveAfterMove() needs an iteration limit or a budget");
+    }
+    Result ret;
+    synchronized (monitor) {
+      long start = System.nanoTime();
+      long deadline = (timeBudgetMillis > 0) ? start + timeBudgetMillis * 1000000L : 0;
+      VariableBank.Component comp = vars.getComponent(moved);
+      List<Constraint> constraints = new ArrayList<Constraint>();
+      Set<Constraint> working = new HashSet<Constraint>();
+      int iterations = 0;
+      boolean converged = true;
+      double total = 0;
+      if (comp != null) {
+        double target = tolerance;
+        for (Constraint c : comp.getConstraintsInvolving(moved)) {
+          constraints.add(c);
+          working.add(c);
+          target = target + Math.abs(c.lastKnownError);
+        }
+        converged = false;
+        while (!converged) {
+          if (maxIterations > 0 && iterations >= maxIterations) {
+            break;
+          }
+          if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+            break;
+          }
+          // hold the moved point and the points on the edge of the working set
+          List<Pt> points = new ArrayList<Pt>();
+          List<Pt> held = new ArrayList<Pt>();
+          Set<Pt> seen = Collections.newSetFromMap(new IdentityHashMap<Pt, Boolean>());
+          for (Constraint c : constraints) {
+            for (Pt pt : c.getRelatedPoints()) {
+              if (vars.getComponent(pt) == comp && seen.add(pt)) {
+                points.add(pt);
+                if (pt == moved || !working.containsAll(comp.getConstraintsInvolving(pt))) {
+                  held.add(pt);
+                }
+              }
+            }
+          }
+          boolean[] wasPinned = new boolean[held.size()];
+          for (int i = 0; i < held.size(); i++) {
+            wasPinned[i] = Constraint.isPinned(held.get(i));
+            Constraint.setPinned(held.get(i), true);
           }
+          try {
+            int left = (maxIterations > 0) ? maxIterations - iterations : 0;
+            iterations = iterations + workOn(points, constraints, left, target, deadline);
+          } finally {
+            for (int i = 0; i < held.size(); i++) {
+              Constraint.setPinned(held.get(i), wasPinned[i]);
+            }
+          }
+          total = 0;
+          for (Constraint c : constraints) {
+            total = total + Math.abs(c.measureError());
+          }
+          converged = (total <= target);
+          if (!converged) {
+            // bring in the next ring of constraints, around the held points
+            for (Pt pt : held) {
+              for (Constraint c : comp.getConstraintsInvolving(pt)) {
+                if (working.add(c)) {
+                  constraints.add(c);
+                  target = target + Math.abs(c.lastKnownError);
+                }
+              }
+            }
+          }
+        }
+        for (Constraint c : constraints) {
+          c.pushLastError();
+        }
+        comp.solvedAt = null;
+      }
+      residual = total;
+      numIterations = iterations;
+      telemetry.flush();
+      finished = true;
+      currentState = converged ? State.Solved : State.Unsatisfied;
+      Map<Constraint, Double> errors = new LinkedHashMap<Constraint, Double>();
+      for (Constraint c : constraints) {
+        errors.put(c, c.measureError());
+      }
+      ret = new Result(currentState, iterations, residual, System.nanoTime() - start, errors);
+    }
+    return ret;
+  }
+
+  /**
+   * One round of solveAfterMove(): works on the given constraints until their total error is at
+   * most target, or it seems more constraints are needed, or a limit is reached. Returns the
+   * number of iterations used.
+   */
+  private int workOn(List<Pt> points, List<Constraint> constraints, int maxIterations,
+      double target, long deadline) {
+    int ret = 0;
+    if (method == Method.LeastSquares) {
+      LevenbergMarquardt lm = new LevenbergMarquardt(points, constraints);
+      lm.setTelemetry(telemetry);
+      ret = lm.solve(maxIterations, target, deadline);
+    } else {
+      Cooling cooling = new Cooling();
+      cooling.heat = WARM_START_HEAT;
+      boolean done = false;
+      while (!done && ret < ROUND_STEPS) {
+        if (maxIterations > 0 && ret >= maxIterations) {
+          break;
+        }
+        if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+          break;
         }
-        buf.append("\n");
+        double e = Double.MAX_VALUE;
+        long began = telemetry.isOn() ? System.nanoTime() : 0;
         try {
-          debuggingFileWriter.append(buf.toString());
-          debuggingFileWriter.flush();
-        } catch (IOException ex) {
-          ex.printStackTrace();
-          bug("Got exception when writing debug file. I will stop debugging now.");
-          shouldPrintToFile = false;
+          e = step(points, constraints, dragState, cooling.heat, true);
+        } catch (Exception ex) {
+          // as in the other steps
+        }
+        ret = ret + 1;
+        if (telemetry.isOn()) {
+          telemetry.iterationDone(ret, constraints, null, e, cooling.heat, System.nanoTime()
+              - began);
+        }
+        cooling.update(e, ret);
+        double sum = 0;
+        for (Constraint c : constraints) {
+          sum = sum + Math.abs(c.measureError());
+        }
+        done = (sum <= target);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Works on one component until it converges or runs out of iterations or time (a deadline of
+   * zero means none), and returns how many iterations it took. If it converged, the locations of
+   * its points are remembered so later solves can skip it.
+   */
+  private int solve(VariableBank.Component comp, int maxIterations, double tolerance,
+      long deadline, boolean alone) {
+    List<Pt> points = comp.getPoints();
+    List<Constraint> constraints = comp.getConstraints();
+    int iterations;
+    if (method == Method.LeastSquares) {
+      LevenbergMarquardt lm = new LevenbergMarquardt(points, constraints);
+      lm.setTelemetry(telemetry);
+      iterations = lm.solve(maxIterations, tolerance, deadline);
+      comp.residual = lm.getTotalError();
+    } else {
+      iterations = relax(comp, maxIterations, tolerance, deadline, alone);
+    }
+    comp.solvedAt = null;
+    if (comp.residual <= tolerance) {
+      comp.solvedAt = new double[points.size() * 2];
+      for (int i = 0; i < points.size(); i++) {
+        comp.solvedAt[2 * i] = points.get(i).x;
+        comp.solvedAt[2 * i + 1] = points.get(i).y;
+      }
+    }
+    for (Constraint c : constraints) {
+      c.pushLastError(); // solveAfterMove() and isStillSolved() go by these
+    }
+    return iterations;
+  }
+
+  /**
+   * Steps one component with the heat schedule until the residual is at most tolerance, and
+   * returns the number of steps taken.
+   */
+  private int relax(VariableBank.Component comp, int maxIterations, double tolerance,
+      long deadline, boolean alone) {
+    List<Pt> points = comp.getPoints();
+    List<Constraint> constraints = comp.getConstraints();
+    Cooling cooling = new Cooling();
+    double prevError = Double.MAX_VALUE;
+    int iterations = 0;
+    boolean converged = false;
+    comp.residual = Double.MAX_VALUE;
+    while (!converged) {
+      if (maxIterations > 0 && iterations >= maxIterations) {
+        break;
+      }
+      if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+        break;
+      }
+      if (debugOutput && alone) {
+        buf.setLength(0);
+      }
+      double e = Double.MAX_VALUE;
+      long began = telemetry.isOn() ? System.nanoTime() : 0;
+      try {
+        e = step(points, constraints, comp.state, cooling.heat, alone);
+      } catch (Exception ex) {
+        // same as the other step: a failed step just doesn't count as progress.
+      }
+      if (debugOutput && alone) {
+        printStepDebug(prevError, e, cooling.heat);
+      }
+      iterations = iterations + 1;
+      if (telemetry.isOn()) {
+        telemetry.iterationDone(iterations, constraints, null, e, cooling.heat, System.nanoTime()
+            - began);
+      }
+      comp.residual = e;
+      converged = e <= tolerance;
+      cooling.update(e, iterations);
+      prevError = e;
+    }
+    return iterations;
+  }
+
+  /**
+   * Returns true if the component converged to within the given tolerance last time, and none of
+   * its points have moved and none of its constraints' errors have changed (say, because a target
+   * value was edited) since.
+   */
+  private boolean isStillSolved(VariableBank.Component comp, double tolerance) {
+    boolean ret = comp.solvedAt != null && comp.residual <= tolerance;
+    List<Pt> points = comp.getPoints();
+    for (int i = 0; ret && i < points.size(); i++) {
+      Pt pt = points.get(i);
+      ret = (comp.solvedAt[2 * i] == pt.x && comp.solvedAt[2 * i + 1] == pt.y);
+    }
+    List<Constraint> constraints = comp.getConstraints();
+    for (int i = 0; ret && i < constraints.size(); i++) {
+      ret = (constraints.get(i).lastKnownError == constraints.get(i).measureError());
+    }
+    return ret;
+  }
+
+  /**
+   * Writes one line of the per-point move file (see setFileDebug). The line is built in a reused
+   * buffer and the writer is buffered; it is flushed when the solver goes idle. For anything
+   * beyond plotting point moves, addMetricsListener is cheaper and more useful.
+   */
+  private void printDebug(double heat) {
+    if (shouldPrintToFile && debuggingFileWriter != null) {
+      // numIterations totalError p1LastMove p2LastMove ...
+      StringBuilder line = debuggingLine;
+      line.setLength(0);
+      if (numIterations == 1) {
+        line.append("# col = ").append(vars.getPoints().size()).append('\n');
+        line.append("# plot for [i=2:col] 'file.dat' using 1:i with lines title column(i)\n");
+        line.append("Step\tTotalError");
+        for (Pt pt : vars.getPoints()) {
+          line.append('\t').append(pt.getString("name"));
+        }
+        line.append('\n');
+      }
+      line.append(numIterations).append('\t').append(residual).append('\t');
+      for (int i = 0; i < vars.getPoints().size(); i++) {
+        line.append('\t');
+        if (i < solverState.size()) {
+          line.append(Math.hypot(solverState.moveX[i], solverState.moveY[i]));
+        } else {
+          line.append('0');
         }
       }
+      line.append('\n');
+      try {
+        debuggingFileWriter.append(line);
+      } catch (IOException ex) {
+        ex.printStackTrace();
+        bug("Got exception when writing debug file. I will stop debugging now.");
+        shouldPrintToFile = false;
+      }
+    }
+  }
+
+  private void flushFileDebug() {
+    if (shouldPrintToFile && debuggingFileWriter != null) {
+      try {
+        debuggingFileWriter.flush();
+      } catch (IOException ex) {
+        ex.printStackTrace();
+        bug("Got exception when writing debug file. I will stop debugging now.");
+        shouldPrintToFile = false;
+      }
     }
   }
 
+  /**
+   * Makes the background loop write how far each point moved in every step to the given file, as
+   * columns gnuplot can read.
+   */
   public void setFileDebug(File outfile) {
     try {
       if (debuggingFileWriter != null) { // close old one, if it exists
         debuggingFileWriter.close();
       }
       debuggingFile = outfile;
-      debuggingFileWriter = new FileWriter(debuggingFile);
+      debuggingFileWriter = new BufferedWriter(new FileWriter(debuggingFile));
       shouldPrintToFile = outfile != null;
       bug("Constraint solver is writing massive amounts of debugging information to "
           + outfile.getAbsolutePath());
@@ -306,32 +842,128 @@ public class ConstraintSolver {
     return sum;
   }
 
-  @SuppressWarnings("unchecked")
-  private double step(double prevError, double heat) {
+  private boolean shouldRunInParallel(List<Constraint> constraints) {
+    boolean ret = (executor != null && constraints.size() >= PARALLEL_THRESHOLD);
+    for (int i = 0; ret && i < constraints.size(); i++) {
+      ret = constraints.get(i).canAccumulateInParallel();
+    }
+    return ret;
+  }
+
+  /**
+   * Phase 2 of a step for big systems. The constraints are split into contiguous chunks, and each
+   * chunk runs on the executor, logging its corrections rather than adding them to the shared
+   * state. Once every chunk is done the logs are replayed in order, so each point's corrections are
+   * added up in the same order as a sequential step would.
+   */
+  private void accumulateInParallel(final List<Constraint> constraints, final SolverState state,
+      final double heat) throws Exception {
+    int chunks = Runtime.getRuntime().availableProcessors() * 2;
+    int chunkSize = (constraints.size() + chunks - 1) / chunks;
+    chunks = (constraints.size() + chunkSize - 1) / chunkSize;
+    if (correctionLogs.length < chunks) {
+      CorrectionLog[] bigger = new CorrectionLog[chunks];
+      System.arraycopy(correctionLogs, 0, bigger, 0, correctionLogs.length);
+      for (int k = correctionLogs.length; k < chunks; k++) {
+        bigger[k] = new CorrectionLog();
+      }
+      correctionLogs = bigger;
+    }
+    List<Future<?>> results = new ArrayList<Future<?>>();
+    for (int k = 0; k < chunks; k++) {
+      final CorrectionLog log = correctionLogs[k];
+      final int start = k * chunkSize;
+      final int end = Math.min(constraints.size(), start + chunkSize);
+      log.begin(state);
+      results.add(executor.submit(new Runnable() {
+        public void run() {
+          for (int i = start; i < end; i++) {
+            Constraint c = constraints.get(i);
+            c.solverState = state;
+            c.correctionLog = log;
+            try {
+              c.clearMessages();
+              c.accumulateCorrection(heat);
+              c.pushLastError();
+            } finally {
+              c.correctionLog = null;
+            }
+          }
+        }
+      }));
+    }
+    // wait for every chunk, even if one fails, so none is still running when the step ends.
+    Exception trouble = null;
+    for (Future<?> result : results) {
+      try {
+        result.get();
+      } catch (ExecutionException ex) {
+        if (trouble == null) {
+          trouble = ex;
+        }
+      }
+    }
+    if (trouble != null) {
+      throw trouble;
+    }
+    for (int k = 0; k < chunks; k++) {
+      correctionLogs[k].replay();
+    }
+  }
+
+  double step(double prevError, double heat) {
+    return step(prevError, heat, true);
+  }
+
+  private double step(double prevError, double heat, boolean notifyListeners) {
     if (debugOutput) {
       buf.setLength(0);
     }
     double totalError = 0;
     try {
-      // 1: clear any current correction values
-      for (Pt pt : vars.getPoints()) {
-        List<Vec> corrections = (List<Vec>) pt.getAttribute(ACCUM_CORRECTION);
-        if (corrections == null) {
-          pt.setAttribute(ACCUM_CORRECTION, new ArrayList<Vec>());
-          corrections = (List<Vec>) pt.getAttribute(ACCUM_CORRECTION);
-        }
-        corrections.clear();
+      totalError = step(vars.getPoints(), vars.getConstraints(), solverState, heat, true);
+      residual = totalError;
+      if (totalError < MIN_ACCPETABLE_ERROR || solverState.numStable == vars.getPoints().size()) {
+        finished = true;
+        currentState = State.Solved;
       }
+      if (notifyListeners) {
+        fire();
+      }
+    } catch (Exception ex) {
+      // and they say I have a software engineering background.
+    }
+    if (debugOutput) {
+      printStepDebug(prevError, totalError, heat);
+    }
+    return totalError;
+  }
 
-      // 2: poll all constraints and have them add correction vectors to each point
-      Constraint worst = null;
-      double worstError = 0;
-      for (Constraint c : vars.getConstraints()) {
+  /**
+   * Runs one step over the given points and constraints, which may be the whole system or just one
+   * component of it, and returns the total correction the constraints asked for. alone is false
+   * when other steps are running at the same time; otherwise, the step may gather corrections in
+   * parallel (if the system is big enough) and write to the debug buffer.
+   */
+  private double step(List<Pt> points, List<Constraint> constraints, SolverState state,
+      double heat, boolean alone) throws Exception {
+    double totalError = 0;
+
+    // 1: clear any current correction values
+    state.begin(points);
+
+    // 2: poll all constraints and have them add correction vectors to each point
+    Constraint worst = null;
+    double worstError = 0;
+    if (heat > HEAT_SINGLE_TARGET_THRESHOLD && alone && shouldRunInParallel(constraints)) {
+      accumulateInParallel(constraints, state, heat);
+    } else {
+      for (Constraint c : constraints) {
+        c.solverState = state;
         c.clearMessages();
         if (heat > HEAT_SINGLE_TARGET_THRESHOLD) {
           c.accumulateCorrection(heat);
         } else {
-          bug("moving just one");
           double e = c.measureError();
           if (Math.abs(e) > Math.abs(worstError)) {
             worst = c;
@@ -340,82 +972,82 @@ public class ConstraintSolver {
         }
         c.pushLastError();
       }
-      for (Constraint c : vars.getConstraints()) {
-        if (debugOutput) {
-          if (c == worst) {
-            buf.append("[" + String.format(f + "] ", c.measureError()));
-          } else {
-            buf.append(String.format(f + " ", c.measureError()));
-          }
+    }
+    if (debugOutput && alone) {
+      for (Constraint c : constraints) {
+        if (c == worst) {
+          buf.append("[" + String.format(f + "] ", c.measureError()));
+        } else {
+          buf.append(String.format(f + " ", c.measureError()));
         }
       }
-      if (worst != null) {
-        //        bug("Worst offender: " + worst);
-        worst.accumulateCorrection(heat);
-      }
+    }
+    if (worst != null) {
+      //        bug("Worst offender: " + worst);
+      worst.accumulateCorrection(heat);
+    }
 
-      // 3: now all points have some accumulated correction. sum them and update the point's location.
-      int numFinished = 0;
-      double biggestMove = 0;
-      for (Pt pt : vars.getPoints()) {
-        List<Vec> corrections = (List<Vec>) pt.getAttribute(ACCUM_CORRECTION);
-        pt.setBoolean("stable", corrections.size() == 0); // used by the UI
-        if (corrections.size() == 0) {
-          numFinished = numFinished + 1;
-        }
-        Vec delta = Vec.sum(corrections.toArray(new Vec[0]));
-        double mag = delta.mag();
-        biggestMove = max(biggestMove, mag);
-        totalError = totalError + mag;
-        pt.setAttribute(LAST_SOLVER_DESIRED_ADJUSTMENT_VEC, delta);
-      }
-      double biggestActualMove = 0;
-      for (Pt pt : vars.getPoints()) {
-        // respects the shape of root function:
-        Vec desired = (Vec) pt.getAttribute(LAST_SOLVER_DESIRED_ADJUSTMENT_VEC);
-        Vec delta = desired;
-        if (biggestMove > 1) {
-          double targetMag = desired.mag() / biggestMove;
-          delta = desired.getVectorOfMagnitude(targetMag);
-        }
-        double mag = delta.mag();
-        if (mag > 0.0) {
-          delta = delta.getScaled(entropy.getDouble(heat)); // shorten delta by a random amount in range [0..heat]
-          pt.move(delta);
-          biggestActualMove = max(biggestActualMove, delta.mag());
-          pt.setAttribute(LAST_SOLVER_ADJUSTMENT_VEC, delta);
-        }
+    // 3: now all points have some accumulated correction. sum them and update the point's location.
+    int numFinished = 0;
+    double biggestMove = 0;
+    int n = state.size();
+    for (int i = 0; i < n; i++) {
+      boolean stable = (state.numCorrections[i] == 0);
+      state.get(i).setBoolean("stable", stable); // used by the UI
+      if (stable) {
+        numFinished = numFinished + 1;
       }
-      residual = totalError;
-      if (totalError < MIN_ACCPETABLE_ERROR || numFinished == vars.getPoints().size()) {
-        finished = true;
-        currentState = State.Solved;
-      }
-      fire();
-    } catch (Exception ex) {
-      // and they say I have a software engineering background.
+      double dx = state.correctionX[i];
+      double dy = state.correctionY[i];
+      double mag = Math.sqrt(dx * dx + dy * dy);
+      biggestMove = max(biggestMove, mag);
+      totalError = totalError + mag;
     }
-    if (debugOutput) {
-      buf.insert(0, String.format(f + " ", totalError));
-      buf.insert(0, (prevError < totalError ? "*WORSE* " : "better! "));
-      buf.insert(0, String.format("%#.3f ", heat));
-      if (finished) {
-        buf.insert(0, "done ");
-      }
-      if (debugOutWriter == null) {
-        System.out.println(buf.toString());
-      } else {
-        try {
-          debugOutWriter.write(buf.toString() + "\n");
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
+    for (int i = 0; i < n; i++) {
+      // respects the shape of root function:
+      double dx = state.correctionX[i];
+      double dy = state.correctionY[i];
+      double mag = Math.sqrt(dx * dx + dy * dy);
+      if (biggestMove > 1) {
+        double scale = (mag / biggestMove) / mag;
+        dx = dx * scale;
+        dy = dy * scale;
+        mag = Math.sqrt(dx * dx + dy * dy);
+      }
+      if (mag > 0.0) {
+        // shorten delta by a random amount in range [0..heat]
+        double scale = (state.random != null) ? state.random.nextDouble() * heat : entropy
+            .getDouble(heat);
+        dx = dx * scale;
+        dy = dy * scale;
+        state.get(i).move(dx, dy);
+        state.moveX[i] = dx;
+        state.moveY[i] = dy;
       }
     }
+    state.numStable = numFinished;
     return totalError;
   }
 
+  private void printStepDebug(double prevError, double totalError, double heat) {
+    buf.insert(0, String.format(f + " ", totalError));
+    buf.insert(0, (prevError < totalError ? "*WORSE* " : "better! "));
+    buf.insert(0, String.format("%#.3f ", heat));
+    if (finished) {
+      buf.insert(0, "done ");
+    }
+    if (debugOutWriter == null) {
+      System.out.println(buf.toString());
+    } else {
+      try {
+        debugOutWriter.write(buf.toString() + "\n");
+      } catch (IOException e) {
+        // TODO Auto-generated catch block
+        e.printStackTrace();
+      }
+    }
+  }
+
   public boolean hasPoints(Pt... pts) {
     boolean ret = true;
     for (Pt pt : pts) {
@@ -446,7 +1078,7 @@ public class ConstraintSolver {
         bug("warning: adding a point with no name");
       }
       //      Debug.stacktrace("made point " + pt.getString("name"), 8);
-      vars.getPoints().add(pt);
+      vars.addPoint(pt);
     }
     if (ui != null) {
       ui.modelChanged();
@@ -463,7 +1095,7 @@ public class ConstraintSolver {
 
   public void addConstraint(Constraint c) {
     if (!vars.getConstraints().contains(c)) {
-      vars.getConstraints().add(c);
+      vars.addConstraint(c);
       if (ui != null) {
         ui.modelChanged();
       }
@@ -472,7 +1104,7 @@ public class ConstraintSolver {
 
   public void removeConstraint(Constraint c) {
     Debug.stacktrace("removing basic constraint: " + c, 8);
-    vars.getConstraints().remove(c);
+    vars.removeConstraint(c);
     if (ui != null) {
       ui.modelChanged();
     }
@@ -494,7 +1126,7 @@ public class ConstraintSolver {
   }
 
   public Set<Constraint> removePoint(Pt doomed) {
-    vars.getPoints().remove(doomed);
+    vars.removePoint(doomed);
     Set<Constraint> doomedConstraints = new HashSet<Constraint>();
     for (Constraint c : vars.getConstraints()) {
       c.remove(doomed);
@@ -502,13 +1134,15 @@ public class ConstraintSolver {
         doomedConstraints.add(c);
       }
     }
-    vars.getConstraints().removeAll(doomedConstraints);
+    for (Constraint c : doomedConstraints) {
+      vars.removeConstraint(c);
+    }
     wakeUp();
     return doomedConstraints;
   }
 
   public void replacePoint(Pt oldPt, Pt newPt) {
-    vars.getPoints().remove(oldPt);
+    vars.removePoint(oldPt);
     addPoint(newPt);
     if (!hasName(newPt)) {
       Debug.stacktrace("point has no name", 6);
@@ -518,6 +1152,7 @@ public class ConstraintSolver {
         c.replace(oldPt, newPt);
       }
     }
+    vars.invalidateComponents(); // the constraints now involve different points
     wakeUp();
   }
 
@@ -546,8 +1181,14 @@ public class ConstraintSolver {
     return pt.hasAttribute("name");
   }
 
+  /**
+   * Pauses or resumes the background loop. A step that is already running finishes first; after
+   * that the loop waits until it is unpaused and woken up (see wakeUp).
+   */
   public void setPaused(boolean v) {
-    paused = v;
+    synchronized (monitor) {
+      paused = v;
+    }
   }
 
   public boolean isPaused() {
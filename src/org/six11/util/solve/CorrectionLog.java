@@ -0,0 +1,59 @@
+package org.six11.util.solve;
+
+import java.util.Arrays;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Corrections recorded by one worker during a parallel solver step. Instead of adding into the
+ * shared SolverState (which other workers are also using), a constraint's corrections are appended
+ * here in the order they are made. When every worker is done the solver replays the logs into the
+ * SolverState in constraint order, so each point's correction is summed in exactly the same order
+ * as in a sequential step and the result is the same to the last bit.
+ */
+class CorrectionLog {
+
+  private SolverState state;
+  private int[] which = new int[16]; // index of the point in the SolverState
+  private double[] dx = new double[16];
+  private double[] dy = new double[16];
+  private int size;
+
+  /**
+   * Empties the log, ready for a step over the given state.
+   */
+  void begin(SolverState state) {
+    this.state = state;
+    size = 0;
+  }
+
+  /**
+   * Records a correction. Points the solver doesn't know about are ignored, as in SolverState.add.
+   */
+  void add(Pt pt, double x, double y) {
+    int i = state.indexOf(pt);
+    if (i >= 0) {
+      if (size == which.length) {
+        which = Arrays.copyOf(which, size * 2);
+        dx = Arrays.copyOf(dx, size * 2);
+        dy = Arrays.copyOf(dy, size * 2);
+      }
+      which[size] = i;
+      dx[size] = x;
+      dy[size] = y;
+      size++;
+    }
+  }
+
+  /**
+   * Adds the recorded corrections to the state, in the order they were made.
+   */
+  void replay() {
+    for (int k = 0; k < size; k++) {
+      int i = which[k];
+      state.correctionX[i] += dx[k];
+      state.correctionY[i] += dy[k];
+      state.numCorrections[i]++;
+    }
+  }
+}
@@ -11,7 +11,6 @@ import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.DrawingBufferRoutines;
 import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 import static org.six11.util.Debug.num;
 import static org.six11.util.Debug.bug;
@@ -34,6 +33,10 @@ public class DistanceConstraint extends Constraint {
     super(obj);
     fromJson(obj, vars);
   }
+
+  DistanceConstraint(int id) { // for BinaryIO
+    super(id);
+  }
   
   public boolean isValid(VariableBank vars) {
     return vars.getPoints().containsAll(Lists.makeSet(a, b));
@@ -62,18 +65,30 @@ public class DistanceConstraint extends Constraint {
       if (abs(e) > TOLERANCE) {
         double shift = e / free; // move each free point its fair share of the way to the goal
 //        shift = makeRandom(shift, heat);
+        double dx = b.x - a.x;
+        double dy = b.y - a.y;
+        double scale = shift / Math.sqrt(dx * dx + dy * dy); // unit vector from a to b, times shift
         if (!isPinned(a)) {
-          Vec aToB = new Vec(a, b).getUnitVector().getScaled(shift);
-          accumulate(a, aToB, heat);
+          accumulate(a, dx * scale, dy * scale);
         }
         if (!isPinned(b)) {
-          Vec bToA = new Vec(b, a).getUnitVector().getScaled(shift);
-          accumulate(b, bToA, heat);
+          accumulate(b, -dx * scale, -dy * scale);
         }
       }
     }
   }
 
+  @Override
+  public boolean getErrorGradient(Pt pt, double[] out) {
+    Pt other = (pt == a) ? b : a;
+    double dx = pt.x - other.x;
+    double dy = pt.y - other.y;
+    double len = Math.sqrt(dx * dx + dy * dy);
+    out[0] = (len > 0) ? dx / len : 0;
+    out[1] = (len > 0) ? dy / len : 0;
+    return true;
+  }
+
   public double measureError() {
     double ret = 0;
     ret = a.distance(b) - d.getValue();
@@ -82,7 +82,8 @@ public class JsonIO {
         c = new LocationConstraint(obj, vars);
       } else if ("Orientation".equals(type)) {
         c = new OrientationConstraint(obj, vars);
-      } else if ("Point As Line Param".equals(type)) {
+      } else if ("Point As Line Param".equals(type)
+          || PointAsLineParamConstraint.NAME.equals(type)) { // NAME is what write() puts out
         c = new PointAsLineParamConstraint(obj, vars);
       } else if ("Point On Line".equals(type)) {
         c = new PointOnLineConstraint(obj, vars);
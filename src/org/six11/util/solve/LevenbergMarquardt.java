@@ -0,0 +1,302 @@
+package org.six11.util.solve;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Solves a set of constraints by damped least squares (Levenberg-Marquardt), treating each
+ * constraint's measureError() as a residual and the x and y of every unpinned point as the
+ * unknowns. Where a constraint can give its gradient (Constraint.getErrorGradient) that is used;
+ * otherwise the gradient is estimated with central differences. The Jacobian is kept sparse, one
+ * row per constraint holding only its own points, and each damped step is found by conjugate
+ * gradients on the normal equations, so nothing the size of (points x points) is ever built.
+ *
+ * Pinned points, and points that aren't in the list given to the constructor, are constants.
+ * Points are moved in place. Typical sketches converge in tens of iterations, where the
+ * relaxation in ConstraintSolver takes hundreds or thousands.
+ */
+class LevenbergMarquardt {
+
+  private static final double INITIAL_DAMPING = 1e-3;
+  private static final double MAX_DAMPING = 1e10;
+  private static final double MIN_DAMPING = 1e-12;
+  private static final double DIFFERENCE_STEP = 1e-6; // relative to the coordinate, for estimates
+  private static final double DIAGONAL_FLOOR = 1e-9;
+
+  private final List<Constraint> constraints;
+  private final Pt[] vars; // unknown k is vars[k / 2].x or .y, depending on k % 2
+  private final Map<Pt, Integer> varIndex;
+  private final int n;
+
+  // the sparse Jacobian: row i has the columns rowCols[i] with the values rowVals[i].
+  private final int[][] rowCols;
+  private final double[][] rowVals;
+
+  private final double[] residuals;
+  private double damping;
+  private double totalError;
+  private Telemetry telemetry;
+
+  LevenbergMarquardt(List<Pt> points, List<Constraint> constraints) {
+    this.constraints = constraints;
+    this.varIndex = new IdentityHashMap<Pt, Integer>();
+    int count = 0;
+    for (Pt pt : points) {
+      if (!Constraint.isPinned(pt)) {
+        count++;
+      }
+    }
+    this.vars = new Pt[count];
+    count = 0;
+    for (Pt pt : points) {
+      if (!Constraint.isPinned(pt)) {
+        varIndex.put(pt, count);
+        vars[count++] = pt;
+      }
+    }
+    this.n = vars.length * 2;
+    this.rowCols = new int[constraints.size()][];
+    this.rowVals = new double[constraints.size()][];
+    for (int i = 0; i < constraints.size(); i++) {
+      int numCols = 0;
+      for (Pt pt : constraints.get(i).getRelatedPoints()) {
+        if (varIndex.containsKey(pt)) {
+          numCols += 2;
+        }
+      }
+      rowCols[i] = new int[numCols];
+      rowVals[i] = new double[numCols];
+    }
+    this.residuals = new double[constraints.size()];
+    this.damping = INITIAL_DAMPING;
+  }
+
+  /**
+   * Reports each iteration to the given telemetry, if it is on.
+   */
+  void setTelemetry(Telemetry telemetry) {
+    this.telemetry = telemetry;
+  }
+
+  /**
+   * Iterates until the sum of the absolute constraint errors is at most tolerance, or
+   * maxIterations (if more than zero) have been done, or the deadline (a System.nanoTime() value;
+   * zero means none) has passed, or no step can reduce the error any further. Returns the number
+   * of iterations done.
+   */
+  int solve(int maxIterations, double tolerance, long deadline) {
+    double cost = measure();
+    int iterations = 0;
+    boolean converged = totalError <= tolerance;
+    boolean stuck = (n == 0);
+    double[] gradient = new double[n];
+    double[] diagonal = new double[n];
+    double[] delta = new double[n];
+    double[] before = new double[n];
+    while (!converged && !stuck) {
+      if (maxIterations > 0 && iterations >= maxIterations) {
+        break;
+      }
+      if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+        break;
+      }
+      long began = (telemetry != null && telemetry.isOn()) ? System.nanoTime() : 0;
+      buildJacobian(gradient, diagonal);
+      save(before);
+      boolean improved = false;
+      while (!improved && damping <= MAX_DAMPING) {
+        findStep(gradient, diagonal, delta);
+        for (int k = 0; k < n; k++) {
+          set(k, before[k] + delta[k]);
+        }
+        double newCost = measure();
+        if (newCost < cost) {
+          improved = true;
+          cost = newCost;
+          damping = Math.max(MIN_DAMPING, damping / 10);
+        } else {
+          damping = damping * 10;
+        }
+      }
+      if (!improved) {
+        for (int k = 0; k < n; k++) {
+          set(k, before[k]);
+        }
+        measure();
+        stuck = true;
+      }
+      iterations = iterations + 1;
+      converged = totalError <= tolerance;
+      if (telemetry != null && telemetry.isOn()) {
+        telemetry.iterationDone(iterations, constraints, residuals, totalError, Double.NaN,
+            System.nanoTime() - began);
+      }
+    }
+    return iterations;
+  }
+
+  /**
+   * The sum of the absolute constraint errors as of the last iteration.
+   */
+  double getTotalError() {
+    return totalError;
+  }
+
+  /**
+   * Fills in the residuals and totalError, and returns half the sum of squared residuals, which
+   * is what each step tries to reduce.
+   */
+  private double measure() {
+    double ret = 0;
+    totalError = 0;
+    for (int i = 0; i < residuals.length; i++) {
+      residuals[i] = constraints.get(i).measureError();
+      ret = ret + residuals[i] * residuals[i];
+      totalError = totalError + Math.abs(residuals[i]);
+    }
+    return ret / 2;
+  }
+
+  /**
+   * Fills in the Jacobian from the current point locations, along with J'r (the gradient of the
+   * cost) and the diagonal of J'J.
+   */
+  private void buildJacobian(double[] gradient, double[] diagonal) {
+    double[] partial = new double[2];
+    for (int i = 0; i < residuals.length; i++) {
+      Constraint c = constraints.get(i);
+      int col = 0;
+      for (Pt pt : c.getRelatedPoints()) {
+        Integer which = varIndex.get(pt);
+        if (which != null) {
+          if (!c.getErrorGradient(pt, partial)) {
+            partial[0] = estimate(c, pt, 0);
+            partial[1] = estimate(c, pt, 1);
+          }
+          rowCols[i][col] = which * 2;
+          rowVals[i][col++] = partial[0];
+          rowCols[i][col] = which * 2 + 1;
+          rowVals[i][col++] = partial[1];
+        }
+      }
+    }
+    for (int k = 0; k < n; k++) {
+      gradient[k] = 0;
+      diagonal[k] = 0;
+    }
+    for (int i = 0; i < residuals.length; i++) {
+      for (int j = 0; j < rowCols[i].length; j++) {
+        gradient[rowCols[i][j]] += rowVals[i][j] * residuals[i];
+        diagonal[rowCols[i][j]] += rowVals[i][j] * rowVals[i][j];
+      }
+    }
+  }
+
+  /**
+   * Estimates the derivative of the constraint's error with respect to the point's x (axis 0) or
+   * y (axis 1) with a central difference.
+   */
+  private double estimate(Constraint c, Pt pt, int axis) {
+    double orig = (axis == 0) ? pt.x : pt.y;
+    double h = DIFFERENCE_STEP * Math.max(1, Math.abs(orig));
+    setAxis(pt, axis, orig + h);
+    double plus = c.measureError();
+    setAxis(pt, axis, orig - h);
+    double minus = c.measureError();
+    setAxis(pt, axis, orig);
+    return (plus - minus) / (2 * h);
+  }
+
+  /**
+   * Solves (J'J + damping * D) delta = -J'r for delta with preconditioned conjugate gradients,
+   * where D is the diagonal of J'J (with a small floor, so unknowns nothing depends on stay put).
+   */
+  private void findStep(double[] gradient, double[] diagonal, double[] delta) {
+    double[] precon = new double[n];
+    double[] r = new double[n];
+    double[] z = new double[n];
+    double[] p = new double[n];
+    double[] ap = new double[n];
+    double[] jp = new double[residuals.length];
+    double rz = 0;
+    double size = 0;
+    for (int k = 0; k < n; k++) {
+      precon[k] = (1 + damping) * Math.max(diagonal[k], DIAGONAL_FLOOR);
+      delta[k] = 0;
+      r[k] = -gradient[k];
+      z[k] = r[k] / precon[k];
+      p[k] = z[k];
+      rz = rz + r[k] * z[k];
+      size = size + r[k] * r[k];
+    }
+    double goal = size * 1e-12; // a residual a millionth of the starting one
+    for (int iter = 0; iter < 2 * n && size > goal; iter++) {
+      multiply(p, diagonal, jp, ap);
+      double pap = 0;
+      for (int k = 0; k < n; k++) {
+        pap = pap + p[k] * ap[k];
+      }
+      if (pap <= 0) {
+        break;
+      }
+      double alpha = rz / pap;
+      double rzNext = 0;
+      size = 0;
+      for (int k = 0; k < n; k++) {
+        delta[k] = delta[k] + alpha * p[k];
+        r[k] = r[k] - alpha * ap[k];
+        z[k] = r[k] / precon[k];
+        rzNext = rzNext + r[k] * z[k];
+        size = size + r[k] * r[k];
+      }
+      double beta = rzNext / rz;
+      rz = rzNext;
+      for (int k = 0; k < n; k++) {
+        p[k] = z[k] + beta * p[k];
+      }
+    }
+  }
+
+  /**
+   * Computes out = (J'J + damping * D) v, using jv as scratch space for Jv.
+   */
+  private void multiply(double[] v, double[] diagonal, double[] jv, double[] out) {
+    for (int i = 0; i < residuals.length; i++) {
+      double sum = 0;
+      for (int j = 0; j < rowCols[i].length; j++) {
+        sum = sum + rowVals[i][j] * v[rowCols[i][j]];
+      }
+      jv[i] = sum;
+    }
+    for (int k = 0; k < n; k++) {
+      out[k] = damping * Math.max(diagonal[k], DIAGONAL_FLOOR) * v[k];
+    }
+    for (int i = 0; i < residuals.length; i++) {
+      for (int j = 0; j < rowCols[i].length; j++) {
+        out[rowCols[i][j]] += rowVals[i][j] * jv[i];
+      }
+    }
+  }
+
+  private void save(double[] out) {
+    for (int k = 0; k < vars.length; k++) {
+      out[2 * k] = vars[k].x;
+      out[2 * k + 1] = vars[k].y;
+    }
+  }
+
+  private void set(int k, double value) {
+    setAxis(vars[k / 2], k % 2, value);
+  }
+
+  private static void setAxis(Pt pt, int axis, double value) {
+    if (axis == 0) {
+      pt.setLocation(value, pt.y);
+    } else {
+      pt.setLocation(pt.x, value);
+    }
+  }
+}
@@ -10,7 +10,6 @@ import org.six11.util.data.Lists;
 import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.DrawingBufferRoutines;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 import static org.six11.util.Debug.bug;
 import static org.six11.util.Debug.num;
@@ -31,6 +30,10 @@ public class LocationConstraint extends Constraint {
     fromJson(obj, vars);
   }
 
+  LocationConstraint(int id) { // for BinaryIO
+    super(id);
+  }
+
   public boolean isValid(VariableBank vars) {
     return vars.getPoints().containsAll(Lists.makeSet(p));
   }
@@ -44,11 +47,21 @@ public class LocationConstraint extends Constraint {
     addMessage(p.getString("name") + ": " + num(error) + ". correction vector: "
         + num(target.x - p.x) + ", " + num(target.y - p.y));
     if (!isPinned(p) && error > TOLERANCE) {
-      Vec toTarget = new Vec(target.x - p.x, target.y - p.y);
-      accumulate(p, toTarget, heat);
+      accumulate(p, target.x - p.x, target.y - p.y);
     }
   }
 
+  @Override
+  public boolean getErrorGradient(Pt pt, double[] out) {
+    double dx = p.x - target.x;
+    double dy = p.y - target.y;
+    double len = Math.sqrt(dx * dx + dy * dy);
+    double sign = (pt == p) ? 1 : -1;
+    out[0] = (len > 0) ? sign * dx / len : 0;
+    out[1] = (len > 0) ? sign * dy / len : 0;
+    return true;
+  }
+
   public double measureError() {
     return p.distance(target);
   }
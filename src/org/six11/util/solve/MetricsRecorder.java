@@ -0,0 +1,137 @@
+package org.six11.util.solve;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A MetricsListener that keeps the most recent SolverMetrics records in a fixed-size binary ring
+ * buffer, so it can be left on in a long-running program and dumped when something looks wrong.
+ * Recording a record copies a few numbers into the buffer and allocates nothing.
+ *
+ * writeTo() writes the records, oldest first, as a small header (MAGIC, VERSION, the record count)
+ * followed by the records in big-endian binary, RECORD_SIZE bytes each. readFrom() reads that back
+ * into a new recorder; the worst constraints are known only by ID after that.
+ */
+public class MetricsRecorder implements ConstraintSolver.MetricsListener {
+
+  public static final int MAGIC = 0x534d4554; // "SMET"
+  public static final int VERSION = 1;
+  public static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 8 + 8 + 4 + 8 + 4
+      + 4 * SolverMetrics.NUM_BUCKETS;
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+  private int next; // slot the next record goes in
+  private int size;
+
+  /**
+   * Makes a recorder that keeps the last capacity records.
+   */
+  public MetricsRecorder(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Recorder capacity must be at least one, not " + capacity);
+    }
+    this.capacity = capacity;
+    this.buffer = ByteBuffer.allocate(capacity * RECORD_SIZE);
+  }
+
+  public synchronized void metricsReady(SolverMetrics m) {
+    int at = next * RECORD_SIZE;
+    buffer.putInt(at, m.count);
+    buffer.putInt(at + 4, m.iteration);
+    buffer.putDouble(at + 8, m.residual);
+    buffer.putDouble(at + 16, m.maxResidual);
+    buffer.putDouble(at + 24, m.heat);
+    buffer.putLong(at + 32, m.nanos);
+    buffer.putInt(at + 40, m.worstID);
+    buffer.putDouble(at + 44, m.worstError);
+    buffer.putInt(at + 52, m.numConstraints);
+    for (int i = 0; i < SolverMetrics.NUM_BUCKETS; i++) {
+      buffer.putInt(at + 56 + 4 * i, m.histogram[i]);
+    }
+    next = (next + 1) % capacity;
+    size = Math.min(size + 1, capacity);
+  }
+
+  /**
+   * The number of records held, which is at most the capacity.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Copies record i (zero is the oldest held) into out, and returns out.
+   */
+  public synchronized SolverMetrics get(int i, SolverMetrics out) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("Record " + i + " of " + size);
+    }
+    int at = ((next - size + i + capacity) % capacity) * RECORD_SIZE;
+    out.clear();
+    out.count = buffer.getInt(at);
+    out.iteration = buffer.getInt(at + 4);
+    out.residual = buffer.getDouble(at + 8);
+    out.maxResidual = buffer.getDouble(at + 16);
+    out.heat = buffer.getDouble(at + 24);
+    out.nanos = buffer.getLong(at + 32);
+    out.worstID = buffer.getInt(at + 40);
+    out.worstError = buffer.getDouble(at + 44);
+    out.numConstraints = buffer.getInt(at + 52);
+    for (int k = 0; k < SolverMetrics.NUM_BUCKETS; k++) {
+      out.histogram[k] = buffer.getInt(at + 56 + 4 * k);
+    }
+    return out;
+  }
+
+  public synchronized void clear() {
+    next = 0;
+    size = 0;
+  }
+
+  /**
+   * Writes the held records, oldest first. The stream is not closed.
+   */
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(size);
+    int first = (next - size + capacity) % capacity;
+    int run = Math.min(size, capacity - first); // records before the buffer wraps around
+    data.write(buffer.array(), first * RECORD_SIZE, run * RECORD_SIZE);
+    data.write(buffer.array(), 0, (size - run) * RECORD_SIZE);
+    data.flush();
+  }
+
+  /**
+   * Reads records written by writeTo() into a new recorder just big enough to hold them.
+   */
+  public static MetricsRecorder readFrom(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a solver metrics dump");
+    }
+    int version = data.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unknown solver metrics dump version: " + version);
+    }
+    int count = data.readInt();
+    if (count < 0) {
+      throw new IOException("Bad record count in solver metrics dump: " + count);
+    }
+    MetricsRecorder ret = new MetricsRecorder(Math.max(1, count));
+    data.readFully(ret.buffer.array(), 0, count * RECORD_SIZE);
+    ret.size = count;
+    ret.next = count % ret.capacity;
+    return ret;
+  }
+}
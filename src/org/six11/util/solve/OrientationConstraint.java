@@ -9,10 +9,9 @@ import org.six11.util.Debug;
 import org.six11.util.data.Lists;
 import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.DrawingBufferRoutines;
-import org.six11.util.pen.Functions;
+import org.six11.util.pen.GeomKernels;
 import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 import static org.six11.util.Debug.num;
 import static org.six11.util.Debug.bug;
@@ -45,6 +44,10 @@ public class OrientationConstraint extends Constraint {
     fromJson(obj, vars);
   }
 
+  OrientationConstraint(int id) { // for BinaryIO
+    super(id);
+  }
+
   public boolean isValid(VariableBank vars) {
     return vars.getPoints().containsAll(Lists.makeSet(lineA1, lineA2, lineB1, lineB2));
   }
@@ -74,22 +77,16 @@ public class OrientationConstraint extends Constraint {
     // both points are free = rotate about mid by (amt / 2)
     // one point free = rotate free point about pinned point by amt
     // both points are pinned = do nothing
-    Line line = new Line(pt1, pt2);
     int free = 2 - countPinned(pt1, pt2);
     if (free == 2) {
-      Pt pivot = line.getMidpoint();
-      Pt rotated1 = Functions.rotatePointAboutPivot(pt1, pivot, amt / 2);
-      Vec vec1 = new Vec(rotated1.x - pt1.x, rotated1.y - pt1.y);
-      accumulate(pt1, vec1, heat);
-      Pt rotated2 = Functions.rotatePointAboutPivot(pt2, pivot, amt / 2);
-      Vec vec2 = new Vec(rotated2.x - pt2.x, rotated2.y - pt2.y);
-      accumulate(pt2, vec2, heat);
+      double pivotX = (pt1.x + pt2.x) / 2;
+      double pivotY = (pt1.y + pt2.y) / 2;
+      accumulateRotation(pt1, pivotX, pivotY, amt / 2);
+      accumulateRotation(pt2, pivotX, pivotY, amt / 2);
     } else if (free == 1) {
       Pt pivot = isPinned(pt1) ? pt1 : pt2;
       Pt moveMe = isPinned(pt1) ? pt2 : pt1;
-      Pt rotated = Functions.rotatePointAboutPivot(moveMe, pivot, amt / 2);
-      Vec vec = new Vec(rotated.x - moveMe.x, rotated.y - moveMe.y);
-      accumulate(moveMe, vec, heat);
+      accumulateRotation(moveMe, pivot.x, pivot.y, amt / 2);
     }
   }
 
@@ -100,9 +97,8 @@ public class OrientationConstraint extends Constraint {
     // so it is consistent with how getSignedAngleBetween() works. If you translate 
     // things so lineA1 and lineB1 are the same, the currentAngle gives you the 
     // value you would expect.
-    Vec vA = new Vec(lineA1, lineA2);
-    Vec vB = new Vec(lineB2, lineB1);
-    double currentAngle = Functions.getSignedAngleBetween(vA, vB);
+    double currentAngle = GeomKernels.signedAngle(lineA2.x - lineA1.x, lineA2.y - lineA1.y,
+        lineB1.x - lineB2.x, lineB1.y - lineB2.y);
     double sign = Math.signum(currentAngle);
     double c1 = abs(currentAngle);
     double c2 = Math.PI - c1;
@@ -42,6 +42,10 @@ public class PointAsLineParamConstraint extends Constraint {
     fromJson(obj, vars);
   }
 
+  PointAsLineParamConstraint(int id) { // for BinaryIO
+    super(id);
+  }
+
   public boolean isValid(VariableBank vars) {
     return vars.getPoints().containsAll(Lists.makeSet(lineA, lineB, target));
   }
@@ -59,6 +63,15 @@ public class PointAsLineParamConstraint extends Constraint {
     }
   }
 
+  /**
+   * Returns false, because this moves the target point directly rather than accumulating a
+   * correction for it.
+   */
+  @Override
+  public boolean canAccumulateInParallel() {
+    return false;
+  }
+
   public double measureError() {
     Pt auth = getAuthority();
     return auth.distance(target);
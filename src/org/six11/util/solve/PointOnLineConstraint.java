@@ -14,6 +14,7 @@ import org.six11.util.data.Statistics;
 import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.DrawingBufferRoutines;
 import org.six11.util.pen.Functions;
+import org.six11.util.pen.GeomKernels;
 import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
 import org.six11.util.pen.Vec;
@@ -28,6 +29,7 @@ public class PointOnLineConstraint extends Constraint {
 
   Pt antipodeA, antipodeB;
   Set<Pt> manyPoints;
+  private final double[] near = new double[2]; // scratch space for maybeMove
 
   public PointOnLineConstraint(Set<Pt> points) {
     super();
@@ -40,6 +42,10 @@ public class PointOnLineConstraint extends Constraint {
     fromJson(obj, vars);
   }
 
+  PointOnLineConstraint(int id) { // for BinaryIO
+    super(id);
+  }
+
   public boolean isValid(VariableBank vars) {
     return manyPoints.size() > 2 && vars.getPoints().containsAll(manyPoints);
   }
@@ -97,10 +103,13 @@ public class PointOnLineConstraint extends Constraint {
 
   private void maybeMove(int pins, Pt move, Line target, double heat) {
     if (!isPinned(move)) {
-      Pt near = Functions.getNearestPointOnLine(move, target);
-      double shift = near.distance(move) / (manyPoints.size() - pins);
-      Vec delta = new Vec(move, near).getVectorOfMagnitude(shift);
-      accumulate(move, delta, heat);
+      GeomKernels.nearestOnLine(target.getStart().x, target.getStart().y, target.getEnd().x,
+          target.getEnd().y, move.x, move.y, near);
+      double dx = near[0] - move.x;
+      double dy = near[1] - move.y;
+      double dist = Math.sqrt(dx * dx + dy * dy);
+      double shift = dist / (manyPoints.size() - pins);
+      accumulate(move, dx * (shift / dist), dy * (shift / dist));
     }
   }
 
@@ -197,7 +206,7 @@ public class PointOnLineConstraint extends Constraint {
     return manyPoints.toArray(new Pt[0]);
   }
 
-  private void makeAntipodes() {
+  void makeAntipodes() {
     Pt[] points = getRelatedPoints();
     Pt bestA = null;
     Pt bestB = null;
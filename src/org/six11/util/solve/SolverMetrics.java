@@ -0,0 +1,192 @@
+package org.six11.util.solve;
+
+/**
+ * What happened during one solver iteration, or during a run of iterations added together: the
+ * residual, the heat, how long it took, which constraint was furthest off, and a histogram of the
+ * constraint errors. ConstraintSolver hands these to its MetricsListeners.
+ *
+ * The histogram has NUM_BUCKETS buckets by powers of ten of the absolute error: bucket 0 counts
+ * errors under 1e-6, bucket 1 those from 1e-6 up to 1e-5, and so on, and the last bucket counts
+ * everything from 1e2 up. For relaxation the errors are the ones measured as the iteration began,
+ * and for least squares the ones left when it ended.
+ *
+ * The solver reuses one instance for every delivery, so a listener that wants to keep a record
+ * after it returns should copy() it.
+ */
+public class SolverMetrics {
+
+  public static final int NUM_BUCKETS = 10;
+  private static final double[] BUCKET_LIMITS = {
+      1e-6, 1e-5, 1e-4, 1e-3, 1e-2, 1e-1, 1e0, 1e1, 1e2
+  };
+
+  int count; // how many iterations were added together; zero means none yet
+  int iteration;
+  double residual;
+  double maxResidual;
+  double heat;
+  long nanos;
+  Constraint worst;
+  int worstID = -1;
+  double worstError;
+  int numConstraints;
+  final int[] histogram = new int[NUM_BUCKETS];
+
+  /**
+   * Returns the histogram bucket for the given error.
+   */
+  public static int getBucket(double error) {
+    double e = Math.abs(error);
+    int ret = 0;
+    while (ret < BUCKET_LIMITS.length && !(e < BUCKET_LIMITS[ret])) {
+      ret++;
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the smallest error that goes in the given bucket.
+   */
+  public static double getBucketStart(int bucket) {
+    return (bucket == 0) ? 0 : BUCKET_LIMITS[bucket - 1];
+  }
+
+  /**
+   * The number of iterations this covers: one for a single iteration, more for an aggregate.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * The number of the (last) iteration, counting from one. Each component of a solve() counts its
+   * own iterations.
+   */
+  public int getIteration() {
+    return iteration;
+  }
+
+  /**
+   * The residual after the (last) iteration. For relaxation this is the total correction the step
+   * asked for, and for least squares the total absolute constraint error.
+   */
+  public double getResidual() {
+    return residual;
+  }
+
+  /**
+   * The largest residual of the iterations added together.
+   */
+  public double getMaxResidual() {
+    return maxResidual;
+  }
+
+  /**
+   * The heat of the (last) iteration, or NaN for least squares, which has none.
+   */
+  public double getHeat() {
+    return heat;
+  }
+
+  /**
+   * Time spent in the iterations, in nanoseconds.
+   */
+  public long getNanos() {
+    return nanos;
+  }
+
+  /**
+   * The constraint with the largest absolute error, or null if there were no constraints or this
+   * was read back from a MetricsRecorder dump.
+   */
+  public Constraint getWorst() {
+    return worst;
+  }
+
+  /**
+   * The ID of the worst constraint, or -1 if there was none.
+   */
+  public int getWorstID() {
+    return worstID;
+  }
+
+  public double getWorstError() {
+    return worstError;
+  }
+
+  /**
+   * The number of constraints the (last) iteration worked on.
+   */
+  public int getNumConstraints() {
+    return numConstraints;
+  }
+
+  /**
+   * How many constraint errors fell into the given bucket, summed over the iterations.
+   */
+  public int getHistogramCount(int bucket) {
+    return histogram[bucket];
+  }
+
+  public SolverMetrics copy() {
+    SolverMetrics ret = new SolverMetrics();
+    ret.add(this);
+    return ret;
+  }
+
+  void clear() {
+    count = 0;
+    iteration = 0;
+    residual = 0;
+    maxResidual = 0;
+    heat = 0;
+    nanos = 0;
+    worst = null;
+    worstID = -1;
+    worstError = 0;
+    numConstraints = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      histogram[i] = 0;
+    }
+  }
+
+  /**
+   * Adds another record into this one. Values that describe the end of the run (iteration,
+   * residual, heat and number of constraints) are taken from the other record; time and histogram
+   * counts are summed, and the worst constraint is whichever was furthest off.
+   */
+  void add(SolverMetrics other) {
+    if (count == 0 || Math.abs(other.worstError) > Math.abs(worstError)) {
+      worst = other.worst;
+      worstID = other.worstID;
+      worstError = other.worstError;
+    }
+    maxResidual = (count == 0) ? other.maxResidual : Math.max(maxResidual, other.maxResidual);
+    count = count + other.count;
+    iteration = other.iteration;
+    residual = other.residual;
+    heat = other.heat;
+    nanos = nanos + other.nanos;
+    numConstraints = other.numConstraints;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      histogram[i] += other.histogram[i];
+    }
+  }
+
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    buf.append("iteration ").append(iteration);
+    if (count > 1) {
+      buf.append(" (").append(count).append(" iterations)");
+    }
+    buf.append(" residual ").append(residual);
+    buf.append(" heat ").append(heat);
+    buf.append(" nanos ").append(nanos);
+    buf.append(" worst ").append(worstID).append(" (").append(worstError).append(")");
+    buf.append(" histogram");
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      buf.append(' ').append(histogram[i]);
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,97 @@
+package org.six11.util.solve;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * The per-step bookkeeping of a ConstraintSolver, kept in flat arrays indexed by each variable
+ * point's position in the solver's point list. Constraints add their corrections here (through
+ * Constraint.accumulate) instead of into a list of Vecs on each point, and the solver sums and
+ * applies them from here. Once the arrays are big enough, a step allocates nothing.
+ */
+class SolverState {
+
+  private Pt[] points = new Pt[0];
+  private int n;
+  private IdentityHashMap<Pt, Integer> index = new IdentityHashMap<Pt, Integer>();
+
+  double[] correctionX = new double[0]; // sum of the corrections asked for during this step
+  double[] correctionY = new double[0];
+  int[] numCorrections = new int[0];
+  double[] moveX = new double[0]; // how far each point actually moved in the last step
+  double[] moveY = new double[0];
+  int numStable; // how many points no constraint wanted to move in the last step
+
+  /**
+   * Where a step over this state gets its random step scales. solve() seeds one per component so
+   * the components draw in a fixed order however the threads run; null means the solver's shared
+   * Entropy.
+   */
+  Random random;
+
+  /**
+   * Gets ready for a new step over the given points, clearing all corrections. The index is only
+   * rebuilt if the point list has changed since last time.
+   */
+  void begin(List<Pt> pts) {
+    boolean same = (pts.size() == n);
+    for (int i = 0; same && i < n; i++) {
+      same = (pts.get(i) == points[i]);
+    }
+    if (!same) {
+      n = pts.size();
+      if (points.length < n) {
+        points = new Pt[n];
+        correctionX = new double[n];
+        correctionY = new double[n];
+        numCorrections = new int[n];
+        moveX = new double[n];
+        moveY = new double[n];
+      }
+      index.clear();
+      for (int i = 0; i < n; i++) {
+        points[i] = pts.get(i);
+        index.put(points[i], i);
+      }
+      Arrays.fill(points, n, points.length, null);
+      Arrays.fill(moveX, 0.0);
+      Arrays.fill(moveY, 0.0);
+    }
+    Arrays.fill(correctionX, 0, n, 0.0);
+    Arrays.fill(correctionY, 0, n, 0.0);
+    Arrays.fill(numCorrections, 0, n, 0);
+  }
+
+  int size() {
+    return n;
+  }
+
+  Pt get(int i) {
+    return points[i];
+  }
+
+  /**
+   * Returns the index of the point, or -1 if it isn't one of the solver's variables.
+   */
+  int indexOf(Pt pt) {
+    Integer ret = index.get(pt);
+    return (ret == null) ? -1 : ret;
+  }
+
+  /**
+   * Adds a correction for the given point. Corrections to points the solver doesn't know about are
+   * ignored.
+   */
+  void add(Pt pt, double dx, double dy) {
+    int i = indexOf(pt);
+    if (i >= 0) {
+      correctionX[i] += dx;
+      correctionY[i] += dy;
+      numCorrections[i]++;
+    }
+  }
+}
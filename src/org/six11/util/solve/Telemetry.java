@@ -0,0 +1,119 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands per-iteration SolverMetrics to a ConstraintSolver's MetricsListeners. Each listener asks
+ * for every nth iteration, either sampled (just that iteration) or aggregated (the n iterations
+ * added together). Nothing is measured unless some listener wants the iteration, and the metrics
+ * come from each constraint's lastKnownError (or residuals the caller already has), so no
+ * constraint error is measured again. With no listeners, isOn() is false and the solver doesn't
+ * even read the clock.
+ *
+ * Components solved in parallel report from several threads, so delivery is synchronized;
+ * listeners are called on whichever thread did the iteration.
+ */
+class Telemetry {
+
+  private static class Subscription {
+    ConstraintSolver.MetricsListener listener;
+    int period;
+    boolean aggregate;
+    SolverMetrics pending = new SolverMetrics();
+  }
+
+  private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+  private final SolverMetrics current = new SolverMetrics();
+  private volatile boolean on;
+
+  boolean isOn() {
+    return on;
+  }
+
+  synchronized void add(ConstraintSolver.MetricsListener listener, int period, boolean aggregate) {
+    if (period < 1) {
+      throw new IllegalArgumentException("Metrics period must be at least one, not " + period);
+    }
+    remove(listener);
+    Subscription sub = new Subscription();
+    sub.listener = listener;
+    sub.period = period;
+    sub.aggregate = aggregate;
+    subscriptions.add(sub);
+    on = true;
+  }
+
+  synchronized void remove(ConstraintSolver.MetricsListener listener) {
+    for (int i = subscriptions.size() - 1; i >= 0; i--) {
+      if (subscriptions.get(i).listener == listener) {
+        subscriptions.remove(i);
+      }
+    }
+    on = subscriptions.size() > 0;
+  }
+
+  /**
+   * Reports one iteration over the given constraints. errors, if not null, holds each
+   * constraint's error in the same order; otherwise each constraint's lastKnownError is used.
+   */
+  synchronized void iterationDone(int iteration, List<Constraint> constraints, double[] errors,
+      double residual, double heat, long nanos) {
+    boolean wanted = false;
+    for (int i = 0; !wanted && i < subscriptions.size(); i++) {
+      Subscription sub = subscriptions.get(i);
+      wanted = sub.aggregate || (iteration % sub.period == 0);
+    }
+    if (wanted) {
+      measure(iteration, constraints, errors, residual, heat, nanos);
+      for (int i = 0; i < subscriptions.size(); i++) {
+        Subscription sub = subscriptions.get(i);
+        if (sub.aggregate) {
+          sub.pending.add(current);
+          if (sub.pending.count >= sub.period) {
+            sub.listener.metricsReady(sub.pending);
+            sub.pending.clear();
+          }
+        } else if (iteration % sub.period == 0) {
+          sub.listener.metricsReady(current);
+        }
+      }
+    }
+  }
+
+  /**
+   * Delivers any partly filled aggregates. The solver calls this when a solve is over, so a
+   * listener aggregating over a very long period gets one record per solve.
+   */
+  synchronized void flush() {
+    for (int i = 0; i < subscriptions.size(); i++) {
+      Subscription sub = subscriptions.get(i);
+      if (sub.aggregate && sub.pending.count > 0) {
+        sub.listener.metricsReady(sub.pending);
+        sub.pending.clear();
+      }
+    }
+  }
+
+  private void measure(int iteration, List<Constraint> constraints, double[] errors,
+      double residual, double heat, long nanos) {
+    current.clear();
+    current.count = 1;
+    current.iteration = iteration;
+    current.residual = residual;
+    current.maxResidual = residual;
+    current.heat = heat;
+    current.nanos = nanos;
+    current.numConstraints = constraints.size();
+    for (int i = 0; i < constraints.size(); i++) {
+      Constraint c = constraints.get(i);
+      double e = (errors == null) ? c.lastKnownError : errors[i];
+      current.histogram[SolverMetrics.getBucket(e)]++;
+      if (current.worst == null || Math.abs(e) > Math.abs(current.worstError)) {
+        current.worst = c;
+        current.worstID = c.getID();
+        current.worstError = e;
+      }
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package org.six11.util.solve;
+
+import junit.framework.TestSuite;
+import junit.framework.Test;
+/**
+ *
+ **/
+public class TestAll {
+  public static Test suite() {
+    TestSuite suite = new TestSuite("Constraint Solver Tests");
+    suite.addTest(new TestSuite(TestLeastSquares.class));
+    suite.addTest(new TestSuite(TestBinaryIO.class));
+    suite.addTest(new TestSuite(TestVariableBank.class));
+    suite.addTest(new TestSuite(TestConstraintSolver.class));
+    suite.addTest(new TestSuite(TestMetricsRecorder.class));
+    return suite;
+  }
+}
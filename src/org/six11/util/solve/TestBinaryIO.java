@@ -0,0 +1,132 @@
+package org.six11.util.solve;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.six11.util.Debug;
+import org.six11.util.data.Lists;
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks that a VariableBank comes back from a BinaryIO snapshot the way it went in, and the same
+ * as it comes back from JsonIO.
+ */
+public class TestBinaryIO extends TestCase {
+
+  static {
+    Debug.enabled = false;
+  }
+
+  public void testRoundTrip() throws IOException {
+    VariableBank vars = makeBank(new Random(3), 10, false);
+    VariableBank copy = roundTrip(vars);
+    assertEquals(describe(vars), describe(copy));
+  }
+
+  public void testBiggerThanBuffer() throws IOException {
+    VariableBank vars = makeBank(new Random(4), 3000, false); // well over the 64k buffer
+    VariableBank copy = roundTrip(vars);
+    assertEquals(describe(vars), describe(copy));
+  }
+
+  public void testSameAsJson() throws IOException, JSONException {
+    VariableBank vars = makeBank(new Random(5), 10, true); // JSON finds points by name
+    VariableBank fromBinary = roundTrip(vars);
+    JsonIO io = new JsonIO();
+    VariableBank fromJson = new VariableBank();
+    fromJson.getPoints().addAll(io.readPoints(io.write(vars.getPoints(), "name", "pinned"), "name",
+        "pinned"));
+    fromJson.getConstraints().addAll(io.readConstraints(io.write(vars.getConstraints()), fromJson));
+    assertEquals(describe(fromJson), describe(fromBinary));
+  }
+
+  public void testRejectsOtherData() {
+    try {
+      new BinaryIO().read(Channels.newChannel(new ByteArrayInputStream(new byte[] {
+          1, 2, 3, 4, 5, 6, 7, 8
+      })), new VariableBank());
+      fail("Should not read something that isn't a snapshot");
+    } catch (IOException ok) { /* expected */
+    }
+  }
+
+  private static VariableBank roundTrip(VariableBank vars) throws IOException {
+    BinaryIO io = new BinaryIO();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    io.write(vars, Channels.newChannel(bytes));
+    VariableBank ret = new VariableBank();
+    io.read(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ret);
+    return ret;
+  }
+
+  /**
+   * A bank with n groups of six points, a constraint of every kind in each group, names (some of
+   * them not ASCII) on every other point, or on all of them if nameAll is true, and pins on others.
+   */
+  private static VariableBank makeBank(Random rand, int n, boolean nameAll) {
+    VariableBank ret = new VariableBank();
+    for (int g = 0; g < n; g++) {
+      Pt[] p = new Pt[6];
+      for (int i = 0; i < p.length; i++) {
+        p[i] = new Pt(rand.nextGaussian() * 500, rand.nextGaussian() * 500, (i == 0) ? -g : g
+            * 1000L);
+        if (nameAll || i % 2 == 0) {
+          ConstraintSolver.setName(p[i], ((i == 2) ? "\u00e9l\u00e8ve-" : "p") + g + "-" + i);
+        }
+        ret.addPoint(p[i]);
+      }
+      Constraint.setPinned(p[5], true);
+      ret.addConstraint(new AngleConstraint(p[0], p[1], p[2],
+          new NumericValue(rand.nextDouble())));
+      ret.addConstraint(new DistanceConstraint(p[0], p[3],
+          new NumericValue(rand.nextDouble() * 50)));
+      ret.addConstraint(new LocationConstraint(p[4], p[5]));
+      ret.addConstraint(new OrientationConstraint(p[0], p[1], p[2], p[3], new NumericValue(rand
+          .nextDouble())));
+      ret.addConstraint(new PointAsLineParamConstraint(p[1], p[2], new NumericValue(rand
+          .nextDouble()), p[3]));
+      ret.addConstraint(new PointOnLineConstraint(Lists.makeSet(p[0], p[2], p[4])));
+    }
+    return ret;
+  }
+
+  /**
+   * Lists each point's name, pin, location and time, then each constraint's type, ID, points (as
+   * positions in the bank) and error, which depends on its value.
+   */
+  private static List<String> describe(VariableBank vars) {
+    List<String> ret = new ArrayList<String>();
+    Map<Pt, Integer> index = new IdentityHashMap<Pt, Integer>();
+    for (Pt pt : vars.getPoints()) {
+      index.put(pt, index.size());
+      ret.add("point " + pt.getString("name") + " " + Constraint.isPinned(pt) + " " + pt.getX()
+          + " " + pt.getY() + " " + pt.getTime());
+    }
+    for (Constraint c : vars.getConstraints()) {
+      Pt[] related = c.getRelatedPoints();
+      int[] which = new int[related.length];
+      for (int i = 0; i < related.length; i++) {
+        which[i] = index.get(related[i]);
+      }
+      String error = "" + c.measureError();
+      if (c instanceof PointOnLineConstraint) {
+        // a set, so the order means nothing, except to the last bits of the error's sums
+        Arrays.sort(which);
+        error = String.format("%.9e", c.measureError());
+      }
+      ret.add(c.getType() + " " + c.getID() + " " + Arrays.toString(which) + " " + error);
+    }
+    return ret;
+  }
+}
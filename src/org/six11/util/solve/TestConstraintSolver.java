@@ -0,0 +1,231 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+import org.six11.util.pen.Entropy;
+import org.six11.util.pen.Pt;
+import org.six11.util.solve.ConstraintSolver.Method;
+import org.six11.util.solve.ConstraintSolver.Result;
+
+/**
+ * Checks ConstraintSolver's headless solve(): its limits, and that handing it an executor changes
+ * nothing about the answer, whether it runs components or the steps of one big component in
+ * parallel. Also checks that re-solving after a drag leaves the caller's pins as they were.
+ */
+public class TestConstraintSolver extends TestCase {
+
+  private static final double NEVER = -1; // a tolerance no residual gets down to
+
+  static {
+    Debug.enabled = false;
+  }
+
+  public void testSolveNeedsALimit() {
+    try {
+      makeSolver().solve(0, 0.001, 0);
+      fail("solve() should want an iteration limit or a time budget");
+    } catch (IllegalArgumentException ok) { /* expected */
+    }
+  }
+
+  public void testSolveConverges() {
+    ConstraintSolver solver = makeSolver();
+    Pt c = addTriangle(solver, 0);
+    Result result = solver.solve(5000, 0.001, 0);
+    assertTrue(result.isSolved());
+    assertTrue(result.getResidual() <= 0.001);
+    assertEquals(2, result.getErrors().size());
+    assertEquals(18.0, c.getX(), 0.05);
+    assertEquals(24.0, c.getY(), 0.05);
+    Result again = solver.solve(5000, 0.001, 0); // nothing moved, so nothing to do
+    assertTrue(again.isSolved());
+    assertEquals(0, again.getIterations());
+  }
+
+  public void testIterationLimit() {
+    ConstraintSolver solver = makeSolver();
+    addTriangle(solver, 0);
+    Result result = solver.solve(40, NEVER, 0);
+    assertFalse(result.isSolved());
+    assertEquals(40, result.getIterations());
+  }
+
+  public void testTimeBudget() {
+    ConstraintSolver solver = makeSolver();
+    addTriangle(solver, 0);
+    Result result = solver.solve(0, NEVER, 50);
+    assertFalse(result.isSolved());
+    assertTrue(result.getIterations() > 0);
+    assertTrue(result.getElapsedNanos() >= 50 * 1000000L);
+    assertTrue(result.getElapsedNanos() < 5000 * 1000000L);
+  }
+
+  public void testExecutorChangesNothing() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      ConstraintSolver serial = makeSolver();
+      addTriangle(serial, 0);
+      addTriangle(serial, 100);
+      Result serialResult = serial.solve(5000, 0.001, 0);
+      ConstraintSolver parallel = makeSolver();
+      parallel.setExecutor(executor);
+      addTriangle(parallel, 0);
+      addTriangle(parallel, 100);
+      Result parallelResult = parallel.solve(5000, 0.001, 0);
+      assertTrue(parallelResult.isSolved());
+      assertEquals(serialResult.getIterations(), parallelResult.getIterations());
+      assertEquals(locations(serial), locations(parallel));
+      assertFalse("the solver shouldn't shut down the caller's executor", executor.isShutdown());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testParallelStepSameAsSerial() {
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+    try {
+      ConstraintSolver serial = makeSolver();
+      addChain(serial, 120);
+      serial.solve(30, NEVER, 0);
+      ConstraintSolver parallel = makeSolver();
+      parallel.setExecutor(executor);
+      addChain(parallel, 120);
+      parallel.solve(30, NEVER, 0);
+      assertTrue("steps should have been parallel", executor.getTaskCount() > 0);
+      assertEquals(locations(serial), locations(parallel));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testParallelComponentsRepeat() {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<String> first = null;
+      for (int run = 0; run < 5; run++) {
+        ConstraintSolver solver = makeSolver();
+        if (run > 0) {
+          solver.setExecutor(executor); // the first run is serial
+        }
+        for (int k = 0; k < 12; k++) {
+          addTriangle(solver, 100 * k);
+        }
+        assertTrue(solver.solve(5000, 0.0001, 0).isSolved());
+        if (first == null) {
+          first = locations(solver);
+        } else {
+          assertEquals("run " + run, first, locations(solver));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testDragKeepsPins() {
+    for (Method method : Method.values()) {
+      ConstraintSolver solver = makeSolver();
+      solver.setMethod(method);
+      addChain(solver, 12);
+      List<Pt> pts = solver.getPoints();
+      Pt pinned = pts.get(5);
+      Constraint.setPinned(pinned, true);
+      solver.solve(5000, 0.001, 0);
+      List<Boolean> pins = pins(solver);
+      double pinnedX = pinned.getX();
+      double pinnedY = pinned.getY();
+      Pt dragged = pts.get(8);
+      double x = dragged.getX() + 4;
+      double y = dragged.getY() - 3;
+      solver.solveAfterMove(dragged, x, y, 2000, 0.001, 0);
+      assertEquals(method + ": pins after a drag", pins, pins(solver));
+      assertEquals(x, dragged.getX());
+      assertEquals(y, dragged.getY());
+      assertEquals(pinnedX, pinned.getX());
+      assertEquals(pinnedY, pinned.getY());
+      x = pinned.getX() + 2; // the caller may move a pinned point too
+      y = pinned.getY() + 2;
+      solver.solveAfterMove(pinned, x, y, 2000, 0.001, 0);
+      assertEquals(method + ": pins after dragging a pinned point", pins, pins(solver));
+      assertEquals(x, pinned.getX());
+      assertEquals(y, pinned.getY());
+    }
+  }
+
+  /**
+   * A new solver whose random steps start from the same seed every time.
+   */
+  private static ConstraintSolver makeSolver() {
+    Entropy.setSeed(42);
+    Entropy.reset();
+    return new ConstraintSolver();
+  }
+
+  /**
+   * Adds the triangle TestLeastSquares uses, shifted right by dx, and returns its free corner: A
+   * is pinned at (dx, 0) and B at (dx + 50, 0), and C starts off near (dx + 18, 24), where it is
+   * 30 from A and 40 from B.
+   */
+  private static Pt addTriangle(ConstraintSolver solver, double dx) {
+    Pt a = new Pt(dx, 0);
+    Pt b = new Pt(dx + 50, 0);
+    Pt c = new Pt(dx + 25, 30);
+    Constraint.setPinned(a, true);
+    Constraint.setPinned(b, true);
+    solver.addPoint("a" + dx, a);
+    solver.addPoint("b" + dx, b);
+    solver.addPoint("c" + dx, c);
+    solver.addConstraint(new DistanceConstraint(a, c, new NumericValue(30)));
+    solver.addConstraint(new DistanceConstraint(b, c, new NumericValue(40)));
+    return c;
+  }
+
+  /**
+   * Adds n points in a jumbled chain, each one tied to the next two, which makes one component of
+   * almost 2n constraints, added in no particular order. The first point is pinned.
+   */
+  private static void addChain(ConstraintSolver solver, int n) {
+    Random rand = new Random(7);
+    Pt[] pts = new Pt[n];
+    for (int i = 0; i < n; i++) {
+      pts[i] = new Pt(i * 10 + rand.nextGaussian() * 3, rand.nextGaussian() * 3);
+      solver.addPoint("p" + i, pts[i]);
+    }
+    Constraint.setPinned(pts[0], true);
+    List<Constraint> constraints = new ArrayList<Constraint>();
+    for (int i = 0; i < n; i++) {
+      for (int j = i + 1; j < n && j <= i + 2; j++) {
+        constraints.add(new DistanceConstraint(pts[i], pts[j], new NumericValue(10 * (j - i))));
+      }
+    }
+    Collections.shuffle(constraints, rand); // so a point's corrections come from several chunks
+    for (Constraint c : constraints) {
+      solver.addConstraint(c);
+    }
+  }
+
+  private static List<Boolean> pins(ConstraintSolver solver) {
+    List<Boolean> ret = new ArrayList<Boolean>();
+    for (Pt pt : solver.getPoints()) {
+      ret.add(Constraint.isPinned(pt));
+    }
+    return ret;
+  }
+
+  private static List<String> locations(ConstraintSolver solver) {
+    List<String> ret = new ArrayList<String>();
+    for (Pt pt : solver.getPoints()) {
+      ret.add(ConstraintSolver.getName(pt) + " " + pt.getX() + " " + pt.getY());
+    }
+    return ret;
+  }
+}
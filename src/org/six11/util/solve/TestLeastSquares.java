@@ -0,0 +1,129 @@
+package org.six11.util.solve;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+import org.six11.util.pen.Entropy;
+import org.six11.util.pen.Pt;
+import org.six11.util.solve.ConstraintSolver.Method;
+import org.six11.util.solve.ConstraintSolver.Result;
+
+/**
+ * Checks the least squares method: the analytic error gradients against central differences, and
+ * its answers against the ones relaxation finds on the same small systems.
+ */
+public class TestLeastSquares extends TestCase {
+
+  private static final double H = 1e-6;
+
+  static {
+    Debug.enabled = false;
+  }
+
+  public void testGradientsMatchDifferences() {
+    Random rand = new Random(13);
+    double[] analytic = new double[2];
+    for (int trial = 0; trial < 20; trial++) {
+      Pt a = randomPt(rand);
+      Pt f = randomPt(rand);
+      Pt b = randomPt(rand);
+      Constraint[] constraints = new Constraint[] {
+          new DistanceConstraint(a, b, new NumericValue(30)),
+          new LocationConstraint(a, b),
+          new AngleConstraint(a, f, b, new NumericValue(Math.PI / 3))
+      };
+      for (Constraint c : constraints) {
+        for (Pt pt : c.getRelatedPoints()) {
+          assertTrue(c.getType(), c.getErrorGradient(pt, analytic));
+          assertEquals(c.getType() + " d/dx", difference(c, pt, 0), analytic[0], 1e-5);
+          assertEquals(c.getType() + " d/dy", difference(c, pt, 1), analytic[1], 1e-5);
+        }
+      }
+    }
+  }
+
+  public void testEstimatedGradientsGiveSameAnswer() {
+    Pt[] exact = triangle();
+    Pt[] estimated = triangle();
+    Result exactResult = solveTriangle(exact, Method.LeastSquares, false);
+    Result estimatedResult = solveTriangle(estimated, Method.LeastSquares, true);
+    assertTrue(exactResult.isSolved());
+    assertTrue(estimatedResult.isSolved());
+    assertEquals(exact[2].getX(), estimated[2].getX(), 0.001);
+    assertEquals(exact[2].getY(), estimated[2].getY(), 0.001);
+  }
+
+  public void testSameAnswerAsRelaxation() {
+    Pt[] relaxed = triangle();
+    Pt[] leastSquares = triangle();
+    Result relaxedResult = solveTriangle(relaxed, Method.Relaxation, false);
+    Result leastSquaresResult = solveTriangle(leastSquares, Method.LeastSquares, false);
+    assertTrue(relaxedResult.isSolved());
+    assertTrue(leastSquaresResult.isSolved());
+    assertTrue(leastSquaresResult.getIterations() <= relaxedResult.getIterations());
+    // both should find the 30-40-50 corner on the side C started on
+    assertEquals(18.0, relaxed[2].getX(), 0.05);
+    assertEquals(24.0, relaxed[2].getY(), 0.05);
+    assertEquals(18.0, leastSquares[2].getX(), 0.001);
+    assertEquals(24.0, leastSquares[2].getY(), 0.001);
+  }
+
+  /**
+   * A is pinned at the origin and B at (50, 0), and C starts off near (18, 24), where it is 30
+   * from A and 40 from B.
+   */
+  private static Pt[] triangle() {
+    Pt a = new Pt(0, 0);
+    Pt b = new Pt(50, 0);
+    Pt c = new Pt(25, 30);
+    Constraint.setPinned(a, true);
+    Constraint.setPinned(b, true);
+    return new Pt[] {
+        a, b, c
+    };
+  }
+
+  private static Result solveTriangle(Pt[] pts, Method method, boolean estimate) {
+    Entropy.setSeed(42);
+    Entropy.reset();
+    ConstraintSolver solver = new ConstraintSolver();
+    solver.setMethod(method);
+    for (int i = 0; i < pts.length; i++) {
+      solver.addPoint("p" + i, pts[i]);
+    }
+    solver.addConstraint(distance(pts[0], pts[2], 30, estimate));
+    solver.addConstraint(distance(pts[1], pts[2], 40, estimate));
+    return solver.solve(5000, 0.001, 0);
+  }
+
+  private static Constraint distance(Pt a, Pt b, double d, boolean estimate) {
+    Constraint ret;
+    if (estimate) {
+      ret = new DistanceConstraint(a, b, new NumericValue(d)) {
+        public boolean getErrorGradient(Pt pt, double[] out) {
+          return false;
+        }
+      };
+    } else {
+      ret = new DistanceConstraint(a, b, new NumericValue(d));
+    }
+    return ret;
+  }
+
+  private static double difference(Constraint c, Pt pt, int axis) {
+    double x = pt.getX();
+    double y = pt.getY();
+    pt.setLocation(x + (axis == 0 ? H : 0), y + (axis == 1 ? H : 0));
+    double plus = c.measureError();
+    pt.setLocation(x - (axis == 0 ? H : 0), y - (axis == 1 ? H : 0));
+    double minus = c.measureError();
+    pt.setLocation(x, y);
+    return (plus - minus) / (2 * H);
+  }
+
+  private static Pt randomPt(Random rand) {
+    return new Pt(rand.nextDouble() * 200 - 100, rand.nextDouble() * 200 - 100);
+  }
+}
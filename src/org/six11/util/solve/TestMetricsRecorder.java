@@ -0,0 +1,124 @@
+package org.six11.util.solve;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+import org.six11.util.pen.Entropy;
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks that a MetricsRecorder fed by a solver keeps the most recent records in order, after its
+ * ring buffer has wrapped around, and that they come back from writeTo() and readFrom() unchanged.
+ */
+public class TestMetricsRecorder extends TestCase {
+
+  static {
+    Debug.enabled = false;
+  }
+
+  public void testKeepsNewestInOrder() {
+    MetricsRecorder recorder = new MetricsRecorder(16);
+    solve(recorder, 1, false, 50);
+    assertEquals(16, recorder.size());
+    SolverMetrics m = new SolverMetrics();
+    for (int i = 0; i < recorder.size(); i++) {
+      recorder.get(i, m);
+      assertEquals(35 + i, m.getIteration());
+      assertEquals(1, m.getCount());
+      assertEquals(2, m.getNumConstraints());
+    }
+  }
+
+  public void testRoundTripAfterWrapping() throws IOException {
+    for (int capacity : new int[] {
+        1, 7, 16, 64
+    }) {
+      MetricsRecorder recorder = new MetricsRecorder(capacity);
+      solve(recorder, 1, false, 50); // 64 is more than the solve needs, so it doesn't wrap
+      MetricsRecorder copy = roundTrip(recorder);
+      assertEquals(Math.min(capacity, 50), copy.size());
+      assertEquals(describe(recorder), describe(copy));
+    }
+  }
+
+  public void testRoundTripOfAggregates() throws IOException {
+    MetricsRecorder recorder = new MetricsRecorder(3);
+    for (int i = 0; i < 5; i++) {
+      solve(recorder, 7, true, 20); // two sevens and a six from each solve
+    }
+    assertEquals(3, recorder.size());
+    SolverMetrics m = recorder.get(2, new SolverMetrics());
+    assertEquals(6, m.getCount());
+    assertEquals(20, m.getIteration());
+    assertEquals(describe(recorder), describe(roundTrip(recorder)));
+  }
+
+  public void testRejectsOtherData() {
+    try {
+      MetricsRecorder.readFrom(new ByteArrayInputStream(new byte[] {
+          1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12
+      }));
+      fail("Should not read something that isn't a metrics dump");
+    } catch (IOException ok) { /* expected */
+    }
+  }
+
+  /**
+   * Runs a solve of the given number of iterations (it never converges) that reports to the
+   * recorder.
+   */
+  private static void solve(MetricsRecorder recorder, int period, boolean aggregate,
+      int iterations) {
+    Entropy.setSeed(42);
+    Entropy.reset();
+    ConstraintSolver solver = new ConstraintSolver();
+    Pt a = new Pt(0, 0);
+    Pt b = new Pt(50, 0);
+    Pt c = new Pt(25, 30);
+    Constraint.setPinned(a, true);
+    Constraint.setPinned(b, true);
+    solver.addPoint("a", a);
+    solver.addPoint("b", b);
+    solver.addPoint("c", c);
+    solver.addConstraint(new DistanceConstraint(a, c, new NumericValue(30)));
+    solver.addConstraint(new DistanceConstraint(b, c, new NumericValue(40)));
+    solver.addMetricsListener(recorder, period, aggregate);
+    solver.solve(iterations, -1, 0);
+  }
+
+  private static MetricsRecorder roundTrip(MetricsRecorder recorder) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    recorder.writeTo(bytes);
+    assertEquals(12 + recorder.size() * MetricsRecorder.RECORD_SIZE, bytes.size());
+    return MetricsRecorder.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  /**
+   * Lists every field of every record, oldest first. The worst constraint is given by ID, since
+   * that is all a recorder keeps.
+   */
+  private static List<String> describe(MetricsRecorder recorder) {
+    List<String> ret = new ArrayList<String>();
+    SolverMetrics m = new SolverMetrics();
+    for (int i = 0; i < recorder.size(); i++) {
+      recorder.get(i, m);
+      StringBuilder buf = new StringBuilder();
+      buf.append(m.getCount()).append(' ').append(m.getIteration()).append(' ');
+      buf.append(m.getResidual()).append(' ').append(m.getMaxResidual()).append(' ');
+      buf.append(m.getHeat()).append(' ').append(m.getNanos()).append(' ');
+      buf.append(m.getWorstID()).append(' ').append(m.getWorstError()).append(' ');
+      buf.append(m.getNumConstraints());
+      for (int k = 0; k < SolverMetrics.NUM_BUCKETS; k++) {
+        buf.append(' ').append(m.getHistogramCount(k));
+      }
+      ret.add(buf.toString());
+    }
+    return ret;
+  }
+}
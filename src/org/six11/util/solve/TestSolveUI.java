@@ -74,6 +74,8 @@ public class TestSolveUI {
   private static final String ACTION_SAVE = "save";
   private static final String ACTION_OPEN = "open";
   private static final String PREF_LAST_DIRECTORY = "lastDirectory";
+  private static final double DRAG_TOLERANCE = 0.01;
+  private static final long DRAG_MILLIS = 10; // time allowed to re-solve for each drag event
 
   Map<String, Action> actions;
   File currentFile;
@@ -127,7 +129,9 @@ public class TestSolveUI {
 
       public void mouseDragged(MouseEvent ev) {
         if (dragPt != null) {
-          dragPt.setLocation(ev.getX(), ev.getY());
+          // the background loop is paused (see mousePressed), and this moves the point under the
+          // solver's lock, so a step that was already running finishes before the point moves.
+          main.solveAfterMove(dragPt, ev.getX(), ev.getY(), 0, DRAG_TOLERANCE, DRAG_MILLIS);
           canvas.repaint();
         }
       }
@@ -141,6 +145,9 @@ public class TestSolveUI {
         }
         mousePt.setLocation(who);
         dragPt = who;
+        if (dragPt != null) {
+          main.setPaused(true); // the drag re-solves locally; resumed in mouseReleased
+        }
         canvas.repaint();
       }
 
@@ -153,6 +160,7 @@ public class TestSolveUI {
       public void mouseReleased(MouseEvent ev) {
         dragPt = null;
         mousePt = null;
+        main.setPaused(false);
         main.wakeUp();
         tableModel.fireTableDataChanged();
         canvas.repaint();
@@ -249,7 +257,7 @@ public class TestSolveUI {
       public void actionPerformed(ActionEvent ev) {
         int row = table.getSelectionModel().getLeadSelectionIndex();
         Constraint constraint = tableModel.getConstraint(row);
-        main.vars.getConstraints().remove(constraint);
+        main.vars.removeConstraint(constraint);
         modelChanged();
       }
     };
@@ -612,6 +620,7 @@ public class TestSolveUI {
       main.vars.getPoints().addAll(points);
       List<Constraint> constraints = io.readConstraints(constraintArray, main.vars);
       main.vars.getConstraints().addAll(constraints);
+      main.vars.invalidateComponents();
       modelChanged();
     } catch (JSONException e) {
       // TODO Auto-generated catch block
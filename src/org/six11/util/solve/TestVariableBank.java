@@ -0,0 +1,150 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks the components a VariableBank keeps up to date as points and constraints come and go
+ * against the ones it derives from scratch for the same points and constraints.
+ */
+public class TestVariableBank extends TestCase {
+
+  static {
+    Debug.enabled = false;
+  }
+
+  public void testMergeKeepsDirtyPart() {
+    Pt a = new Pt(0, 0);
+    Pt b = new Pt(10, 0);
+    Pt x = new Pt(0, 10);
+    Pt y = new Pt(10, 10);
+    Pt z = new Pt(20, 10);
+    VariableBank vars = new VariableBank();
+    vars.addPoint(named("a", a));
+    vars.addPoint(named("b", b));
+    vars.addPoint(named("x", x));
+    vars.addPoint(named("y", y));
+    vars.addPoint(named("z", z));
+    Constraint ab = distance(a, b);
+    vars.addConstraint(ab);
+    vars.addConstraint(distance(x, y));
+    vars.addConstraint(distance(y, z));
+    assertEquals(2, vars.getComponents().size());
+    vars.removeConstraint(ab); // a and b fall apart...
+    vars.addConstraint(distance(a, x)); // ...and a joins x before anyone looks
+    assertEquals(describe(rebuild(vars)), describe(vars));
+    assertEquals(2, vars.getComponents().size());
+    assertEquals(4, vars.getComponent(a).getPoints().size());
+    assertEquals(1, vars.getComponent(b).getPoints().size());
+  }
+
+  public void testMixedEditsMatchRebuild() {
+    for (int seed = 1; seed <= 100; seed++) {
+      Random rand = new Random(seed);
+      Pt[] pool = new Pt[8];
+      for (int i = 0; i < pool.length; i++) {
+        pool[i] = named("p" + i, new Pt(rand.nextDouble() * 100, rand.nextDouble() * 100));
+      }
+      VariableBank vars = new VariableBank();
+      for (Pt pt : pool) {
+        vars.addPoint(pt);
+      }
+      for (int op = 0; op < 200; op++) {
+        int kind = rand.nextInt(10);
+        Pt pt = pool[rand.nextInt(pool.length)];
+        if (kind < 5) {
+          // no second constraint between the same two points, so removals often split things
+          Pt other = pool[rand.nextInt(pool.length)];
+          if (pt != other && vars.hasPoint(pt) && vars.hasPoint(other) && !tied(vars, pt, other)) {
+            vars.addConstraint(distance(pt, other));
+          }
+        } else if (kind < 9) {
+          List<Constraint> constraints = vars.getConstraints();
+          if (constraints.size() > 0) {
+            vars.removeConstraint(constraints.get(rand.nextInt(constraints.size())));
+          }
+        } else if (vars.hasPoint(pt)) {
+          // as ConstraintSolver.removePoint does, take its constraints with it
+          for (Constraint c : new ArrayList<Constraint>(vars.getConstraints())) {
+            if (c.involves(pt)) {
+              vars.removeConstraint(c);
+            }
+          }
+          vars.removePoint(pt);
+        } else {
+          vars.addPoint(pt);
+        }
+        if (rand.nextInt(4) == 0) { // only sometimes, so edits pile up between looks
+          assertEquals("seed " + seed + " op " + op, describe(rebuild(vars)), describe(vars));
+        }
+      }
+      assertEquals("seed " + seed, describe(rebuild(vars)), describe(vars));
+    }
+  }
+
+  private static Pt named(String name, Pt pt) {
+    ConstraintSolver.setName(pt, name);
+    return pt;
+  }
+
+  private static boolean tied(VariableBank vars, Pt a, Pt b) {
+    boolean ret = false;
+    for (Constraint c : vars.getConstraints()) {
+      ret = ret || c.involvesAll(a, b);
+    }
+    return ret;
+  }
+
+  private static Constraint distance(Pt a, Pt b) {
+    return new DistanceConstraint(a, b, new NumericValue(a.distance(b)));
+  }
+
+  /**
+   * A new bank with the same points and constraints, so its components are derived from scratch.
+   */
+  private static VariableBank rebuild(VariableBank vars) {
+    VariableBank ret = new VariableBank();
+    ret.getPoints().addAll(vars.getPoints());
+    ret.getConstraints().addAll(vars.getConstraints());
+    ret.invalidateComponents();
+    return ret;
+  }
+
+  /**
+   * Describes each component by its point names and its constraints' positions in the bank, in
+   * sorted order, so banks that group things the same way describe the same. Also checks that
+   * getComponent() agrees with getComponents() for every point.
+   */
+  private static List<String> describe(VariableBank vars) {
+    Map<Constraint, Integer> index = new IdentityHashMap<Constraint, Integer>();
+    for (Constraint c : vars.getConstraints()) {
+      index.put(c, index.size());
+    }
+    List<String> ret = new ArrayList<String>();
+    for (VariableBank.Component comp : vars.getComponents()) {
+      List<String> names = new ArrayList<String>();
+      for (Pt pt : comp.getPoints()) {
+        assertSame(comp, vars.getComponent(pt));
+        names.add(ConstraintSolver.getName(pt));
+      }
+      Collections.sort(names);
+      List<String> which = new ArrayList<String>();
+      for (Constraint c : comp.getConstraints()) {
+        which.add(index.containsKey(c) ? "c" + index.get(c) : "removed"); // names sort the same
+      }
+      Collections.sort(which);
+      ret.add(names + " " + which);
+    }
+    Collections.sort(ret);
+    return ret;
+  }
+}
@@ -1,21 +1,111 @@
 package org.six11.util.solve;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import static org.six11.util.Debug.bug;
 
 import org.six11.util.pen.Pt;
 
+/**
+ * The points and constraints of a constraint system. It also knows how the system breaks into
+ * components: groups of points that are tied together by constraints (directly or through other
+ * points), and the constraints among them. Separate shapes on one canvas are separate components,
+ * and the solver can work on each by itself.
+ * 
+ * The components are kept up to date as points and constraints are added and removed with the
+ * methods here. Adding only merges the components involved; removing re-derives only the component
+ * that lost something, the next time components are asked for. If you change the lists from
+ * getPoints() or getConstraints() directly, call invalidateComponents() afterwards.
+ */
 public class VariableBank {
 
+  /**
+   * A connected part of the constraint system. Its point and constraint lists are read-only views.
+   */
+  public static class Component {
+    private List<Pt> points;
+    private List<Constraint> constraints;
+
+    // the solver's bookkeeping for this component, kept here so it lives as long as the component.
+    SolverState state;
+    double residual;
+    double[] solvedAt; // where the points were when it was last solved, or null
+    private Map<Pt, List<Constraint>> involving; // made when first needed
+
+    private Component() {
+      this.points = new ArrayList<Pt>();
+      this.constraints = new ArrayList<Constraint>();
+      this.state = new SolverState();
+    }
+
+    public List<Pt> getPoints() {
+      return Collections.unmodifiableList(points);
+    }
+
+    public List<Constraint> getConstraints() {
+      return Collections.unmodifiableList(constraints);
+    }
+
+    /**
+     * Returns the constraints in this component that involve the given point.
+     */
+    public List<Constraint> getConstraintsInvolving(Pt pt) {
+      if (involving == null) {
+        involving = new IdentityHashMap<Pt, List<Constraint>>();
+        for (Constraint c : constraints) {
+          for (Pt related : c.getRelatedPoints()) {
+            List<Constraint> list = involving.get(related);
+            if (list == null) {
+              list = new ArrayList<Constraint>();
+              involving.put(related, list);
+            }
+            if (!list.contains(c)) {
+              list.add(c);
+            }
+          }
+        }
+      }
+      List<Constraint> ret = involving.get(pt);
+      if (ret == null) {
+        ret = Collections.emptyList();
+      }
+      return Collections.unmodifiableList(ret);
+    }
+
+    /**
+     * Forgets everything derived from the component's structure.
+     */
+    private void changed() {
+      solvedAt = null;
+      involving = null;
+    }
+
+    public String toString() {
+      return "Component of " + points.size() + " points and " + constraints.size()
+          + " constraints";
+    }
+  }
+
   private List<Pt> points;
   private List<Constraint> constraints;
+  private List<Component> components; // null if they must be derived from scratch
+  private Map<Pt, Component> componentOf;
+  private Map<Constraint, Component> constraintComponent;
+  private Set<Component> dirty; // components that lost a point or constraint
+  private boolean dangling; // true if some constraint involves a point that isn't here (yet)
   
   public VariableBank() {
     points = new ArrayList<Pt>();
     constraints = new ArrayList<Constraint>();
+    componentOf = new IdentityHashMap<Pt, Component>();
+    constraintComponent = new IdentityHashMap<Constraint, Component>();
+    dirty = new LinkedHashSet<Component>();
   }
 
   public List<Constraint> getConstraints() {
@@ -29,8 +119,197 @@ public class VariableBank {
   public void clear() {
     points.clear();
     getConstraints().clear();
+    invalidateComponents();
   }
-  
+
+  public void addPoint(Pt pt) {
+    if (!points.contains(pt)) {
+      points.add(pt);
+      if (dangling) {
+        invalidateComponents(); // it might be the missing point of some constraint
+      } else if (components != null) {
+        Component comp = new Component();
+        comp.points.add(pt);
+        componentOf.put(pt, comp);
+        components.add(comp);
+      }
+    }
+  }
+
+  public void addConstraint(Constraint c) {
+    if (!constraints.contains(c)) {
+      constraints.add(c);
+      if (components != null) {
+        Component into = null;
+        for (Pt pt : c.getRelatedPoints()) {
+          Component comp = componentOf.get(pt);
+          if (comp == null) {
+            dangling = true;
+          } else if (into == null) {
+            into = comp;
+          } else if (comp != into) {
+            into = merge(into, comp);
+          }
+        }
+        if (into != null) {
+          into.constraints.add(c);
+          into.changed();
+          constraintComponent.put(c, into);
+        }
+      }
+    }
+  }
+
+  public boolean removeConstraint(Constraint c) {
+    boolean ret = constraints.remove(c);
+    if (ret && components != null) {
+      Component comp = constraintComponent.remove(c);
+      if (comp != null) {
+        comp.constraints.remove(c);
+        comp.changed();
+        dirty.add(comp);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Removes the point. Constraints involving it are left alone, so the caller should fix or remove
+   * them (see ConstraintSolver.removePoint).
+   */
+  public boolean removePoint(Pt pt) {
+    boolean ret = points.remove(pt);
+    if (ret && components != null) {
+      Component comp = componentOf.remove(pt);
+      if (comp != null) {
+        comp.points.remove(pt);
+        comp.changed();
+        dirty.add(comp);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Makes the next call to getComponents() derive them from scratch. Call this after changing the
+   * point or constraint lists directly, or changing which points a constraint involves.
+   */
+  public void invalidateComponents() {
+    components = null;
+  }
+
+  /**
+   * Returns the components of the system, in a read-only list. Points with no constraints are
+   * components of their own.
+   */
+  public List<Component> getComponents() {
+    if (components == null) {
+      componentOf.clear();
+      constraintComponent.clear();
+      dirty.clear();
+      dangling = false;
+      components = findComponents(points, constraints);
+    } else if (!dirty.isEmpty()) {
+      for (Component comp : dirty) {
+        int where = components.indexOf(comp);
+        if (where >= 0) {
+          components.remove(where);
+          components.addAll(where, findComponents(comp.points, comp.constraints));
+        }
+      }
+      dirty.clear();
+    }
+    return Collections.unmodifiableList(components);
+  }
+
+  /**
+   * Returns the component the point is in, or null if it isn't one of the points here.
+   */
+  public Component getComponent(Pt pt) {
+    getComponents();
+    return componentOf.get(pt);
+  }
+
+  /**
+   * Puts the smaller component's points and constraints into the bigger one, and returns the
+   * bigger one.
+   */
+  private Component merge(Component a, Component b) {
+    Component big = (a.points.size() >= b.points.size()) ? a : b;
+    Component small = (big == a) ? b : a;
+    for (Pt pt : small.points) {
+      componentOf.put(pt, big);
+    }
+    for (Constraint c : small.constraints) {
+      constraintComponent.put(c, big);
+    }
+    big.points.addAll(small.points);
+    big.constraints.addAll(small.constraints);
+    big.changed();
+    components.remove(small);
+    if (dirty.remove(small)) {
+      dirty.add(big); // small's leftovers may be split, and they are in big now
+    }
+    return big;
+  }
+
+  /**
+   * Groups the given points and constraints into components with union-find, and records which
+   * component each point and constraint is in. Each component lists its points and constraints in
+   * the order they were given.
+   */
+  private List<Component> findComponents(List<Pt> pts, List<Constraint> cons) {
+    Map<Pt, Integer> index = new IdentityHashMap<Pt, Integer>();
+    for (int i = 0; i < pts.size(); i++) {
+      index.put(pts.get(i), i);
+    }
+    int[] parent = new int[pts.size()];
+    for (int i = 0; i < parent.length; i++) {
+      parent[i] = i;
+    }
+    int[] home = new int[cons.size()]; // one of each constraint's points, or -1
+    for (int k = 0; k < cons.size(); k++) {
+      home[k] = -1;
+      for (Pt pt : cons.get(k).getRelatedPoints()) {
+        Integer i = index.get(pt);
+        if (i == null) {
+          dangling = true;
+        } else if (home[k] < 0) {
+          home[k] = i;
+        } else {
+          parent[root(parent, i)] = root(parent, home[k]);
+        }
+      }
+    }
+    List<Component> ret = new ArrayList<Component>();
+    Component[] byRoot = new Component[pts.size()];
+    for (int i = 0; i < pts.size(); i++) {
+      int r = root(parent, i);
+      if (byRoot[r] == null) {
+        byRoot[r] = new Component();
+        ret.add(byRoot[r]);
+      }
+      byRoot[r].points.add(pts.get(i));
+      componentOf.put(pts.get(i), byRoot[r]);
+    }
+    for (int k = 0; k < cons.size(); k++) {
+      if (home[k] >= 0) {
+        Component comp = byRoot[root(parent, home[k])];
+        comp.constraints.add(cons.get(k));
+        constraintComponent.put(cons.get(k), comp);
+      }
+    }
+    return ret;
+  }
+
+  private static int root(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
   public Pt getPointWithName(String n) {
     Pt ret = null;
     for (Pt pt : points) {
@@ -6,6 +6,8 @@ import java.util.Map;
 public abstract class Constraint extends Node {
 
   protected Map<String, Geom> geometry;
+  boolean queued; // on the model's worklist
+  int position = -1; // where it is in the model's list of constraints
 
   public Constraint() {
     this.geometry = new HashMap<String, Geom>();
@@ -2,21 +2,50 @@ package org.six11.util.spud;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
 import org.six11.util.Debug;
 
+/**
+ * A set of constraints solved by propagation. solve() keeps a worklist of constraints: each is
+ * tried once, and after that a constraint is only tried again when one of the slots of its
+ * geometry becomes valid (or its geometry asks, with Geom.solveRelatedConstraints). The number of
+ * unsolved constraints and geometry is kept up to date as things are solved rather than recounted,
+ * so a solve takes time in proportion to the size of the constraint network.
+ *
+ * The constraints that made progress during a solve, in order, can be kept as a SolvePlan (see
+ * compile()) and used to solve other models with the same structure without the search.
+ */
 public class ConstraintModel {
 
   private List<Constraint> constraints;
+  private Set<Geom> unsolvedGeometry;
+  private Set<Geom> allGeometry;
+  private int numUnsolvedConstraints;
+  private LinkedList<Constraint> worklist;
+  private LinkedList<Geom> changedGeometry;
+  private List<Integer> fired; // positions of the constraints that made progress, in order
+  private boolean haveSolved;
+  private boolean replaying; // following a plan, so nothing is queued
 
   public ConstraintModel() {
     this.constraints = new ArrayList<Constraint>();
+    this.unsolvedGeometry = new HashSet<Geom>();
+    this.allGeometry = new HashSet<Geom>();
+    this.worklist = new LinkedList<Constraint>();
+    this.changedGeometry = new LinkedList<Geom>();
+    this.fired = new ArrayList<Integer>();
   }
 
   public void addConstraint(Constraint c) {
+    c.position = constraints.size();
     constraints.add(c);
+    if (!c.isSolved()) {
+      numUnsolvedConstraints++;
+    }
+    register(c);
   }
 
   public String getMondoDebugString() {
@@ -34,41 +63,173 @@ public class ConstraintModel {
 
   public void solve() {
     long startTime = System.currentTimeMillis();
-    int lastUnsolved = countUnsolved();
-    boolean progress;
-    do {
-      solveRound();
-      int thisUnsolved = countUnsolved();
-      progress = thisUnsolved < lastUnsolved;
-      lastUnsolved = thisUnsolved;
-    } while (lastUnsolved > 0 && progress);
+    fired.clear();
+    noticeChanges(true); // geometry may have been given values since the last solve
+    propagate();
+    haveSolved = true;
     long endTime = System.currentTimeMillis();
-    bug("solve() complete: " + (endTime - startTime) + " ms, " + lastUnsolved
+    bug("solve() complete: " + (endTime - startTime) + " ms, " + countUnsolved()
         + " unsolved variables");
   }
 
-  private int countUnsolved() {
-    int numUnsolved = 0;
-    Set<Geom> vars = new HashSet<Geom>();
+  /**
+   * Solves by running the constraints in the order given by a plan compiled from another model
+   * with the same structure, rather than searching for an order. If that leaves more unsolved
+   * than it did when the plan was compiled, the rest is done by the usual worklist, so the result
+   * is the same either way.
+   */
+  public void solve(SolvePlan plan) {
+    if (!plan.fits(constraints)) {
+      throw new IllegalArgumentException("This plan was compiled from a different constraint model");
+    }
+    long startTime = System.currentTimeMillis();
+    fired.clear();
+    noticeChanges(false);
+    replaying = true;
+    try {
+      for (int i = 0; i < plan.getNumSteps(); i++) {
+        run(constraints.get(plan.getStep(i)));
+        noticeChanges(false);
+      }
+    } finally {
+      replaying = false;
+    }
+    boolean fellBack = countUnsolved() > plan.getNumUnsolved();
+    if (fellBack) {
+      propagate();
+    }
+    haveSolved = true;
+    long endTime = System.currentTimeMillis();
+    bug("solve(plan) complete: " + (endTime - startTime) + " ms, " + countUnsolved()
+        + " unsolved variables" + (fellBack ? " (the plan didn't fit these inputs)" : ""));
+  }
+
+  /**
+   * Makes a plan from the most recent solve: the constraints that made progress, in the order
+   * they did so.
+   */
+  public SolvePlan compile() {
+    if (!haveSolved) {
+      throw new IllegalStateException("There is no solve to compile a plan from yet");
+    }
+    int[] steps = new int[fired.size()];
+    for (int i = 0; i < steps.length; i++) {
+      steps[i] = fired.get(i);
+    }
+    return new SolvePlan(constraints, steps, countUnsolved());
+  }
+
+  /**
+   * Tries every constraint, then keeps going until the worklist is empty.
+   */
+  private void propagate() {
     for (Constraint c : constraints) {
-      if (!c.isSolved()) {
-        numUnsolved++;
+      enqueue(c);
+    }
+    while (!worklist.isEmpty()) {
+      Constraint c = worklist.removeFirst();
+      c.queued = false;
+      run(c);
+      noticeChanges(true);
+    }
+  }
+
+  /**
+   * Gives one constraint a try, keeping the counts up to date and noting whether it made progress.
+   */
+  private void run(Constraint c) {
+    boolean wasSolved = c.isSolved();
+    int before = countProgress(c);
+    c.solveSafely();
+    if (!wasSolved && c.isSolved()) {
+      numUnsolvedConstraints--;
+    }
+    register(c); // solving can add new geometry to a constraint
+    if (!changedGeometry.isEmpty() || countProgress(c) != before) {
+      fired.add(c.position);
+    }
+  }
+
+  /**
+   * Adds up what is known about a constraint and its geometry: solved things, valid slots and
+   * solution space hints. None of these are ever taken back, so if the sum has changed after the
+   * constraint is tried, it did something.
+   */
+  private int countProgress(Constraint c) {
+    int ret = c.isSolved() ? 1 : 0;
+    for (Geom g : c.geometry.values()) {
+      if (g != null) {
+        ret = ret + 1 + g.solutionSpace.size() + (g.isSolved() ? 1 : 0);
+        for (Slot slot : g.slots.values()) {
+          if (slot.valid) {
+            ret++;
+          }
+        }
       }
-      for (Geom value : c.geometry.values()) {
-        vars.add(value);
+    }
+    return ret;
+  }
+
+  /**
+   * The number of unsolved constraints plus the number of unsolved pieces of geometry.
+   */
+  private int countUnsolved() {
+    return numUnsolvedConstraints + unsolvedGeometry.size();
+  }
+
+  /**
+   * Makes sure each piece of the constraint's geometry knows about it and this model.
+   */
+  private void register(Constraint c) {
+    for (Geom g : c.geometry.values()) {
+      if (g != null) {
+        g.addConstraint(c);
+        g.model = this;
+        if (allGeometry.add(g) && !g.isSolved()) {
+          unsolvedGeometry.add(g);
+        }
       }
     }
-    for (Geom var : vars) {
-      if (var != null && !var.isSolved()) {
-        numUnsolved++;
+  }
+
+  /**
+   * Called by geometry when one of its slots becomes valid.
+   */
+  void changed(Geom g) {
+    changedGeometry.add(g);
+  }
+
+  /**
+   * Queues the unsolved constraints involving the given geometry.
+   */
+  void wake(Geom g) {
+    if (!replaying) {
+      for (Constraint c : g.relatedConstraints) {
+        enqueue(c);
       }
     }
-    return numUnsolved;
   }
 
-  private void solveRound() {
-    for (Constraint c : constraints) {
-      c.solveSafely();
+  /**
+   * Counts the changed geometry that has become solved, and if wake is true queues the
+   * constraints involving each piece of changed geometry.
+   */
+  private void noticeChanges(boolean wake) {
+    while (!changedGeometry.isEmpty()) {
+      Geom g = changedGeometry.removeFirst();
+      if (g.isSolved()) {
+        unsolvedGeometry.remove(g);
+      }
+      if (wake) {
+        wake(g);
+      }
+    }
+  }
+
+  private void enqueue(Constraint c) {
+    if (!c.queued && !c.isSolved()) {
+      c.queued = true;
+      worklist.add(c);
     }
   }
 
@@ -17,6 +17,7 @@ public abstract class Geom extends Node {
   Map<String, Slot> slots;
   List<Constraint> relatedConstraints;
   Set<Geom> solutionSpace;
+  ConstraintModel model; // the model whose constraints use this, if any
 
   public enum Type {
     Point, Line, Circle, Number, NearPoint, PointSet, Rectangle, Vector, Infinity, Nothing
@@ -51,7 +52,15 @@ public abstract class Geom extends Node {
   }
 
   public void addSlot(String slotName) {
-    slots.put(slotName, new Slot(slotName));
+    Slot slot = new Slot(slotName);
+    slot.owner = this;
+    slots.put(slotName, slot);
+  }
+
+  void slotBecameValid(Slot slot) {
+    if (model != null) {
+      model.changed(this);
+    }
   }
 
   public String getMondoDebugString(String leadingSpace) {
@@ -96,8 +105,14 @@ public abstract class Geom extends Node {
         + ". Override it!");
   }
 
+  /**
+   * Gives the constraints involving this another chance to solve, if this is solved. For geometry
+   * in a ConstraintModel, they are queued for the model's solve() rather than solved right here.
+   */
   public void solveRelatedConstraints() {
-    if (isSolved()) {
+    if (isSolved() && model != null) {
+      model.wake(this);
+    } else if (isSolved()) {
       for (Constraint c : relatedConstraints) {
         c.solveSafely();
       }
@@ -16,6 +16,7 @@ public class Slot {
   protected String type;
   protected Object value;
   protected boolean valid;
+  Geom owner; // told when this becomes valid, so its constraints can be woken up
 
   public Slot(String type) {
     this.type = type;
@@ -23,8 +24,12 @@ public class Slot {
   }
 
   public void setValue(Object value) {
+    boolean wasValid = valid;
     this.value = value;
     this.valid = true;
+    if (!wasValid && owner != null) {
+      owner.slotBecameValid(this);
+    }
   }
 
   public boolean isValid() {
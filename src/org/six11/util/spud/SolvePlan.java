@@ -0,0 +1,59 @@
+package org.six11.util.spud;
+
+import java.util.List;
+
+/**
+ * The order in which a ConstraintModel's constraints made progress during a solve, made by
+ * ConstraintModel.compile(). Giving it to ConstraintModel.solve(SolvePlan) on another model built
+ * the same way (the same kinds of constraint, added in the same order, over geometry wired up the
+ * same way) solves that model by running just those constraints in that order, with no worklist
+ * and none of the tries that got nowhere.
+ *
+ * A plan only records what worked for the inputs it was compiled from. If different inputs make
+ * it leave more unsolved than it did then, the model finishes with an ordinary solve().
+ */
+public class SolvePlan {
+
+  private final Class<?>[] kinds; // the class of each constraint in the model, by position
+  private final int[] steps; // positions of the constraints to run, in order
+  private final int numUnsolved;
+
+  SolvePlan(List<Constraint> constraints, int[] steps, int numUnsolved) {
+    this.kinds = new Class<?>[constraints.size()];
+    for (int i = 0; i < kinds.length; i++) {
+      kinds[i] = constraints.get(i).getClass();
+    }
+    this.steps = steps;
+    this.numUnsolved = numUnsolved;
+  }
+
+  /**
+   * Returns true if the given constraints are the same kinds, in the same order, as the ones this
+   * plan was compiled from.
+   */
+  public boolean fits(List<Constraint> constraints) {
+    boolean ret = (constraints.size() == kinds.length);
+    for (int i = 0; ret && i < kinds.length; i++) {
+      ret = (constraints.get(i).getClass() == kinds[i]);
+    }
+    return ret;
+  }
+
+  /**
+   * The number of constraints run by the plan.
+   */
+  public int getNumSteps() {
+    return steps.length;
+  }
+
+  int getStep(int i) {
+    return steps[i];
+  }
+
+  /**
+   * The number of unsolved constraints and geometry left by the solve this came from.
+   */
+  public int getNumUnsolved() {
+    return numUnsolved;
+  }
+}
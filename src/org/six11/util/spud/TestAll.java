@@ -0,0 +1,14 @@
+package org.six11.util.spud;
+
+import junit.framework.TestSuite;
+import junit.framework.Test;
+/**
+ *
+ **/
+public class TestAll {
+  public static Test suite() {
+    TestSuite suite = new TestSuite("Spud Constraint Model Tests");
+    suite.addTest(new TestSuite(TestConstraintModel.class));
+    return suite;
+  }
+}
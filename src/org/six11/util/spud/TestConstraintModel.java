@@ -0,0 +1,286 @@
+package org.six11.util.spud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.six11.util.Debug;
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks that ConstraintModel.solve() ends up where the old round-robin solve did, on the models
+ * from spud.Test and on a chain of midpoints given in the worst order for round-robin, and that
+ * replaying a compiled SolvePlan ends up where solve() does.
+ */
+public class TestConstraintModel extends TestCase {
+
+  static {
+    Debug.enabled = false;
+  }
+
+  /**
+   * Makes a fresh copy of one model's constraints, with its inputs moved by shift.
+   */
+  interface Scenario {
+    List<Constraint> build(double shift);
+  }
+
+  public void testSameAsRoundRobin() {
+    for (Scenario scenario : scenarios()) {
+      List<Constraint> expected = scenario.build(0);
+      roundRobinSolve(expected);
+      List<Constraint> actual = scenario.build(0);
+      modelOf(actual).solve();
+      assertEquals(describe(expected), describe(actual));
+    }
+  }
+
+  public void testChainIsSolved() {
+    List<Constraint> chain = midpointChain(0, 50);
+    modelOf(chain).solve();
+    for (Constraint c : chain) {
+      assertTrue(c.toString(), c.isSolved());
+    }
+  }
+
+  public void testPlanSameAsSolve() {
+    for (Scenario scenario : scenarios()) {
+      ConstraintModel compiled = modelOf(scenario.build(0));
+      compiled.solve();
+      SolvePlan plan = compiled.compile();
+      List<Constraint> expected = scenario.build(7);
+      modelOf(expected).solve();
+      List<Constraint> actual = scenario.build(7); // other inputs, same structure
+      modelOf(actual).solve(plan);
+      assertEquals(describe(expected), describe(actual));
+    }
+  }
+
+  public void testPlanFallsBack() {
+    // compiled where the line's point is given, replayed where it has to be found first
+    CPoint given = new CPoint(new Pt(20, 30));
+    List<Constraint> first = pointThenLine(given);
+    ConstraintModel compiled = modelOf(first);
+    compiled.solve();
+    SolvePlan plan = compiled.compile();
+    List<Constraint> expected = pointThenLine(new CPoint());
+    modelOf(expected).solve();
+    List<Constraint> actual = pointThenLine(new CPoint());
+    modelOf(actual).solve(plan);
+    assertEquals(describe(expected), describe(actual));
+    assertTrue(actual.get(0).isSolved()); // only the fallback gets to the line
+  }
+
+  public void testPlanMustFit() {
+    ConstraintModel compiled = modelOf(midpointChain(0, 5));
+    try {
+      compiled.compile();
+      fail("Should not compile a plan before solving");
+    } catch (IllegalStateException ok) { /* expected */
+    }
+    compiled.solve();
+    SolvePlan plan = compiled.compile();
+    assertTrue(plan.fits(midpointChain(3, 5)));
+    assertFalse(plan.fits(midpointChain(0, 6)));
+    try {
+      modelOf(midpointChain(0, 6)).solve(plan);
+      fail("Should not use a plan from a different model");
+    } catch (IllegalArgumentException ok) { /* expected */
+    }
+  }
+
+  static ConstraintModel modelOf(List<Constraint> constraints) {
+    ConstraintModel ret = new ConstraintModel();
+    for (Constraint c : constraints) {
+      ret.addConstraint(c);
+    }
+    return ret;
+  }
+
+  /**
+   * The solve() from before the worklist: every constraint, round after round, until the number of
+   * unsolved constraints and geometry stops falling.
+   */
+  static void roundRobinSolve(List<Constraint> constraints) {
+    int lastUnsolved = countUnsolved(constraints);
+    boolean progress;
+    do {
+      for (Constraint c : constraints) {
+        c.solveSafely();
+      }
+      int thisUnsolved = countUnsolved(constraints);
+      progress = thisUnsolved < lastUnsolved;
+      lastUnsolved = thisUnsolved;
+    } while (lastUnsolved > 0 && progress);
+  }
+
+  private static int countUnsolved(List<Constraint> constraints) {
+    int ret = 0;
+    List<Geom> seen = new ArrayList<Geom>();
+    for (Constraint c : constraints) {
+      if (!c.isSolved()) {
+        ret++;
+      }
+      for (Geom g : c.geometry.values()) {
+        if (g != null && !seen.contains(g)) {
+          seen.add(g);
+          if (!g.isSolved()) {
+            ret++;
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Lists whether each constraint and each of its pieces of geometry is solved, and what the
+   * geometry's value is, in constraint order.
+   */
+  static List<String> describe(List<Constraint> constraints) {
+    List<String> ret = new ArrayList<String>();
+    for (Constraint c : constraints) {
+      ret.add(c + (c.isSolved() ? " solved" : " unsolved"));
+      Map<String, Geom> sorted = new TreeMap<String, Geom>(c.geometry);
+      for (Map.Entry<String, Geom> entry : sorted.entrySet()) {
+        Geom g = entry.getValue();
+        String value = (g == null) ? "null" : (g.isSolved() ? "solved " : "unsolved ")
+            + g.getDebugString();
+        ret.add("  " + entry.getKey() + ": " + value);
+      }
+    }
+    return ret;
+  }
+
+  static List<Scenario> scenarios() {
+    List<Scenario> ret = new ArrayList<Scenario>();
+    ret.add(new Scenario() { // line definition (Test 3)
+          public List<Constraint> build(double shift) {
+            List<Constraint> ret = new ArrayList<Constraint>();
+            ret.add(new CLineDefinition(new CLine(), new CPoint(new Pt(20 + shift, 30)),
+                new CVec(0, 1)));
+            return ret;
+          }
+        });
+    ret.add(new Scenario() { // point on two lines (Test 4)
+          public List<Constraint> build(double shift) {
+            List<Constraint> ret = new ArrayList<Constraint>();
+            CLine lineA = new CLine();
+            ret.add(new CLineDefinition(lineA, new CPoint(new Pt(20 + shift, 30)), new CVec(0, 1)));
+            CLine lineB = new CLine();
+            ret.add(new CLineDefinition(lineB, new CPoint(new Pt(50, 70 + shift)), new CVec(1, 0)));
+            Geom unknown = new CPoint();
+            ret.add(new CPointOnLine(lineA, unknown));
+            ret.add(new CPointOnLine(lineB, unknown));
+            return ret;
+          }
+        });
+    ret.add(new Scenario() { // perpendicular lines (Test 5)
+          public List<Constraint> build(double shift) {
+            List<Constraint> ret = new ArrayList<Constraint>();
+            Geom ptA = new CPoint(new Pt(10 + shift, 50));
+            CLine lineA = new CLine();
+            ret.add(new CLineDefinition(lineA, ptA, new CVec(0, 1)));
+            ret.add(new CPointOnLine(lineA, ptA));
+            CLine lineB = new CLine();
+            ret.add(new CPerpendicularLines(lineA, lineB));
+            ret.add(new CPointOnLine(lineB, new CPoint(new Pt(70, 15 + shift))));
+            Geom unknown = new CPoint();
+            ret.add(new CPointOnLine(lineA, unknown));
+            ret.add(new CPointOnLine(lineB, unknown));
+            return ret;
+          }
+        });
+    ret.add(new Scenario() { // distance from a point on a line (Test 6)
+          public List<Constraint> build(double shift) {
+            List<Constraint> ret = new ArrayList<Constraint>();
+            CPoint ptA = new CPoint(new Pt(10 + shift, 50));
+            CLine lineA = new CLine();
+            ret.add(new CLineDefinition(lineA, ptA, new CVec(0, 1)));
+            CDouble dist = new CDouble();
+            ret.add(new CDoubleDefinition(dist, 30));
+            CPoint ptB = new CPoint();
+            ret.add(new CDistance(ptA, ptB, dist));
+            ret.add(new CPointOnLine(lineA, ptB));
+            return ret;
+          }
+        });
+    ret.add(new Scenario() { // distance alone (Test 7)
+          public List<Constraint> build(double shift) {
+            List<Constraint> ret = new ArrayList<Constraint>();
+            ret.add(new CDistance(new CPoint(new Pt(50 + shift, 50)), new CPoint(),
+                new CDouble(30)));
+            return ret;
+          }
+        });
+    ret.add(new Scenario() { // points along segments (Test 8)
+          public List<Constraint> build(double shift) {
+            List<Constraint> ret = new ArrayList<Constraint>();
+            CPoint ptA = new CPoint(new Pt(100 + shift, 100));
+            CPoint ptB = new CPoint(new Pt(200, 200 + shift));
+            CLine lineA = new CLine();
+            ret.add(new CPointOnLine(lineA, ptA));
+            ret.add(new CPointOnLine(lineA, ptB));
+            CPoint ptM = new CPoint();
+            ret.add(new CPointAlongSegment(ptA, ptB, ptM, 0.5));
+            CPoint ptQ = new CPoint();
+            ret.add(new CPointAlongSegment(ptM, ptB, ptQ, 0.6));
+            CPoint ptR = new CPoint();
+            ret.add(new CPointAlongSegment(ptR, ptM, ptA, 0.2));
+            return ret;
+          }
+        });
+    ret.add(new Scenario() { // parallel lines (Test 9)
+          public List<Constraint> build(double shift) {
+            List<Constraint> ret = new ArrayList<Constraint>();
+            Geom ptA = new CPoint(new Pt(10 + shift, 50));
+            CLine lineA = new CLine();
+            ret.add(new CLineDefinition(lineA, ptA, new CVec(0, 1)));
+            ret.add(new CPointOnLine(lineA, ptA));
+            CLine lineB = new CLine();
+            ret.add(new CParallelLines(lineA, lineB));
+            ret.add(new CPointOnLine(lineB, new CPoint(new Pt(70, 15 + shift))));
+            return ret;
+          }
+        });
+    ret.add(new Scenario() {
+          public List<Constraint> build(double shift) {
+            return midpointChain(shift, 20);
+          }
+        });
+    return ret;
+  }
+
+  /**
+   * A known start point, then n more points, each halfway from the one before to its own known
+   * anchor. The constraints are listed last point first, so round-robin finds only one more point
+   * per round.
+   */
+  static List<Constraint> midpointChain(double shift, int n) {
+    List<Constraint> ret = new ArrayList<Constraint>();
+    CPoint[] pts = new CPoint[n + 1];
+    pts[0] = new CPoint(new Pt(shift, 0));
+    for (int i = 1; i <= n; i++) {
+      pts[i] = new CPoint();
+    }
+    for (int i = n; i > 0; i--) {
+      CPoint anchor = new CPoint(new Pt(10 * i + shift, 5 * (i % 3)));
+      ret.add(new CPointAlongSegment(pts[i - 1], anchor, pts[i], 0.5));
+    }
+    return ret;
+  }
+
+  /**
+   * A line through a point in a fixed direction, listed after it, where the point is at (20, 30)
+   * if it isn't known already.
+   */
+  private static List<Constraint> pointThenLine(CPoint pt) {
+    List<Constraint> ret = new ArrayList<Constraint>();
+    ret.add(new CLineDefinition(new CLine(), pt, new CVec(0, 1)));
+    ret.add(new CPointLocation(pt, new Pt(20, 30)));
+    return ret;
+  }
+}